@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
+
+import android.content.Context;
+import android.os.BatteryStats;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Time for a number of concurrent callers, like the binder threads of system_server, to each
+ * report a burst of wakelock acquisitions and releases to {@link BatteryStatsService}. Only the
+ * callers are timed; the updates are applied before the next iteration.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class BatteryStatsServicePerfTest {
+    private static final int CALLS_PER_CALLER = 100;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public int mCallerCount;
+
+    @Parameterized.Parameters(name = "{0}callers")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] { { 1 }, { 4 }, { 16 } });
+    }
+
+    private HandlerThread mAmThread;
+    private BatteryStatsService mService;
+    private ExecutorService mCallers;
+
+    @Before
+    public void setUp() {
+        final Context context = getInstrumentation().getTargetContext();
+        mAmThread = new HandlerThread("BatteryStatsServicePerfTest");
+        mAmThread.start();
+        mService = new BatteryStatsService(context,
+                new File(context.getCacheDir(), "batterystats"),
+                new Handler(mAmThread.getLooper()));
+        mCallers = Executors.newFixedThreadPool(mCallerCount);
+    }
+
+    @After
+    public void tearDown() {
+        mCallers.shutdownNow();
+        mAmThread.quitSafely();
+    }
+
+    @Test
+    public void timeNoteStartStopWakelock() throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(mCallerCount + 1);
+        final Future<?>[] callers = new Future<?>[mCallerCount];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            for (int i = 0; i < mCallerCount; i++) {
+                final int uid = Process.FIRST_APPLICATION_UID + i;
+                final String name = "wakelock" + i;
+                callers[i] = mCallers.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < CALLS_PER_CALLER; j++) {
+                        mService.noteStartWakelock(uid, 0, name, null,
+                                BatteryStats.WAKE_TYPE_PARTIAL, false);
+                        mService.noteStopWakelock(uid, 0, name, null,
+                                BatteryStats.WAKE_TYPE_PARTIAL);
+                    }
+                    return null;
+                });
+            }
+            state.resumeTiming();
+
+            start.await();
+            for (Future<?> caller : callers) {
+                caller.get();
+            }
+
+            state.pauseTiming();
+            mService.awaitCompletion();
+            start.reset();
+            state.resumeTiming();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static androidx.test.platform.app.InstrumentationRegistry.getInstrumentation;
+
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+import android.app.IApplicationThread;
+import android.app.IServiceConnection;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManagerInternal;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.PowerManagerInternal;
+import android.os.Process;
+import android.os.SystemClock;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.server.LocalServices;
+import com.android.server.ServiceThread;
+import com.android.server.appop.AppOpsService;
+import com.android.server.wm.ActivityServiceConnectionsHolder;
+import com.android.server.wm.ActivityTaskManagerService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the cost of a full oom adj update against an incremental one after a binding of a
+ * client went away, for a growing number of processes.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class OomAdjusterPerfTest {
+    private static final int FIRST_PID = 20000;
+    private static final int FIRST_UID = 10000;
+    // Every process binds to a service of the next one in chains of this length, so about one
+    // in CHAIN_LENGTH processes is reachable from the process whose binding changes.
+    private static final int CHAIN_LENGTH = 4;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public int mProcessCount;
+
+    @Parameterized.Parameters(name = "{0}procs")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] { { 50 }, { 150 }, { 300 } });
+    }
+
+    private ServiceThread mThread;
+    private ActivityManagerService mService;
+    private final ArrayList<ProcessRecord> mProcesses = new ArrayList<>();
+    private ConnectionRecord mChangingConnection;
+
+    @Before
+    public void setUp() {
+        final Context context = getInstrumentation().getTargetContext();
+        System.setProperty("dexmaker.share_classloader", "true");
+
+        final PackageManagerInternal pmInternal = mock(PackageManagerInternal.class);
+        doReturn(new ComponentName("", "")).when(pmInternal).getSystemUiServiceComponent();
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.addService(PackageManagerInternal.class, pmInternal);
+
+        mThread = new ServiceThread("OomAdjusterPerfTest", Process.THREAD_PRIORITY_DEFAULT,
+                true /* allowIo */);
+        mThread.start();
+        mService = new ActivityManagerService(new TestInjector(context), mThread);
+        mService.mActivityTaskManager = new ActivityTaskManagerService(context);
+        mService.mActivityTaskManager.initialize(null, null, context.getMainLooper());
+        mService.mPackageManagerInt = pmInternal;
+        mService.mAtmInternal = spy(mService.mActivityTaskManager.getAtmInternal());
+        mService.mWakefulness = new AtomicInteger(PowerManagerInternal.WAKEFULNESS_AWAKE);
+        // Don't let the process limits kill any of the processes between iterations.
+        mService.mConstants.CUR_MAX_CACHED_PROCESSES = Integer.MAX_VALUE / 2;
+        mService.mConstants.CUR_MAX_EMPTY_PROCESSES = Integer.MAX_VALUE / 4;
+        mService.mConstants.CUR_TRIM_EMPTY_PROCESSES = Integer.MAX_VALUE / 4;
+
+        final ArrayList<ProcessRecord> lru = mService.mProcessList.getLruProcessesLOSP();
+        lru.clear();
+        for (int i = 0; i < mProcessCount; i++) {
+            final ProcessRecord app = makeProcessRecord(i);
+            mProcesses.add(app);
+            lru.add(app);
+        }
+        for (int i = 0; i < mProcessCount; i++) {
+            if (i % CHAIN_LENGTH == CHAIN_LENGTH - 1 || i + 1 >= mProcessCount) {
+                continue;
+            }
+            final ConnectionRecord cr = bindService(mProcesses.get(i + 1), mProcesses.get(i));
+            if (i == 0) {
+                mChangingConnection = cr;
+            }
+        }
+        // The head of the first chain is important, so the whole chain depends on it.
+        mProcesses.get(0).mServices.setHasForegroundServices(true, 0);
+
+        synchronized (mService) {
+            mService.mOomAdjuster.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_NONE);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mService.mConstants.OOMADJ_UPDATE_INCREMENTAL = false;
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        mThread.quit();
+    }
+
+    @Test
+    public void timeFullUpdate() {
+        runBenchmark(false);
+    }
+
+    @Test
+    public void timeIncrementalUpdate() {
+        runBenchmark(true);
+    }
+
+    private void runBenchmark(boolean incremental) {
+        mService.mConstants.OOMADJ_UPDATE_INCREMENTAL = incremental;
+        final ProcessServiceRecord client = mProcesses.get(0).mServices;
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        boolean bound = true;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            synchronized (mService) {
+                // Flip the binding the first chain hangs off, like a dying client would.
+                if (bound) {
+                    client.removeConnection(mChangingConnection);
+                } else {
+                    client.addConnection(mChangingConnection);
+                }
+            }
+            bound = !bound;
+            state.resumeTiming();
+
+            synchronized (mService) {
+                mService.mOomAdjuster.updateOomAdjAfterProcessDeathLocked(
+                        OomAdjuster.OOM_ADJ_REASON_PROCESS_END);
+            }
+        }
+    }
+
+    private ProcessRecord makeProcessRecord(int index) {
+        final ApplicationInfo ai = new ApplicationInfo();
+        ai.uid = FIRST_UID + index;
+        ai.packageName = "com.android.test.perf" + index;
+        ai.processName = ai.packageName;
+        ai.longVersionCode = 1;
+        ai.targetSdkVersion = Build.VERSION_CODES.CUR_DEVELOPMENT;
+        final ProcessRecord app = new ProcessRecord(mService, ai, ai.packageName, ai.uid);
+        synchronized (mService) {
+            synchronized (mService.mProcLock) {
+                app.makeActive(mock(IApplicationThread.class), mService.mProcessStats);
+            }
+        }
+        app.setPid(FIRST_PID + index);
+        app.setLastActivityTime(SystemClock.uptimeMillis());
+        app.mState.setMaxAdj(ProcessList.CACHED_APP_MAX_ADJ);
+        return app;
+    }
+
+    private ConnectionRecord bindService(ProcessRecord service, ProcessRecord client) {
+        final ServiceInfo si = new ServiceInfo();
+        si.applicationInfo = service.info;
+        si.packageName = service.info.packageName;
+        si.processName = service.processName;
+        si.name = ".PerfService";
+        final ComponentName cn = new ComponentName(si.packageName, si.name);
+        final ServiceRecord record = new ServiceRecord(mService, cn, cn, si.packageName,
+                si.applicationInfo.uid, null, si, false, null);
+        record.app = service;
+        service.mServices.startService(record);
+
+        final AppBindRecord binding = new AppBindRecord(record, null, client);
+        final ConnectionRecord cr = spy(new ConnectionRecord(binding,
+                mock(ActivityServiceConnectionsHolder.class), mock(IServiceConnection.class), 0,
+                0, null, client.uid, client.processName, client.info.packageName));
+        doNothing().when(cr).trackProcState(anyInt(), anyInt(), anyLong());
+        synchronized (mService) {
+            record.addConnection(mock(IBinder.class), cr);
+            binding.connections.add(cr);
+            client.mServices.addConnection(cr);
+        }
+        return cr;
+    }
+
+    private static class TestInjector extends ActivityManagerService.Injector {
+        TestInjector(Context context) {
+            super(context);
+        }
+
+        @Override
+        public AppOpsService getAppOpsService(File file, Handler handler) {
+            return mock(AppOpsService.class);
+        }
+
+        @Override
+        public ProcessStatsService getProcessStatsService(ActivityManagerService service) {
+            return new ProcessStatsService(service,
+                    new File(getContext().getFilesDir(), "procstats"));
+        }
+    }
+}
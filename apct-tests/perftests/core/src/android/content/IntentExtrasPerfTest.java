@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.graphics.Rect;
+import android.os.BaseBundle;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcel;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of delivering broadcast intents carrying many extras, of which the receiver only reads
+ * one. The parcel based tests replay the hops of a broadcast: from the sender to system_server,
+ * which only inspects the intent, and from system_server to the receiver. Bundles are written
+ * in the lazy format or not as parameterized, which only applies to those written by this
+ * process.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class IntentExtrasPerfTest {
+    private static final String ACTION = "android.content.IntentExtrasPerfTest.ACTION";
+    private static final String KEY_READ = "read";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "extras={0},lazy={1}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+                {10, false}, {100, false}, {1000, false},
+                {10, true}, {100, true}, {1000, true},
+        });
+    }
+
+    private final int mExtrasCount;
+    private final boolean mWriteLazily;
+
+    private Intent mIntent;
+    private Parcel mToSystem;
+    private Parcel mToReceiver;
+
+    public IntentExtrasPerfTest(int extrasCount, boolean writeLazily) {
+        mExtrasCount = extrasCount;
+        mWriteLazily = writeLazily;
+    }
+
+    @Before
+    public void setUp() {
+        BaseBundle.setShouldWriteLazily(mWriteLazily);
+        mIntent = new Intent(ACTION);
+        for (int i = 0; i < mExtrasCount; i++) {
+            switch (i % 3) {
+                case 0:
+                    mIntent.putExtra("int_" + i, i);
+                    break;
+                case 1:
+                    mIntent.putExtra("string_" + i, "value_" + i);
+                    break;
+                default:
+                    mIntent.putExtra("rect_" + i, new Rect(i, i, i + 10, i + 10));
+                    break;
+            }
+        }
+        mIntent.putExtra(KEY_READ, 42);
+        mToSystem = Parcel.obtain();
+        mToReceiver = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        BaseBundle.setShouldWriteLazily(false);
+        mToSystem.recycle();
+        mToReceiver.recycle();
+    }
+
+    /**
+     * Delivers {@link #mIntent} through both hops and returns the intent the receiver gets.
+     */
+    private Intent deliver(boolean systemReadsExtras) {
+        mToSystem.setDataPosition(0);
+        mIntent.writeToParcel(mToSystem, 0);
+        mToSystem.setDataPosition(0);
+        final Intent systemIntent = Intent.CREATOR.createFromParcel(mToSystem);
+        if (systemReadsExtras) {
+            systemIntent.getIntExtra(KEY_READ, 0);
+        }
+
+        mToReceiver.setDataPosition(0);
+        systemIntent.writeToParcel(mToReceiver, 0);
+        mToReceiver.setDataPosition(0);
+        return Intent.CREATOR.createFromParcel(mToReceiver);
+    }
+
+    @Test
+    public void timeDeliverReadOneExtra() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            deliver(false).getIntExtra(KEY_READ, 0);
+        }
+    }
+
+    @Test
+    public void timeDeliverSystemReadsExtras() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            deliver(true).getIntExtra(KEY_READ, 0);
+        }
+    }
+
+    @Test
+    public void timeDeliverReadAllExtras() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Intent intent = deliver(false);
+            intent.setExtrasClassLoader(Rect.class.getClassLoader());
+            final Bundle extras = intent.getExtras();
+            for (String key : extras.keySet()) {
+                extras.get(key);
+            }
+        }
+    }
+
+    /**
+     * End to end cost of a broadcast to a receiver registered in this process.
+     */
+    @Test
+    public void timeSendBroadcast() throws Exception {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final HandlerThread thread = new HandlerThread("IntentExtrasPerfTest");
+        thread.start();
+        final CountDownLatch[] latch = new CountDownLatch[1];
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                intent.getIntExtra(KEY_READ, 0);
+                latch[0].countDown();
+            }
+        };
+        context.registerReceiver(receiver, new IntentFilter(ACTION), null,
+                new Handler(thread.getLooper()));
+        mIntent.setPackage(context.getPackageName());
+        try {
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                latch[0] = new CountDownLatch(1);
+                context.sendBroadcast(mIntent);
+                if (!latch[0].await(10, TimeUnit.SECONDS)) {
+                    throw new AssertionError("Broadcast was not received");
+                }
+            }
+        } finally {
+            context.unregisterReceiver(receiver);
+            thread.quitSafely();
+        }
+    }
+}
@@ -85,6 +85,13 @@ public class BinderCallsStatsPerfTest {
         runScenario(DEFAULT_BUCKET_SIZE);
     }
 
+    @Test
+    public void timeCallSessionRingBuffers() {
+        mBinderCallsStats.setDetailedTracking(true);
+        mBinderCallsStats.setRecordToRingBuffers(true);
+        runScenario(DEFAULT_BUCKET_SIZE);
+    }
+
     @Test
     public void timeCallSessionTrackingDisabled() {
         mBinderCallsStats.setDetailedTracking(false);
@@ -108,6 +108,16 @@ public class ParcelArrayPerfTest {
         }
     }
 
+    @Test
+    public void timeReadByteArrayIntoBuffer() {
+        final byte[] buffer = new byte[mSize + 1];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mByteParcel.setDataPosition(0);
+            mByteParcel.readByteArray(buffer, 1);
+        }
+    }
+
     @Test
     public void timeWriteIntArray() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
@@ -135,6 +145,16 @@ public class ParcelArrayPerfTest {
         }
     }
 
+    @Test
+    public void timeReadIntArrayIntoBuffer() {
+        final int[] buffer = new int[mSize + 1];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mIntParcel.setDataPosition(0);
+            mIntParcel.readIntArray(buffer, 1);
+        }
+    }
+
     @Test
     public void timeWriteLongArray() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
@@ -161,4 +181,14 @@ public class ParcelArrayPerfTest {
             mLongParcel.readLongArray(mLongArray);
         }
     }
+
+    @Test
+    public void timeReadLongArrayIntoBuffer() {
+        final long[] buffer = new long[mSize + 1];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mLongParcel.setDataPosition(0);
+            mLongParcel.readLongArray(buffer, 1);
+        }
+    }
 }
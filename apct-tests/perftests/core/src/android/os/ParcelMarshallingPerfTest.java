@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.pm.ParceledListSlice;
+import android.graphics.Rect;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Round trips of the payloads bulk binder queries typically return, marshalled into a parcel and
+ * unmarshalled back.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class ParcelMarshallingPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "size={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {10}, {100}, {1000} });
+    }
+
+    private final int mSize;
+
+    private Parcel mParcel;
+    private int[] mIntArray;
+    private Bundle mBundle;
+    private ParceledListSlice<Rect> mListSlice;
+
+    public ParcelMarshallingPerfTest(int size) {
+        mSize = size;
+    }
+
+    @Before
+    public void setUp() {
+        mParcel = Parcel.obtain();
+
+        mIntArray = new int[mSize];
+        mBundle = new Bundle();
+        final ArrayList<Rect> rects = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            mIntArray[i] = i;
+            mBundle.putInt("int_" + i, i);
+            rects.add(new Rect(i, i, i + 10, i + 10));
+        }
+        mListSlice = new ParceledListSlice<>(rects);
+    }
+
+    @After
+    public void tearDown() {
+        mParcel.recycle();
+        mParcel = null;
+    }
+
+    @Test
+    public void timeIntArray() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            mParcel.writeIntArray(mIntArray);
+            mParcel.setDataPosition(0);
+            mParcel.createIntArray();
+        }
+    }
+
+    @Test
+    public void timeIntArrayIntoBuffer() {
+        final int[] buffer = new int[mSize];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            mParcel.writeIntArray(mIntArray, 0, mSize);
+            mParcel.setDataPosition(0);
+            mParcel.readIntArray(buffer, 0);
+        }
+    }
+
+    @Test
+    public void timeBundle() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            mParcel.writeBundle(mBundle);
+            mParcel.setDataPosition(0);
+            // Unparcel the bundle, as its first access would.
+            mParcel.readBundle().size();
+        }
+    }
+
+    @Test
+    public void timeParceledListSlice() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            mListSlice.writeToParcel(mParcel, 0);
+            mParcel.setDataPosition(0);
+            ParceledListSlice.CREATOR.createFromParcel(mParcel, Rect.class.getClassLoader());
+        }
+    }
+
+    @Test
+    public void timeObtainAndRecycle() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final Parcel data = Parcel.obtain();
+            final Parcel reply = Parcel.obtain();
+            reply.recycle();
+            data.recycle();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.LongSparseLongArray;
+import android.util.SparseArray;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Compares {@link IntObjectHashMap} and {@link LongLongHashMap} with the sparse arrays they
+ * replace, for uid keyed maps of the sizes system_server holds.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class PrimitiveHashMapPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "size={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {100}, {1000}, {10000} });
+    }
+
+    private final int mSize;
+
+    /** Uids across a few users and in a random order, as apps are installed and started. */
+    private int[] mKeys;
+
+    public PrimitiveHashMapPerfTest(int size) {
+        mSize = size;
+    }
+
+    @Before
+    public void setUp() {
+        mKeys = new int[mSize];
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = (i % 4) * 100000 + Process.FIRST_APPLICATION_UID + i / 4;
+        }
+        final Random random = new Random(42);
+        for (int i = mSize - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int key = mKeys[i];
+            mKeys[i] = mKeys[j];
+            mKeys[j] = key;
+        }
+    }
+
+    @Test
+    public void timeSparseArrayPut() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final SparseArray<Object> map = new SparseArray<>();
+            for (int key : mKeys) {
+                map.put(key, this);
+            }
+        }
+    }
+
+    @Test
+    public void timeIntObjectHashMapPut() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+            for (int key : mKeys) {
+                map.put(key, this);
+            }
+        }
+    }
+
+    @Test
+    public void timeSparseArrayGet() {
+        final SparseArray<Object> map = new SparseArray<>();
+        for (int key : mKeys) {
+            map.put(key, this);
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int key : mKeys) {
+                map.get(key);
+            }
+        }
+    }
+
+    @Test
+    public void timeIntObjectHashMapGet() {
+        final IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+        for (int key : mKeys) {
+            map.put(key, this);
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int key : mKeys) {
+                map.get(key);
+            }
+        }
+    }
+
+    @Test
+    public void timeSparseArrayPutRemove() {
+        final SparseArray<Object> map = new SparseArray<>();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int key : mKeys) {
+                map.put(key, this);
+            }
+            for (int key : mKeys) {
+                map.remove(key);
+            }
+        }
+    }
+
+    @Test
+    public void timeIntObjectHashMapPutRemove() {
+        final IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int key : mKeys) {
+                map.put(key, this);
+            }
+            for (int key : mKeys) {
+                map.remove(key);
+            }
+        }
+    }
+
+    @Test
+    public void timeSparseArrayIterate() {
+        final SparseArray<Object> map = new SparseArray<>();
+        for (int key : mKeys) {
+            map.put(key, this);
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < map.size(); i++) {
+                map.valueAt(i);
+            }
+        }
+    }
+
+    @Test
+    public void timeIntObjectHashMapIterate() {
+        final IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+        for (int key : mKeys) {
+            map.put(key, this);
+        }
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < map.size(); i++) {
+                map.valueAt(i);
+            }
+        }
+    }
+
+    @Test
+    public void timeLongSparseLongArrayPutGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final LongSparseLongArray map = new LongSparseLongArray();
+            for (int key : mKeys) {
+                map.put(((long) key << 32) | key, key);
+            }
+            for (int key : mKeys) {
+                map.get(((long) key << 32) | key);
+            }
+        }
+    }
+
+    @Test
+    public void timeLongLongHashMapPutGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final LongLongHashMap map = new LongLongHashMap();
+            for (int key : mKeys) {
+                map.put(((long) key << 32) | key, key);
+            }
+            for (int key : mKeys) {
+                map.get(((long) key << 32) | key);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.annotation.NonNull;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compares resolving intents through {@link IntentResolver} with and without its compiled
+ * filter index, against the filters of a device with many apps installed.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class IntentResolverPerfTest {
+    private static final int APP_COUNT = 450;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameterized.Parameter(0)
+    public boolean mCompiledIndex;
+
+    @Parameterized.Parameters(name = "compiledIndex={0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] { { false }, { true } });
+    }
+
+    private final FilterResolver mResolver = new FilterResolver();
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < APP_COUNT; i++) {
+            final String packageName = "com.android.perftests.app" + i;
+
+            final IntentFilter launcher = new TestFilter(packageName);
+            launcher.addAction(Intent.ACTION_MAIN);
+            launcher.addCategory(Intent.CATEGORY_LAUNCHER);
+            mResolver.addFilter(launcher);
+
+            // Most apps handle links of their own site, some of all its sub domains.
+            final IntentFilter links = new TestFilter(packageName);
+            links.addAction(Intent.ACTION_VIEW);
+            links.addCategory(Intent.CATEGORY_DEFAULT);
+            links.addCategory(Intent.CATEGORY_BROWSABLE);
+            links.addDataScheme("http");
+            links.addDataScheme("https");
+            links.addDataAuthority((i % 5 == 0 ? "*." : "www.") + "app" + i + ".example.com",
+                    null);
+            mResolver.addFilter(links);
+
+            if (i % 3 == 0) {
+                final IntentFilter share = new TestFilter(packageName);
+                share.addAction(Intent.ACTION_SEND);
+                share.addCategory(Intent.CATEGORY_DEFAULT);
+                share.addDataType(i % 2 == 0 ? "image/*" : "text/plain");
+                mResolver.addFilter(share);
+            }
+            if (i % 10 == 0) {
+                final IntentFilter browser = new TestFilter(packageName);
+                browser.addAction(Intent.ACTION_VIEW);
+                browser.addCategory(Intent.CATEGORY_DEFAULT);
+                browser.addCategory(Intent.CATEGORY_BROWSABLE);
+                browser.addDataScheme("http");
+                browser.addDataScheme("https");
+                mResolver.addFilter(browser);
+            }
+            final IntentFilter custom = new TestFilter(packageName);
+            custom.addAction(packageName + ".ACTION_SYNC");
+            mResolver.addFilter(custom);
+        }
+        mResolver.setCompiledIndexEnabled(mCompiledIndex);
+    }
+
+    @Test
+    public void timeViewHttpLink() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("https://www.app123.example.com/path"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+        runBenchmark(intent, null, 1 + APP_COUNT / 10);
+    }
+
+    @Test
+    public void timeViewHttpLinkWildcardHost() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("http://m.app100.example.com/"));
+        runBenchmark(intent, null, 1 + APP_COUNT / 10);
+    }
+
+    @Test
+    public void timeViewHttpLinkUnknownHost() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("https://unknown.org/"));
+        runBenchmark(intent, null, APP_COUNT / 10);
+    }
+
+    @Test
+    public void timeLauncherActivities() {
+        final Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        runBenchmark(intent, null, APP_COUNT);
+    }
+
+    @Test
+    public void timeShareImage() {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        runBenchmark(intent, "image/png", (APP_COUNT + 5) / 6);
+    }
+
+    private void runBenchmark(Intent intent, String resolvedType, int expectedCount) {
+        // Both ways of resolving must agree before they are compared.
+        assertEquals(expectedCount, query(intent, resolvedType).size());
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            query(intent, resolvedType);
+        }
+    }
+
+    private List<IntentFilter> query(Intent intent, String resolvedType) {
+        return mResolver.queryIntent(intent, resolvedType, false, UserHandle.USER_SYSTEM);
+    }
+
+    private static class TestFilter extends IntentFilter {
+        final String mPackageName;
+
+        TestFilter(String packageName) {
+            mPackageName = packageName;
+        }
+    }
+
+    private static class FilterResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return packageName.equals(((TestFilter) filter).mPackageName);
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+
+        @Override
+        protected IntentFilter getIntentFilter(@NonNull IntentFilter input) {
+            return input;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.NonNull;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.parsing.ApkLiteParseUtils;
+import android.content.pm.parsing.ParsingPackageUtils;
+import android.os.Environment;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.server.pm.parsing.PackageCacher;
+import com.android.server.pm.parsing.PackageParser2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Measures scanning the packages of each partition the way {@link PackageManagerService} does
+ * on boot, without a cache, with one cache file per package, and with the cache index.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class PackageScanPerfTest {
+    private static final String TAG = PackageScanPerfTest.class.getSimpleName();
+
+    private static final int PARSE_FLAGS = ParsingPackageUtils.PARSE_IS_SYSTEM_DIR;
+
+    private static final int CACHE_NONE = 0;
+    private static final int CACHE_FILES = 1;
+    private static final int CACHE_INDEX = 2;
+
+    @Rule
+    public final PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Parameterized.Parameter(0)
+    public String mPartitionName;
+
+    @Parameterized.Parameter(1)
+    public File mScanDir;
+
+    @Parameterized.Parameter(2)
+    public int mCacheMode;
+
+    @Parameterized.Parameters(name = "{0}_cache{2}")
+    public static List<Object[]> getParameters() {
+        final File[] partitions = {
+                Environment.getRootDirectory(), Environment.getVendorDirectory(),
+                Environment.getOdmDirectory(), Environment.getProductDirectory(),
+                Environment.getSystemExtDirectory()};
+        final List<Object[]> params = new ArrayList<>();
+        for (File partition : partitions) {
+            for (String folder : new String[] { "app", "priv-app" }) {
+                final File scanDir = new File(partition, folder);
+                if (!scanDir.isDirectory()) {
+                    continue;
+                }
+                final String name = partition.getName() + "_" + folder;
+                for (int cacheMode : new int[] { CACHE_NONE, CACHE_FILES, CACHE_INDEX }) {
+                    params.add(new Object[] { name, scanDir, cacheMode });
+                }
+            }
+        }
+        return params;
+    }
+
+    private File mCacheDir;
+    private ExecutorService mExecutorService;
+    private final ArrayList<File> mPackages = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheDir = mTemporaryFolder.newFolder("package_cache");
+        mExecutorService = ParallelPackageParser.makeExecutorService();
+        final File[] files = mScanDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (ApkLiteParseUtils.isApkFile(file) || file.isDirectory()) {
+                    mPackages.add(file);
+                }
+            }
+        }
+
+        if (mCacheMode != CACHE_NONE) {
+            // Fill the cache like a previous boot would have.
+            try (ScanParser parser = new ScanParser(mCacheDir, mCacheMode)) {
+                scan(parser);
+                parser.writeCacheIndex();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void timeScanPartition() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Every boot starts with a new parser, which loads the cache index again.
+            try (ScanParser parser = new ScanParser(
+                    mCacheMode == CACHE_NONE ? null : mCacheDir, mCacheMode)) {
+                scan(parser);
+            }
+        }
+        Log.i(TAG, mPartitionName + " cache" + mCacheMode + ": " + mPackages.size()
+                + " packages");
+    }
+
+    private void scan(PackageParser2 parser) {
+        final ParallelPackageParser parallelParser =
+                new ParallelPackageParser(parser, mExecutorService);
+        for (File file : mPackages) {
+            parallelParser.submit(file, PARSE_FLAGS);
+        }
+        for (int i = mPackages.size(); i > 0; i--) {
+            parallelParser.take();
+        }
+    }
+
+    private static class ScanParser extends PackageParser2 {
+        ScanParser(File cacheDir, int cacheMode) {
+            super(null /* separateProcesses */, false /* onlyCoreApps */,
+                    null /* displayMetrics */, null /* cacheDir */, new Callback() {
+                        @Override
+                        public boolean isChangeEnabled(long changeId,
+                                @NonNull ApplicationInfo appInfo) {
+                            return true;
+                        }
+
+                        @Override
+                        public boolean hasFeature(String feature) {
+                            return false;
+                        }
+                    });
+            if (cacheDir != null) {
+                mCacher = new PackageCacher(cacheDir, cacheMode == CACHE_INDEX);
+            }
+        }
+    }
+}
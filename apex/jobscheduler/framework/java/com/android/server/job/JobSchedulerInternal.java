@@ -73,6 +73,18 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        /** Time it took to read the persisted jobs at boot, including the journal replay. */
+        public long loadDurationMillis = -1;
+
+        /** Whether the last save rewrote every job, rather than journaling the changed ones. */
+        public boolean lastSaveWasFull;
+        public long lastSaveDurationMillis = -1;
+        public int countJobsWrittenLastSave = -1;
+        public long bytesWrittenLastSave = -1;
+
+        public int countFullSaves;
+        public int countJournalSaves;
+
         public JobStorePersistStats() {
         }
 
@@ -84,6 +96,16 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            loadDurationMillis = source.loadDurationMillis;
+
+            lastSaveWasFull = source.lastSaveWasFull;
+            lastSaveDurationMillis = source.lastSaveDurationMillis;
+            countJobsWrittenLastSave = source.countJobsWrittenLastSave;
+            bytesWrittenLastSave = source.bytesWrittenLastSave;
+
+            countFullSaves = source.countFullSaves;
+            countJournalSaves = source.countJournalSaves;
         }
 
         @Override
@@ -95,7 +117,13 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " LoadTime: " + loadDurationMillis + "ms"
+                    + " LastSaveTime: " + lastSaveDurationMillis + "ms"
+                    + " (" + (lastSaveWasFull ? "full" : "journal") + ", "
+                    + countJobsWrittenLastSave + " jobs, "
+                    + bytesWrittenLastSave + " bytes)"
+                    + " Saves: " + countFullSaves + " full/" + countJournalSaves + " journal";
         }
 
         /**
@@ -1113,7 +1113,11 @@ public class JobSchedulerService extends com.android.server.SystemService
 
                     // If any of work item is enqueued when the source is in the foreground,
                     // exempt the entire job.
+                    final int internalFlags = toCancel.getInternalFlags();
                     toCancel.maybeAddForegroundExemption(mIsUidActivePredicate);
+                    if (toCancel.getInternalFlags() != internalFlags) {
+                        mJobs.touchJob(toCancel);
+                    }
 
                     return JobScheduler.RESULT_SUCCESS;
                 }
@@ -37,17 +37,20 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseSetArray;
 import android.util.SystemConfigFileCommitEventLogger;
+import android.util.TypedXmlPullParser;
+import android.util.TypedXmlSerializer;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.BitUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.server.IoThread;
 import com.android.server.LocalServices;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
@@ -57,6 +60,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -92,6 +96,12 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final long JOB_PERSIST_DELAY = 2000L;
 
+    /**
+     * The journal is folded back into the jobs file once it grows past this size or past the
+     * size of the jobs file itself, whichever is larger.
+     */
+    private static final long MIN_JOURNAL_COMPACTION_BYTES = 64 * 1024;
+
     final Object mLock;
     final Object mWriteScheduleLock;    // used solely for invariants around write scheduling
     final JobSet mJobSet; // per-caller-uid and per-source-uid tracking
@@ -107,9 +117,32 @@ public final class JobStore {
     @GuardedBy("mWriteScheduleLock")
     private boolean mWriteInProgress;
 
+    /**
+     * Persisted jobs that were added, removed or modified since the last write, keyed by uid and
+     * job id.
+     */
+    @GuardedBy("mLock")
+    private final SparseSetArray<Integer> mDirtyJobs = new SparseSetArray<>();
+
+    /**
+     * Whether the next write must rewrite the jobs file rather than journal the dirty jobs.
+     * The first write after boot always does, so that the journal replayed at boot is folded in.
+     */
+    @GuardedBy("mLock")
+    private boolean mFullWriteRequired = true;
+
     private static final Object sSingletonLock = new Object();
     private final SystemConfigFileCommitEventLogger mEventLogger;
     private final AtomicFile mJobsFile;
+    /** Changes to the persisted jobs made since {@link #mJobsFile} was last written. */
+    private final JobStoreJournal mJournal;
+    /**
+     * Generation of {@link #mJobsFile}, bumped on every rewrite. Only touched by the write
+     * runnable and the boot time read.
+     */
+    private long mJobsFileGeneration;
+    /** Size of {@link #mJobsFile} as of its last rewrite. */
+    private long mJobsFileLength;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -150,6 +183,7 @@ public final class JobStore {
         jobDir.mkdirs();
         mEventLogger = new SystemConfigFileCommitEventLogger("jobs");
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), mEventLogger);
+        mJournal = new JobStoreJournal(new File(jobDir, "jobs.journal"));
 
         mJobSet = new JobSet();
 
@@ -214,6 +248,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mDirtyJobs.add(jobStatus.getUid(), jobStatus.getJobId());
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -222,6 +257,17 @@ public final class JobStore {
         return replaced;
     }
 
+    /**
+     * Notes that a job of the store was modified in place, so that the change is persisted.
+     * @param jobStatus Job that was modified.
+     */
+    public void touchJob(JobStatus jobStatus) {
+        if (jobStatus.isPersisted() && mJobSet.contains(jobStatus)) {
+            mDirtyJobs.add(jobStatus.getUid(), jobStatus.getJobId());
+            maybeWriteStatusToDiskAsync();
+        }
+    }
+
     boolean containsJob(JobStatus jobStatus) {
         return mJobSet.contains(jobStatus);
     }
@@ -253,6 +299,7 @@ public final class JobStore {
             return false;
         }
         if (removeFromPersisted && jobStatus.isPersisted()) {
+            mDirtyJobs.add(jobStatus.getUid(), jobStatus.getJobId());
             maybeWriteStatusToDiskAsync();
         }
         return removed;
@@ -264,11 +311,13 @@ public final class JobStore {
      */
     public void removeJobsOfUnlistedUsers(int[] keepUserIds) {
         mJobSet.removeJobsOfUnlistedUsers(keepUserIds);
+        mFullWriteRequired = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mFullWriteRequired = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -329,9 +378,13 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** Attribute of the jobs file root tag holding the generation of the file. */
+    private static final String XML_ATTR_GENERATION = "generation";
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we append the persisted jobs that were added, removed or
+     * modified since the last write to the journal, and rewrite all the jobs in one swath once the
+     * journal grows too large.
      */
     private void maybeWriteStatusToDiskAsync() {
         synchronized (mWriteScheduleLock) {
@@ -430,6 +483,10 @@ public final class JobStore {
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final List<JobStatus> changedJobs = new ArrayList<JobStatus>();
+            final List<JobStoreJournal.Record> removedJobs = new ArrayList<>();
+            final int[] jobCounts = new int[3];
+            final boolean fullWrite;
             // Intentionally allow new scheduling of a write operation *before* we clone
             // the job set.  If we reset it to false after cloning, there's a window in
             // which no new write will be scheduled but mLock is not held, i.e. a new
@@ -447,17 +504,56 @@ public final class JobStore {
                 mWriteInProgress = true;
             }
             synchronized (mLock) {
+                fullWrite = mFullWriteRequired || mJournal.getLength()
+                        > Math.max(MIN_JOURNAL_COMPACTION_BYTES, mJobsFileLength);
                 // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(null, (job) -> {
                     if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                        if (fullWrite) {
+                            storeCopy.add(new JobStatus(job));
+                        }
+                        countJob(jobCounts, job);
                     }
                 });
+                if (!fullWrite) {
+                    for (int i = mDirtyJobs.size() - 1; i >= 0; i--) {
+                        final int uid = mDirtyJobs.keyAt(i);
+                        for (int j = mDirtyJobs.sizeAt(i) - 1; j >= 0; j--) {
+                            final int jobId = mDirtyJobs.valueAt(i, j);
+                            final JobStatus job = mJobSet.get(uid, jobId);
+                            if (job != null && job.isPersisted()) {
+                                changedJobs.add(new JobStatus(job));
+                            } else {
+                                removedJobs.add(JobStoreJournal.Record.remove(uid, jobId));
+                            }
+                        }
+                    }
+                }
+                mDirtyJobs.clear();
+                mFullWriteRequired = false;
+            }
+            final boolean success = fullWrite
+                    ? writeJobsMapImpl(storeCopy) : writeJournalImpl(changedJobs, removedJobs);
+            final long elapsed = sElapsedRealtimeClock.millis() - startElapsed;
+            if (!success) {
+                // Whatever was dirty is lost, make sure the next write captures everything.
+                synchronized (mLock) {
+                    mFullWriteRequired = true;
+                }
+            }
+            mPersistInfo.countAllJobsSaved = jobCounts[0];
+            mPersistInfo.countSystemServerJobsSaved = jobCounts[1];
+            mPersistInfo.countSystemSyncManagerJobsSaved = jobCounts[2];
+            mPersistInfo.lastSaveWasFull = fullWrite;
+            mPersistInfo.lastSaveDurationMillis = elapsed;
+            if (fullWrite) {
+                mPersistInfo.countFullSaves++;
+            } else {
+                mPersistInfo.countJournalSaves++;
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished " + (fullWrite ? "writing" : "journaling") + ", took "
+                        + elapsed + "ms");
             }
             synchronized (mWriteScheduleLock) {
                 mWriteInProgress = false;
@@ -465,39 +561,24 @@ public final class JobStore {
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
-            int numJobs = 0;
-            int numSystemJobs = 0;
-            int numSyncJobs = 0;
+        private boolean writeJobsMapImpl(List<JobStatus> jobList) {
+            final long generation = mJobsFileGeneration + 1;
             try {
                 mEventLogger.setStartTime(SystemClock.uptimeMillis());
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
+                TypedXmlSerializer out = Xml.resolveSerializer(baos);
                 out.startDocument(null, true);
                 out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attributeLong(null, XML_ATTR_GENERATION, generation);
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
-
-                    numJobs++;
-                    if (jobStatus.getUid() == Process.SYSTEM_UID) {
-                        numSystemJobs++;
-                        if (isSyncJob(jobStatus)) {
-                            numSyncJobs++;
-                        }
-                    }
+                    writeJobToXml(out, jobStatus);
                 }
                 out.endTag(null, "job-info");
                 out.endDocument();
@@ -506,6 +587,15 @@ public final class JobStore {
                 FileOutputStream fos = mJobsFile.startWrite();
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
+
+                // Everything in the journal is now part of the jobs file. Should the deletion
+                // not make it to disk, the journal no longer matches the file's generation.
+                mJournal.delete();
+                mJobsFileGeneration = generation;
+                mJobsFileLength = baos.size();
+                mPersistInfo.countJobsWrittenLastSave = jobList.size();
+                mPersistInfo.bytesWrittenLastSave = baos.size();
+                return true;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -514,11 +604,55 @@ public final class JobStore {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
-            } finally {
-                mPersistInfo.countAllJobsSaved = numJobs;
-                mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
-                mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return false;
+        }
+
+        private boolean writeJournalImpl(List<JobStatus> changedJobs,
+                List<JobStoreJournal.Record> records) {
+            try {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                for (int i = 0; i < changedJobs.size(); i++) {
+                    final JobStatus jobStatus = changedJobs.get(i);
+                    if (DEBUG) {
+                        Slog.d(TAG, "Journaling job " + jobStatus.getJobId());
+                    }
+                    baos.reset();
+                    final TypedXmlSerializer out = Xml.newBinarySerializer();
+                    out.setOutput(baos, StandardCharsets.UTF_8.name());
+                    out.startDocument(null, true);
+                    writeJobToXml(out, jobStatus);
+                    out.endDocument();
+                    records.add(JobStoreJournal.Record.put(jobStatus.getUid(),
+                            jobStatus.getJobId(), baos.toByteArray()));
+                }
+                if (records.isEmpty()) {
+                    mPersistInfo.countJobsWrittenLastSave = 0;
+                    mPersistInfo.bytesWrittenLastSave = 0;
+                    return true;
+                }
+                final long bytes = mJournal.append(mJobsFileGeneration, records);
+                mPersistInfo.countJobsWrittenLastSave = records.size();
+                mPersistInfo.bytesWrittenLastSave = bytes;
+                return true;
+            } catch (IOException e) {
+                Slog.w(TAG, "Error journaling job data.", e);
+            } catch (XmlPullParserException e) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Error persisting bundle.", e);
+                }
+            }
+            return false;
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -681,6 +815,24 @@ public final class JobStore {
                 .equals(status.getServiceComponent().getClassName());
     }
 
+    private static long jobKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Tallies a persisted job into {@code counts}: all jobs, system server jobs and sync manager
+     * jobs, in that order.
+     */
+    private static void countJob(int[] counts, JobStatus job) {
+        counts[0]++;
+        if (job.getUid() == Process.SYSTEM_UID) {
+            counts[1]++;
+            if (isSyncJob(job)) {
+                counts[2]++;
+            }
+        }
+    }
+
     /**
      * Runnable that reads list of persisted job from xml. This is run once at start up, so doesn't
      * need to go through {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
@@ -700,29 +852,22 @@ public final class JobStore {
 
         @Override
         public void run() {
-            int numJobs = 0;
-            int numSystemJobs = 0;
-            int numSyncJobs = 0;
+            final long startElapsed = sElapsedRealtimeClock.millis();
+            final int[] jobCounts = new int[3];
             try {
                 List<JobStatus> jobs;
                 FileInputStream fis = mJobsFile.openRead();
                 synchronized (mLock) {
                     jobs = readJobMapImpl(fis, rtcGood);
                     if (jobs != null) {
+                        jobs = replayJournal(jobs, rtcGood);
                         long now = sElapsedRealtimeClock.millis();
                         for (int i=0; i<jobs.size(); i++) {
                             JobStatus js = jobs.get(i);
                             js.prepareLocked();
                             js.enqueueTime = now;
                             this.jobSet.add(js);
-
-                            numJobs++;
-                            if (js.getUid() == Process.SYSTEM_UID) {
-                                numSystemJobs++;
-                                if (isSyncJob(js)) {
-                                    numSyncJobs++;
-                                }
-                            }
+                            countJob(jobCounts, js);
                         }
                     }
                 }
@@ -735,18 +880,70 @@ public final class JobStore {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
             } finally {
                 if (mPersistInfo.countAllJobsLoaded < 0) { // Only set them once.
-                    mPersistInfo.countAllJobsLoaded = numJobs;
-                    mPersistInfo.countSystemServerJobsLoaded = numSystemJobs;
-                    mPersistInfo.countSystemSyncManagerJobsLoaded = numSyncJobs;
+                    mPersistInfo.countAllJobsLoaded = jobCounts[0];
+                    mPersistInfo.countSystemServerJobsLoaded = jobCounts[1];
+                    mPersistInfo.countSystemSyncManagerJobsLoaded = jobCounts[2];
+                    mPersistInfo.loadDurationMillis =
+                            sElapsedRealtimeClock.millis() - startElapsed;
+                }
+            }
+            Slog.i(TAG, "Read " + jobCounts[0] + " jobs");
+        }
+
+        /**
+         * Applies the changes journaled since the jobs file was last written on top of the jobs
+         * read from it.
+         */
+        private List<JobStatus> replayJournal(List<JobStatus> jobs, boolean rtcIsGood) {
+            final List<JobStoreJournal.Record> records = mJournal.read(mJobsFileGeneration);
+            if (records.isEmpty()) {
+                return jobs;
+            }
+            final LongSparseArray<JobStatus> jobsByKey = new LongSparseArray<>(jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                final JobStatus job = jobs.get(i);
+                jobsByKey.put(jobKey(job.getUid(), job.getJobId()), job);
+            }
+            for (int i = 0; i < records.size(); i++) {
+                final JobStoreJournal.Record record = records.get(i);
+                final long key = jobKey(record.uid, record.jobId);
+                if (record.op == JobStoreJournal.OP_REMOVE) {
+                    jobsByKey.remove(key);
+                    continue;
+                }
+                JobStatus persistedJob = null;
+                try {
+                    final TypedXmlPullParser parser = Xml.newBinaryPullParser();
+                    parser.setInput(new ByteArrayInputStream(record.job),
+                            StandardCharsets.UTF_8.name());
+                    if (parser.nextTag() == XmlPullParser.START_TAG
+                            && "job".equals(parser.getName())) {
+                        persistedJob = restoreJobFromXml(rtcIsGood, parser);
+                    }
+                } catch (XmlPullParserException | IOException e) {
+                    Slog.w(TAG, "Error reading journaled job.", e);
                 }
+                if (persistedJob != null) {
+                    if (DEBUG) {
+                        Slog.d(TAG, "Replayed " + persistedJob);
+                    }
+                    jobsByKey.put(key, persistedJob);
+                } else {
+                    Slog.d(TAG, "Error reading job from journal.");
+                    jobsByKey.remove(key);
+                }
+            }
+            Slog.i(TAG, "Replayed " + records.size() + " journaled job changes");
+            final List<JobStatus> replayed = new ArrayList<>(jobsByKey.size());
+            for (int i = 0; i < jobsByKey.size(); i++) {
+                replayed.add(jobsByKey.valueAt(i));
             }
-            Slog.i(TAG, "Read " + numJobs + " jobs");
+            return replayed;
         }
 
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, StandardCharsets.UTF_8.name());
+            TypedXmlPullParser parser = Xml.resolvePullParser(fis);
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
@@ -775,6 +972,9 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                // Files written before the journal existed have no generation, which no
+                // journal ever matches.
+                mJobsFileGeneration = parser.getAttributeLong(null, XML_ATTR_GENERATION, 0);
                 eventType = parser.next();
                 do {
                     // Read each <job/>
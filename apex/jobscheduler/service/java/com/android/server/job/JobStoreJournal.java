@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Slog;
+
+import com.android.internal.util.ChecksummedJournal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of persisted job changes that lives next to jobs.xml, so that scheduling or
+ * cancelling a single job does not require rewriting every persisted job.
+ * <p>
+ * Each record either carries one complete job, encoded as a standalone binary XML document with
+ * the same schema as a {@code <job>} element of jobs.xml, or removes the job identified by its
+ * uid and job id. Records are stored in a {@link ChecksummedJournal} whose generation is the one
+ * of the jobs.xml they apply on top of; a journal whose generation does not match the jobs file
+ * (e.g. because the device crashed after the jobs file was rewritten but before the journal was
+ * deleted) is stale and ignored.
+ * </p>
+ * <p>
+ * This class is not thread safe, {@link JobStore} only touches it from its write runnable and
+ * while reading the jobs at boot.
+ * </p>
+ */
+final class JobStoreJournal {
+    private static final String TAG = "JobStore";
+
+    private static final int MAGIC = 0x4a534a4e; // "JSJN"
+    private static final int VERSION = 2;
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    static final int OP_PUT = 1;
+    static final int OP_REMOVE = 2;
+
+    private final ChecksummedJournal mJournal;
+
+    JobStoreJournal(@NonNull File file) {
+        mJournal = new ChecksummedJournal(file, TAG, MAGIC, VERSION);
+    }
+
+    /** A single journaled change to the set of persisted jobs. */
+    static final class Record {
+        final int op;
+        final int uid;
+        final int jobId;
+        /** The job serialized as a binary XML {@code <job>} document, for {@link #OP_PUT}. */
+        @Nullable
+        final byte[] job;
+
+        private Record(int op, int uid, int jobId, @Nullable byte[] job) {
+            this.op = op;
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = job;
+        }
+
+        static Record put(int uid, int jobId, @NonNull byte[] job) {
+            return new Record(OP_PUT, uid, jobId, job);
+        }
+
+        static Record remove(int uid, int jobId) {
+            return new Record(OP_REMOVE, uid, jobId, null);
+        }
+    }
+
+    /** @return the number of bytes currently held by the journal file. */
+    long getLength() {
+        return mJournal.getLength();
+    }
+
+    /** @return the number of valid records currently held by the journal file. */
+    int getRecordCount() {
+        return mJournal.getRecordCount();
+    }
+
+    /**
+     * Reads all intact records that apply on top of the jobs file of the given generation. A
+     * stale journal is deleted, and a torn or corrupted tail is truncated away so later appends
+     * start on a record boundary.
+     *
+     * @return the records in the order they were appended, never {@code null}.
+     */
+    @NonNull
+    List<Record> read(long generation) {
+        return mJournal.read(generation, JobStoreJournal::decodeRecord);
+    }
+
+    /**
+     * Appends the records, which apply on top of the jobs file of the given generation, and
+     * syncs them to storage. A journal left over from another generation is replaced.
+     *
+     * @return the number of bytes written.
+     * @throws IOException if the records could not be durably written, in which case the
+     * journal must be considered lost and the jobs file rewritten.
+     */
+    long append(long generation, @NonNull List<Record> records) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        final int recordCount = records.size();
+        final ArrayList<byte[]> payloads = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            final Record record = records.get(i);
+            buffer.reset();
+            out.writeByte(record.op);
+            out.writeInt(record.uid);
+            out.writeInt(record.jobId);
+            if (record.op == OP_PUT) {
+                out.write(record.job);
+            }
+            out.flush();
+            payloads.add(buffer.toByteArray());
+        }
+        return mJournal.append(generation, payloads);
+    }
+
+    void delete() {
+        mJournal.delete();
+    }
+
+    @Nullable
+    private static Record decodeRecord(byte[] payload) {
+        if (payload.length < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final int op = payload[0];
+        final int uid = readInt(payload, 1);
+        final int jobId = readInt(payload, 5);
+        switch (op) {
+            case OP_PUT:
+                final byte[] job = new byte[payload.length - RECORD_HEADER_SIZE];
+                System.arraycopy(payload, RECORD_HEADER_SIZE, job, 0, job.length);
+                return Record.put(uid, jobId, job);
+            case OP_REMOVE:
+                return Record.remove(uid, jobId);
+            default:
+                Slog.w(TAG, "Unknown journal op " + op);
+                return null;
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24)
+                | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8)
+                | (buffer[offset + 3] & 0xff);
+    }
+}
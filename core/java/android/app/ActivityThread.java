@@ -91,6 +91,7 @@ import android.content.res.AssetManager;
 import android.content.res.CompatibilityInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.content.res.SharedResourceCache;
 import android.content.res.loader.ResourcesLoader;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDebug;
@@ -107,6 +108,7 @@ import android.net.ConnectivityManager;
 import android.net.Proxy;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.BaseBundle;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
@@ -1475,6 +1477,11 @@ public final class ActivityThread extends ClientTransactionHandler
                 pw.print(assetAlloc);
             }
 
+            // Resources shared by the ResourcesImpl of the same ApkAssets.
+            pw.println(" ");
+            pw.println(" Shared Resource Cache");
+            SharedResourceCache.getInstance().dump(pw, "  ");
+
             // Unreachable native memory
             if (dumpUnreachable) {
                 boolean showContents = ((mBoundApplication != null)
@@ -6484,6 +6491,9 @@ public final class ActivityThread extends ClientTransactionHandler
         // Let libcore handle any compat changes after installing the list of compat changes.
         AppSpecializationHooks.handleCompatChangesBeforeBindingApplication();
 
+        // Let the receivers of the intents sent by this app only decode the extras they read.
+        BaseBundle.setShouldWriteLazily(true);
+
         mBoundApplication = data;
         mConfigurationController.setConfiguration(data.config);
         mConfigurationController.setCompatConfiguration(data.config);
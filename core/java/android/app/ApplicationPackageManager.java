@@ -358,14 +358,10 @@ public class ApplicationPackageManager extends PackageManager {
     @Override
     public int getPackageUidAsUser(String packageName, int flags, int userId)
             throws NameNotFoundException {
-        try {
-            int uid = mPM.getPackageUid(packageName,
-                    updateFlagsForPackage(flags, userId), userId);
-            if (uid >= 0) {
-                return uid;
-            }
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
+        int uid = getPackageUidAsUserCached(packageName,
+                updateFlagsForPackage(flags, userId), userId);
+        if (uid >= 0) {
+            return uid;
         }
 
         throw new NameNotFoundException(packageName);
@@ -1040,6 +1036,7 @@ public class ApplicationPackageManager extends PackageManager {
     /** @hide */
     public static void disableGetPackagesForUidCache() {
         mGetPackagesForUidCache.disableLocal();
+        mGetNameForUidCache.disableLocal();
     }
 
     /** @hide */
@@ -1047,13 +1044,29 @@ public class ApplicationPackageManager extends PackageManager {
         PropertyInvalidatedCache.invalidateCache(CACHE_KEY_PACKAGES_FOR_UID_PROPERTY);
     }
 
+    // Uses CACHE_KEY_PACKAGES_FOR_UID_PROPERTY for invalidation, as the name of a uid is derived
+    // from the same package settings as its packages.
+    private static final PropertyInvalidatedCache<Integer, String> mGetNameForUidCache =
+            new PropertyInvalidatedCache<Integer, String>(
+                32, CACHE_KEY_PACKAGES_FOR_UID_PROPERTY, "getNameForUid") {
+                @Override
+                protected String recompute(Integer uid) {
+                    try {
+                        return ActivityThread.currentActivityThread()
+                                .getPackageManager().getNameForUid(uid);
+                    } catch (RemoteException e) {
+                        throw e.rethrowFromSystemServer();
+                    }
+                }
+                @Override
+                public String queryToString(Integer uid) {
+                    return String.format("uid=%d", uid.intValue());
+                }
+            };
+
     @Override
     public String getNameForUid(int uid) {
-        try {
-            return mPM.getNameForUid(uid);
-        } catch (RemoteException e) {
-            throw e.rethrowFromSystemServer();
-        }
+        return mGetNameForUidCache.query(uid);
     }
 
     @Override
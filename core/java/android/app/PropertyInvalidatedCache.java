@@ -159,6 +159,13 @@ import java.util.concurrent.atomic.AtomicLong;
  * enhancement of cached values and invalidation of multiple caches (that all share the same
  * property key) at once.
  *
+ * Concurrent misses for the same query are coalesced: while one thread recomputes a value, other
+ * threads asking for it under the same nonce wait for its result instead of issuing their own
+ * binder calls. This keeps an invalidation from turning into a stampede of identical calls from
+ * every thread of a process. The wait is bounded, after which the thread recomputes the value
+ * itself, as the recompute may be waiting for a lock the thread holds. Misses are not coalesced
+ * in the system process, where recomputes are local calls that take the locks of the services.
+ *
  * {@code BDAY_CACHE_KEY} is the name of a property that we set to an opaque unique value each
  * time we update the cache. SELinux configuration must allow everyone to read this property
  * and it must allow any process that needs to invalidate the cache (here, birthdayd) to write
@@ -231,6 +238,31 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
     @GuardedBy("mLock")
     private long mClears = 0;
 
+    /**
+     * The number of misses that waited for the recompute of another thread instead of issuing
+     * their own.
+     */
+    @GuardedBy("mLock")
+    private long mCoalescedMisses = 0;
+
+    /**
+     * The number of recomputes that other threads missing the same query waited for.
+     */
+    @GuardedBy("mLock")
+    private long mStampedes = 0;
+
+    /**
+     * The number of coalesced misses that gave up waiting and recomputed the value themselves.
+     */
+    @GuardedBy("mLock")
+    private long mCoalesceTimeouts = 0;
+
+    /**
+     * The default for how long a miss waits for the recompute of another thread, after which
+     * it recomputes the value itself.
+     */
+    private static final long DEFAULT_COALESCED_WAIT_MS = 100;
+
     // Most invalidation is done in a static context, so the counters need to be accessible.
     @GuardedBy("sCorkLock")
     private static final HashMap<String, Long> sInvalidates = new HashMap<>();
@@ -298,6 +330,17 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
     @GuardedBy("mLock")
     private final LinkedHashMap<Query, Result> mCache;
 
+    /**
+     * The recomputes in progress, by query.
+     */
+    @GuardedBy("mLock")
+    private final HashMap<Query, PendingQuery<Result>> mPendingQueries = new HashMap<>();
+
+    /**
+     * How long a miss waits for the recompute of another thread.
+     */
+    private volatile long mCoalescedWaitMs = DEFAULT_COALESCED_WAIT_MS;
+
     /**
      * The last value of the {@code mPropertyHandle} that we observed.
      */
@@ -555,23 +598,126 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
                 }
                 return maybeCheckConsistency(query, cachedResult);
             }
-            // Cache miss: make the value from scratch.
+            // Cache miss: make the value from scratch, unless another thread is already doing so
+            // for the same query and nonce, in which case share its result.
+            final boolean coalescing = !ActivityThread.isSystem();
+            PendingQuery<Result> pending = null;
+            boolean coalesced = false;
+            if (coalescing) {
+                synchronized (mLock) {
+                    pending = mPendingQueries.get(query);
+                    // A recompute that queries its own cache can't wait for itself.
+                    coalesced = pending != null && pending.mNonce == currentNonce
+                            && pending.mThread != Thread.currentThread();
+                    if (coalesced) {
+                        if (pending.mWaiters++ == 0) {
+                            mStampedes++;
+                        }
+                        mCoalescedMisses++;
+                    } else {
+                        pending = new PendingQuery<>(currentNonce);
+                        mPendingQueries.put(query, pending);
+                    }
+                }
+            }
+            if (coalesced) {
+                if (DEBUG) {
+                    Log.d(TAG, "coalesced miss for " + cacheName() + " " + queryToString(query));
+                }
+                final int state = pending.await(mCoalescedWaitMs);
+                if (state == PendingQuery.SUCCEEDED) {
+                    return maybeCheckConsistency(query, pending.mResult);
+                }
+                if (state == PendingQuery.PENDING) {
+                    synchronized (mLock) {
+                        mCoalesceTimeouts++;
+                    }
+                }
+                // The recompute we waited for failed or is taking too long: do it ourselves, so
+                // that we report our own failure if it happens again.
+                return maybeCheckConsistency(query, recompute(query));
+            }
             if (DEBUG) {
                 Log.d(TAG, "cache miss for " + cacheName() + " " + queryToString(query));
             }
-            final Result result = recompute(query);
-            synchronized (mLock) {
-                // If someone else invalidated the cache while we did the recomputation, don't
-                // update the cache with a potentially stale result.
-                if (mLastSeenNonce == currentNonce && result != null) {
-                    mCache.put(query, result);
+            Result result = null;
+            boolean succeeded = false;
+            try {
+                result = recompute(query);
+                succeeded = true;
+            } finally {
+                synchronized (mLock) {
+                    if (pending != null && mPendingQueries.get(query) == pending) {
+                        mPendingQueries.remove(query);
+                    }
+                    // If someone else invalidated the cache while we did the recomputation,
+                    // don't update the cache with a potentially stale result.
+                    if (succeeded && mLastSeenNonce == currentNonce && result != null) {
+                        mCache.put(query, result);
+                    }
+                    mMisses++;
+                }
+                if (pending != null) {
+                    pending.complete(result, succeeded);
                 }
-                mMisses++;
             }
             return maybeCheckConsistency(query, result);
         }
     }
 
+    /**
+     * A recompute in progress, which concurrent misses for the same query under the same nonce
+     * wait for.
+     */
+    private static final class PendingQuery<Result> {
+        static final int PENDING = 0;
+        static final int SUCCEEDED = 1;
+        static final int FAILED = 2;
+
+        final long mNonce;
+        final Thread mThread = Thread.currentThread();
+
+        /** Guarded by the lock of the cache. */
+        int mWaiters;
+
+        private int mState = PENDING;
+        private Result mResult;
+
+        PendingQuery(long nonce) {
+            mNonce = nonce;
+        }
+
+        synchronized void complete(Result result, boolean succeeded) {
+            mResult = result;
+            mState = succeeded ? SUCCEEDED : FAILED;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the recompute to finish, uninterruptibly, for at most {@code timeoutMs}.
+         *
+         * @return {@link #SUCCEEDED}, in which case its result is in {@link #mResult},
+         *         {@link #FAILED}, or {@link #PENDING} if it is still in progress.
+         */
+        synchronized int await(long timeoutMs) {
+            final long deadlineMs = SystemClock.uptimeMillis() + timeoutMs;
+            boolean interrupted = false;
+            long remainingMs = timeoutMs;
+            while (mState == PENDING && remainingMs > 0) {
+                try {
+                    wait(remainingMs);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                remainingMs = deadlineMs - SystemClock.uptimeMillis();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mState;
+        }
+    }
+
     // Inner class avoids initialization in processes that don't do any invalidation
     private static final class NoPreloadHolder {
         private static final AtomicLong sNextNonce = new AtomicLong((new Random()).nextLong());
@@ -779,15 +925,28 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
      * The auto-cork delay is configurable but it should not be too long.  The purpose of
      * the delay is to minimize the number of times a server writes to the system property
      * when invalidating the cache.  One write every 50ms does not hurt system performance.
+     *
+     * A corker can also be made to coalesce only bursts of invalidations: the first invalidation
+     * after a quiet period invalidates the cache right away, leaving clients to cache the new
+     * values, and only further invalidations within the delay cork the cache until the burst is
+     * over.  This suits properties that are mostly invalidated one change at a time, for which
+     * corking would make every client bypass the cache after each change.
      */
     public static final class AutoCorker {
         public static final int DEFAULT_AUTO_CORK_DELAY_MS = 50;
 
         private final String mPropertyName;
         private final int mAutoCorkDelayMs;
+        private final boolean mInvalidateFirst;
         private final Object mLock = new Object();
         @GuardedBy("mLock")
         private long mUncorkDeadlineMs = -1;  // SystemClock.uptimeMillis()
+        /**
+         * The end of the quiet period that follows an invalidation done without corking, if
+         * {@link #mInvalidateFirst}.
+         */
+        @GuardedBy("mLock")
+        private long mQuietDeadlineMs = -1;  // SystemClock.uptimeMillis()
         @GuardedBy("mLock")
         private Handler mHandler;
 
@@ -796,8 +955,18 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
         }
 
         public AutoCorker(@NonNull String propertyName, int autoCorkDelayMs) {
+            this(propertyName, autoCorkDelayMs, false);
+        }
+
+        /**
+         * @param invalidateFirst Whether the first invalidation after a quiet period of
+         * {@code autoCorkDelayMs} invalidates the cache right away instead of corking it.
+         */
+        public AutoCorker(@NonNull String propertyName, int autoCorkDelayMs,
+                boolean invalidateFirst) {
             mPropertyName = propertyName;
             mAutoCorkDelayMs = autoCorkDelayMs;
+            mInvalidateFirst = invalidateFirst;
             // We can't initialize mHandler here: when we're created, the main loop might not
             // be set up yet! Wait until we have a main loop to initialize our
             // corking callback.
@@ -820,7 +989,16 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
                             "autoCork %s mUncorkDeadlineMs=%s", mPropertyName,
                             mUncorkDeadlineMs));
                 }
-                mUncorkDeadlineMs = SystemClock.uptimeMillis() + mAutoCorkDelayMs;
+                final long nowMs = SystemClock.uptimeMillis();
+                if (mInvalidateFirst && !alreadyQueued) {
+                    final boolean quiet = mQuietDeadlineMs < nowMs;
+                    mQuietDeadlineMs = nowMs + mAutoCorkDelayMs;
+                    if (quiet) {
+                        PropertyInvalidatedCache.invalidateCache(mPropertyName);
+                        return;
+                    }
+                }
+                mUncorkDeadlineMs = nowMs + mAutoCorkDelayMs;
                 if (!alreadyQueued) {
                     getHandlerLocked().sendEmptyMessageAtTime(0, mUncorkDeadlineMs);
                     PropertyInvalidatedCache.corkInvalidations(mPropertyName);
@@ -857,6 +1035,7 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
                     Log.w(TAG, "automatic uncorking " + mPropertyName);
                 }
                 mUncorkDeadlineMs = -1;
+                mQuietDeadlineMs = nowMs + mAutoCorkDelayMs;
                 PropertyInvalidatedCache.uncorkInvalidations(mPropertyName);
             }
         }
@@ -917,6 +1096,15 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
         sEnabled = false;
     }
 
+    /**
+     * Set how long a miss waits for the recompute of another thread before recomputing the
+     * value itself.
+     */
+    @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
+    public void setCoalescedWaitMillis(long waitMs) {
+        mCoalescedWaitMs = waitMs;
+    }
+
     /**
      * Report the disabled status of this cache instance.  The return value does not
      * reflect status of the property key.
@@ -958,6 +1146,9 @@ public abstract class PropertyInvalidatedCache<Query, Result> {
             final long skips = mSkips[NONCE_CORKED] + mSkips[NONCE_UNSET] + mSkips[NONCE_DISABLED];
             pw.println(String.format("    Hits: %d, Misses: %d, Skips: %d, Clears: %d",
                     mHits, mMisses, skips, mClears));
+            pw.println(String.format(
+                    "    Coalesced Misses: %d, Stampedes: %d, Timeouts: %d, In Flight: %d",
+                    mCoalescedMisses, mStampedes, mCoalesceTimeouts, mPendingQueries.size()));
             pw.println(String.format("    Skip-corked: %d, Skip-unset: %d, Skip-other: %d",
                     mSkips[NONCE_CORKED], mSkips[NONCE_UNSET],
                     mSkips[NONCE_DISABLED]));
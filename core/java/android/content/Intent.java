@@ -11113,6 +11113,11 @@ public class Intent implements Parcelable, Cloneable {
             out.writeInt(0);
         }
         out.writeInt(mContentUserHint);
+        if (mExtras != null) {
+            // Intents are not persisted as parcels, so their extras can use the lazy format,
+            // which spares system_server and the receiver decoding the extras they don't read.
+            mExtras.setWriteLazily(true);
+        }
         out.writeBundle(mExtras);
     }
 
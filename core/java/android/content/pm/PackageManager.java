@@ -65,6 +65,7 @@ import android.os.IBinder;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.PersistableBundle;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -9164,8 +9165,12 @@ public abstract class PackageManager {
         sApplicationInfoCache.disableLocal();
     }
 
+    // Most changes to package and permission state come alone, and clients can keep caching
+    // right after them. Only bursts of changes, such as app updates, are corked.
     private static final PropertyInvalidatedCache.AutoCorker sCacheAutoCorker =
-            new PropertyInvalidatedCache.AutoCorker(PermissionManager.CACHE_KEY_PACKAGE_INFO);
+            new PropertyInvalidatedCache.AutoCorker(PermissionManager.CACHE_KEY_PACKAGE_INFO,
+                    PropertyInvalidatedCache.AutoCorker.DEFAULT_AUTO_CORK_DELAY_MS,
+                    true /* invalidateFirst */);
 
     /**
      * Invalidate caches of package and permission information system-wide.
@@ -9256,12 +9261,46 @@ public abstract class PackageManager {
         return sPackageInfoCache.query(new PackageInfoQuery(packageName, flags, userId));
     }
 
+    private static int getPackageUidAsUserUncached(String packageName, int flags, int userId) {
+        try {
+            return ActivityThread.getPackageManager().getPackageUid(packageName, flags, userId);
+        } catch (RemoteException e) {
+            throw e.rethrowFromSystemServer();
+        }
+    }
+
+    private static final PropertyInvalidatedCache<PackageInfoQuery, Integer>
+            sPackageUidCache =
+            new PropertyInvalidatedCache<PackageInfoQuery, Integer>(
+                    32, PermissionManager.CACHE_KEY_PACKAGE_INFO,
+                    "getPackageUid") {
+                @Override
+                protected Integer recompute(PackageInfoQuery query) {
+                    final int uid = getPackageUidAsUserUncached(
+                            query.packageName, query.flags, query.userId);
+                    // Not cached: the package may become visible to the caller, e.g. through
+                    // an implicit access grant, without the package info being invalidated.
+                    return uid >= 0 ? uid : null;
+                }
+            };
+
+    /**
+     * Returns the uid of the package, or a negative value if it isn't installed for the user.
+     * @hide
+     */
+    public static int getPackageUidAsUserCached(String packageName, int flags, int userId) {
+        final Integer uid = sPackageUidCache.query(
+                new PackageInfoQuery(packageName, flags, userId));
+        return uid != null ? uid : Process.INVALID_UID;
+    }
+
     /**
-     * Make getPackageInfoAsUser() bypass the cache in this process.
+     * Make getPackageInfoAsUser() and getPackageUidAsUser() bypass the cache in this process.
      * @hide
      */
     public static void disablePackageInfoCache() {
         sPackageInfoCache.disableLocal();
+        sPackageUidCache.disableLocal();
     }
 
     /**
@@ -61,7 +61,6 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -131,14 +130,13 @@ public class ResourcesImpl {
     private final ThreadLocal<LookupStack> mLookupStack =
             ThreadLocal.withInitial(() -> new LookupStack());
 
-    /** Size of the cyclical cache used to map XML files to blocks. */
-    private static final int XML_BLOCK_CACHE_SIZE = 4;
-
-    // Cyclical cache used for recently-accessed XML files.
-    private int mLastCachedXmlBlockIndex = -1;
-    private final int[] mCachedXmlBlockCookies = new int[XML_BLOCK_CACHE_SIZE];
-    private final String[] mCachedXmlBlockFiles = new String[XML_BLOCK_CACHE_SIZE];
-    private final XmlBlock[] mCachedXmlBlocks = new XmlBlock[XML_BLOCK_CACHE_SIZE];
+    // The process wide cache shared with the ResourcesImpl of the same ApkAssets, second level
+    // of the drawable and complex color caches and the only cache of XML blocks.
+    private final SharedResourceCache mSharedCache = SharedResourceCache.getInstance();
+    // The key of the ApkAssets of mAssets in mSharedCache, recreated when they change.
+    private volatile SharedResourceCache.AssetsKey mSharedCacheAssets;
+    // A copy of mConfiguration for the entries of mSharedCache, replaced but never modified.
+    private volatile Configuration mSharedCacheConfig;
 
 
     @UnsupportedAppUsage
@@ -473,7 +471,10 @@ public class ResourcesImpl {
                 mAnimatorCache.onConfigurationChange(configChanges);
                 mStateListAnimatorCache.onConfigurationChange(configChanges);
 
-                flushLayoutCache();
+                // The XML blocks are cached by file, which does not depend on the configuration,
+                // and the other entries of the shared cache check the configuration they were
+                // loaded for, so the shared cache is not flushed.
+                mSharedCacheConfig = new Configuration(mConfiguration);
             }
             synchronized (sSync) {
                 if (mPluralRule != null) {
@@ -562,19 +563,34 @@ public class ResourcesImpl {
      * tools.
      */
     public void flushLayoutCache() {
-        synchronized (mCachedXmlBlocks) {
-            Arrays.fill(mCachedXmlBlockCookies, 0);
-            Arrays.fill(mCachedXmlBlockFiles, null);
-
-            final XmlBlock[] cachedXmlBlocks = mCachedXmlBlocks;
-            for (int i = 0; i < XML_BLOCK_CACHE_SIZE; i++) {
-                final XmlBlock oldBlock = cachedXmlBlocks[i];
-                if (oldBlock != null) {
-                    oldBlock.close();
-                }
-            }
-            Arrays.fill(cachedXmlBlocks, null);
+        final SharedResourceCache.AssetsKey assets = getSharedCacheAssets();
+        if (assets != null) {
+            mSharedCache.flush(assets, true /* xmlBlocksOnly */);
+        }
+    }
+
+    /**
+     * @return the key of the ApkAssets of {@link #mAssets} in {@link #mSharedCache}, or
+     *         {@code null} if the AssetManager is closed.
+     */
+    @Nullable
+    private SharedResourceCache.AssetsKey getSharedCacheAssets() {
+        final ApkAssets[] apkAssets = mAssets.getApkAssets();
+        SharedResourceCache.AssetsKey assets = mSharedCacheAssets;
+        if (assets != null && (apkAssets.length == 0 || !assets.isFor(apkAssets))) {
+            // The XmlBlocks this opened keep the closed or replaced assets alive.
+            mSharedCache.flushXmlBlocks(this);
+            assets = null;
+            mSharedCacheAssets = null;
+        }
+        if (apkAssets.length == 0) {
+            return null;
+        }
+        if (assets == null) {
+            assets = new SharedResourceCache.AssetsKey(apkAssets);
+            mSharedCacheAssets = assets;
         }
+        return assets;
     }
 
     /**
@@ -587,7 +603,10 @@ public class ResourcesImpl {
             mComplexColorCache.clear();
             mAnimatorCache.clear();
             mStateListAnimatorCache.clear();
-            flushLayoutCache();
+            final SharedResourceCache.AssetsKey assets = getSharedCacheAssets();
+            if (assets != null) {
+                mSharedCache.flush(assets, false /* xmlBlocksOnly */);
+            }
         }
     }
 
@@ -658,10 +677,20 @@ public class ResourcesImpl {
                 cs = sPreloadedDrawables[mConfiguration.getLayoutDirection()].get(key);
             }
 
+            // Then the drawables other ResourcesImpl of our ApkAssets loaded.
+            final SharedResourceCache.AssetsKey sharedCacheAssets =
+                    !mPreloading && useCache && !isColorDrawable ? getSharedCacheAssets() : null;
+            final Drawable.ConstantState sharedCs = cs == null && sharedCacheAssets != null
+                    ? mSharedCache.getDrawable(sharedCacheAssets, key, mMetrics.densityDpi,
+                            mSharedCacheConfig)
+                    : null;
+
             Drawable dr;
             boolean needsNewDrawableAfterCache = false;
             if (cs != null) {
                 dr = cs.newDrawable(wrapper);
+            } else if (sharedCs != null) {
+                dr = sharedCs.newDrawable(wrapper);
             } else if (isColorDrawable) {
                 dr = new ColorDrawable(value.data);
             } else {
@@ -691,6 +720,14 @@ public class ResourcesImpl {
                 dr.setChangingConfigurations(value.changingConfigurations);
                 if (useCache) {
                     cacheDrawable(value, isColorDrawable, caches, theme, canApplyTheme, key, dr);
+                    if (sharedCacheAssets != null && cs == null && sharedCs == null
+                            && !canApplyTheme) {
+                        final Drawable.ConstantState state = dr.getConstantState();
+                        if (state != null) {
+                            mSharedCache.putDrawable(sharedCacheAssets, key, mMetrics.densityDpi,
+                                    mSharedCacheConfig, state);
+                        }
+                    }
                     if (needsNewDrawableAfterCache) {
                         Drawable.ConstantState state = dr.getConstantState();
                         if (state != null) {
@@ -970,14 +1007,23 @@ public class ResourcesImpl {
             return complexColor;
         }
 
-        final android.content.res.ConstantState<ComplexColor> factory =
+        android.content.res.ConstantState<ComplexColor> factory =
                 sPreloadedComplexColors.get(key);
 
+        // Then the complex colors other ResourcesImpl of our ApkAssets loaded.
+        final SharedResourceCache.AssetsKey sharedCacheAssets =
+                !mPreloading ? getSharedCacheAssets() : null;
+        boolean loaded = false;
+        if (factory == null && sharedCacheAssets != null) {
+            factory = mSharedCache.getComplexColor(sharedCacheAssets, key, mSharedCacheConfig);
+        }
+
         if (factory != null) {
             complexColor = factory.newInstance(wrapper, theme);
         }
         if (complexColor == null) {
             complexColor = loadComplexColorForCookie(wrapper, value, id, theme);
+            loaded = true;
         }
 
         if (complexColor != null) {
@@ -990,6 +1036,10 @@ public class ResourcesImpl {
                 }
             } else {
                 cache.put(key, theme, complexColor.getConstantState());
+                if (loaded && sharedCacheAssets != null && !complexColor.canApplyTheme()) {
+                    mSharedCache.putComplexColor(sharedCacheAssets, key, mSharedCacheConfig,
+                            complexColor.getConstantState());
+                }
             }
         }
         return complexColor;
@@ -1182,34 +1232,25 @@ public class ResourcesImpl {
             throws NotFoundException {
         if (id != 0) {
             try {
-                synchronized (mCachedXmlBlocks) {
-                    final int[] cachedXmlBlockCookies = mCachedXmlBlockCookies;
-                    final String[] cachedXmlBlockFiles = mCachedXmlBlockFiles;
-                    final XmlBlock[] cachedXmlBlocks = mCachedXmlBlocks;
-                    // First see if this block is in our cache.
-                    final int num = cachedXmlBlockFiles.length;
-                    for (int i = 0; i < num; i++) {
-                        if (cachedXmlBlockCookies[i] == assetCookie && cachedXmlBlockFiles[i] != null
-                                && cachedXmlBlockFiles[i].equals(file)) {
-                            return cachedXmlBlocks[i].newParser(id);
-                        }
+                final SharedResourceCache.AssetsKey assets = getSharedCacheAssets();
+                if (assets != null) {
+                    // First see if this block is in the cache.
+                    final XmlResourceParser parser =
+                            mSharedCache.newXmlParser(assets, assetCookie, file, id);
+                    if (parser != null) {
+                        return parser;
                     }
+                }
 
-                    // Not in the cache, create a new block and put it at
-                    // the next slot in the cache.
-                    final XmlBlock block = mAssets.openXmlBlockAsset(assetCookie, file);
-                    if (block != null) {
-                        final int pos = (mLastCachedXmlBlockIndex + 1) % num;
-                        mLastCachedXmlBlockIndex = pos;
-                        final XmlBlock oldBlock = cachedXmlBlocks[pos];
-                        if (oldBlock != null) {
-                            oldBlock.close();
-                        }
-                        cachedXmlBlockCookies[pos] = assetCookie;
-                        cachedXmlBlockFiles[pos] = file;
-                        cachedXmlBlocks[pos] = block;
-                        return block.newParser(id);
+                // Not in the cache, create a new block and cache it.
+                final XmlBlock block = mAssets.openXmlBlockAsset(assetCookie, file);
+                if (block != null) {
+                    if (assets == null) {
+                        final XmlResourceParser parser = block.newParser(id);
+                        block.close();
+                        return parser;
                     }
+                    return mSharedCache.putXmlBlock(assets, assetCookie, file, id, block, this);
                 }
             } catch (Exception e) {
                 final NotFoundException rnf = new NotFoundException("File " + file
@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.res;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.pm.ActivityInfo.Config;
+import android.graphics.drawable.Drawable;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Process wide cache of the resources that only depend on the {@link ApkAssets} they were loaded
+ * from and on the configuration, shared by all the {@link ResourcesImpl} of these ApkAssets.
+ * <p>
+ * {@link android.app.ResourcesManager} creates a ResourcesImpl, and an AssetManager, per
+ * configuration and override, so the per ResourcesImpl caches load the same drawables, colors
+ * and XML files again for every window of an app in multi-window and after every configuration
+ * change. This cache is the second level of these caches:
+ * <ul>
+ * <li>The constant states of drawables and complex colors that do not apply a theme. They are
+ * weakly referenced like in the per ResourcesImpl caches, and used for any configuration that
+ * does not differ from the one they were loaded for in their changing configurations.
+ * <li>The {@link XmlBlock}s of XML files, by asset cookie and file name. A block keeps the
+ * AssetManager it was opened with, and so its ApkAssets, alive. It is only cached as long as the
+ * ResourcesImpl that opened it is reachable and keeps the same ApkAssets.
+ * </ul>
+ * The entries are split into stripes, each with its own lock and least recently used order, so
+ * that the ResourcesImpl of different threads rarely contend. Each stripe retains a share of a
+ * byte budget, in which a constant state is only charged for its bookkeeping as the cache does
+ * not keep it alive. The native size of an XmlBlock is not known to Java, so the XmlBlocks are
+ * bounded by count instead, each stripe retaining a share of {@link #MAX_XML_BLOCKS}.
+ *
+ * @hide
+ */
+public final class SharedResourceCache {
+    /** The number of stripes, a power of two. */
+    private static final int STRIPE_COUNT = 8;
+
+    /** The memory the cache retains at most, split evenly between the stripes. */
+    private static final int BUDGET_BYTES = 1024 * 1024;
+
+    /**
+     * The XmlBlocks the cache retains at most, split evenly between the stripes. That is as many
+     * as four ResourcesImpl retained in their own cache.
+     */
+    private static final int MAX_XML_BLOCKS = 16;
+
+    /** Bytes charged for the entry of a weakly referenced constant state. */
+    @VisibleForTesting
+    static final int CONSTANT_STATE_BYTES = 128;
+
+    @VisibleForTesting
+    static final int KIND_DRAWABLE = 0;
+    @VisibleForTesting
+    static final int KIND_COMPLEX_COLOR = 1;
+    @VisibleForTesting
+    static final int KIND_XML_BLOCK = 2;
+    private static final String[] KIND_NAMES = { "Drawables", "Complex colors", "XML blocks" };
+
+    private static final SharedResourceCache sInstance =
+            new SharedResourceCache(BUDGET_BYTES, MAX_XML_BLOCKS);
+
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    /** The references to the openers of the cached XmlBlocks that were garbage collected. */
+    private final ReferenceQueue<Object> mDeadOpeners = new ReferenceQueue<>();
+
+    /**
+     * Identifies a set of ApkAssets, in the order of their asset cookies, without keeping them
+     * alive: the entries of ApkAssets that were closed are never hit again and age out.
+     */
+    static final class AssetsKey {
+        private final WeakReference<ApkAssets>[] mApkAssets;
+        private final int mHashCode;
+
+        @SuppressWarnings("unchecked")
+        AssetsKey(@NonNull ApkAssets[] apkAssets) {
+            mApkAssets = new WeakReference[apkAssets.length];
+            int hashCode = 1;
+            for (int i = 0; i < apkAssets.length; i++) {
+                mApkAssets[i] = new WeakReference<>(apkAssets[i]);
+                hashCode = 31 * hashCode + System.identityHashCode(apkAssets[i]);
+            }
+            mHashCode = hashCode;
+        }
+
+        /**
+         * @return whether this key identifies exactly {@code apkAssets}.
+         */
+        boolean isFor(@NonNull ApkAssets[] apkAssets) {
+            if (apkAssets.length != mApkAssets.length) {
+                return false;
+            }
+            for (int i = 0; i < apkAssets.length; i++) {
+                if (mApkAssets[i].get() != apkAssets[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof AssetsKey)) {
+                return false;
+            }
+            final AssetsKey other = (AssetsKey) o;
+            if (mHashCode != other.mHashCode || mApkAssets.length != other.mApkAssets.length) {
+                return false;
+            }
+            for (int i = 0; i < mApkAssets.length; i++) {
+                final ApkAssets apkAssets = mApkAssets[i].get();
+                if (apkAssets == null || apkAssets != other.mApkAssets[i].get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class Key {
+        AssetsKey mAssets;
+        int mKind;
+        long mKey;
+        int mDensity;
+        @Nullable String mFile;
+        int mHashCode;
+
+        Key set(AssetsKey assets, int kind, long key, int density, @Nullable String file,
+                int hashCode) {
+            mAssets = assets;
+            mKind = kind;
+            mKey = key;
+            mDensity = density;
+            mFile = file;
+            mHashCode = hashCode;
+            return this;
+        }
+
+        Key copy() {
+            return new Key().set(mAssets, mKind, mKey, mDensity, mFile, mHashCode);
+        }
+
+        static int hashOf(AssetsKey assets, int kind, long key, int density,
+                @Nullable String file) {
+            int hashCode = assets.hashCode();
+            hashCode = 31 * hashCode + kind;
+            hashCode = 31 * hashCode + Long.hashCode(key);
+            hashCode = 31 * hashCode + density;
+            return 31 * hashCode + (file != null ? file.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mHashCode == other.mHashCode && mKind == other.mKind && mKey == other.mKey
+                    && mDensity == other.mDensity && Objects.equals(mFile, other.mFile)
+                    && mAssets.equals(other.mAssets);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /** Weak reference to the opener of a cached XmlBlock, that knows the key of the block. */
+    private static final class OpenerReference extends WeakReference<Object> {
+        final Key mKey;
+
+        OpenerReference(@NonNull Object opener, @NonNull Key key,
+                @NonNull ReferenceQueue<Object> queue) {
+            super(opener, queue);
+            mKey = key;
+        }
+    }
+
+    private static final class Entry {
+        /** The constant state, for every kind but {@link #KIND_XML_BLOCK}. */
+        @Nullable final WeakReference<Object> mState;
+        @Nullable final Configuration mConfig;
+        final @Config int mChangingConfigs;
+        @Nullable final XmlBlock mBlock;
+        @Nullable final OpenerReference mOpener;
+        final int mBytes;
+
+        Entry(@NonNull Object state, @NonNull Configuration config, @Config int changingConfigs) {
+            mState = new WeakReference<>(state);
+            mConfig = config;
+            mChangingConfigs = changingConfigs;
+            mBlock = null;
+            mOpener = null;
+            mBytes = CONSTANT_STATE_BYTES;
+        }
+
+        Entry(@NonNull XmlBlock block, @NonNull OpenerReference opener) {
+            mState = null;
+            mConfig = null;
+            mChangingConfigs = 0;
+            mBlock = block;
+            mOpener = opener;
+            // Bounded by count instead, see MAX_XML_BLOCKS.
+            mBytes = 0;
+        }
+
+        void close() {
+            if (mBlock != null) {
+                mBlock.close();
+                // The entry is gone, there is nothing left to remove once the opener dies.
+                mOpener.clear();
+            }
+        }
+    }
+
+    private static final class Stripe {
+        /** Key of the lookups, to not allocate one for each. */
+        @GuardedBy("this")
+        final Key mLookupKey = new Key();
+        /** The entries in least recently used first order. */
+        @GuardedBy("this")
+        final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        final int mBudgetBytes;
+        @GuardedBy("this")
+        int mBytes;
+        final int mMaxXmlBlocks;
+        @GuardedBy("this")
+        int mXmlBlocks;
+        @GuardedBy("this")
+        final long[] mHits = new long[KIND_NAMES.length];
+        @GuardedBy("this")
+        final long[] mMisses = new long[KIND_NAMES.length];
+
+        Stripe(int budgetBytes, int maxXmlBlocks) {
+            mBudgetBytes = budgetBytes;
+            mMaxXmlBlocks = maxXmlBlocks;
+        }
+
+        @GuardedBy("this")
+        void putLocked(Key key, Entry entry) {
+            final Entry old = mEntries.put(key.copy(), entry);
+            mBytes += entry.mBytes;
+            if (entry.mBlock != null) {
+                mXmlBlocks++;
+            }
+            if (old != null) {
+                removedLocked(old);
+            }
+            // Evict the least recently used entries, but never the new one.
+            final Iterator<Entry> it = mEntries.values().iterator();
+            while (mBytes > mBudgetBytes && mEntries.size() > 1) {
+                final Entry eldest = it.next();
+                it.remove();
+                removedLocked(eldest);
+            }
+            if (mXmlBlocks > mMaxXmlBlocks) {
+                final Iterator<Entry> blocks = mEntries.values().iterator();
+                while (mXmlBlocks > mMaxXmlBlocks) {
+                    final Entry eldest = blocks.next();
+                    if (eldest.mBlock != null && eldest != entry) {
+                        blocks.remove();
+                        removedLocked(eldest);
+                    }
+                }
+            }
+        }
+
+        @GuardedBy("this")
+        void removeLocked(Key key) {
+            final Entry entry = mEntries.remove(key);
+            if (entry != null) {
+                removedLocked(entry);
+            }
+        }
+
+        @GuardedBy("this")
+        void removedLocked(Entry entry) {
+            mBytes -= entry.mBytes;
+            if (entry.mBlock != null) {
+                mXmlBlocks--;
+            }
+            entry.close();
+        }
+    }
+
+    @VisibleForTesting
+    SharedResourceCache(int budgetBytes, int maxXmlBlocks) {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe(budgetBytes / STRIPE_COUNT,
+                    Math.max(1, maxXmlBlocks / STRIPE_COUNT));
+        }
+    }
+
+    /**
+     * @return the cache of this process.
+     */
+    public static SharedResourceCache getInstance() {
+        return sInstance;
+    }
+
+    private Stripe stripeFor(int hashCode) {
+        return mStripes[(hashCode ^ (hashCode >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * @return a constant state of a drawable loaded for a configuration that does not differ from
+     *         {@code config} in its changing configurations, or {@code null}.
+     */
+    @Nullable
+    Drawable.ConstantState getDrawable(@NonNull AssetsKey assets, long key, int density,
+            @NonNull Configuration config) {
+        return (Drawable.ConstantState) getState(assets, KIND_DRAWABLE, key, density, config);
+    }
+
+    /**
+     * Caches the constant state of a drawable that does not apply a theme, loaded for
+     * {@code config}, which must not be modified afterwards.
+     */
+    void putDrawable(@NonNull AssetsKey assets, long key, int density,
+            @NonNull Configuration config, @NonNull Drawable.ConstantState state) {
+        putState(assets, KIND_DRAWABLE, key, density, config, state,
+                state.getChangingConfigurations());
+    }
+
+    /**
+     * @return a constant state of a complex color loaded for a configuration that does not
+     *         differ from {@code config} in its changing configurations, or {@code null}.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    ConstantState<ComplexColor> getComplexColor(@NonNull AssetsKey assets, long key,
+            @NonNull Configuration config) {
+        return (ConstantState<ComplexColor>) getState(assets, KIND_COMPLEX_COLOR, key, 0, config);
+    }
+
+    /**
+     * Caches the constant state of a complex color that does not apply a theme, loaded for
+     * {@code config}, which must not be modified afterwards.
+     */
+    void putComplexColor(@NonNull AssetsKey assets, long key, @NonNull Configuration config,
+            @NonNull ConstantState<ComplexColor> state) {
+        putState(assets, KIND_COMPLEX_COLOR, key, 0, config, state,
+                state.getChangingConfigurations());
+    }
+
+    @Nullable
+    private Object getState(AssetsKey assets, int kind, long key, int density,
+            Configuration config) {
+        final int hashCode = Key.hashOf(assets, kind, key, density, null);
+        final Stripe stripe = stripeFor(hashCode);
+        synchronized (stripe) {
+            final Key lookupKey = stripe.mLookupKey.set(assets, kind, key, density, null, hashCode);
+            final Entry entry = stripe.mEntries.get(lookupKey);
+            final Object state = entry != null ? entry.mState.get() : null;
+            if (state == null) {
+                if (entry != null) {
+                    stripe.removeLocked(lookupKey);
+                }
+                stripe.mMisses[kind]++;
+                return null;
+            }
+            if (entry.mConfig != config && Configuration.needNewResources(
+                    entry.mConfig.diff(config), entry.mChangingConfigs)) {
+                stripe.mMisses[kind]++;
+                return null;
+            }
+            stripe.mHits[kind]++;
+            return state;
+        }
+    }
+
+    private void putState(AssetsKey assets, int kind, long key, int density,
+            Configuration config, Object state, @Config int changingConfigs) {
+        final int hashCode = Key.hashOf(assets, kind, key, density, null);
+        final Stripe stripe = stripeFor(hashCode);
+        synchronized (stripe) {
+            stripe.putLocked(stripe.mLookupKey.set(assets, kind, key, density, null, hashCode),
+                    new Entry(state, config, changingConfigs));
+        }
+    }
+
+    /**
+     * @return a parser for the resource {@code id} of the cached XmlBlock of {@code file}, or
+     *         {@code null} if it is not cached.
+     */
+    @Nullable
+    XmlResourceParser newXmlParser(@NonNull AssetsKey assets, int cookie, @NonNull String file,
+            int id) {
+        final int hashCode = Key.hashOf(assets, KIND_XML_BLOCK, cookie, 0, file);
+        final Stripe stripe = stripeFor(hashCode);
+        synchronized (stripe) {
+            final Key lookupKey =
+                    stripe.mLookupKey.set(assets, KIND_XML_BLOCK, cookie, 0, file, hashCode);
+            final Entry entry = stripe.mEntries.get(lookupKey);
+            // The parser is created under the lock, as an evicted block is closed.
+            final XmlResourceParser parser = entry != null ? entry.mBlock.newParser(id) : null;
+            if (parser != null) {
+                stripe.mHits[KIND_XML_BLOCK]++;
+            } else {
+                stripe.mMisses[KIND_XML_BLOCK]++;
+            }
+            return parser;
+        }
+    }
+
+    /**
+     * Caches the XmlBlock of {@code file}, or closes it if another one was cached meanwhile.
+     * The block is closed once {@code opener}, the owner of the AssetManager the block was
+     * opened with, is garbage collected or {@link #flushXmlBlocks flushes} its blocks.
+     *
+     * @return a parser for the resource {@code id} of the cached XmlBlock.
+     */
+    @NonNull
+    XmlResourceParser putXmlBlock(@NonNull AssetsKey assets, int cookie, @NonNull String file,
+            int id, @NonNull XmlBlock block, @NonNull Object opener) {
+        expungeDeadOpeners();
+        final int hashCode = Key.hashOf(assets, KIND_XML_BLOCK, cookie, 0, file);
+        final Stripe stripe = stripeFor(hashCode);
+        synchronized (stripe) {
+            final Key lookupKey =
+                    stripe.mLookupKey.set(assets, KIND_XML_BLOCK, cookie, 0, file, hashCode);
+            final Entry entry = stripe.mEntries.get(lookupKey);
+            if (entry != null) {
+                final XmlResourceParser parser = entry.mBlock.newParser(id);
+                if (parser != null) {
+                    block.close();
+                    return parser;
+                }
+            }
+            final XmlResourceParser parser = block.newParser(id);
+            stripe.putLocked(lookupKey,
+                    new Entry(block, new OpenerReference(opener, lookupKey.copy(), mDeadOpeners)));
+            return parser;
+        }
+    }
+
+    /**
+     * Closes the cached XmlBlocks that {@code opener} opened, as their AssetManager was closed
+     * or its ApkAssets replaced.
+     */
+    void flushXmlBlocks(@NonNull Object opener) {
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                final Iterator<Entry> it = stripe.mEntries.values().iterator();
+                while (it.hasNext()) {
+                    final Entry entry = it.next();
+                    if (entry.mOpener != null && entry.mOpener.get() == opener) {
+                        it.remove();
+                        stripe.removedLocked(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the cached XmlBlocks of the openers that were garbage collected, so that the
+     * AssetManagers they were opened with can be collected too.
+     */
+    @VisibleForTesting
+    void expungeDeadOpeners() {
+        Reference<?> ref;
+        while ((ref = mDeadOpeners.poll()) != null) {
+            final Key key = ((OpenerReference) ref).mKey;
+            final Stripe stripe = stripeFor(key.mHashCode);
+            synchronized (stripe) {
+                final Entry entry = stripe.mEntries.get(key);
+                if (entry != null && entry.mOpener == ref) {
+                    stripe.removeLocked(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the XmlBlocks of {@code assets}, or all its entries if {@code xmlBlocksOnly} is
+     * {@code false}.
+     */
+    void flush(@NonNull AssetsKey assets, boolean xmlBlocksOnly) {
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                final Iterator<Map.Entry<Key, Entry>> it =
+                        stripe.mEntries.entrySet().iterator();
+                while (it.hasNext()) {
+                    final Map.Entry<Key, Entry> mapEntry = it.next();
+                    final Key key = mapEntry.getKey();
+                    if ((!xmlBlocksOnly || key.mKind == KIND_XML_BLOCK)
+                            && key.mAssets.equals(assets)) {
+                        it.remove();
+                        stripe.removedLocked(mapEntry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getXmlBlockCount() {
+        int count = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                count += stripe.mXmlBlocks;
+            }
+        }
+        return count;
+    }
+
+    @VisibleForTesting
+    long getHits(int kind) {
+        long hits = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                hits += stripe.mHits[kind];
+            }
+        }
+        return hits;
+    }
+
+    @VisibleForTesting
+    long getMisses(int kind) {
+        long misses = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                misses += stripe.mMisses[kind];
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Dumps the size and hit rates of the cache, for dumpsys meminfo.
+     */
+    public void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        expungeDeadOpeners();
+        int entries = 0;
+        long bytes = 0;
+        long budgetBytes = 0;
+        int xmlBlocks = 0;
+        int maxXmlBlocks = 0;
+        final long[] hits = new long[KIND_NAMES.length];
+        final long[] misses = new long[KIND_NAMES.length];
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                entries += stripe.mEntries.size();
+                bytes += stripe.mBytes;
+                budgetBytes += stripe.mBudgetBytes;
+                xmlBlocks += stripe.mXmlBlocks;
+                maxXmlBlocks += stripe.mMaxXmlBlocks;
+                for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+                    hits[kind] += stripe.mHits[kind];
+                    misses[kind] += stripe.mMisses[kind];
+                }
+            }
+        }
+        pw.print(prefix); pw.print("Entries: "); pw.print(entries);
+        pw.print(" retained(KB): "); pw.print(bytes / 1024);
+        pw.print(" budget(KB): "); pw.print(budgetBytes / 1024);
+        pw.print(" XML blocks: "); pw.print(xmlBlocks); pw.print('/'); pw.println(maxXmlBlocks);
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            final long lookups = hits[kind] + misses[kind];
+            pw.print(prefix); pw.print(KIND_NAMES[kind]); pw.print(": hits=");
+            pw.print(hits[kind]); pw.print(" misses="); pw.print(misses[kind]);
+            pw.print(" hitRate="); pw.print(lookups > 0 ? hits[kind] * 100 / lookups : 0);
+            pw.println('%');
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.util.MathUtils;
 import android.util.Slog;
 import android.util.SparseArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.IndentingPrintWriter;
 
@@ -45,6 +46,13 @@ public class BaseBundle {
     private static final int BUNDLE_MAGIC = 0x4C444E42; // 'B' 'N' 'D' 'L'
     private static final int BUNDLE_MAGIC_NATIVE = 0x4C444E44; // 'B' 'N' 'D' 'N'
 
+    /**
+     * Magic of bundles written with the length of every value ahead of it, which lets them be
+     * unparcelled lazily. Only written by {@link Bundle}, as native code never reads them, and
+     * only once {@link #setShouldWriteLazily} turned it on.
+     */
+    private static final int BUNDLE_MAGIC_LAZY = 0x4C444E5A; // 'Z' 'N' 'D' 'L'
+
     /**
      * Flag indicating that this Bundle is okay to "defuse." That is, it's okay
      * for system processes to ignore any {@link BadParcelableException}
@@ -72,6 +80,23 @@ public class BaseBundle {
         sShouldDefuse = shouldDefuse;
     }
 
+    private static volatile boolean sShouldWriteLazily = false;
+
+    /**
+     * Set global variable indicating whether the {@link Bundle}s written by this process that
+     * were marked with {@link Bundle#setWriteLazily} should use the lazy format, which lets their
+     * receiver only decode the values it reads. Bundles of both formats are always read.
+     * <p>
+     * This changes the bytes of {@link Parcel#marshall() marshalled} bundles, so it must only be
+     * turned on in processes that don't persist the marked ones, as other builds may not read
+     * them back.
+     *
+     * @hide
+     */
+    public static void setShouldWriteLazily(boolean shouldWriteLazily) {
+        sShouldWriteLazily = shouldWriteLazily;
+    }
+
     // A parcel cannot be obtained during compile-time initialization. Put the
     // empty parcel into an inner class that can be initialized separately. This
     // allows to initialize BaseBundle, and classes depending on it.
@@ -99,6 +124,26 @@ public class BaseBundle {
      */
     private boolean mParcelledByNative;
 
+    /**
+     * Whether {@link #mParcelledData} was written in the lazy format, in which case its values
+     * are only decoded when they are accessed.
+     */
+    private boolean mParcelledLazily;
+
+    /**
+     * The parcel the lazy values of {@link #mMap} point into, if this bundle is the only one
+     * referencing them. It is recycled once they have all been decoded.
+     */
+    @GuardedBy("this")
+    @VisibleForTesting
+    Parcel mLazySource;
+
+    /**
+     * The number of values of {@link #mMap} still pointing into {@link #mLazySource}.
+     */
+    @GuardedBy("this")
+    private int mLazyValues;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -198,7 +243,7 @@ public class BaseBundle {
         if (size == 0) {
             return null;
         }
-        Object o = mMap.valueAt(0);
+        Object o = getValueAt(0);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -233,7 +278,8 @@ public class BaseBundle {
         synchronized (this) {
             final Parcel source = mParcelledData;
             if (source != null) {
-                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative);
+                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative,
+                        mParcelledLazily);
             } else {
                 if (DEBUG) {
                     Log.d(TAG, "unparcel "
@@ -245,7 +291,7 @@ public class BaseBundle {
     }
 
     private void initializeFromParcelLocked(@NonNull Parcel parcelledData, boolean recycleParcel,
-            boolean parcelledByNative) {
+            boolean parcelledByNative, boolean parcelledLazily) {
         if (LOG_DEFUSABLE && sShouldDefuse && (mFlags & FLAG_DEFUSABLE) == 0) {
             Slog.wtf(TAG, "Attempting to unparcel a Bundle while in transit; this may "
                     + "clobber all data inside!", new Throwable());
@@ -260,12 +306,17 @@ public class BaseBundle {
                 mMap = new ArrayMap<>(1);
             } else {
                 mMap.erase();
+                releaseLazySourceLocked(/*recycle=*/ true);
             }
             mParcelledData = null;
             mParcelledByNative = false;
+            mParcelledLazily = false;
             return;
         }
 
+        // Values can only be left in a parcel this bundle owns, which is then kept instead of
+        // being recycled.
+        final boolean lazy = parcelledLazily && recycleParcel;
         final int count = parcelledData.readInt();
         if (DEBUG) {
             Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
@@ -280,9 +331,14 @@ public class BaseBundle {
         } else {
             map.erase();
             map.ensureCapacity(count);
+            releaseLazySourceLocked(/*recycle=*/ true);
         }
+        int lazyValues = 0;
         try {
-            if (parcelledByNative) {
+            if (parcelledLazily) {
+                lazyValues = parcelledData.readLazyArrayMapInternal(map, count, mClassLoader,
+                        lazy);
+            } else if (parcelledByNative) {
                 // If it was parcelled by native code, then the array map keys aren't sorted
                 // by their hash codes, so use the safe (slow) one.
                 parcelledData.readArrayMapSafelyInternal(map, count, mClassLoader);
@@ -307,11 +363,15 @@ public class BaseBundle {
             }
         }finally {
             mMap = map;
-            if (recycleParcel) {
+            if (lazyValues > 0) {
+                mLazySource = parcelledData;
+                mLazyValues = lazyValues;
+            } else if (recycleParcel) {
                 recycleParcel(parcelledData);
             }
             mParcelledData = null;
             mParcelledByNative = false;
+            mParcelledLazily = false;
         }
         if (DEBUG) {
             Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
@@ -347,12 +407,119 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * Stops tracking the lazy values of {@link #mMap}. If {@code recycle}, none of them can be
+     * read anymore and their parcel is recycled right away. Otherwise they are being shared with
+     * another bundle, and their parcel is left to be reclaimed with the last of them.
+     */
+    @GuardedBy("this")
+    private void releaseLazySourceLocked(boolean recycle) {
+        if (recycle) {
+            recycleParcel(mLazySource);
+        }
+        mLazySource = null;
+        mLazyValues = 0;
+    }
+
+    /**
+     * Called when a value pointing into {@link #mLazySource} left {@link #mMap}, to recycle the
+     * parcel once none does.
+     */
+    @GuardedBy("this")
+    private void onLazyValueReleasedLocked() {
+        if (mLazySource != null && --mLazyValues == 0) {
+            releaseLazySourceLocked(/*recycle=*/ true);
+        }
+    }
+
+    /**
+     * Shares the lazy values of both bundles with each other, so that neither recycles their
+     * parcel anymore.
+     */
+    static void shareLazyValues(BaseBundle a, BaseBundle b) {
+        synchronized (a) {
+            a.releaseLazySourceLocked(/*recycle=*/ false);
+        }
+        synchronized (b) {
+            b.releaseLazySourceLocked(/*recycle=*/ false);
+        }
+    }
+
     /** @hide */
     ArrayMap<String, Object> getMap() {
         unparcel();
+        unparcelValues();
         return mMap;
     }
 
+    /**
+     * Returns the value for the given key, decoding it first if it was unparcelled lazily. The
+     * bundle must have been unparcelled.
+     */
+    final Object getValue(String key) {
+        final int i = mMap.indexOfKey(key);
+        return i >= 0 ? getValueAt(i) : null;
+    }
+
+    /**
+     * Returns the value at the given index of {@link #mMap}, decoding it first if it was
+     * unparcelled lazily. The decoded value replaces the lazy one in place, so concurrent readers
+     * see either of them and the map is never structurally modified.
+     */
+    final Object getValueAt(int i) {
+        final Object value = mMap.valueAt(i);
+        if (value instanceof Parcel.LazyValue) {
+            synchronized (this) {
+                return getValueAtLocked(i);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Decodes the value at the given index of {@link #mMap} if it is still lazy. Lazy values are
+     * only ever read with the lock held, as their parcel is recycled once the last one of them is
+     * decoded.
+     */
+    @GuardedBy("this")
+    private Object getValueAtLocked(int i) {
+        Object value = mMap.valueAt(i);
+        if (value instanceof Parcel.LazyValue) {
+            try {
+                value = ((Parcel.LazyValue) value).get(mClassLoader);
+            } catch (BadParcelableException e) {
+                if (sShouldDefuse) {
+                    Log.w(TAG, "Failed to parse value of " + mMap.keyAt(i)
+                            + ", but defusing quietly", e);
+                    value = null;
+                } else {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                if (sShouldDefuse && (e.getCause() instanceof ClassNotFoundException)) {
+                    Log.w(TAG, "Failed to parse value of " + mMap.keyAt(i)
+                            + ", but defusing quietly", e);
+                    value = null;
+                } else {
+                    throw e;
+                }
+            }
+            mMap.setValueAt(i, value);
+            onLazyValueReleasedLocked();
+        }
+        return value;
+    }
+
+    /**
+     * Decodes all the values that were unparcelled lazily. The bundle must have been
+     * unparcelled.
+     */
+    final void unparcelValues() {
+        for (int i = mMap.size() - 1; i >= 0; i--) {
+            getValueAt(i);
+        }
+    }
+
     /**
      * Returns the number of mappings contained in this Bundle.
      *
@@ -422,6 +589,8 @@ public class BaseBundle {
         } else if (isParcelled()) {
             return mParcelledData.compareData(other.mParcelledData) == 0;
         } else {
+            unparcelValues();
+            other.unparcelValues();
             return mMap.equals(other.mMap);
         }
     }
@@ -431,11 +600,16 @@ public class BaseBundle {
      */
     public void clear() {
         unparcel();
-        mMap.clear();
+        synchronized (this) {
+            mMap.clear();
+            releaseLazySourceLocked(/*recycle=*/ true);
+        }
     }
 
     void copyInternal(BaseBundle from, boolean deep) {
         synchronized (from) {
+            // Both bundles point into the same parcel from now on.
+            from.releaseLazySourceLocked(/*recycle=*/ false);
             if (from.mParcelledData != null) {
                 if (from.isEmptyParcel()) {
                     mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
@@ -446,10 +620,12 @@ public class BaseBundle {
                             from.mParcelledData.dataSize());
                     mParcelledData.setDataPosition(0);
                     mParcelledByNative = from.mParcelledByNative;
+                    mParcelledLazily = from.mParcelledLazily;
                 }
             } else {
                 mParcelledData = null;
                 mParcelledByNative = false;
+                mParcelledLazily = false;
             }
 
             if (from.mMap != null) {
@@ -533,7 +709,7 @@ public class BaseBundle {
     @Nullable
     public Object get(String key) {
         unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -543,7 +719,11 @@ public class BaseBundle {
      */
     public void remove(String key) {
         unparcel();
-        mMap.remove(key);
+        synchronized (this) {
+            if (mMap.remove(key) instanceof Parcel.LazyValue) {
+                onLazyValueReleasedLocked();
+            }
+        }
     }
 
     /**
@@ -554,6 +734,7 @@ public class BaseBundle {
     public void putAll(PersistableBundle bundle) {
         unparcel();
         bundle.unparcel();
+        shareLazyValues(this, bundle);
         mMap.putAll(bundle.mMap);
     }
 
@@ -941,6 +1122,16 @@ public class BaseBundle {
     public boolean getBoolean(String key, boolean defaultValue) {
         unparcel();
         Object o = mMap.get(key);
+        if (o instanceof Parcel.LazyValue) {
+            synchronized (this) {
+                o = mMap.get(key);
+                if (o instanceof Parcel.LazyValue && ((Parcel.LazyValue) o).isBoolean()) {
+                    // Read it straight from the parcel rather than boxing it.
+                    return ((Parcel.LazyValue) o).getInt() == 1;
+                }
+            }
+            o = getValue(key);
+        }
         if (o == null) {
             return defaultValue;
         }
@@ -974,7 +1165,7 @@ public class BaseBundle {
      */
     Byte getByte(String key, byte defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1008,7 +1199,7 @@ public class BaseBundle {
      */
     char getChar(String key, char defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1042,7 +1233,7 @@ public class BaseBundle {
      */
     short getShort(String key, short defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1077,6 +1268,16 @@ public class BaseBundle {
    public int getInt(String key, int defaultValue) {
         unparcel();
         Object o = mMap.get(key);
+        if (o instanceof Parcel.LazyValue) {
+            synchronized (this) {
+                o = mMap.get(key);
+                if (o instanceof Parcel.LazyValue && ((Parcel.LazyValue) o).isInteger()) {
+                    // Read it straight from the parcel rather than boxing it.
+                    return ((Parcel.LazyValue) o).getInt();
+                }
+            }
+            o = getValue(key);
+        }
         if (o == null) {
             return defaultValue;
         }
@@ -1111,6 +1312,16 @@ public class BaseBundle {
     public long getLong(String key, long defaultValue) {
         unparcel();
         Object o = mMap.get(key);
+        if (o instanceof Parcel.LazyValue) {
+            synchronized (this) {
+                o = mMap.get(key);
+                if (o instanceof Parcel.LazyValue && ((Parcel.LazyValue) o).isLong()) {
+                    // Read it straight from the parcel rather than boxing it.
+                    return ((Parcel.LazyValue) o).getLong();
+                }
+            }
+            o = getValue(key);
+        }
         if (o == null) {
             return defaultValue;
         }
@@ -1144,7 +1355,7 @@ public class BaseBundle {
      */
     float getFloat(String key, float defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1179,6 +1390,16 @@ public class BaseBundle {
     public double getDouble(String key, double defaultValue) {
         unparcel();
         Object o = mMap.get(key);
+        if (o instanceof Parcel.LazyValue) {
+            synchronized (this) {
+                o = mMap.get(key);
+                if (o instanceof Parcel.LazyValue && ((Parcel.LazyValue) o).isDouble()) {
+                    // Read it straight from the parcel rather than boxing it.
+                    return ((Parcel.LazyValue) o).getDouble();
+                }
+            }
+            o = getValue(key);
+        }
         if (o == null) {
             return defaultValue;
         }
@@ -1201,7 +1422,7 @@ public class BaseBundle {
     @Nullable
     public String getString(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1237,7 +1458,7 @@ public class BaseBundle {
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1273,7 +1494,7 @@ public class BaseBundle {
     @Nullable
     Serializable getSerializable(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1296,7 +1517,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1319,7 +1540,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1342,7 +1563,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1365,7 +1586,7 @@ public class BaseBundle {
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1388,7 +1609,7 @@ public class BaseBundle {
     @Nullable
     byte[] getByteArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1411,7 +1632,7 @@ public class BaseBundle {
     @Nullable
     short[] getShortArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1434,7 +1655,7 @@ public class BaseBundle {
     @Nullable
     char[] getCharArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1457,7 +1678,7 @@ public class BaseBundle {
     @Nullable
     public int[] getIntArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1480,7 +1701,7 @@ public class BaseBundle {
     @Nullable
     public long[] getLongArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1503,7 +1724,7 @@ public class BaseBundle {
     @Nullable
     float[] getFloatArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1526,7 +1747,7 @@ public class BaseBundle {
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1549,7 +1770,7 @@ public class BaseBundle {
     @Nullable
     public String[] getStringArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1572,7 +1793,7 @@ public class BaseBundle {
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1591,12 +1812,15 @@ public class BaseBundle {
      */
     void writeToParcelInner(Parcel parcel, int flags) {
         // If the parcel has a read-write helper, we can't just copy the blob, so unparcel it first.
-        if (parcel.hasReadWriteHelper()) {
-            unparcel();
+        final boolean hasReadWriteHelper = parcel.hasReadWriteHelper();
+        if (hasReadWriteHelper) {
+            synchronized (this) {
+                unparcel();
+                unparcelValues();
+            }
         }
         // Keep implementation in sync with writeToParcel() in
         // frameworks/native/libs/binder/PersistableBundle.cpp.
-        final ArrayMap<String, Object> map;
         synchronized (this) {
             // unparcel() can race with this method and cause the parcel to recycle
             // at the wrong time. So synchronize access the mParcelledData's content.
@@ -1606,25 +1830,41 @@ public class BaseBundle {
                 } else {
                     int length = mParcelledData.dataSize();
                     parcel.writeInt(length);
-                    parcel.writeInt(mParcelledByNative ? BUNDLE_MAGIC_NATIVE : BUNDLE_MAGIC);
+                    parcel.writeInt(mParcelledLazily ? BUNDLE_MAGIC_LAZY
+                            : mParcelledByNative ? BUNDLE_MAGIC_NATIVE : BUNDLE_MAGIC);
                     parcel.appendFrom(mParcelledData, 0, length);
                 }
                 return;
             }
-            map = mMap;
+
+            // The map is written with the lock held too, as its lazy values are copied from
+            // their parcel, which is recycled once they are all decoded.
+            writeMapToParcelLocked(parcel, hasReadWriteHelper);
         }
+    }
+
+    @GuardedBy("this")
+    private void writeMapToParcelLocked(Parcel parcel, boolean hasReadWriteHelper) {
+        final ArrayMap<String, Object> map = mMap;
 
         // Special case for empty bundles.
         if (map == null || map.size() <= 0) {
             parcel.writeInt(0);
             return;
         }
+        // Parcels with a read-write helper were given decoded values above, and keep the classic
+        // format as they are unparcelled right away anyway.
+        final boolean lazy = sShouldWriteLazily && writesLazily() && !hasReadWriteHelper;
         int lengthPos = parcel.dataPosition();
         parcel.writeInt(-1); // placeholder, will hold length
-        parcel.writeInt(BUNDLE_MAGIC);
+        parcel.writeInt(lazy ? BUNDLE_MAGIC_LAZY : BUNDLE_MAGIC);
 
         int startPos = parcel.dataPosition();
-        parcel.writeArrayMapInternal(map);
+        if (lazy) {
+            parcel.writeLazyArrayMapInternal(map);
+        } else {
+            parcel.writeArrayMapInternal(map);
+        }
         int endPos = parcel.dataPosition();
 
         // Backpatch length
@@ -1634,6 +1874,14 @@ public class BaseBundle {
         parcel.setDataPosition(endPos);
     }
 
+    /**
+     * Whether this bundle can be written in the lazy format, once {@link #setShouldWriteLazily}
+     * turned it on. Bundles that native code reads must keep the classic one.
+     */
+    boolean writesLazily() {
+        return false;
+    }
+
     /**
      * Reads the Parcel contents into this Bundle, typically in order for
      * it to be passed through an IBinder connection.
@@ -1653,6 +1901,7 @@ public class BaseBundle {
             // Empty Bundle or end of data.
             mParcelledData = NoImagePreloadHolder.EMPTY_PARCEL;
             mParcelledByNative = false;
+            mParcelledLazily = false;
             return;
         } else if (length % 4 != 0) {
             throw new IllegalStateException("Bundle length is not aligned by 4: " + length);
@@ -1661,7 +1910,8 @@ public class BaseBundle {
         final int magic = parcel.readInt();
         final boolean isJavaBundle = magic == BUNDLE_MAGIC;
         final boolean isNativeBundle = magic == BUNDLE_MAGIC_NATIVE;
-        if (!isJavaBundle && !isNativeBundle) {
+        final boolean isLazyBundle = magic == BUNDLE_MAGIC_LAZY;
+        if (!isJavaBundle && !isNativeBundle && !isLazyBundle) {
             throw new IllegalStateException("Bad magic number for Bundle: 0x"
                     + Integer.toHexString(magic));
         }
@@ -1670,7 +1920,8 @@ public class BaseBundle {
             // If the parcel has a read-write helper, then we can't lazily-unparcel it, so just
             // unparcel right away.
             synchronized (this) {
-                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle);
+                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle,
+                        isLazyBundle);
             }
             return;
         }
@@ -1689,6 +1940,7 @@ public class BaseBundle {
 
         mParcelledData = p;
         mParcelledByNative = isNativeBundle;
+        mParcelledLazily = isLazyBundle;
     }
 
     /** {@hide} */
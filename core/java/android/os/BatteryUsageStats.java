@@ -287,12 +287,24 @@ public final class BatteryUsageStats implements Parcelable {
      */
     @NonNull
     public BatteryStatsHistoryIterator iterateBatteryStatsHistory() {
+        return iterateBatteryStatsHistory(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator for the {@link android.os.BatteryStats.HistoryItem}'s with a
+     * {@link android.os.BatteryStats.HistoryItem#time} in
+     * [{@code startTimeMs}, {@code endTimeMs}).
+     */
+    @NonNull
+    public BatteryStatsHistoryIterator iterateBatteryStatsHistory(long startTimeMs,
+            long endTimeMs) {
         if (mHistoryBuffer == null) {
             throw new IllegalStateException(
                     "Battery history was not requested in the BatteryUsageStatsQuery");
         }
 
-        return new BatteryStatsHistoryIterator(mBatteryStatsHistory, mHistoryTagPool);
+        return new BatteryStatsHistoryIterator(mBatteryStatsHistory, mHistoryTagPool,
+                startTimeMs, endTimeMs);
     }
 
     @Override
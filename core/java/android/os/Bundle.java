@@ -45,6 +45,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @VisibleForTesting
     static final int FLAG_ALLOW_FDS = 1 << 10;
 
+    static final int FLAG_WRITE_LAZILY = 1 << 11;
+
     /** An unmodifiable {@code Bundle} that is always {@link #isEmpty() empty}. */
     public static final Bundle EMPTY;
 
@@ -231,6 +233,21 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         }
     }
 
+    /**
+     * Make this bundle use the lazy format when written in a process that turned it on with
+     * {@link BaseBundle#setShouldWriteLazily}. Only for bundles that are sent over binder, and
+     * never persisted, since other builds may not read the format.
+     *
+     * @hide
+     */
+    public void setWriteLazily(boolean writeLazily) {
+        if (writeLazily) {
+            mFlags |= FLAG_WRITE_LAZILY;
+        } else {
+            mFlags &= ~FLAG_WRITE_LAZILY;
+        }
+    }
+
     /** {@hide} */
     @UnsupportedAppUsage
     public static Bundle setDefusable(Bundle bundle, boolean defusable) {
@@ -291,6 +308,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     public void putAll(Bundle bundle) {
         unparcel();
         bundle.unparcel();
+        shareLazyValues(this, bundle);
         mMap.putAll(bundle.mMap);
 
         // FD state is now known if and only if both bundles already knew
@@ -331,6 +349,20 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                 // It's been unparcelled, so we need to walk the map
                 for (int i=mMap.size()-1; i>=0; i--) {
                     Object obj = mMap.valueAt(i);
+                    if (obj instanceof Parcel.LazyValue) {
+                        // Checked without decoding it, with the lock held like any other read
+                        // of a lazy value, unless it was decoded meanwhile.
+                        synchronized (this) {
+                            obj = mMap.valueAt(i);
+                            if (obj instanceof Parcel.LazyValue) {
+                                if (((Parcel.LazyValue) obj).hasFileDescriptors()) {
+                                    fdFound = true;
+                                    break;
+                                }
+                                continue;
+                            }
+                        }
+                    }
                     if (obj instanceof Parcelable) {
                         if ((((Parcelable)obj).describeContents()
                                 & Parcelable.CONTENTS_FILE_DESCRIPTOR) != 0) {
@@ -397,7 +429,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         if (mMap != null) {
             ArrayMap<String, Object> map = mMap;
             for (int i = map.size() - 1; i >= 0; i--) {
-                Object value = map.valueAt(i);
+                Object value = getValueAt(i);
                 if (PersistableBundle.isValidType(value)) {
                     continue;
                 }
@@ -933,7 +965,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public Size getSize(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (Size) o;
         } catch (ClassCastException e) {
@@ -953,7 +985,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public SizeF getSizeF(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (SizeF) o;
         } catch (ClassCastException e) {
@@ -973,7 +1005,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public Bundle getBundle(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1000,7 +1032,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public <T extends Parcelable> T getParcelable(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1027,7 +1059,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public Parcelable[] getParcelableArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1054,7 +1086,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1078,7 +1110,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1227,7 +1259,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public IBinder getBinder(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1255,7 +1287,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Nullable
     public IBinder getIBinder(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1307,6 +1339,15 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
         }
     }
 
+    /**
+     * Bundles marked with {@link #setWriteLazily} are written in the lazy format, so that their
+     * receiver only decodes the values it reads.
+     */
+    @Override
+    boolean writesLazily() {
+        return (mFlags & FLAG_WRITE_LAZILY) != 0;
+    }
+
     /**
      * Reads the Parcel contents into this Bundle, typically in order for
      * it to be passed through an IBinder connection.
@@ -1346,7 +1387,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     }
 
     /** @hide */
-    public void dumpDebug(ProtoOutputStream proto, long fieldId) {
+    public synchronized void dumpDebug(ProtoOutputStream proto, long fieldId) {
         final long token = proto.start(fieldId);
 
         if (mParcelledData != null) {
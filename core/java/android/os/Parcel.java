@@ -52,6 +52,7 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -249,6 +250,24 @@ public final class Parcel {
      */
     private static final int POOL_SIZE = 32;
 
+    /**
+     * Number of parcels of each kind a thread keeps for itself in front of the shared pools, which
+     * covers the data and reply parcels of a transaction. Threads which obtain and recycle their
+     * own parcels, such as binder threads, then do not contend on {@link #sPoolSync}.
+     */
+    private static final int THREAD_POOL_SIZE = 2;
+
+    private static final ThreadLocal<ThreadPool> sThreadPool =
+            ThreadLocal.withInitial(ThreadPool::new);
+
+    /** Parcels recycled on the current thread, only accessed by that thread. */
+    private static final class ThreadPool {
+        final Parcel[] mOwned = new Parcel[THREAD_POOL_SIZE];
+        int mOwnedSize;
+        final Parcel[] mHolders = new Parcel[THREAD_POOL_SIZE];
+        int mHoldersSize;
+    }
+
     // Keep in sync with frameworks/native/include/private/binder/ParcelValTypes.h.
     private static final int VAL_NULL = -1;
     private static final int VAL_STRING = 0;
@@ -446,12 +465,18 @@ public final class Parcel {
     @NonNull
     public static Parcel obtain() {
         Parcel res = null;
-        synchronized (sPoolSync) {
-            if (sOwnedPool != null) {
-                res = sOwnedPool;
-                sOwnedPool = res.mPoolNext;
-                res.mPoolNext = null;
-                sOwnedPoolSize--;
+        final ThreadPool threadPool = sThreadPool.get();
+        if (threadPool.mOwnedSize > 0) {
+            res = threadPool.mOwned[--threadPool.mOwnedSize];
+            threadPool.mOwned[threadPool.mOwnedSize] = null;
+        } else {
+            synchronized (sPoolSync) {
+                if (sOwnedPool != null) {
+                    res = sOwnedPool;
+                    sOwnedPool = res.mPoolNext;
+                    res.mPoolNext = null;
+                    sOwnedPoolSize--;
+                }
             }
         }
 
@@ -477,7 +502,12 @@ public final class Parcel {
         mClassCookies = null;
         freeBuffer();
 
+        final ThreadPool threadPool = sThreadPool.get();
         if (mOwnsNativeParcelObject) {
+            if (threadPool.mOwnedSize < THREAD_POOL_SIZE) {
+                threadPool.mOwned[threadPool.mOwnedSize++] = this;
+                return;
+            }
             synchronized (sPoolSync) {
                 if (sOwnedPoolSize < POOL_SIZE) {
                     mPoolNext = sOwnedPool;
@@ -487,6 +517,10 @@ public final class Parcel {
             }
         } else {
             mNativePtr = 0;
+            if (threadPool.mHoldersSize < THREAD_POOL_SIZE) {
+                threadPool.mHolders[threadPool.mHoldersSize++] = this;
+                return;
+            }
             synchronized (sPoolSync) {
                 if (sHolderPoolSize < POOL_SIZE) {
                     mPoolNext = sHolderPool;
@@ -1037,6 +1071,29 @@ public final class Parcel {
         writeArrayMapInternal(val);
     }
 
+    /**
+     * Flatten an ArrayMap like {@link #writeArrayMapInternal}, but with the length of every value
+     * written ahead of it, so that {@link #readLazyArrayMapInternal} can index the values without
+     * decoding them.
+     */
+    /* package */ void writeLazyArrayMapInternal(@NonNull ArrayMap<String, Object> val) {
+        final int N = val.size();
+        writeInt(N);
+        for (int i = 0; i < N; i++) {
+            writeString(val.keyAt(i));
+            final int lengthPos = dataPosition();
+            writeInt(-1); // placeholder, will hold length
+            final int startPos = dataPosition();
+            writeValue(val.valueAt(i));
+            final int endPos = dataPosition();
+
+            // Backpatch length
+            setDataPosition(lengthPos);
+            writeInt(endPos - startPos);
+            setDataPosition(endPos);
+        }
+    }
+
     /**
      * Flatten an {@link ArrayMap} with string keys containing a particular object
      * type into the parcel at the current dataPosition() and growing dataCapacity()
@@ -1305,6 +1362,23 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Write {@code len} ints of {@code val} starting at {@code offset}, in the same format as
+     * {@link #writeIntArray(int[])}, so that part of a reused buffer can be written.
+     * {@hide}
+     */
+    public final void writeIntArray(@Nullable int[] val, int offset, int len) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        ArrayUtils.throwsIfOutOfBounds(val.length, offset, len);
+        writeInt(len);
+        for (int i = offset; i < offset + len; i++) {
+            writeInt(val[i]);
+        }
+    }
+
     @Nullable
     public final int[] createIntArray() {
         int N = readInt();
@@ -1330,6 +1404,28 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Read an int[] of any length into {@code dest} starting at {@code offset}, instead of
+     * allocating a new array, so that callers can reuse a buffer across reads.
+     *
+     * @return the number of ints read, or -1 if the array was null.
+     * @throws RuntimeException if the array does not fit in {@code dest}.
+     * {@hide}
+     */
+    public final int readIntArray(@NonNull int[] dest, int offset) {
+        final int N = readInt();
+        if (N < 0) {
+            return -1;
+        }
+        if (offset < 0 || N > dest.length - offset) {
+            throw new RuntimeException("bad array lengths");
+        }
+        for (int i = offset; i < offset + N; i++) {
+            dest[i] = readInt();
+        }
+        return N;
+    }
+
     public final void writeLongArray(@Nullable long[] val) {
         if (val != null) {
             int N = val.length;
@@ -1342,6 +1438,23 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Write {@code len} longs of {@code val} starting at {@code offset}, in the same format as
+     * {@link #writeLongArray(long[])}, so that part of a reused buffer can be written.
+     * {@hide}
+     */
+    public final void writeLongArray(@Nullable long[] val, int offset, int len) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        ArrayUtils.throwsIfOutOfBounds(val.length, offset, len);
+        writeInt(len);
+        for (int i = offset; i < offset + len; i++) {
+            writeLong(val[i]);
+        }
+    }
+
     @Nullable
     public final long[] createLongArray() {
         int N = readInt();
@@ -1368,6 +1481,28 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Read a long[] of any length into {@code dest} starting at {@code offset}, instead of
+     * allocating a new array, so that callers can reuse a buffer across reads.
+     *
+     * @return the number of longs read, or -1 if the array was null.
+     * @throws RuntimeException if the array does not fit in {@code dest}.
+     * {@hide}
+     */
+    public final int readLongArray(@NonNull long[] dest, int offset) {
+        final int N = readInt();
+        if (N < 0) {
+            return -1;
+        }
+        if (offset < 0 || N > dest.length - offset) {
+            throw new RuntimeException("bad array lengths");
+        }
+        for (int i = offset; i < offset + N; i++) {
+            dest[i] = readLong();
+        }
+        return N;
+    }
+
     public final void writeFloatArray(@Nullable float[] val) {
         if (val != null) {
             int N = val.length;
@@ -1835,6 +1970,9 @@ public final class Parcel {
     public final void writeValue(@Nullable Object v) {
         if (v == null) {
             writeInt(VAL_NULL);
+        } else if (v instanceof LazyValue) {
+            // Still in its parcelled form, including the type.
+            ((LazyValue) v).writeTo(this);
         } else if (v instanceof String) {
             writeInt(VAL_STRING);
             writeString((String) v);
@@ -2732,6 +2870,41 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Read a byte[] of any length into {@code dest} starting at {@code offset}, instead of
+     * allocating a new array, so that callers can reuse a buffer across reads.
+     *
+     * @return the number of bytes read, or -1 if the array was null.
+     * @throws RuntimeException if the array does not fit in {@code dest}.
+     * {@hide}
+     */
+    public final int readByteArray(@NonNull byte[] dest, int offset) {
+        final int start = dataPosition();
+        final int N = readInt();
+        if (N < 0) {
+            return -1;
+        }
+        if (offset < 0 || N > dest.length - offset || N > dataAvail()) {
+            throw new RuntimeException("bad array lengths");
+        }
+        if (offset == 0 && N == dest.length) {
+            // The whole array can be copied at once.
+            setDataPosition(start);
+            readByteArray(dest);
+            return N;
+        }
+        // Bytes are written in place and padded to 4 bytes, read them one int at a time.
+        final boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        for (int i = 0; i < N; i += 4) {
+            final int word = readInt();
+            for (int j = 0; j < 4 && i + j < N; j++) {
+                final int shift = littleEndian ? j * 8 : (3 - j) * 8;
+                dest[offset + i + j] = (byte) (word >> shift);
+            }
+        }
+        return N;
+    }
+
     /**
      * Read a blob of data from the parcel and return it as a byte array.
      * {@hide}
@@ -3532,12 +3705,18 @@ public final class Parcel {
     /** @hide */
     static protected final Parcel obtain(long obj) {
         Parcel res = null;
-        synchronized (sPoolSync) {
-            if (sHolderPool != null) {
-                res = sHolderPool;
-                sHolderPool = res.mPoolNext;
-                res.mPoolNext = null;
-                sHolderPoolSize--;
+        final ThreadPool threadPool = sThreadPool.get();
+        if (threadPool.mHoldersSize > 0) {
+            res = threadPool.mHolders[--threadPool.mHoldersSize];
+            threadPool.mHolders[threadPool.mHoldersSize] = null;
+        } else {
+            synchronized (sPoolSync) {
+                if (sHolderPool != null) {
+                    res = sHolderPool;
+                    sHolderPool = res.mPoolNext;
+                    res.mPoolNext = null;
+                    sHolderPoolSize--;
+                }
             }
         }
 
@@ -3648,6 +3827,163 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Reads an ArrayMap written by {@link #writeLazyArrayMapInternal}. If {@code lazy}, the values
+     * are not decoded but read as {@link LazyValue}s pointing into this parcel, which must then
+     * be left alone for as long as they are reachable.
+     *
+     * @return the number of {@link LazyValue}s read.
+     */
+    /* package */ int readLazyArrayMapInternal(@NonNull ArrayMap outVal, int N,
+            @Nullable ClassLoader loader, boolean lazy) {
+        int lazyValues = 0;
+        while (N > 0) {
+            final String key = readString();
+            final int length = readInt();
+            final int offset = dataPosition();
+            if (length < 0 || length > dataSize() - offset) {
+                throw new BadParcelableException("Bad length for value of " + key + ": " + length);
+            }
+            final Object value;
+            if (lazy) {
+                final int type = readInt();
+                if (type == VAL_NULL) {
+                    value = null;
+                } else {
+                    value = new LazyValue(this, offset, length, type);
+                    lazyValues++;
+                }
+            } else {
+                value = readValue(loader);
+            }
+            setDataPosition(offset + length);
+            outVal.append(key, value);
+            N--;
+        }
+        outVal.validate();
+        return lazyValues;
+    }
+
+    /**
+     * A value of a lazily unparcelled map, decoded from its parcel only when it is accessed.
+     * Primitive values can be read without being boxed.
+     * <p>
+     * The parcel is shared by every value of the map. The bundle that unparcelled them recycles
+     * it once it has decoded them all, unless they were shared with another bundle, in which case
+     * it is reclaimed with the last value referencing it. Accesses to it are synchronized on the
+     * parcel.
+     */
+    /* package */ static final class LazyValue {
+        private final Parcel mSource;
+        private final int mOffset;
+        private final int mLength;
+        private final int mType;
+
+        LazyValue(Parcel source, int offset, int length, int type) {
+            mSource = source;
+            mOffset = offset;
+            mLength = length;
+            mType = type;
+        }
+
+        /**
+         * Decodes the value, loading any enclosed classes with the given loader.
+         */
+        Object get(@Nullable ClassLoader loader) {
+            synchronized (mSource) {
+                mSource.setDataPosition(mOffset);
+                return mSource.readValue(loader);
+            }
+        }
+
+        boolean isInteger() {
+            return mType == VAL_INTEGER;
+        }
+
+        boolean isLong() {
+            return mType == VAL_LONG;
+        }
+
+        boolean isDouble() {
+            return mType == VAL_DOUBLE;
+        }
+
+        boolean isBoolean() {
+            return mType == VAL_BOOLEAN;
+        }
+
+        /**
+         * Only valid if {@link #isInteger()} or {@link #isBoolean()}, which are both written as
+         * an int.
+         */
+        int getInt() {
+            synchronized (mSource) {
+                mSource.setDataPosition(mOffset + 4);
+                return mSource.readInt();
+            }
+        }
+
+        /** Only valid if {@link #isLong()}. */
+        long getLong() {
+            synchronized (mSource) {
+                mSource.setDataPosition(mOffset + 4);
+                return mSource.readLong();
+            }
+        }
+
+        /** Only valid if {@link #isDouble()}. */
+        double getDouble() {
+            synchronized (mSource) {
+                mSource.setDataPosition(mOffset + 4);
+                return mSource.readDouble();
+            }
+        }
+
+        /**
+         * Returns whether the value may contain file descriptors. This is only known for the
+         * parcel as a whole.
+         */
+        boolean hasFileDescriptors() {
+            return mSource.hasFileDescriptors();
+        }
+
+        /**
+         * Copies the parcelled value, including its type, to {@code dest}.
+         */
+        void writeTo(Parcel dest) {
+            synchronized (mSource) {
+                dest.appendFrom(mSource, mOffset, mLength);
+            }
+        }
+
+        /**
+         * Prints values that don't need a class loader as they would be once decoded, and the
+         * others, such as parcelables, as their parcelled form without loading any class.
+         */
+        @Override
+        public String toString() {
+            synchronized (mSource) {
+                switch (mType) {
+                    case VAL_STRING:
+                    case VAL_INTEGER:
+                    case VAL_SHORT:
+                    case VAL_LONG:
+                    case VAL_FLOAT:
+                    case VAL_DOUBLE:
+                    case VAL_BOOLEAN:
+                    case VAL_BYTE:
+                        mSource.setDataPosition(mOffset);
+                        return String.valueOf(mSource.readValue(null));
+                    case VAL_PARCELABLE:
+                        mSource.setDataPosition(mOffset + 4);
+                        return "Parcelled[" + mSource.readString() + ", " + mLength + " bytes]";
+                    default:
+                        return "Parcelled[type=" + mType + ", " + mLength + " bytes]";
+                }
+            }
+        }
+    }
+
     /**
      * @hide For testing only.
      */
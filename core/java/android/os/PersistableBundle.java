@@ -210,7 +210,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -345,7 +345,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
     }
 
     /** @hide */
-    public void dumpDebug(ProtoOutputStream proto, long fieldId) {
+    synchronized public void dumpDebug(ProtoOutputStream proto, long fieldId) {
         final long token = proto.start(fieldId);
 
         if (mParcelledData != null) {
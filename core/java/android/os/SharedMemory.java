@@ -274,6 +274,19 @@ public final class SharedMemory implements Parcelable, Closeable {
         dest.writeFileDescriptor(mFileDescriptor);
     }
 
+    /**
+     * Creates another SharedMemory of the same region, with its own file descriptor, so that the
+     * two can be closed independently.
+     *
+     * @hide
+     */
+    public @NonNull SharedMemory dup() throws ErrnoException {
+        checkOpen();
+        final FileDescriptor fd = new FileDescriptor();
+        fd.setInt$(Os.fcntlInt(mFileDescriptor, OsConstants.F_DUPFD_CLOEXEC, 0));
+        return new SharedMemory(fd);
+    }
+
     /**
      * Returns a dup'd ParcelFileDescriptor from the SharedMemory FileDescriptor.
      * This obeys standard POSIX semantics, where the
@@ -4540,11 +4540,7 @@ public class UserManager {
             return 0;
         }
 
-        try {
-            return mService.getUserSerialNumber(userId);
-        } catch (RemoteException re) {
-            throw re.rethrowFromSystemServer();
-        }
+        return sUserSerialNumberCache.query(userId);
     }
 
     /**
@@ -4558,11 +4554,51 @@ public class UserManager {
      */
     @UnsupportedAppUsage
     public @UserIdInt int getUserHandle(int userSerialNumber) {
-        try {
-            return mService.getUserHandle(userSerialNumber);
-        } catch (RemoteException re) {
-            throw re.rethrowFromSystemServer();
-        }
+        return sUserHandleCache.query(userSerialNumber);
+    }
+
+    private static final String CACHE_KEY_USER_SERIAL_NUMBER_PROPERTY =
+            "cache_key.user_serial_number";
+
+    // Static, as the mapping is the same for every context of the process.
+    private static final PropertyInvalidatedCache<Integer, Integer> sUserSerialNumberCache =
+            new PropertyInvalidatedCache<Integer, Integer>(
+                32, CACHE_KEY_USER_SERIAL_NUMBER_PROPERTY, "getUserSerialNumber") {
+                @Override
+                protected Integer recompute(Integer query) {
+                    try {
+                        return getUserManagerService().getUserSerialNumber(query);
+                    } catch (RemoteException re) {
+                        throw re.rethrowFromSystemServer();
+                    }
+                }
+            };
+
+    // Uses CACHE_KEY_USER_SERIAL_NUMBER_PROPERTY for invalidation as the mapping goes both ways.
+    private static final PropertyInvalidatedCache<Integer, Integer> sUserHandleCache =
+            new PropertyInvalidatedCache<Integer, Integer>(
+                32, CACHE_KEY_USER_SERIAL_NUMBER_PROPERTY, "getUserHandle") {
+                @Override
+                protected Integer recompute(Integer query) {
+                    try {
+                        return getUserManagerService().getUserHandle(query);
+                    } catch (RemoteException re) {
+                        throw re.rethrowFromSystemServer();
+                    }
+                }
+            };
+
+    private static IUserManager getUserManagerService() {
+        return IUserManager.Stub.asInterface(ServiceManager.getService(Context.USER_SERVICE));
+    }
+
+    /**
+     * Invalidates the caches of {@link #getUserSerialNumber} and {@link #getUserHandle}, which
+     * must be done whenever users are added or removed.
+     * {@hide}
+     */
+    public static final void invalidateUserSerialNumberCache() {
+        PropertyInvalidatedCache.invalidateCache(CACHE_KEY_USER_SERIAL_NUMBER_PROPERTY);
     }
 
     /**
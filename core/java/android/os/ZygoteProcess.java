@@ -294,6 +294,16 @@ public class ZygoteProcess {
      */
     private boolean mUsapPoolEnabled = false;
 
+    /**
+     * Whether the memory of the device is under pressure, as last set by
+     * {@link #setMemoryPressureHigh}.
+     */
+    private volatile boolean mMemoryPressureHigh = false;
+
+    /** The memory pressure last sent to the zygotes. */
+    @GuardedBy("mLock")
+    private boolean mZygotesMemoryPressureHigh = false;
+
     /**
      * Start a new process.
      *
@@ -367,6 +377,9 @@ public class ZygoteProcess {
         if (fetchUsapPoolEnabledPropWithMinInterval()) {
             informZygotesOfUsapPoolStatus();
         }
+        if (mUsapPoolEnabled) {
+            informZygotesOfMemoryPressureIfNeeded();
+        }
 
         try {
             return startViaZygote(processClass, niceName, uid, gid, gids,
@@ -913,6 +926,15 @@ public class ZygoteProcess {
         }
     }
 
+    /**
+     * Sets whether the memory of the device is under pressure. The zygotes are told before the
+     * next process start, and keep their USAP pools small while it is. They can't read the
+     * pressure from the kernel themselves.
+     */
+    public void setMemoryPressureHigh(boolean high) {
+        mMemoryPressureHigh = high;
+    }
+
     /**
      * Push hidden API deny-listing exemptions into the zygote process(es).
      *
@@ -1214,6 +1236,49 @@ public class ZygoteProcess {
                 + zygoteSocketAddress.getName());
     }
 
+    /**
+     * Sends the memory pressure to the zygotes if it changed since they were last told. If this
+     * notification fails it is sent again before the next process start.
+     */
+    private void informZygotesOfMemoryPressureIfNeeded() {
+        final boolean high = mMemoryPressureHigh;
+        synchronized (mLock) {
+            if (high == mZygotesMemoryPressureHigh) {
+                return;
+            }
+            final String command = "1\n--usap-pool-memory-pressure-high=" + high + "\n";
+            try {
+                attemptConnectionToPrimaryZygote();
+                primaryZygoteState.mZygoteOutputWriter.write(command);
+                primaryZygoteState.mZygoteOutputWriter.flush();
+                primaryZygoteState.mZygoteInputStream.readInt();
+            } catch (IOException ioe) {
+                Log.w(LOG_TAG, "Failed to inform zygotes of memory pressure: "
+                        + ioe.getMessage());
+                return;
+            }
+
+            if (mZygoteSecondarySocketAddress != null) {
+                try {
+                    attemptConnectionToSecondaryZygote();
+
+                    try {
+                        secondaryZygoteState.mZygoteOutputWriter.write(command);
+                        secondaryZygoteState.mZygoteOutputWriter.flush();
+                        secondaryZygoteState.mZygoteInputStream.readInt();
+                    } catch (IOException ioe) {
+                        Log.w(LOG_TAG, "Failed to inform secondary zygote of memory pressure: "
+                                + ioe.getMessage());
+                        return;
+                    }
+                } catch (IOException ioe) {
+                    // No secondary zygote present.  This is expected on some devices.
+                }
+            }
+            mZygotesMemoryPressureHigh = high;
+        }
+    }
+
     /**
      * Sends messages to the zygotes telling them to change the status of their USAP pools.  If
      * this notification fails the ZygoteProcess will fall back to the previous behavior.
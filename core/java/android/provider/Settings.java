@@ -76,8 +76,10 @@ import android.os.RemoteCallback;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.speech.tts.TextToSpeech;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.AndroidException;
 import android.util.ArrayMap;
@@ -2393,6 +2395,19 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow would like to
+     * read the whole table from a {@link SettingsSnapshot}. If this key is mapped to a
+     * <code>null</code> string extra in a request that also tracks the generation, and the
+     * provider supports snapshots for the table and the caller, the response bundle will
+     * contain the same key mapped to a {@link android.os.SharedMemory} holding the snapshot
+     * for the current generation. The caller should request a snapshot only if it doesn't
+     * already have one for the current generation.
+     *
+     * @see #CALL_METHOD_TRACK_GENERATION_KEY
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -2826,16 +2841,41 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Whether to ask the provider for snapshots of the whole table, only when they are
+        // enabled.
+        private final boolean mSupportsSnapshot;
+
+        // The whole table as published by the provider, valid while its generation matches
+        // the one in mGenerationTracker.
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
         <T extends NameValueTable> NameValueCache(Uri uri, String getCommand,
                 String setCommand, ContentProviderHolder providerHolder, Class<T> callerClass) {
             this(uri, getCommand, setCommand, null, null, providerHolder,
-                    callerClass);
+                    callerClass, false);
+        }
+
+        <T extends NameValueTable> NameValueCache(Uri uri, String getCommand,
+                String setCommand, ContentProviderHolder providerHolder, Class<T> callerClass,
+                boolean supportsSnapshot) {
+            this(uri, getCommand, setCommand, null, null, providerHolder,
+                    callerClass, supportsSnapshot);
         }
 
         private <T extends NameValueTable> NameValueCache(Uri uri, String getCommand,
                 String setCommand, String listCommand, String setAllCommand,
                 ContentProviderHolder providerHolder, Class<T> callerClass) {
+            this(uri, getCommand, setCommand, listCommand, setAllCommand, providerHolder,
+                    callerClass, false);
+        }
+
+        private <T extends NameValueTable> NameValueCache(Uri uri, String getCommand,
+                String setCommand, String listCommand, String setAllCommand,
+                ContentProviderHolder providerHolder, Class<T> callerClass,
+                boolean supportsSnapshot) {
             mUri = uri;
+            mSupportsSnapshot = supportsSnapshot && SettingsSnapshot.isEnabled();
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
             mCallListCommand = listCommand;
@@ -2948,6 +2988,18 @@ public final class Settings {
                             mValues.clear();
                         } else if (mValues.containsKey(name)) {
                             return mValues.get(name);
+                        } else if (mSnapshot != null && mSnapshot.getGeneration()
+                                == mGenerationTracker.getCurrentGeneration()) {
+                            // The snapshot covers the whole table, so a missing entry means
+                            // the setting does not exist. Restricted entries still need to go
+                            // through the provider to have access to them checked.
+                            final int index = mSnapshot.indexOfKey(name);
+                            if (index < 0) {
+                                return null;
+                            }
+                            if (!mSnapshot.isRestrictedAt(index)) {
+                                return mSnapshot.valueAt(index);
+                            }
                         }
                         if (mGenerationTracker != null) {
                             currentGeneration = mGenerationTracker.getCurrentGeneration();
@@ -2973,7 +3025,17 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsSnapshot = false;
                     synchronized (NameValueCache.this) {
+                        if (isSelf && mSupportsSnapshot && (mGenerationTracker == null
+                                || mSnapshot == null || mSnapshot.getGeneration()
+                                        != mGenerationTracker.getCurrentGeneration())) {
+                            needsSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
                             if (args == null) {
@@ -3040,6 +3102,7 @@ public final class Settings {
                                                     mGenerationTracker = null;
                                                     generationTracker.destroy();
                                                     mValues.clear();
+                                                    clearSnapshotLocked();
                                                 }
                                             }
                                         });
@@ -3050,6 +3113,10 @@ public final class Settings {
                                         mGenerationTracker.getCurrentGeneration()) {
                                     mValues.put(name, value);
                                 }
+                                if (needsSnapshot) {
+                                    updateSnapshotLocked(b.getParcelable(
+                                            CALL_METHOD_TRACK_SNAPSHOT_KEY));
+                                }
                             }
                         } else {
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userHandle
@@ -3108,6 +3175,36 @@ public final class Settings {
             }
         }
 
+        @GuardedBy("this")
+        private void updateSnapshotLocked(SharedMemory memory) {
+            if (memory == null) {
+                return;
+            }
+            clearSnapshotLocked();
+            try {
+                mSnapshot = SettingsSnapshot.map(memory);
+                if (DEBUG) {
+                    Log.i(TAG, "Received snapshot for type:" + mUri.getPath()
+                            + " with " + mSnapshot.size() + " settings at generation:"
+                            + mSnapshot.getGeneration());
+                }
+            } catch (ErrnoException | IllegalArgumentException e) {
+                Log.w(TAG, "Can't map settings snapshot for " + mUri, e);
+            } finally {
+                // The mapping stays valid, the descriptor is no longer needed.
+                memory.close();
+            }
+        }
+
+        @GuardedBy("this")
+        private void clearSnapshotLocked() {
+            // Lookups run under the same lock, so nothing reads the mapping anymore.
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+        }
+
         private static boolean isCallerExemptFromReadableRestriction() {
             if (Settings.isInSystemServer()) {
                 return true;
@@ -3268,6 +3365,7 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                clearSnapshotLocked();
             }
         }
     }
@@ -15721,7 +15819,8 @@ public final class Settings {
                     CALL_METHOD_GET_GLOBAL,
                     CALL_METHOD_PUT_GLOBAL,
                     sProviderHolder,
-                    Global.class);
+                    Global.class,
+                    /* supportsSnapshot */ true);
 
         // Certain settings have been moved from global to the per-user secure namespace
         @UnsupportedAppUsage
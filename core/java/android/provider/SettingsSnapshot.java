@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.os.SystemProperties;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, memory-mapped view of a whole settings table at a given generation.
+ * <p>
+ * The settings provider serializes a table into a {@link SharedMemory} region once per
+ * generation and hands the same region to every client that asks for it. Clients map it read
+ * only and answer lookups from it until the generation tracked by the provider moves on, so
+ * reading a setting does not require a binder call or any lock in the provider.
+ * </p>
+ * <p>
+ * Layout, all values big endian:
+ * <pre>
+ * int magic
+ * int generation
+ * int count
+ * count * { int keyOffset, int valueOffset }   sorted by key
+ * string pool: { int length, char[length] }
+ * </pre>
+ * A value offset of {@link #VALUE_NULL} denotes a setting whose value is null, and
+ * {@link #VALUE_RESTRICTED} a setting that exists but that the provider must check access to
+ * on every read; clients have to ask the provider for those.
+ * </p>
+ *
+ * @hide
+ */
+public final class SettingsSnapshot {
+    private static final int MAGIC = 0x53534e50; // "SSNP"
+
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 8;
+
+    private static final int VALUE_NULL = -1;
+    private static final int VALUE_RESTRICTED = -2;
+
+    /**
+     * Whether clients tracking the generation of the global table may be handed a snapshot of
+     * the whole table to read from locally.
+     */
+    private static final boolean ENABLED =
+            SystemProperties.getBoolean("persist.sys.settings.snapshot_reads", false);
+
+    private final ByteBuffer mBuffer;
+    private final int mGeneration;
+    private final int mCount;
+
+    private SettingsSnapshot(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a settings snapshot");
+        }
+        mBuffer = buffer;
+        mGeneration = buffer.getInt(4);
+        mCount = buffer.getInt(8);
+        if (mCount < 0 || HEADER_SIZE + (long) mCount * ENTRY_SIZE > buffer.capacity()) {
+            throw new IllegalArgumentException("Corrupted settings snapshot");
+        }
+    }
+
+    /**
+     * @return whether settings snapshots are enabled, as read when this process started.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Maps a snapshot published by the provider. The returned snapshot stays valid after the
+     * shared memory is closed.
+     */
+    @NonNull
+    public static SettingsSnapshot map(@NonNull SharedMemory memory) throws ErrnoException {
+        return new SettingsSnapshot(memory.mapReadOnly());
+    }
+
+    /**
+     * Serializes a table into a new read only shared memory region.
+     *
+     * @param generation The generation of the table the values were read at.
+     * @param values The settings in the table, mapped to their values.
+     * @param restrictedNames The names of settings that clients have to read through the
+     *        provider so that it can enforce access to them.
+     */
+    @NonNull
+    public static SharedMemory write(@NonNull String name, int generation,
+            @NonNull Map<String, String> values, @NonNull Set<String> restrictedNames)
+            throws ErrnoException {
+        final String[] keys = values.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+
+        int size = HEADER_SIZE + keys.length * ENTRY_SIZE;
+        for (String key : keys) {
+            size += stringSize(key);
+            if (!restrictedNames.contains(key)) {
+                final String value = values.get(key);
+                if (value != null) {
+                    size += stringSize(value);
+                }
+            }
+        }
+
+        final SharedMemory memory = SharedMemory.create(name, size);
+        final ByteBuffer buffer = memory.mapReadWrite();
+        try {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, generation);
+            buffer.putInt(8, keys.length);
+            int poolOffset = HEADER_SIZE + keys.length * ENTRY_SIZE;
+            for (int i = 0; i < keys.length; i++) {
+                final String key = keys[i];
+                final int entryOffset = HEADER_SIZE + i * ENTRY_SIZE;
+                buffer.putInt(entryOffset, poolOffset);
+                poolOffset = putString(buffer, poolOffset, key);
+
+                final String value = values.get(key);
+                if (restrictedNames.contains(key)) {
+                    buffer.putInt(entryOffset + 4, VALUE_RESTRICTED);
+                } else if (value == null) {
+                    buffer.putInt(entryOffset + 4, VALUE_NULL);
+                } else {
+                    buffer.putInt(entryOffset + 4, poolOffset);
+                    poolOffset = putString(buffer, poolOffset, value);
+                }
+            }
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+        memory.setProtect(OsConstants.PROT_READ);
+        return memory;
+    }
+
+    /**
+     * Unmaps the snapshot. It must not be accessed afterwards.
+     */
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+    }
+
+    /** @return the generation of the table this snapshot was taken at. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /** @return the number of settings in the snapshot. */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the index of the setting, or a negative number if the table does not contain it.
+     */
+    public int indexOfKey(@NonNull String name) {
+        int lo = 0;
+        int hi = mCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int cmp = compareString(mBuffer.getInt(HEADER_SIZE + mid * ENTRY_SIZE), name);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~lo;
+    }
+
+    /**
+     * @return whether the value at the index has to be read through the provider.
+     */
+    public boolean isRestrictedAt(int index) {
+        return mBuffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 4) == VALUE_RESTRICTED;
+    }
+
+    /**
+     * @return the value at the index, which must not be restricted.
+     */
+    @Nullable
+    public String valueAt(int index) {
+        final int offset = mBuffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 4);
+        if (offset == VALUE_NULL) {
+            return null;
+        }
+        if (offset == VALUE_RESTRICTED) {
+            throw new IllegalStateException("Setting at " + index + " is restricted");
+        }
+        return getString(offset);
+    }
+
+    /** @return the name of the setting at the index. */
+    @NonNull
+    public String keyAt(int index) {
+        return getString(mBuffer.getInt(HEADER_SIZE + index * ENTRY_SIZE));
+    }
+
+    private static int stringSize(String s) {
+        return 4 + s.length() * 2;
+    }
+
+    private static int putString(ByteBuffer buffer, int offset, String s) {
+        final int length = s.length();
+        buffer.putInt(offset, length);
+        offset += 4;
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(offset, s.charAt(i));
+            offset += 2;
+        }
+        return offset;
+    }
+
+    // Uses absolute reads only, so concurrent lookups never interfere with each other.
+    private String getString(int offset) {
+        final int length = mBuffer.getInt(offset);
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mBuffer.getChar(offset + 4 + i * 2);
+        }
+        return new String(chars);
+    }
+
+    // Same ordering as String#compareTo, without materializing the stored string.
+    private int compareString(int offset, String s) {
+        final int length = mBuffer.getInt(offset);
+        final int limit = Math.min(length, s.length());
+        for (int i = 0; i < limit; i++) {
+            final char c = mBuffer.getChar(offset + 4 + i * 2);
+            final char other = s.charAt(i);
+            if (c != other) {
+                return c - other;
+            }
+        }
+        return length - s.length();
+    }
+}
@@ -25,12 +25,18 @@ import android.os.SystemClock;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ParseUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -52,6 +58,11 @@ import java.util.Set;
  * When count of history files exceeds {@link BatteryStatsImpl.Constants#MAX_HISTORY_FILES},
  * the lowest numbered file is deleted and a new file is open.
  *
+ * Every history file starts with an absolute record, so it can be decoded without the files
+ * before it. The history time of that record is the index used by
+ * {@link #startIteratingHistory(long)} to skip the files before a given time; it is read by
+ * mapping only the head of each file.
+ *
  * All interfaces in BatteryStatsHistory should only be called by BatteryStatsImpl and protected by
  * locks on BatteryStatsImpl object.
  */
@@ -62,6 +73,13 @@ public class BatteryStatsHistory {
     public static final String HISTORY_DIR = "battery-history";
     public static final String FILE_SUFFIX = ".bin";
     private static final int MIN_FREE_SPACE = 100 * 1024 * 1024;
+    /**
+     * Size of the head of a history file mapped to index it: the version, the history time at
+     * the end of the file and the size of the buffer, followed by the token and the time of the
+     * absolute record the buffer starts with.
+     */
+    private static final int FILE_INDEX_HEAD_SIZE = 4 + 8 + 4 + 4 + 8;
+    private static final int FILE_HEAD_SIZE = 4 + 8 + 4;
 
     @Nullable
     private final BatteryStatsImpl mStats;
@@ -75,6 +93,11 @@ public class BatteryStatsHistory {
      * A list of history files with incremental indexes.
      */
     private final List<Integer> mFileNumbers = new ArrayList<>();
+    /**
+     * History time of the first record of the history files that are not active anymore, by
+     * file number. These files do not change, so each of them is only mapped once.
+     */
+    private final SparseLongArray mFileStartTimes = new SparseLongArray();
 
     /**
      * A list of small history parcels, used when BatteryStatsImpl object is created from
@@ -212,6 +235,7 @@ public class BatteryStatsHistory {
         if (!hasFreeDiskSpace()) {
             int oldest = mFileNumbers.remove(0);
             getFile(oldest).delete();
+            mFileStartTimes.delete(oldest);
         }
 
         // if there are more history files than allowed, delete oldest history files.
@@ -219,6 +243,7 @@ public class BatteryStatsHistory {
         while (mFileNumbers.size() > mStats.mConstants.MAX_HISTORY_FILES) {
             int oldest = mFileNumbers.get(0);
             getFile(oldest).delete();
+            mFileStartTimes.delete(oldest);
             mFileNumbers.remove(0);
         }
     }
@@ -231,6 +256,7 @@ public class BatteryStatsHistory {
             getFile(i).delete();
         }
         mFileNumbers.clear();
+        mFileStartTimes.clear();
         mFileNumbers.add(0);
         setActiveFile(0);
     }
@@ -248,6 +274,108 @@ public class BatteryStatsHistory {
         return true;
     }
 
+    /**
+     * Start iterating history files and history buffer from the last file that starts at or before
+     * {@code startTimeMs}. The files before it are neither read nor decoded.
+     *
+     * @param startTimeMs history time, as in {@link BatteryStats.HistoryItem#time}.
+     * @return always return true.
+     */
+    public boolean startIteratingHistory(long startTimeMs) {
+        startIteratingHistory();
+        if (startTimeMs <= 0) {
+            return true;
+        }
+
+        final int fileCount = mFileNumbers.size() - 1;
+        final int parcelCount = mHistoryParcels != null ? mHistoryParcels.size() : 0;
+        final long bufferStartTimeMs = readStartTime(mHistoryBuffer, false);
+        if (bufferStartTimeMs != -1 && bufferStartTimeMs <= startTimeMs) {
+            mCurrentFileIndex = Math.max(fileCount, 0);
+            mParcelIndex = parcelCount;
+            return true;
+        }
+
+        // Files are in time order. Start from the newest one and stop at the first that starts
+        // early enough, the files that could not be indexed are just not skipped.
+        for (int i = fileCount - 1; i > 0; i--) {
+            final long fileStartTimeMs = getFileStartTime(mFileNumbers.get(i));
+            if (fileStartTimeMs != -1 && fileStartTimeMs <= startTimeMs) {
+                mCurrentFileIndex = i;
+                break;
+            }
+        }
+        for (int i = parcelCount - 1; i > 0; i--) {
+            final long parcelStartTimeMs = readStartTime(mHistoryParcels.get(i), true);
+            if (parcelStartTimeMs != -1 && parcelStartTimeMs <= startTimeMs) {
+                mParcelIndex = i;
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the history time of the first record of the history file, or -1 if it is unknown.
+     */
+    private long getFileStartTime(int fileNumber) {
+        final int index = mFileStartTimes.indexOfKey(fileNumber);
+        if (index >= 0) {
+            return mFileStartTimes.valueAt(index);
+        }
+        final long startTimeMs = mapFileStartTime(getFile(fileNumber));
+        mFileStartTimes.put(fileNumber, startTimeMs);
+        return startTimeMs;
+    }
+
+    private long mapFileStartTime(AtomicFile file) {
+        try (FileInputStream in = file.openRead(); FileChannel channel = in.getChannel()) {
+            if (channel.size() < FILE_INDEX_HEAD_SIZE) {
+                return -1;
+            }
+            final MappedByteBuffer head =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_INDEX_HEAD_SIZE);
+            // Parcels are in native byte order.
+            head.order(ByteOrder.nativeOrder());
+            if (head.getInt(0) != BatteryStatsImpl.VERSION
+                    || (head.getInt(FILE_HEAD_SIZE) & BatteryStatsImpl.DELTA_TIME_MASK)
+                            != BatteryStatsImpl.DELTA_TIME_ABS) {
+                return -1;
+            }
+            return head.getLong(FILE_HEAD_SIZE + 4);
+        } catch (IOException e) {
+            Slog.w(TAG, "Error indexing file " + file.getBaseFile().getPath(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * @param hasHead whether the parcel has the content of a history file, rather than being the
+     *                history buffer.
+     * @return the history time of the first record of the parcel, or -1 if it is unknown.
+     */
+    private static long readStartTime(Parcel p, boolean hasHead) {
+        final int offset = hasHead ? FILE_HEAD_SIZE : 0;
+        if (p.dataSize() < offset + 4 + 8) {
+            return -1;
+        }
+        final int pos = p.dataPosition();
+        try {
+            p.setDataPosition(0);
+            if (hasHead && p.readInt() != BatteryStatsImpl.VERSION) {
+                return -1;
+            }
+            p.setDataPosition(offset);
+            if ((p.readInt() & BatteryStatsImpl.DELTA_TIME_MASK)
+                    != BatteryStatsImpl.DELTA_TIME_ABS) {
+                return -1;
+            }
+            return p.readLong();
+        } finally {
+            p.setDataPosition(pos);
+        }
+    }
+
     /**
      * Finish iterating history files and history buffer.
      */
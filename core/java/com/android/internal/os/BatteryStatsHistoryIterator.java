@@ -25,7 +25,8 @@ import android.util.Slog;
 import java.util.List;
 
 /**
- * An iterator for {@link BatteryStats.HistoryItem}'s.
+ * An iterator for {@link BatteryStats.HistoryItem}'s, optionally restricted to a window of
+ * history time. The history files that end before the window are skipped without being read.
  */
 public class BatteryStatsHistoryIterator {
     private static final boolean DEBUG = false;
@@ -35,12 +36,28 @@ public class BatteryStatsHistoryIterator {
             new BatteryStats.HistoryStepDetails();
     private final String[] mReadHistoryStrings;
     private final int[] mReadHistoryUids;
+    private final long mStartTimeMs;
+    private final long mEndTimeMs;
+    private boolean mFinished;
 
     public BatteryStatsHistoryIterator(@NonNull BatteryStatsHistory history,
             @NonNull List<BatteryStats.HistoryTag> historyTagPool) {
+        this(history, historyTagPool, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Iterates over the items with a {@link BatteryStats.HistoryItem#time} in
+     * [{@code startTimeMs}, {@code endTimeMs}). The first item has the complete state at its
+     * time, the items before it are decoded but not returned.
+     */
+    public BatteryStatsHistoryIterator(@NonNull BatteryStatsHistory history,
+            @NonNull List<BatteryStats.HistoryTag> historyTagPool, long startTimeMs,
+            long endTimeMs) {
         mBatteryStatsHistory = history;
+        mStartTimeMs = startTimeMs;
+        mEndTimeMs = endTimeMs;
 
-        mBatteryStatsHistory.startIteratingHistory();
+        mBatteryStatsHistory.startIteratingHistory(startTimeMs);
 
         mReadHistoryStrings = new String[historyTagPool.size()];
         mReadHistoryUids = new int[historyTagPool.size()];
@@ -57,18 +74,29 @@ public class BatteryStatsHistoryIterator {
      * are no more items.
      */
     public boolean next(BatteryStats.HistoryItem out) {
-        Parcel p = mBatteryStatsHistory.getNextParcel(out);
-        if (p == null) {
-            mBatteryStatsHistory.finishIteratingHistory();
+        if (mFinished) {
             return false;
         }
+        do {
+            Parcel p = mBatteryStatsHistory.getNextParcel(out);
+            if (p == null) {
+                mBatteryStatsHistory.finishIteratingHistory();
+                return false;
+            }
+
+            final long lastRealtimeMs = out.time;
+            final long lastWalltimeMs = out.currentTime;
+            readHistoryDelta(p, out);
+            if (out.cmd != BatteryStats.HistoryItem.CMD_CURRENT_TIME
+                    && out.cmd != BatteryStats.HistoryItem.CMD_RESET && lastWalltimeMs != 0) {
+                out.currentTime = lastWalltimeMs + (out.time - lastRealtimeMs);
+            }
+        } while (out.time < mStartTimeMs);
 
-        final long lastRealtimeMs = out.time;
-        final long lastWalltimeMs = out.currentTime;
-        readHistoryDelta(p, out);
-        if (out.cmd != BatteryStats.HistoryItem.CMD_CURRENT_TIME
-                && out.cmd != BatteryStats.HistoryItem.CMD_RESET && lastWalltimeMs != 0) {
-            out.currentTime = lastWalltimeMs + (out.time - lastRealtimeMs);
+        if (out.time >= mEndTimeMs) {
+            mFinished = true;
+            mBatteryStatsHistory.finishIteratingHistory();
+            return false;
         }
         return true;
     }
@@ -11517,6 +11517,15 @@ public class BatteryStatsImpl extends BatteryStats {
      */
     @VisibleForTesting
     public BatteryStatsHistoryIterator createBatteryStatsHistoryIterator() {
+        return createBatteryStatsHistoryIterator(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates an iterator for the battery stats history items with a
+     * {@link HistoryItem#time} in [{@code startTimeMs}, {@code endTimeMs}).
+     */
+    public BatteryStatsHistoryIterator createBatteryStatsHistoryIterator(long startTimeMs,
+            long endTimeMs) {
         ArrayList<HistoryTag> tags = new ArrayList<>(mHistoryTagPool.size());
         for (Map.Entry<HistoryTag, Integer> entry: mHistoryTagPool.entrySet()) {
             final HistoryTag tag = entry.getKey();
@@ -11524,7 +11533,8 @@ public class BatteryStatsImpl extends BatteryStats {
             tags.add(tag);
         }
 
-        return new BatteryStatsHistoryIterator(mBatteryStatsHistory, tags);
+        return new BatteryStatsHistoryIterator(mBatteryStatsHistory, tags, startTimeMs,
+                endTimeMs);
     }
 
     @Override
@@ -44,6 +44,7 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BinderInternal.CallSession;
 
 import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
@@ -51,6 +52,8 @@ import java.util.List;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.ToDoubleFunction;
 
 /**
@@ -65,6 +68,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
     public static final boolean DEFAULT_TRACK_DIRECT_CALLING_UID = true;
     public static final boolean DEFAULT_IGNORE_BATTERY_STATUS = false;
     public static final boolean DEFAULT_COLLECT_LATENCY_DATA = true;
+    public static final boolean DEFAULT_RECORD_TO_RING_BUFFERS = false;
     public static final int MAX_BINDER_CALL_STATS_COUNT_DEFAULT = 1500;
     public static final int SHARDING_MODULO_DEFAULT = 1;
     private static final String DEBUG_ENTRY_PREFIX = "__DEBUG_";
@@ -81,6 +85,13 @@ public class BinderCallsStats implements BinderInternal.Observer {
     private static final boolean OVERFLOW_SCREEN_INTERACTIVE = false;
     private static final int OVERFLOW_DIRECT_CALLING_UID = -1;
     private static final int OVERFLOW_TRANSACTION_CODE = -1;
+    // Number of call records each binder thread can buffer before they are aggregated.
+    @VisibleForTesting
+    static final int CALL_RECORD_BUFFER_SIZE = 256;
+    private static final long CALL_RECORDS_DRAIN_DELAY_MILLIS = 1000;
+    private static final int DRAIN_IDLE = 0;
+    private static final int DRAIN_DELAYED = 1;
+    private static final int DRAIN_URGENT = 2;
 
     // Whether to collect all the data: cpu + exceptions + reply/request sizes.
     private boolean mDetailedTracking = DETAILED_TRACKING_DEFAULT;
@@ -107,6 +118,29 @@ public class BinderCallsStats implements BinderInternal.Observer {
     private boolean mTrackScreenInteractive = DEFAULT_TRACK_SCREEN_INTERACTIVE;
     private boolean mIgnoreBatteryStatus = DEFAULT_IGNORE_BATTERY_STATUS;
     private boolean mCollectLatencyData = DEFAULT_COLLECT_LATENCY_DATA;
+    // If set to true, all calls are recorded to per-thread ring buffers which are aggregated in the
+    // background, instead of sampling calls and aggregating them under mLock on the binder thread.
+    private volatile boolean mRecordToRingBuffers = DEFAULT_RECORD_TO_RING_BUFFERS;
+    private final CopyOnWriteArrayList<CallRecordBuffer> mCallRecordBuffers =
+            new CopyOnWriteArrayList<>();
+    private final ThreadLocal<CallRecordBuffer> mCallRecordBuffer = ThreadLocal.withInitial(() -> {
+        final CallRecordBuffer buffer = new CallRecordBuffer();
+        mCallRecordBuffers.add(buffer);
+        return buffer;
+    });
+    private final AtomicInteger mCallRecordsDrainState = new AtomicInteger(DRAIN_IDLE);
+    private final Runnable mDrainCallRecordsRunnable = () -> {
+        mCallRecordsDrainState.set(DRAIN_IDLE);
+        drainCallRecords();
+    };
+    // Only created when call records are first enabled, as most processes never use them.
+    private Handler mCallRecordsHandler;
+    @GuardedBy("mLock")
+    private long mDroppedCallRecordsAtReset;
+    // The calls dropped by the ring buffers of binder threads which exited since.
+    @GuardedBy("mLock")
+    private long mDroppedCallRecordsOfExitedThreads;
+    private final Injector mInjector;
 
     // Controls how many APIs will be collected per device. 1 means all APIs, 10 means every 10th
     // API will be collected.
@@ -132,6 +166,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
             noteCallsStatsDelayed();
 
             synchronized (mLock) {
+                drainCallRecordsLocked(true);
                 int size = mSendUidsToObserver.size();
                 for (int i = 0; i < size; i++) {
                     UidEntry uidEntry = mUidEntries.get(mSendUidsToObserver.valueAt(i));
@@ -175,6 +210,11 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public BinderLatencyObserver getLatencyObserver(int processSource) {
             return new BinderLatencyObserver(new BinderLatencyObserver.Injector(), processSource);
         }
+
+        /** Handler on which the call records of the binder threads are aggregated. */
+        public Handler getCallRecordsHandler() {
+            return BackgroundThread.getHandler();
+        }
     }
 
     public BinderCallsStats(Injector injector) {
@@ -182,6 +222,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
     }
 
     public BinderCallsStats(Injector injector, int processSource) {
+        this.mInjector = injector;
         this.mRandom = injector.getRandomGenerator();
         this.mCallStatsObserverHandler = injector.getHandler();
         this.mLatencyObserver = injector.getLatencyObserver(processSource);
@@ -232,7 +273,8 @@ public class BinderCallsStats implements BinderInternal.Observer {
         s.exceptionThrown = false;
         s.cpuTimeStarted = -1;
         s.timeStarted = -1;
-        s.recordedCall = shouldRecordDetailedData();
+        // Ring buffers record every call, and do not need to contend on mRandom either.
+        s.recordedCall = mRecordToRingBuffers || shouldRecordDetailedData();
 
         if (collectCpu && (mRecordingAllTransactionsForUid || s.recordedCall)) {
             s.cpuTimeStarted = getThreadTimeMicro();
@@ -301,63 +343,171 @@ public class BinderCallsStats implements BinderInternal.Observer {
                 ? getCallingUid()
                 : OVERFLOW_DIRECT_CALLING_UID;
 
+        // The session may have started before the ring buffers were enabled, in which case its
+        // cpu time is unknown and it goes through the regular path.
+        if (mRecordToRingBuffers && s.cpuTimeStarted >= 0) {
+            final int pendingCount = mCallRecordBuffer.get().write(workSourceUid, callingUid,
+                    s.binderClass, s.transactionCode, screenInteractive, s.exceptionThrown,
+                    duration, latencyDuration, parcelRequestSize, parcelReplySize);
+            scheduleCallRecordsDrain(
+                    pendingCount < 0 || pendingCount >= CALL_RECORD_BUFFER_SIZE / 2);
+            return;
+        }
+
         synchronized (mLock) {
             // This was already checked in #callStart but check again while synchronized.
             if (!canCollect()) {
                 return;
             }
 
-            if (uidEntry == null) {
-                uidEntry = getUidEntry(workSourceUid);
+            aggregateCallLocked(uidEntry, workSourceUid, callingUid, s.binderClass,
+                    s.transactionCode, screenInteractive, recordCall, duration, latencyDuration,
+                    s.exceptionThrown, parcelRequestSize, parcelReplySize);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void aggregateCallLocked(@Nullable UidEntry uidEntry, int workSourceUid,
+            int callingUid, Class<? extends Binder> binderClass, int transactionCode,
+            boolean screenInteractive, boolean recordCall, long duration, long latencyDuration,
+            boolean exceptionThrown, int parcelRequestSize, int parcelReplySize) {
+        if (uidEntry == null) {
+            uidEntry = getUidEntry(workSourceUid);
+        }
+
+        uidEntry.callCount++;
+        uidEntry.incrementalCallCount++;
+        if (recordCall) {
+            uidEntry.cpuTimeMicros += duration;
+            uidEntry.recordedCallCount++;
+
+            final CallStat callStat = uidEntry.getOrCreate(
+                    callingUid, binderClass, transactionCode,
+                    screenInteractive,
+                    mCallStatsCount >= mMaxBinderCallStatsCount);
+            final boolean isNewCallStat = callStat.callCount == 0;
+            if (isNewCallStat) {
+                mCallStatsCount++;
             }
 
-            uidEntry.callCount++;
-            uidEntry.incrementalCallCount++;
-            if (recordCall) {
-                uidEntry.cpuTimeMicros += duration;
-                uidEntry.recordedCallCount++;
-
-                final CallStat callStat = uidEntry.getOrCreate(
-                        callingUid, s.binderClass, s.transactionCode,
-                        screenInteractive,
-                        mCallStatsCount >= mMaxBinderCallStatsCount);
-                final boolean isNewCallStat = callStat.callCount == 0;
-                if (isNewCallStat) {
-                    mCallStatsCount++;
+            callStat.callCount++;
+            callStat.incrementalCallCount++;
+            callStat.recordedCallCount++;
+            callStat.cpuTimeMicros += duration;
+            callStat.maxCpuTimeMicros = Math.max(callStat.maxCpuTimeMicros, duration);
+            callStat.latencyMicros += latencyDuration;
+            callStat.maxLatencyMicros =
+                    Math.max(callStat.maxLatencyMicros, latencyDuration);
+            if (mDetailedTracking) {
+                callStat.exceptionCount += exceptionThrown ? 1 : 0;
+                callStat.maxRequestSizeBytes =
+                        Math.max(callStat.maxRequestSizeBytes, parcelRequestSize);
+                callStat.maxReplySizeBytes =
+                        Math.max(callStat.maxReplySizeBytes, parcelReplySize);
+            }
+            // Percentiles are only meaningful when all the calls are recorded.
+            if (mRecordToRingBuffers) {
+                if (callStat.latencyHistogram == null) {
+                    callStat.latencyHistogram = new LatencyHistogram();
                 }
-
+                callStat.latencyHistogram.record(latencyDuration);
+                if (uidEntry.latencyHistogram == null) {
+                    uidEntry.latencyHistogram = new LatencyHistogram();
+                }
+                uidEntry.latencyHistogram.record(latencyDuration);
+            }
+        } else {
+            // Only record the total call count if we already track data for this key.
+            // It helps to keep the memory usage down when sampling is enabled.
+            final CallStat callStat = uidEntry.get(
+                    callingUid, binderClass, transactionCode,
+                    screenInteractive);
+            if (callStat != null) {
                 callStat.callCount++;
                 callStat.incrementalCallCount++;
-                callStat.recordedCallCount++;
-                callStat.cpuTimeMicros += duration;
-                callStat.maxCpuTimeMicros = Math.max(callStat.maxCpuTimeMicros, duration);
-                callStat.latencyMicros += latencyDuration;
-                callStat.maxLatencyMicros =
-                        Math.max(callStat.maxLatencyMicros, latencyDuration);
-                if (mDetailedTracking) {
-                    callStat.exceptionCount += s.exceptionThrown ? 1 : 0;
-                    callStat.maxRequestSizeBytes =
-                            Math.max(callStat.maxRequestSizeBytes, parcelRequestSize);
-                    callStat.maxReplySizeBytes =
-                            Math.max(callStat.maxReplySizeBytes, parcelReplySize);
-                }
-            } else {
-                // Only record the total call count if we already track data for this key.
-                // It helps to keep the memory usage down when sampling is enabled.
-                final CallStat callStat = uidEntry.get(
-                        callingUid, s.binderClass, s.transactionCode,
-                        screenInteractive);
-                if (callStat != null) {
-                    callStat.callCount++;
-                    callStat.incrementalCallCount++;
+            }
+        }
+        if (mCallStatsObserver != null && !UserHandle.isCore(workSourceUid)) {
+            mSendUidsToObserver.add(workSourceUid);
+        }
+    }
+
+    private void scheduleCallRecordsDrain(boolean urgent) {
+        if (urgent) {
+            if (mCallRecordsDrainState.get() != DRAIN_URGENT
+                    && mCallRecordsDrainState.getAndSet(DRAIN_URGENT) != DRAIN_URGENT) {
+                mCallRecordsHandler.post(mDrainCallRecordsRunnable);
+            }
+        } else if (mCallRecordsDrainState.get() == DRAIN_IDLE
+                && mCallRecordsDrainState.compareAndSet(DRAIN_IDLE, DRAIN_DELAYED)) {
+            mCallRecordsHandler.postDelayed(mDrainCallRecordsRunnable,
+                    CALL_RECORDS_DRAIN_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Aggregates the calls recorded to the ring buffers of the binder threads.
+     */
+    @VisibleForTesting
+    public void drainCallRecords() {
+        synchronized (mLock) {
+            drainCallRecordsLocked(true);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void drainCallRecordsLocked(boolean aggregate) {
+        // Buffers are only removed here, and added ones are appended, so going backwards visits
+        // every buffer that existed when the drain started.
+        for (int i = mCallRecordBuffers.size() - 1; i >= 0; i--) {
+            final CallRecordBuffer buffer = mCallRecordBuffers.get(i);
+            // Checked before reading the head, so that no more records can follow the drained
+            // ones of an exited thread.
+            final boolean exited = buffer.hasThreadExited();
+            final long head = buffer.mHead;
+            if (aggregate) {
+                for (long index = buffer.mTail; index < head; index++) {
+                    buffer.aggregateLocked(this, index);
                 }
             }
-            if (mCallStatsObserver != null && !UserHandle.isCore(workSourceUid)) {
-                mSendUidsToObserver.add(workSourceUid);
+            buffer.mTail = head;
+            if (exited) {
+                mDroppedCallRecordsOfExitedThreads += buffer.mDroppedCount;
+                mCallRecordBuffers.remove(i);
             }
         }
     }
 
+    /**
+     * Returns the number of calls which could not be recorded since the last reset because the
+     * ring buffer of their binder thread was full.
+     */
+    @VisibleForTesting
+    public long getDroppedCallRecordCount() {
+        synchronized (mLock) {
+            return getTotalDroppedCallRecordCount() - mDroppedCallRecordsAtReset;
+        }
+    }
+
+    /**
+     * Returns the number of ring buffers, one per binder thread that recorded a call and did not
+     * exit before the last drain.
+     */
+    @VisibleForTesting
+    public int getCallRecordBufferCount() {
+        return mCallRecordBuffers.size();
+    }
+
+    @GuardedBy("mLock")
+    private long getTotalDroppedCallRecordCount() {
+        long count = mDroppedCallRecordsOfExitedThreads;
+        final int bufferCount = mCallRecordBuffers.size();
+        for (int i = 0; i < bufferCount; i++) {
+            count += mCallRecordBuffers.get(i).mDroppedCount;
+        }
+        return count;
+    }
+
     private boolean shouldExport(ExportedCallStat e, boolean applySharding) {
         if (!applySharding) {
             return true;
@@ -468,6 +618,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
 
         ArrayList<ExportedCallStat> resultCallStats = new ArrayList<>();
         synchronized (mLock) {
+            drainCallRecordsLocked(true);
             final int uidEntriesSize = mUidEntries.size();
             for (int entryIdx = 0; entryIdx < uidEntriesSize; entryIdx++) {
                 final UidEntry entry = mUidEntries.valueAt(entryIdx);
@@ -512,6 +663,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
                 int workSourceUid, boolean applySharding) {
         ArrayList<ExportedCallStat> resultCallStats = new ArrayList<>();
         synchronized (mLock) {
+            drainCallRecordsLocked(true);
             final UidEntry entry = getUidEntry(workSourceUid);
             for (CallStat stat : entry.getCallStatsList()) {
                 ExportedCallStat e = getExportedCallStat(workSourceUid, stat);
@@ -544,6 +696,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
         exported.maxRequestSizeBytes = stat.maxRequestSizeBytes;
         exported.maxReplySizeBytes = stat.maxReplySizeBytes;
         exported.exceptionCount = stat.exceptionCount;
+        if (stat.latencyHistogram != null) {
+            exported.latencyHistogram = stat.latencyHistogram.copy();
+        }
         return exported;
     }
 
@@ -595,6 +750,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
     public void dump(PrintWriter pw, AppIdToPackageMap packageMap, int workSourceUid,
             boolean verbose) {
         synchronized (mLock) {
+            drainCallRecordsLocked(true);
             dumpLocked(pw, packageMap, workSourceUid, verbose);
         }
     }
@@ -608,7 +764,12 @@ public class BinderCallsStats implements BinderInternal.Observer {
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartCurrentTime));
         pw.print("On battery time (ms): ");
         pw.println(mBatteryStopwatch != null ? mBatteryStopwatch.getMillis() : 0);
-        pw.println("Sampling interval period: " + mPeriodicSamplingInterval);
+        if (mRecordToRingBuffers) {
+            pw.println("Recording all calls to ring buffers, dropped: "
+                    + getDroppedCallRecordCount());
+        } else {
+            pw.println("Sampling interval period: " + mPeriodicSamplingInterval);
+        }
         pw.println("Sharding modulo: " + mShardingModulo);
 
         final String datasetSizeDesc = verbose ? "" : "(top 90% by cpu time) ";
@@ -651,6 +812,28 @@ public class BinderCallsStats implements BinderInternal.Observer {
             pw.println(sb);
         }
         pw.println();
+        if (mRecordToRingBuffers) {
+            pw.println("Per-UID latency percentiles " + datasetSizeDesc
+                    + "(package/uid, worksource, call_desc, screen_interactive, "
+                    + "p50_latency_micros, p90_latency_micros, p99_latency_micros, "
+                    + "max_latency_micros):");
+            for (ExportedCallStat e : exportedCallStats) {
+                if (e.latencyHistogram == null) {
+                    continue;
+                }
+                sb.setLength(0);
+                sb.append("    ")
+                        .append(packageMap.mapUid(e.callingUid))
+                        .append(',')
+                        .append(packageMap.mapUid(e.workSourceUid))
+                        .append(',').append(e.className)
+                        .append('#').append(e.methodName)
+                        .append(',').append(e.screenInteractive);
+                appendLatencyPercentiles(sb, e.latencyHistogram);
+                pw.println(sb);
+            }
+            pw.println();
+        }
         final List<UidEntry> entries = new ArrayList<>();
         long totalCallsCount = 0;
         long totalRecordedCallsCount = 0;
@@ -686,6 +869,21 @@ public class BinderCallsStats implements BinderInternal.Observer {
                     entry.recordedCallCount, entry.callCount, uidStr));
         }
         pw.println();
+        if (mRecordToRingBuffers) {
+            pw.println("Per-UID latency percentiles summary " + datasetSizeDesc
+                    + "(package/uid, p50_latency_micros, p90_latency_micros, p99_latency_micros, "
+                    + "max_latency_micros):");
+            for (UidEntry entry : summaryEntries) {
+                if (entry.latencyHistogram == null) {
+                    continue;
+                }
+                sb.setLength(0);
+                sb.append("  ").append(packageMap.mapUid(entry.workSourceUid));
+                appendLatencyPercentiles(sb, entry.latencyHistogram);
+                pw.println(sb);
+            }
+            pw.println();
+        }
         if (workSourceUid == Process.INVALID_UID) {
             pw.println(String.format("  Summary: total_cpu_time=%d, "
                             + "calls_count=%d, avg_call_cpu_time=%.0f",
@@ -705,12 +903,20 @@ public class BinderCallsStats implements BinderInternal.Observer {
             pw.println(String.format("  %6d %s", entry.second, entry.first));
         }
 
-        if (mPeriodicSamplingInterval != 1) {
+        if (mPeriodicSamplingInterval != 1 && !mRecordToRingBuffers) {
             pw.println("");
             pw.println("/!\\ Displayed data is sampled. See sampling interval at the top.");
         }
     }
 
+    private static void appendLatencyPercentiles(StringBuilder sb,
+            LatencyHistogram histogram) {
+        sb.append(',').append(histogram.getValueAtPercentile(50))
+                .append(',').append(histogram.getValueAtPercentile(90))
+                .append(',').append(histogram.getValueAtPercentile(99))
+                .append(',').append(histogram.getMaxValue());
+    }
+
     protected long getThreadTimeMicro() {
         return SystemClock.currentThreadTimeMicro();
     }
@@ -856,6 +1062,28 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    /**
+     * Whether to record all calls to per-thread ring buffers which are aggregated in the
+     * background, along with latency percentiles, instead of sampling them and aggregating them on
+     * the binder thread. The sampling interval is ignored in this mode.
+     */
+    public void setRecordToRingBuffers(boolean enabled) {
+        synchronized (mLock) {
+            if (enabled != mRecordToRingBuffers) {
+                if (enabled && mCallRecordsHandler == null) {
+                    mCallRecordsHandler = mInjector.getCallRecordsHandler();
+                }
+                mRecordToRingBuffers = enabled;
+                reset();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public boolean getRecordToRingBuffers() {
+        return mRecordToRingBuffers;
+    }
+
     /** Whether to collect latency histograms. */
     public void setCollectLatencyData(boolean collectLatencyData) {
         mCollectLatencyData = collectLatencyData;
@@ -869,6 +1097,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
 
     public void reset() {
         synchronized (mLock) {
+            // Calls recorded before the reset are discarded.
+            drainCallRecordsLocked(false);
+            mDroppedCallRecordsAtReset = getTotalDroppedCallRecordCount();
             mCallStatsCount = 0;
             mUidEntries.clear();
             mExceptionCounts.clear();
@@ -901,6 +1132,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public long maxRequestSizeBytes;
         public long maxReplySizeBytes;
         public long exceptionCount;
+        // Only computed if calls are recorded to ring buffers.
+        @Nullable
+        public LatencyHistogram latencyHistogram;
 
         // Used internally.
         Class<? extends Binder> binderClass;
@@ -937,6 +1171,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public long exceptionCount;
         // Call count since reset
         public long incrementalCallCount;
+        // Latency of all the recorded calls, only computed if calls are recorded to ring buffers.
+        @Nullable
+        public LatencyHistogram latencyHistogram;
 
         public CallStat(int callingUid, Class<? extends Binder> binderClass, int transactionCode,
                 boolean screenInteractive) {
@@ -960,6 +1197,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
             clone.maxReplySizeBytes = maxReplySizeBytes;
             clone.exceptionCount = exceptionCount;
             clone.incrementalCallCount = incrementalCallCount;
+            if (latencyHistogram != null) {
+                clone.latencyHistogram = latencyHistogram.copy();
+            }
             return clone;
         }
 
@@ -1029,6 +1269,9 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public long incrementalCallCount;
         // Indicates that all transactions for the UID must be tracked
         public boolean recordAllTransactions;
+        // Latency of all the recorded calls, only computed if calls are recorded to ring buffers.
+        @Nullable
+        public LatencyHistogram latencyHistogram;
 
         UidEntry(int uid) {
             this.workSourceUid = uid;
@@ -1111,6 +1354,83 @@ public class BinderCallsStats implements BinderInternal.Observer {
         }
     }
 
+    /**
+     * Fixed-size call records written by a single binder thread and aggregated under mLock, so
+     * that recording a call neither allocates nor takes a lock. Records are dropped when the
+     * buffer is full.
+     */
+    private static final class CallRecordBuffer {
+        private static final int RECORD_SIZE = 5;
+        private static final long FLAG_SCREEN_INTERACTIVE = 1L << 32;
+        private static final long FLAG_EXCEPTION_THROWN = 1L << 33;
+
+        // The binder thread writing to the buffer.
+        private final WeakReference<Thread> mThread = new WeakReference<>(Thread.currentThread());
+        private final long[] mRecords = new long[CALL_RECORD_BUFFER_SIZE * RECORD_SIZE];
+        @SuppressWarnings("unchecked")
+        private final Class<? extends Binder>[] mBinderClasses =
+                new Class[CALL_RECORD_BUFFER_SIZE];
+        // Index of the next record to write, only updated by the binder thread once the record
+        // has been written.
+        volatile long mHead;
+        // Index of the next record to aggregate, only updated under mLock.
+        volatile long mTail;
+        // Only updated by the binder thread.
+        volatile long mDroppedCount;
+
+        /**
+         * @return the number of records waiting to be aggregated, or -1 if the buffer is full.
+         */
+        int write(int workSourceUid, int callingUid, Class<? extends Binder> binderClass,
+                int transactionCode, boolean screenInteractive, boolean exceptionThrown,
+                long cpuTimeMicros, long latencyMicros, int parcelRequestSize,
+                int parcelReplySize) {
+            final long head = mHead;
+            final int count = (int) (head - mTail);
+            if (count >= CALL_RECORD_BUFFER_SIZE) {
+                mDroppedCount++;
+                return -1;
+            }
+            final int slot = (int) (head % CALL_RECORD_BUFFER_SIZE);
+            final int offset = slot * RECORD_SIZE;
+            mRecords[offset] = ((long) workSourceUid << 32) | (callingUid & 0xFFFFFFFFL);
+            mRecords[offset + 1] = (transactionCode & 0xFFFFFFFFL)
+                    | (screenInteractive ? FLAG_SCREEN_INTERACTIVE : 0)
+                    | (exceptionThrown ? FLAG_EXCEPTION_THROWN : 0);
+            mRecords[offset + 2] = cpuTimeMicros;
+            mRecords[offset + 3] = latencyMicros;
+            mRecords[offset + 4] = ((long) parcelRequestSize << 32)
+                    | (parcelReplySize & 0xFFFFFFFFL);
+            mBinderClasses[slot] = binderClass;
+            mHead = head + 1;
+            return count + 1;
+        }
+
+        /**
+         * @return whether the binder thread is gone, so that nothing is written to the buffer
+         *         anymore.
+         */
+        boolean hasThreadExited() {
+            final Thread thread = mThread.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        @GuardedBy("stats.mLock")
+        void aggregateLocked(BinderCallsStats stats, long index) {
+            final int slot = (int) (index % CALL_RECORD_BUFFER_SIZE);
+            final int offset = slot * RECORD_SIZE;
+            final long uids = mRecords[offset];
+            final long codeAndFlags = mRecords[offset + 1];
+            final long sizes = mRecords[offset + 4];
+            stats.aggregateCallLocked(null, (int) (uids >> 32), (int) uids,
+                    mBinderClasses[slot], (int) codeAndFlags,
+                    (codeAndFlags & FLAG_SCREEN_INTERACTIVE) != 0, true,
+                    mRecords[offset + 2], mRecords[offset + 3],
+                    (codeAndFlags & FLAG_EXCEPTION_THROWN) != 0,
+                    (int) (sizes >> 32), (int) sizes);
+        }
+    }
+
     @VisibleForTesting
     public SparseArray<UidEntry> getUidEntries() {
         return mUidEntries;
@@ -1177,6 +1497,7 @@ public class BinderCallsStats implements BinderInternal.Observer {
         public static final String SETTINGS_MAX_CALL_STATS_KEY = "max_call_stats_count";
         public static final String SETTINGS_IGNORE_BATTERY_STATUS_KEY = "ignore_battery_status";
         public static final String SETTINGS_SHARDING_MODULO_KEY = "sharding_modulo";
+        public static final String SETTINGS_RECORD_TO_RING_BUFFERS_KEY = "record_to_ring_buffers";
         // Settings for BinderLatencyObserver.
         public static final String SETTINGS_COLLECT_LATENCY_DATA_KEY = "collect_latency_data";
         public static final String SETTINGS_LATENCY_OBSERVER_SAMPLING_INTERVAL_KEY =
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with buckets of bounded relative size, in the spirit of HdrHistogram: each
+ * power of two range is split into {@link #SUB_BUCKET_COUNT} linear buckets, so that percentiles
+ * are reported within 1 / {@link #SUB_BUCKET_COUNT} of the recorded values whatever their
+ * magnitude. Buckets are only allocated up to the largest recorded value.
+ *
+ * Not thread-safe.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    /** Number of buckets each power of two range is split into. */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values are clamped to 2^31 - 1 micros (~35 minutes).
+    private static final int MAX_BUCKET_COUNT = sampleToBucket(Integer.MAX_VALUE) + 1;
+
+    private int[] mCounts = new int[SUB_BUCKET_COUNT * 2];
+    private long mTotalCount;
+    private long mMaxValue;
+
+    /** Records a sample. Negative samples are recorded as 0. */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        final int bucket = sampleToBucket((int) Math.min(value, Integer.MAX_VALUE));
+        if (bucket >= mCounts.length) {
+            mCounts = Arrays.copyOf(mCounts,
+                    Math.min(MAX_BUCKET_COUNT, Math.max(bucket + 1, mCounts.length * 2)));
+        }
+        mCounts[bucket]++;
+        mTotalCount++;
+        mMaxValue = Math.max(mMaxValue, value);
+    }
+
+    /** Adds all the samples of {@code other} to this histogram. */
+    public void add(LatencyHistogram other) {
+        if (other.mCounts.length > mCounts.length) {
+            mCounts = Arrays.copyOf(mCounts, other.mCounts.length);
+        }
+        for (int i = 0; i < other.mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mMaxValue = Math.max(mMaxValue, other.mMaxValue);
+    }
+
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    public long getMaxValue() {
+        return mMaxValue;
+    }
+
+    /**
+     * Returns the value below which {@code percentile} percent of the samples fall, i.e. the upper
+     * bound of the bucket holding that sample, capped by the largest recorded value.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long count = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            count += mCounts[i];
+            if (count >= rank) {
+                return Math.min(bucketToMaxSample(i), mMaxValue);
+            }
+        }
+        return mMaxValue;
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMaxValue = 0;
+    }
+
+    /** @return a histogram holding the same samples, which is not affected by this one. */
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        copy.mCounts = mCounts.clone();
+        copy.mTotalCount = mTotalCount;
+        copy.mMaxValue = mMaxValue;
+        return copy;
+    }
+
+    /** Gets the index of the bucket holding the provided non-negative sample. */
+    static int sampleToBucket(int sample) {
+        if (sample < SUB_BUCKET_COUNT) {
+            return sample;
+        }
+        // The highest SUB_BUCKET_BITS + 1 bits of the sample select the bucket.
+        final int shift = 31 - Integer.numberOfLeadingZeros(sample) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (sample >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    /** Gets the largest sample the bucket at the provided index can hold. */
+    static long bucketToMaxSample(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKET_COUNT - 1;
+        final long mantissa = bucket % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
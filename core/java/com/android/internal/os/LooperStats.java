@@ -27,6 +27,7 @@ import android.util.SparseArray;
 import com.android.internal.annotations.GuardedBy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadLocalRandom;
@@ -41,6 +42,7 @@ public class LooperStats implements Looper.Observer {
     private static final int SESSION_POOL_SIZE = 50;
     private static final boolean DISABLED_SCREEN_STATE_TRACKING_VALUE = false;
     public static final boolean DEFAULT_IGNORE_BATTERY_STATUS = false;
+    public static final int DEFAULT_SLOW_DISPATCHES_COUNT = 32;
 
     @GuardedBy("mLock")
     private final SparseArray<Entry> mEntries = new SparseArray<>(512);
@@ -58,6 +60,14 @@ public class LooperStats implements Looper.Observer {
     private boolean mAddDebugEntries = false;
     private boolean mTrackScreenInteractive = false;
     private boolean mIgnoreBatteryStatus = DEFAULT_IGNORE_BATTERY_STATUS;
+    // Min-heap of the slowest sampled dispatches, ordered by latency.
+    @GuardedBy("mSlowDispatches")
+    private final ArrayList<SlowDispatch> mSlowDispatches = new ArrayList<>();
+    @GuardedBy("mSlowDispatches")
+    private int mSlowDispatchesCount = DEFAULT_SLOW_DISPATCHES_COUNT;
+    // Latency a dispatch must exceed to be one of the slowest ones, read without the lock so that
+    // most dispatches do not contend on it.
+    private volatile long mSlowDispatchMinLatencyMicro;
 
     public LooperStats(int samplingInterval, int entriesSizeCap) {
         this.mSamplingInterval = samplingInterval;
@@ -108,14 +118,20 @@ public class LooperStats implements Looper.Observer {
                     final long cpuUsage = getThreadTimeMicro() - session.cpuStartMicro;
                     entry.totalLatencyMicro += latency;
                     entry.maxLatencyMicro = Math.max(entry.maxLatencyMicro, latency);
+                    entry.latencyHistogram.record(latency);
                     entry.cpuUsageMicro += cpuUsage;
                     entry.maxCpuUsageMicro = Math.max(entry.maxCpuUsageMicro, cpuUsage);
+                    long delay = -1;
                     if (msg.getWhen() > 0) {
-                        final long delay = Math.max(0L, session.systemUptimeMillis - msg.getWhen());
+                        delay = Math.max(0L, session.systemUptimeMillis - msg.getWhen());
                         entry.delayMillis += delay;
                         entry.maxDelayMillis = Math.max(entry.maxDelayMillis, delay);
+                        entry.delayHistogram.record(delay);
                         entry.recordedDelayMessageCount++;
                     }
+                    if (latency > mSlowDispatchMinLatencyMicro) {
+                        noteSlowDispatch(msg, session, latency, cpuUsage, delay);
+                    }
                 }
             }
         }
@@ -123,6 +139,98 @@ public class LooperStats implements Looper.Observer {
         recycleSession(session);
     }
 
+    private void noteSlowDispatch(Message msg, DispatchSession session, long latency,
+            long cpuUsage, long delay) {
+        synchronized (mSlowDispatches) {
+            final int size = mSlowDispatches.size();
+            if (size < mSlowDispatchesCount) {
+                final SlowDispatch dispatch = new SlowDispatch();
+                dispatch.set(msg, session.systemUptimeMillis, latency, cpuUsage, delay);
+                mSlowDispatches.add(dispatch);
+                siftUpLocked(size);
+            } else if (size > 0 && latency > mSlowDispatches.get(0).latencyMicros) {
+                // Replace the fastest of the slow dispatches.
+                mSlowDispatches.get(0).set(msg, session.systemUptimeMillis, latency, cpuUsage,
+                        delay);
+                siftDownLocked(0);
+            } else {
+                return;
+            }
+            if (mSlowDispatches.size() >= mSlowDispatchesCount) {
+                mSlowDispatchMinLatencyMicro = mSlowDispatches.get(0).latencyMicros;
+            }
+        }
+    }
+
+    @GuardedBy("mSlowDispatches")
+    private void siftUpLocked(int index) {
+        final SlowDispatch dispatch = mSlowDispatches.get(index);
+        while (index > 0) {
+            final int parent = (index - 1) / 2;
+            final SlowDispatch parentDispatch = mSlowDispatches.get(parent);
+            if (parentDispatch.latencyMicros <= dispatch.latencyMicros) {
+                break;
+            }
+            mSlowDispatches.set(index, parentDispatch);
+            index = parent;
+        }
+        mSlowDispatches.set(index, dispatch);
+    }
+
+    @GuardedBy("mSlowDispatches")
+    private void siftDownLocked(int index) {
+        final int size = mSlowDispatches.size();
+        final SlowDispatch dispatch = mSlowDispatches.get(index);
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && mSlowDispatches.get(child + 1).latencyMicros
+                    < mSlowDispatches.get(child).latencyMicros) {
+                child++;
+            }
+            final SlowDispatch childDispatch = mSlowDispatches.get(child);
+            if (dispatch.latencyMicros <= childDispatch.latencyMicros) {
+                break;
+            }
+            mSlowDispatches.set(index, childDispatch);
+            index = child;
+        }
+        mSlowDispatches.set(index, dispatch);
+    }
+
+    /**
+     * Returns the slowest sampled dispatches since the last reset, slowest first.
+     */
+    public List<SlowDispatch> getSlowDispatches() {
+        final SlowDispatch[] dispatches;
+        synchronized (mSlowDispatches) {
+            dispatches = new SlowDispatch[mSlowDispatches.size()];
+            for (int i = 0; i < dispatches.length; i++) {
+                dispatches[i] = new SlowDispatch(mSlowDispatches.get(i));
+            }
+        }
+        Arrays.sort(dispatches, (a, b) -> Long.compare(b.latencyMicros, a.latencyMicros));
+        return Arrays.asList(dispatches);
+    }
+
+    /**
+     * Sets how many of the slowest dispatches are kept, 0 disables keeping them.
+     */
+    public void setSlowDispatchesCount(int count) {
+        synchronized (mSlowDispatches) {
+            mSlowDispatchesCount = Math.max(0, count);
+            resetSlowDispatchesLocked();
+        }
+    }
+
+    @GuardedBy("mSlowDispatches")
+    private void resetSlowDispatchesLocked() {
+        mSlowDispatches.clear();
+        mSlowDispatchMinLatencyMicro = mSlowDispatchesCount > 0 ? 0 : Long.MAX_VALUE;
+    }
+
     @Override
     public void dispatchingThrewException(Object token, Message msg, Exception exception) {
         if (!deviceStateAllowsCollection()) {
@@ -220,6 +328,9 @@ public class LooperStats implements Looper.Observer {
         synchronized (mOverflowEntry) {
             mOverflowEntry.reset();
         }
+        synchronized (mSlowDispatches) {
+            resetSlowDispatchesLocked();
+        }
         mStartCurrentTime = System.currentTimeMillis();
         mStartElapsedTime = SystemClock.elapsedRealtime();
         if (mBatteryStopwatch != null) {
@@ -315,6 +426,8 @@ public class LooperStats implements Looper.Observer {
         public long recordedDelayMessageCount;
         public long delayMillis;
         public long maxDelayMillis;
+        public final LatencyHistogram latencyHistogram = new LatencyHistogram();
+        public final LatencyHistogram delayHistogram = new LatencyHistogram();
 
         Entry(Message msg, boolean isInteractive) {
             this.workSourceUid = msg.workSourceUid;
@@ -341,6 +454,8 @@ public class LooperStats implements Looper.Observer {
             delayMillis = 0;
             maxDelayMillis = 0;
             recordedDelayMessageCount = 0;
+            latencyHistogram.reset();
+            delayHistogram.reset();
         }
 
         static int idFor(Message msg, boolean isInteractive) {
@@ -374,6 +489,10 @@ public class LooperStats implements Looper.Observer {
         public final long maxDelayMillis;
         public final long delayMillis;
         public final long recordedDelayMessageCount;
+        // Execution time of the recorded messages.
+        public final LatencyHistogram latencyHistogram;
+        // Time the recorded messages waited in the queue past their target time.
+        public final LatencyHistogram delayHistogram;
 
         ExportedEntry(Entry entry) {
             this.workSourceUid = entry.workSourceUid;
@@ -397,6 +516,55 @@ public class LooperStats implements Looper.Observer {
             this.delayMillis = entry.delayMillis;
             this.maxDelayMillis = entry.maxDelayMillis;
             this.recordedDelayMessageCount = entry.recordedDelayMessageCount;
+            this.latencyHistogram = entry.latencyHistogram.copy();
+            this.delayHistogram = entry.delayHistogram.copy();
+        }
+    }
+
+    /** One of the slowest sampled message dispatches. */
+    public static class SlowDispatch {
+        public int workSourceUid;
+        public String threadName;
+        public String handlerClassName;
+        // Class of the callback of the message, null if it was dispatched to the handler.
+        @Nullable
+        public String callbackClassName;
+        public int what;
+        // Uptime at which the dispatch started.
+        public long dispatchUptimeMillis;
+        public long latencyMicros;
+        public long cpuUsageMicros;
+        // Time the message waited in the queue past its target time, -1 if unknown.
+        public long delayMillis;
+
+        SlowDispatch() {
+        }
+
+        SlowDispatch(SlowDispatch other) {
+            workSourceUid = other.workSourceUid;
+            threadName = other.threadName;
+            handlerClassName = other.handlerClassName;
+            callbackClassName = other.callbackClassName;
+            what = other.what;
+            dispatchUptimeMillis = other.dispatchUptimeMillis;
+            latencyMicros = other.latencyMicros;
+            cpuUsageMicros = other.cpuUsageMicros;
+            delayMillis = other.delayMillis;
+        }
+
+        void set(Message msg, long dispatchUptimeMillis, long latencyMicros, long cpuUsageMicros,
+                long delayMillis) {
+            final Handler target = msg.getTarget();
+            workSourceUid = msg.workSourceUid;
+            threadName = target.getLooper().getThread().getName();
+            handlerClassName = target.getClass().getName();
+            callbackClassName = msg.getCallback() != null
+                    ? msg.getCallback().getClass().getName() : null;
+            what = msg.what;
+            this.dispatchUptimeMillis = dispatchUptimeMillis;
+            this.latencyMicros = latencyMicros;
+            this.cpuUsageMicros = cpuUsageMicros;
+            this.delayMillis = delayMillis;
         }
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Sizes the unspecialized app process (USAP) pool of a zygote after its recent launches.
+ * <p>
+ * Counts the launches that used a USAP (hits) and the ones the zygote had to fork for while the
+ * pool was enabled (misses). When adaptive, a delayed refill fills the pool with the launches
+ * expected during the next refill delay on top of the minimum size, and comes sooner the more
+ * launches are expected. Under memory pressure, as reported by the system server, the pool is
+ * only refilled to its minimum size, and later. The zygote is not allowed to read the pressure
+ * from the kernel itself. Otherwise the pool is refilled to its maximum size after the
+ * configured delay, as it always was.
+ * <p>
+ * Times are {@link android.os.SystemClock#elapsedRealtime()}. This class is not thread safe, it
+ * is only used by the select loop of the zygote.
+ *
+ * @hide
+ */
+public final class UsapPoolTuner {
+    /** Time constant of the decay of the launch rate. */
+    @VisibleForTesting
+    public static final long LAUNCH_RATE_TIME_CONSTANT_MS = 10_000;
+
+    private boolean mAdaptive;
+    private int mSizeMin;
+    private int mSizeMax;
+    private int mRefillThreshold;
+    private int mRefillDelayMs;
+
+    private long mHits;
+    private long mMisses;
+
+    /** Launches, each decayed by its age with {@link #LAUNCH_RATE_TIME_CONSTANT_MS}. */
+    private double mRecentLaunches;
+    private long mLastLaunchTime;
+
+    private boolean mHighMemoryPressure;
+
+    /**
+     * Sets the configured policy of the pool.
+     *
+     * @param adaptive whether to size the pool after the recent launches and memory pressure
+     */
+    public void setPolicy(boolean adaptive, int sizeMin, int sizeMax, int refillThreshold,
+            int refillDelayMs) {
+        mAdaptive = adaptive;
+        mSizeMin = sizeMin;
+        mSizeMax = sizeMax;
+        mRefillThreshold = refillThreshold;
+        mRefillDelayMs = refillDelayMs;
+    }
+
+    /** Sets whether the memory of the device is under pressure. */
+    public void setMemoryPressureHigh(boolean high) {
+        mHighMemoryPressure = high;
+    }
+
+    /** @return whether the pool is sized after the recent launches and memory pressure. */
+    public boolean isAdaptive() {
+        return mAdaptive;
+    }
+
+    /** Called when a USAP of the pool was specialized for an app. */
+    public void noteUsapUsed(long now) {
+        mHits++;
+        noteLaunch(now);
+    }
+
+    /** Called when an app was forked from the zygote while the pool was enabled. */
+    public void noteForkWithoutUsap(long now) {
+        mMisses++;
+        noteLaunch(now);
+    }
+
+    private void noteLaunch(long now) {
+        mRecentLaunches = getRecentLaunches(now) + 1;
+        mLastLaunchTime = now;
+    }
+
+    private double getRecentLaunches(long now) {
+        if (mRecentLaunches == 0) {
+            return 0;
+        }
+        final long age = Math.max(now - mLastLaunchTime, 0);
+        return mRecentLaunches * Math.exp(-(double) age / LAUNCH_RATE_TIME_CONSTANT_MS);
+    }
+
+    /**
+     * @return the launches expected during the configured refill delay at the recent rate.
+     */
+    private int getExpectedLaunches(long now) {
+        return (int) Math.round(
+                getRecentLaunches(now) * mRefillDelayMs / LAUNCH_RATE_TIME_CONSTANT_MS);
+    }
+
+    /**
+     * @return the number of USAPs a delayed refill should bring the pool to.
+     */
+    public int getTargetSize(long now) {
+        if (!mAdaptive) {
+            return mSizeMax;
+        }
+        if (mHighMemoryPressure) {
+            return mSizeMin;
+        }
+        return Math.min(mSizeMin + getExpectedLaunches(now), mSizeMax);
+    }
+
+    /**
+     * @return the delay from a USAP being used until the pool is refilled.
+     */
+    public int getRefillDelayMs(long now) {
+        if (!mAdaptive) {
+            return mRefillDelayMs;
+        }
+        if (mHighMemoryPressure) {
+            return mRefillDelayMs * 2;
+        }
+        return mRefillDelayMs / (1 + getExpectedLaunches(now));
+    }
+
+    /**
+     * @return whether a delayed refill should be scheduled for a pool of {@code poolCount} USAPs.
+     */
+    public boolean shouldScheduleRefill(int poolCount, long now) {
+        if (!mAdaptive) {
+            return mSizeMax - poolCount >= mRefillThreshold;
+        }
+        final int target = getTargetSize(now);
+        if (poolCount >= target) {
+            return false;
+        }
+        // Scale the threshold like the pool, so that a small pool is refilled too.
+        final int threshold = mSizeMax > 0 ? mRefillThreshold * target / mSizeMax : 0;
+        return target - poolCount >= Math.max(threshold, 1);
+    }
+
+    public long getHits() {
+        return mHits;
+    }
+
+    public long getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + mHits + " misses=" + mMisses
+                + (mAdaptive ? " recentLaunches=" + String.format("%.1f", mRecentLaunches)
+                        + " highMemoryPressure=" + mHighMemoryPressure : "");
+    }
+}
@@ -106,6 +106,13 @@ class ZygoteArguments {
     boolean mUsapPoolEnabled;
     boolean mUsapPoolStatusSpecified = false;
 
+    /**
+     * Whether the memory of the device is under pressure, as sent by the system server to size
+     * the USAP pool.
+     */
+    boolean mUsapPoolMemoryPressureHigh;
+    boolean mUsapPoolMemoryPressureSpecified = false;
+
     /**
      * from all --rlimit=r,c,m
      */
@@ -461,6 +468,10 @@ class ZygoteArguments {
                 mUsapPoolStatusSpecified = true;
                 mUsapPoolEnabled = Boolean.parseBoolean(getAssignmentValue(arg));
                 expectRuntimeArgs = false;
+            } else if (arg.startsWith("--usap-pool-memory-pressure-high=")) {
+                mUsapPoolMemoryPressureSpecified = true;
+                mUsapPoolMemoryPressureHigh = Boolean.parseBoolean(getAssignmentValue(arg));
+                expectRuntimeArgs = false;
             } else if (arg.startsWith(Zygote.START_AS_TOP_APP_ARG)) {
                 mIsTopApp = true;
             } else if (arg.startsWith("--disabled-compat-changes=")) {
@@ -37,4 +37,10 @@ public class ZygoteConfig {
 
     /** The number of milliseconds to delay before refilling the USAP pool */
     public static final String USAP_POOL_REFILL_DELAY_MS = "usap_pool_refill_delay_ms";
+
+    /**
+     * If {@code true}, sizes the USAP pool and times its refills after the recent launch rate and
+     * memory pressure, within the configured minimum and maximum sizes.
+     */
+    public static final String USAP_POOL_ADAPTIVE = "usap_pool_adaptive";
 }
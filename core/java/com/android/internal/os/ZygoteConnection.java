@@ -139,6 +139,12 @@ class ZygoteConnection {
                     return null;
                 }
 
+                if (parsedArgs.mUsapPoolMemoryPressureSpecified) {
+                    handleUsapPoolMemoryPressure(zygoteServer,
+                            parsedArgs.mUsapPoolMemoryPressureHigh);
+                    return null;
+                }
+
                 if (parsedArgs.mAbiListQuery) {
                     handleAbiListQuery();
                     return null;
@@ -273,6 +279,10 @@ class ZygoteConnection {
                         } else {
                             // In the parent. A pid < 0 indicates a failure and will be handled in
                             // handleParentProc.
+                            if (pid > 0 && parsedArgs.mInvokeWith == null
+                                    && !parsedArgs.mStartChildZygote) {
+                                zygoteServer.noteForkWithoutUsap();
+                            }
                             IoUtils.closeQuietly(childPipeFd);
                             childPipeFd = null;
                             handleParentProc(pid, serverPipeFd);
@@ -340,6 +350,15 @@ class ZygoteConnection {
         }
     }
 
+    private void handleUsapPoolMemoryPressure(ZygoteServer zygoteServer, boolean high) {
+        zygoteServer.setUsapPoolMemoryPressureHigh(high);
+        try {
+            mSocketOutStream.writeInt(0);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Error writing to command socket", ioe);
+        }
+    }
+
     private void handleBootCompleted() {
         try {
             mSocketOutStream.writeInt(0);
@@ -74,6 +74,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Provider;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Startup class for the zygote process.
@@ -94,6 +99,12 @@ public class ZygoteInit {
     private static final String PROPERTY_DISABLE_GRAPHICS_DRIVER_PRELOADING =
             "ro.zygote.disable_gl_preload";
 
+    /**
+     * Loads the groups of the preloaded classes list in parallel and preloads the graphics driver
+     * while the resources are preloaded. See {@link #PRELOAD_GROUP_MARKER}.
+     */
+    private static final String PROPERTY_PARALLEL_PRELOAD = "ro.zygote.parallel_preload";
+
     private static final int LOG_BOOT_PROGRESS_PRELOAD_START = 3020;
     private static final int LOG_BOOT_PROGRESS_PRELOAD_END = 3030;
 
@@ -114,6 +125,15 @@ public class ZygoteInit {
      */
     private static final String PRELOADED_CLASSES = "/system/etc/preloaded-classes";
 
+    /**
+     * Starts a new group of classes in {@link #PRELOADED_CLASSES}. The static initializers of the
+     * classes of a group may depend on each other but not on the classes of another group, so
+     * with {@link #PROPERTY_PARALLEL_PRELOAD} the groups are loaded concurrently, each in its own
+     * order. The classes before the first marker are loaded first, on their own. Without
+     * markers, or without the property, the file is loaded in order like any other comment.
+     */
+    private static final String PRELOAD_GROUP_MARKER = "# preload-group";
+
     /**
      * Controls whether we should preload resources during zygote init.
      */
@@ -138,9 +158,15 @@ public class ZygoteInit {
         bootTimingsTraceLog.traceBegin("BeginPreload");
         beginPreload();
         bootTimingsTraceLog.traceEnd(); // BeginPreload
+        final boolean parallel = SystemProperties.getBoolean(PROPERTY_PARALLEL_PRELOAD, false);
         bootTimingsTraceLog.traceBegin("PreloadClasses");
-        preloadClasses();
+        preloadClasses(parallel);
         bootTimingsTraceLog.traceEnd(); // PreloadClasses
+        // The graphics driver is loaded by native code only, let it overlap with the resources.
+        // Started once the classes restored root, so that it loads with the same privileges.
+        final Thread graphicsDriverThread = parallel
+                ? startThread("PreloadGraphicsDriver", ZygoteInit::maybePreloadGraphicsDriver)
+                : null;
         bootTimingsTraceLog.traceBegin("CacheNonBootClasspathClassLoaders");
         cacheNonBootClasspathClassLoaders();
         bootTimingsTraceLog.traceEnd(); // CacheNonBootClasspathClassLoaders
@@ -151,7 +177,11 @@ public class ZygoteInit {
         nativePreloadAppProcessHALs();
         Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
         Trace.traceBegin(Trace.TRACE_TAG_DALVIK, "PreloadGraphicsDriver");
-        maybePreloadGraphicsDriver();
+        if (graphicsDriverThread != null) {
+            joinUninterruptibly(graphicsDriverThread);
+        } else {
+            maybePreloadGraphicsDriver();
+        }
         Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
         preloadSharedLibraries();
         preloadTextResources();
@@ -208,6 +238,31 @@ public class ZygoteInit {
         }
     }
 
+    /**
+     * Starts a thread for a part of {@link #preload}. The zygote must be single threaded again
+     * before it forks, so every such thread has to be joined before {@link #preload} returns.
+     */
+    private static Thread startThread(String name, Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static void preloadTextResources() {
         Hyphenator.init();
         TextView.preloadFontCache();
@@ -245,8 +300,11 @@ public class ZygoteInit {
      *
      * Most classes only cause a few hundred bytes to be allocated, but a few will allocate a dozen
      * Kbytes (in one case, 500+K).
+     *
+     * @param parallel whether to load the groups of the list in parallel, see
+     *                 {@link #PRELOAD_GROUP_MARKER}
      */
-    private static void preloadClasses() {
+    private static void preloadClasses(boolean parallel) {
         final VMRuntime runtime = VMRuntime.getRuntime();
 
         InputStream is;
@@ -283,47 +341,22 @@ public class ZygoteInit {
             BufferedReader br =
                     new BufferedReader(new InputStreamReader(is), Zygote.SOCKET_BUFFER_SIZE);
 
-            int count = 0;
-            int missingLambdaCount = 0;
-            String line;
-            while ((line = br.readLine()) != null) {
-                // Skip comments and blank lines.
-                line = line.trim();
-                if (line.startsWith("#") || line.equals("")) {
-                    continue;
-                }
-
-                Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
-                try {
-                    // Load and explicitly initialize the given class. Use
-                    // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
-                    // (to derive the caller's class-loader). Use true to force initialization, and
-                    // null for the boot classpath class-loader (could as well cache the
-                    // class-loader of this class in a variable).
-                    Class.forName(line, true, null);
-                    count++;
-                } catch (ClassNotFoundException e) {
-                    if (line.contains("$$Lambda$")) {
-                        if (LOGGING_DEBUG) {
-                            missingLambdaCount++;
-                        }
-                    } else {
-                        Log.w(TAG, "Class not found for preloading: " + line);
-                    }
-                } catch (UnsatisfiedLinkError e) {
-                    Log.w(TAG, "Problem preloading " + line + ": " + e);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Error preloading " + line + ".", t);
-                    if (t instanceof Error) {
-                        throw (Error) t;
-                    } else if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    } else {
-                        throw new RuntimeException(t);
+            final ClassCounts counts = new ClassCounts();
+            if (parallel) {
+                preloadClassGroups(br, counts);
+            } else {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    // Skip comments and blank lines.
+                    line = line.trim();
+                    if (line.startsWith("#") || line.equals("")) {
+                        continue;
                     }
+                    preloadClass(line, counts);
                 }
-                Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
             }
+            final int count = counts.mLoaded;
+            final int missingLambdaCount = counts.mMissingLambdas;
 
             Log.i(TAG, "...preloaded " + count + " classes in "
                     + (SystemClock.uptimeMillis() - startTime) + "ms.");
@@ -368,6 +401,116 @@ public class ZygoteInit {
         }
     }
 
+    /** Results of {@link #preloadClass}, per thread that loads classes. */
+    private static final class ClassCounts {
+        int mLoaded;
+        int mMissingLambdas;
+
+        void add(ClassCounts other) {
+            mLoaded += other.mLoaded;
+            mMissingLambdas += other.mMissingLambdas;
+        }
+    }
+
+    private static void preloadClass(String className, ClassCounts counts) {
+        Trace.traceBegin(Trace.TRACE_TAG_DALVIK, className);
+        try {
+            // Load and explicitly initialize the given class. Use
+            // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
+            // (to derive the caller's class-loader). Use true to force initialization, and
+            // null for the boot classpath class-loader (could as well cache the
+            // class-loader of this class in a variable).
+            Class.forName(className, true, null);
+            counts.mLoaded++;
+        } catch (ClassNotFoundException e) {
+            if (className.contains("$$Lambda$")) {
+                if (LOGGING_DEBUG) {
+                    counts.mMissingLambdas++;
+                }
+            } else {
+                Log.w(TAG, "Class not found for preloading: " + className);
+            }
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Problem preloading " + className + ": " + e);
+        } catch (Throwable t) {
+            Log.e(TAG, "Error preloading " + className + ".", t);
+            if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else {
+                throw new RuntimeException(t);
+            }
+        }
+        Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
+    }
+
+    /**
+     * Loads the classes before the first {@link #PRELOAD_GROUP_MARKER} in order, and then the
+     * groups on a {@link ForkJoinPool} that is shut down before returning. The threads of the pool
+     * are started from this thread, after it dropped root, so they run unprivileged too.
+     */
+    private static void preloadClassGroups(BufferedReader br, ClassCounts counts)
+            throws IOException {
+        final List<String> first = new ArrayList<>();
+        final List<List<String>> groups = new ArrayList<>();
+        List<String> current = first;
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (line.equals(PRELOAD_GROUP_MARKER)) {
+                current = new ArrayList<>();
+                groups.add(current);
+            } else if (!line.startsWith("#") && !line.equals("")) {
+                current.add(line);
+            }
+        }
+
+        for (int i = 0, size = first.size(); i < size; i++) {
+            preloadClass(first.get(i), counts);
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        final int parallelism = Math.min(groups.size(), Runtime.getRuntime().availableProcessors());
+        Log.i(TAG, "Preloading " + groups.size() + " class groups on " + parallelism
+                + " threads...");
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            final List<ForkJoinTask<ClassCounts>> tasks = new ArrayList<>(groups.size());
+            for (int i = 0, size = groups.size(); i < size; i++) {
+                final List<String> group = groups.get(i);
+                tasks.add(pool.submit(() -> {
+                    final ClassCounts groupCounts = new ClassCounts();
+                    for (int j = 0, groupSize = group.size(); j < groupSize; j++) {
+                        preloadClass(group.get(j), groupCounts);
+                    }
+                    return groupCounts;
+                }));
+            }
+            // Rethrows what a group threw, like loading the classes in order would.
+            for (int i = 0, size = tasks.size(); i < size; i++) {
+                counts.add(tasks.get(i).join());
+            }
+        } finally {
+            pool.shutdownNow();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * Load in things which are used by many apps but which cannot be put in the boot
      * classpath.
@@ -69,6 +69,9 @@ class ZygoteServer {
     /** The default value used for the USAP_REFILL_DELAY_MS device property */
     private static final String USAP_POOL_REFILL_DELAY_MS_DEFAULT = "3000";
 
+    /** The default value used for the USAP_POOL_ADAPTIVE device property */
+    private static final boolean USAP_POOL_ADAPTIVE_DEFAULT = false;
+
     /** The "not a timestamp" value for the refill delay timestamp mechanism. */
     private static final int INVALID_TIMESTAMP = -1;
 
@@ -149,6 +152,12 @@ class ZygoteServer {
     private UsapPoolRefillAction mUsapPoolRefillAction;
     private long mUsapPoolRefillTriggerTimestamp;
 
+    /**
+     * Counts the launches served with and without a USAP, and sizes the pool after them when
+     * {@link ZygoteConfig#USAP_POOL_ADAPTIVE} is set.
+     */
+    private final UsapPoolTuner mUsapPoolTuner = new UsapPoolTuner();
+
     private enum UsapPoolRefillAction {
         DELAYED,
         IMMEDIATE,
@@ -196,6 +205,14 @@ class ZygoteServer {
         return mUsapPoolEnabled;
     }
 
+    /**
+     * Sets whether the memory of the device is under pressure, as sent by the system server. The
+     * USAP pool is then kept small.
+     */
+    void setUsapPoolMemoryPressureHigh(boolean high) {
+        mUsapPoolTuner.setMemoryPressureHigh(high);
+    }
+
     /**
      * Registers a server socket for zygote command connections. This opens the server socket
      * at the specified name in the abstract socket namespace.
@@ -306,6 +323,12 @@ class ZygoteServer {
                 mUsapPoolSizeMin = Integer.parseInt(USAP_POOL_SIZE_MIN_DEFAULT);
                 mUsapPoolRefillThreshold = mUsapPoolSizeMax / 2;
             }
+
+            mUsapPoolTuner.setPolicy(
+                    Zygote.getConfigurationPropertyBoolean(
+                            ZygoteConfig.USAP_POOL_ADAPTIVE, USAP_POOL_ADAPTIVE_DEFAULT),
+                    mUsapPoolSizeMin, mUsapPoolSizeMax, mUsapPoolRefillThreshold,
+                    mUsapPoolRefillDelayMs);
         }
     }
 
@@ -351,16 +374,20 @@ class ZygoteServer {
 
         if (isPriorityRefill) {
             // Refill to min
-            numUsapsToSpawn = mUsapPoolSizeMin - usapPoolCount;
+            numUsapsToSpawn = Math.max(mUsapPoolSizeMin - usapPoolCount, 0);
 
             Log.i("zygote",
                     "Priority USAP Pool refill. New USAPs: " + numUsapsToSpawn);
         } else {
-            // Refill up to max
-            numUsapsToSpawn = mUsapPoolSizeMax - usapPoolCount;
+            // Refill up to max, or to what the recent launches need when adaptive, which the
+            // pool may already exceed
+            numUsapsToSpawn = Math.max(
+                    mUsapPoolTuner.getTargetSize(SystemClock.elapsedRealtime()) - usapPoolCount,
+                    0);
 
             Log.i("zygote",
-                    "Delayed USAP Pool refill. New USAPs: " + numUsapsToSpawn);
+                    "Delayed USAP Pool refill. New USAPs: " + numUsapsToSpawn
+                            + " " + mUsapPoolTuner);
         }
 
         // Disable some VM functionality and reset some system values
@@ -406,11 +433,30 @@ class ZygoteServer {
         if (newStatus) {
             return fillUsapPool(new int[]{ sessionSocket.getFileDescriptor().getInt$() }, false);
         } else {
+            Log.i(TAG, "USAP Pool stats: " + mUsapPoolTuner);
             Zygote.emptyUsapPool();
             return null;
         }
     }
 
+    /**
+     * Called when an app was forked from the zygote, as opposed to specialized from a USAP.
+     */
+    void noteForkWithoutUsap() {
+        if (!mUsapPoolEnabled || !mUsapPoolTuner.isAdaptive()) {
+            return;
+        }
+        mUsapPoolTuner.noteForkWithoutUsap(SystemClock.elapsedRealtime());
+        Trace.traceCounter(Trace.TRACE_TAG_ACTIVITY_MANAGER, "UsapPoolMisses",
+                (int) mUsapPoolTuner.getMisses());
+        // The pool may have been too small for the recent launches, check whether it should grow.
+        if (mUsapPoolRefillTriggerTimestamp == INVALID_TIMESTAMP
+                && mUsapPoolTuner.shouldScheduleRefill(
+                        Zygote.getUsapPoolCount(), SystemClock.elapsedRealtime())) {
+            mUsapPoolRefillTriggerTimestamp = System.currentTimeMillis();
+        }
+    }
+
     private void resetUsapRefillState() {
         mUsapPoolRefillAction = UsapPoolRefillAction.NONE;
         mUsapPoolRefillTriggerTimestamp = INVALID_TIMESTAMP;
@@ -490,9 +536,11 @@ class ZygoteServer {
             if (mUsapPoolRefillTriggerTimestamp == INVALID_TIMESTAMP) {
                 pollTimeoutMs = -1;
             } else {
+                final int refillDelayMs =
+                        mUsapPoolTuner.getRefillDelayMs(SystemClock.elapsedRealtime());
                 long elapsedTimeMs = System.currentTimeMillis() - mUsapPoolRefillTriggerTimestamp;
 
-                if (elapsedTimeMs >= mUsapPoolRefillDelayMs) {
+                if (elapsedTimeMs >= refillDelayMs) {
                     // The refill delay has elapsed during the period between poll invocations.
                     // We will now check for any currently ready file descriptors before refilling
                     // the USAP pool.
@@ -505,10 +553,10 @@ class ZygoteServer {
                     // possible because it is not guaranteed to be monotonic.  Because we can't tell
                     // how far back the clock was set the best way to recover is to simply re-start
                     // the respawn delay countdown.
-                    pollTimeoutMs = mUsapPoolRefillDelayMs;
+                    pollTimeoutMs = refillDelayMs;
 
                 } else {
-                    pollTimeoutMs = (int) (mUsapPoolRefillDelayMs - elapsedTimeMs);
+                    pollTimeoutMs = (int) (refillDelayMs - elapsedTimeMs);
                 }
             }
 
@@ -646,6 +694,9 @@ class ZygoteServer {
 
                         if (pollIndex > usapPoolEventFDIndex) {
                             Zygote.removeUsapTableEntry((int) messagePayload);
+                            mUsapPoolTuner.noteUsapUsed(SystemClock.elapsedRealtime());
+                            Trace.traceCounter(Trace.TRACE_TAG_ACTIVITY_MANAGER, "UsapPoolHits",
+                                    (int) mUsapPoolTuner.getHits());
                         }
 
                         usapPoolFDRead = true;
@@ -658,7 +709,8 @@ class ZygoteServer {
                     if (usapPoolCount < mUsapPoolSizeMin) {
                         // Immediate refill
                         mUsapPoolRefillAction = UsapPoolRefillAction.IMMEDIATE;
-                    } else if (mUsapPoolSizeMax - usapPoolCount >= mUsapPoolRefillThreshold) {
+                    } else if (mUsapPoolTuner.shouldScheduleRefill(
+                            usapPoolCount, SystemClock.elapsedRealtime())) {
                         // Delayed refill
                         mUsapPoolRefillTriggerTimestamp = System.currentTimeMillis();
                     }
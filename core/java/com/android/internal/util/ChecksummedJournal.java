@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of checksummed records, for persisting the changes made on top of a full
+ * snapshot that lives in another file.
+ * <p>
+ * File layout: a header {@code [int magic][int version][long generation]} followed by frames of
+ * {@code [int payloadLength][payload][int crc32(payload)]}. The generation identifies the
+ * snapshot the records apply on top of; a journal of another generation is stale and ignored.
+ * A frame that is truncated or fails its checksum marks the end of the valid journal, and it and
+ * everything after it are truncated away, so that a crash in the middle of an append only loses
+ * that append.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @hide
+ */
+public final class ChecksummedJournal {
+    private static final int HEADER_SIZE = 16;
+    private static final int FRAME_OVERHEAD = 8;
+
+    /** Frames with a larger payload are treated as corrupted. */
+    public static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /** Decodes the payload of a record. */
+    public interface RecordDecoder<T> {
+        /**
+         * @return the record, or {@code null} if it can't be used, in which case it and the
+         *         records after it are discarded.
+         */
+        @Nullable
+        T decode(@NonNull byte[] payload) throws IOException;
+    }
+
+    private final File mFile;
+    private final String mTag;
+    private final int mMagic;
+    private final int mVersion;
+
+    private long mLength;
+    private long mGeneration = -1;
+    private int mRecordCount;
+
+    /**
+     * @param tag the log tag of the owner of the journal
+     */
+    public ChecksummedJournal(@NonNull File file, @NonNull String tag, int magic, int version) {
+        mFile = file;
+        mTag = tag;
+        mMagic = magic;
+        mVersion = version;
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /** @return the number of bytes currently held by the journal file. */
+    public long getLength() {
+        return mLength;
+    }
+
+    /** @return the number of valid records currently held by the journal file. */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Reads all intact records that apply on top of the snapshot of the given generation. A
+     * stale journal is deleted, and a torn or corrupted tail is truncated away so that later
+     * appends start on a record boundary.
+     *
+     * @return the records in the order they were appended, never {@code null}.
+     */
+    @NonNull
+    public <T> List<T> read(long generation, @NonNull RecordDecoder<T> decoder) {
+        final ArrayList<T> records = new ArrayList<>();
+        mLength = 0;
+        mGeneration = -1;
+        mRecordCount = 0;
+
+        final FileInputStream fis;
+        try {
+            fis = new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            return records;
+        }
+
+        long validLength = 0;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+        try {
+            if (in.readInt() != mMagic || in.readInt() != mVersion) {
+                Slog.w(mTag, "Discarding journal with unknown header: " + mFile);
+            } else if (in.readLong() != generation) {
+                Slog.i(mTag, "Discarding journal of another generation: " + mFile);
+            } else {
+                validLength = HEADER_SIZE;
+                mGeneration = generation;
+                final CRC32 crc = new CRC32();
+                while (true) {
+                    final int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        Slog.w(mTag, "Invalid record length " + length + " in " + mFile);
+                        break;
+                    }
+                    final byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    final int checksum = in.readInt();
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        Slog.w(mTag, "Checksum mismatch in " + mFile + " at " + validLength);
+                        break;
+                    }
+                    final T record = decoder.decode(payload);
+                    if (record == null) {
+                        Slog.w(mTag, "Undecodable record in " + mFile + " at " + validLength);
+                        break;
+                    }
+                    records.add(record);
+                    mRecordCount++;
+                    validLength += length + FRAME_OVERHEAD;
+                }
+            }
+        } catch (EOFException e) {
+            // Expected at the end of the journal, or when the last append was torn.
+        } catch (IOException e) {
+            Slog.w(mTag, "Failed reading journal " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        truncateTo(validLength);
+        return records;
+    }
+
+    /**
+     * Appends records that apply on top of the snapshot of the given generation, and syncs them
+     * to storage. A journal of another generation is replaced.
+     *
+     * @return the number of bytes written.
+     * @throws IOException if the records could not be durably written, in which case the
+     *         journal is left as it was before the call.
+     */
+    public long append(long generation, @NonNull List<byte[]> payloads) throws IOException {
+        final boolean reset = mLength == 0 || mGeneration != generation;
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        if (reset) {
+            out.writeInt(mMagic);
+            out.writeInt(mVersion);
+            out.writeLong(generation);
+        }
+        final CRC32 crc = new CRC32();
+        final int recordCount = payloads.size();
+        for (int i = 0; i < recordCount; i++) {
+            final byte[] payload = payloads.get(i);
+            if (payload.length == 0 || payload.length > MAX_RECORD_SIZE) {
+                throw new IOException("Invalid record length " + payload.length);
+            }
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+
+        final long previousLength = reset ? 0 : mLength;
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, !reset);
+            buffer.writeTo(fos);
+            if (!FileUtils.sync(fos)) {
+                throw new IOException("Failed to sync " + mFile);
+            }
+        } catch (IOException e) {
+            IoUtils.closeQuietly(fos);
+            fos = null;
+            truncateTo(previousLength);
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+
+        if (reset) {
+            mLength = 0;
+            mRecordCount = 0;
+            mGeneration = generation;
+        }
+        mLength += buffer.size();
+        mRecordCount += recordCount;
+        return buffer.size();
+    }
+
+    /** Deletes the journal file. */
+    public void delete() {
+        if (mFile.exists() && !mFile.delete()) {
+            Slog.w(mTag, "Failed to delete journal " + mFile);
+            return;
+        }
+        mLength = 0;
+        mGeneration = -1;
+        mRecordCount = 0;
+    }
+
+    private void truncateTo(long length) {
+        if (!mFile.exists() || mFile.length() == length) {
+            mLength = length;
+            return;
+        }
+        if (length == 0) {
+            delete();
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(length);
+            mLength = length;
+        } catch (IOException e) {
+            Slog.w(mTag, "Failed to truncate journal " + mFile + ", discarding it", e);
+            delete();
+        }
+    }
+}
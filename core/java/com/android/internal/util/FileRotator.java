@@ -70,6 +70,15 @@ public class FileRotator {
         public void read(InputStream in) throws IOException;
     }
 
+    /**
+     * External class that reads data directly from a given {@link File}, for
+     * formats that can be queried without reading the whole file. May be
+     * called multiple times when reading rotated data.
+     */
+    public interface FileReader {
+        public void read(File file) throws IOException;
+    }
+
     /**
      * External class that writes data to a given {@link OutputStream}.
      */
@@ -299,6 +308,26 @@ public class FileRotator {
         }
     }
 
+    /**
+     * Hand any rotated files that overlap the requested time range to the
+     * given {@link FileReader}. Files are never modified in place, so a reader
+     * may keep a file mapped after this returns.
+     */
+    public void readMatchingFiles(FileReader reader, long matchStartMillis, long matchEndMillis)
+            throws IOException {
+        final FileInfo info = new FileInfo(mPrefix);
+        for (String name : mBasePath.list()) {
+            if (!info.parse(name)) continue;
+
+            // read file when it overlaps
+            if (info.startMillis <= matchEndMillis && matchStartMillis <= info.endMillis) {
+                if (LOGD) Slog.d(TAG, "reading matching file " + name);
+
+                reader.read(new File(mBasePath, name));
+            }
+        }
+    }
+
     /**
      * Return the currently active file, which may not exist yet.
      */
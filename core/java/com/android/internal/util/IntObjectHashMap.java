@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A map of ints to objects, for maps that grow too large for {@link android.util.SparseArray}.
+ * <p>
+ * Like {@link android.util.SparseArray} the mappings are kept in dense arrays and can be iterated
+ * with {@link #keyAt(int)} and {@link #valueAt(int)}, but an open addressing hash table indexes
+ * them, so lookups, inserts and removals take constant time instead of needing a binary search and
+ * shifting of the arrays.
+ * <p>
+ * The order of the indices is NOT the order of the keys: a new mapping is added at the end and
+ * {@link #removeAt(int)} moves the last mapping into the removed index. Removing the mapping at
+ * the current index while iterating from {@code size() - 1} down to {@code 0} is thus safe, as
+ * only mappings that were already visited move.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @param <E> the type of the values
+ * @hide
+ */
+public class IntObjectHashMap<E> {
+    private static final int MIN_CAPACITY = 4;
+
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    /**
+     * Open addressing table of {@code index + 1} of the mappings, {@code 0} for an empty slot.
+     * Always at least twice as large as the capacity of the arrays, and a power of two.
+     */
+    private int[] mTable;
+
+    public IntObjectHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a new map that does not need to grow to hold {@code initialCapacity} mappings.
+     */
+    public IntObjectHashMap(int initialCapacity) {
+        final int capacity = Math.max(initialCapacity, MIN_CAPACITY);
+        mKeys = new int[capacity];
+        mValues = new Object[capacity];
+        mTable = new int[tableSizeFor(capacity)];
+    }
+
+    /**
+     * @return the number of mappings in this map.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the value mapped to {@code key}, or {@code null} if there is none.
+     */
+    @Nullable
+    public E get(int key) {
+        return get(key, null);
+    }
+
+    /**
+     * @return the value mapped to {@code key}, or {@code valueIfKeyNotFound} if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int key, E valueIfKeyNotFound) {
+        final int index = indexOfKey(key);
+        return index >= 0 ? (E) mValues[index] : valueIfKeyNotFound;
+    }
+
+    /**
+     * @return the index of the mapping of {@code key}, or {@code -1} if there is none.
+     */
+    public int indexOfKey(int key) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (mKeys[entry - 1] == key) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * @return whether there is a mapping for {@code key}.
+     */
+    public boolean contains(int key) {
+        return indexOfKey(key) >= 0;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}, replacing the previous value if there was one.
+     */
+    public void put(int key, E value) {
+        int[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        for (int entry = table[slot]; entry != 0; entry = table[slot]) {
+            if (mKeys[entry - 1] == key) {
+                mValues[entry - 1] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mSize == mKeys.length) {
+            grow(mSize + 1);
+            table = mTable;
+            mask = table.length - 1;
+            slot = findEmptySlot(table, mask, key);
+        }
+        mKeys[mSize] = key;
+        mValues[mSize] = value;
+        table[slot] = ++mSize;
+    }
+
+    /**
+     * Removes the mapping of {@code key}, if there is one.
+     *
+     * @return the value that was mapped to {@code key}, or {@code null} if there was none.
+     */
+    @Nullable
+    public E remove(int key) {
+        final int index = indexOfKey(key);
+        if (index < 0) {
+            return null;
+        }
+        final E value = valueAt(index);
+        removeAt(index);
+        return value;
+    }
+
+    /**
+     * Removes the mapping at {@code index}. The last mapping takes its index.
+     */
+    public void removeAt(int index) {
+        checkIndex(index);
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        deleteSlot(table, mask, slotOf(table, mask, index));
+
+        final int last = mSize - 1;
+        if (index != last) {
+            table[slotOf(table, mask, last)] = index + 1;
+            mKeys[index] = mKeys[last];
+            mValues[index] = mValues[last];
+        }
+        mValues[last] = null;
+        mSize = last;
+    }
+
+    /**
+     * @return the key of the mapping at {@code index}.
+     */
+    public int keyAt(int index) {
+        checkIndex(index);
+        return mKeys[index];
+    }
+
+    /**
+     * @return the value of the mapping at {@code index}.
+     */
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        checkIndex(index);
+        return (E) mValues[index];
+    }
+
+    /**
+     * Replaces the value of the mapping at {@code index}.
+     */
+    public void setValueAt(int index, E value) {
+        checkIndex(index);
+        mValues[index] = value;
+    }
+
+    /**
+     * Removes all mappings, keeping the capacity of the map.
+     */
+    public void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    /**
+     * Grows the map so that it holds {@code capacity} mappings without growing again.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > mKeys.length) {
+            grow(capacity);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (mSize == 0) {
+            return "{}";
+        }
+        final StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(mKeys[i]);
+            buffer.append('=');
+            final Object value = mValues[i];
+            buffer.append(value != this ? value : "(this Map)");
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    private void checkIndex(int index) {
+        if (index >= mSize) {
+            // The arrays are larger than the map, check explicitly like SparseArray does.
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+    private void grow(int minCapacity) {
+        final int capacity = Math.max(minCapacity, mKeys.length * 2);
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        final int[] table = new int[tableSizeFor(capacity)];
+        final int mask = table.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            table[findEmptySlot(table, mask, mKeys[i])] = i + 1;
+        }
+        mTable = table;
+    }
+
+    /**
+     * @return the slot of the table that points to the mapping at {@code index}.
+     */
+    private int slotOf(int[] table, int mask, int index) {
+        int slot = hash(mKeys[index]) & mask;
+        while (table[slot] != index + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties {@code slot}, moving back the entries that would not be found anymore otherwise.
+     */
+    private void deleteSlot(int[] table, int mask, int slot) {
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            final int home = hash(mKeys[table[next] - 1]) & mask;
+            // Move the entry into the hole unless its home slot lies cyclically in (hole, next].
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private static int findEmptySlot(int[] table, int mask, int key) {
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(int key) {
+        // Uids and other small keys are sequential, spread them over the table.
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+}
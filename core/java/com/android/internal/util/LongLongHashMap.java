@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import java.util.Arrays;
+
+/**
+ * A map of longs to longs, for maps that grow too large for
+ * {@link android.util.LongSparseLongArray}.
+ * <p>
+ * Indexed and iterated like {@link IntObjectHashMap}: a new mapping is added at the end and
+ * {@link #removeAt(int)} moves the last mapping into the removed index, so the order of the
+ * indices is NOT the order of the keys.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @hide
+ */
+public class LongLongHashMap {
+    private static final int MIN_CAPACITY = 4;
+
+    private long[] mKeys;
+    private long[] mValues;
+    private int mSize;
+
+    /**
+     * Open addressing table of {@code index + 1} of the mappings, {@code 0} for an empty slot.
+     * Always at least twice as large as the capacity of the arrays, and a power of two.
+     */
+    private int[] mTable;
+
+    public LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates a new map that does not need to grow to hold {@code initialCapacity} mappings.
+     */
+    public LongLongHashMap(int initialCapacity) {
+        final int capacity = Math.max(initialCapacity, MIN_CAPACITY);
+        mKeys = new long[capacity];
+        mValues = new long[capacity];
+        mTable = new int[IntObjectHashMap.tableSizeFor(capacity)];
+    }
+
+    /**
+     * @return the number of mappings in this map.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the value mapped to {@code key}, or {@code 0} if there is none.
+     */
+    public long get(long key) {
+        return get(key, 0);
+    }
+
+    /**
+     * @return the value mapped to {@code key}, or {@code valueIfKeyNotFound} if there is none.
+     */
+    public long get(long key, long valueIfKeyNotFound) {
+        final int index = indexOfKey(key);
+        return index >= 0 ? mValues[index] : valueIfKeyNotFound;
+    }
+
+    /**
+     * @return the index of the mapping of {@code key}, or {@code -1} if there is none.
+     */
+    public int indexOfKey(long key) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (mKeys[entry - 1] == key) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * @return whether there is a mapping for {@code key}.
+     */
+    public boolean contains(long key) {
+        return indexOfKey(key) >= 0;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}, replacing the previous value if there was one.
+     */
+    public void put(long key, long value) {
+        int[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        for (int entry = table[slot]; entry != 0; entry = table[slot]) {
+            if (mKeys[entry - 1] == key) {
+                mValues[entry - 1] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (mSize == mKeys.length) {
+            grow(mSize + 1);
+            table = mTable;
+            mask = table.length - 1;
+            slot = findEmptySlot(table, mask, key);
+        }
+        mKeys[mSize] = key;
+        mValues[mSize] = value;
+        table[slot] = ++mSize;
+    }
+
+    /**
+     * Removes the mapping of {@code key}, if there is one.
+     */
+    public void delete(long key) {
+        final int index = indexOfKey(key);
+        if (index >= 0) {
+            removeAt(index);
+        }
+    }
+
+    /**
+     * Removes the mapping at {@code index}. The last mapping takes its index.
+     */
+    public void removeAt(int index) {
+        checkIndex(index);
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        deleteSlot(table, mask, slotOf(table, mask, index));
+
+        final int last = mSize - 1;
+        if (index != last) {
+            table[slotOf(table, mask, last)] = index + 1;
+            mKeys[index] = mKeys[last];
+            mValues[index] = mValues[last];
+        }
+        mSize = last;
+    }
+
+    /**
+     * @return the key of the mapping at {@code index}.
+     */
+    public long keyAt(int index) {
+        checkIndex(index);
+        return mKeys[index];
+    }
+
+    /**
+     * @return the value of the mapping at {@code index}.
+     */
+    public long valueAt(int index) {
+        checkIndex(index);
+        return mValues[index];
+    }
+
+    /**
+     * Replaces the value of the mapping at {@code index}.
+     */
+    public void setValueAt(int index, long value) {
+        checkIndex(index);
+        mValues[index] = value;
+    }
+
+    /**
+     * Removes all mappings, keeping the capacity of the map.
+     */
+    public void clear() {
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    /**
+     * Grows the map so that it holds {@code capacity} mappings without growing again.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > mKeys.length) {
+            grow(capacity);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (mSize == 0) {
+            return "{}";
+        }
+        final StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(mKeys[i]);
+            buffer.append('=');
+            buffer.append(mValues[i]);
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    private void checkIndex(int index) {
+        if (index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+    private void grow(int minCapacity) {
+        final int capacity = Math.max(minCapacity, mKeys.length * 2);
+        mKeys = Arrays.copyOf(mKeys, capacity);
+        mValues = Arrays.copyOf(mValues, capacity);
+        final int[] table = new int[IntObjectHashMap.tableSizeFor(capacity)];
+        final int mask = table.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            table[findEmptySlot(table, mask, mKeys[i])] = i + 1;
+        }
+        mTable = table;
+    }
+
+    /**
+     * @return the slot of the table that points to the mapping at {@code index}.
+     */
+    private int slotOf(int[] table, int mask, int index) {
+        int slot = hash(mKeys[index]) & mask;
+        while (table[slot] != index + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties {@code slot}, moving back the entries that would not be found anymore otherwise.
+     */
+    private void deleteSlot(int[] table, int mask, int slot) {
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            final int home = hash(mKeys[table[next] - 1]) & mask;
+            // Move the entry into the hole unless its home slot lies cyclically in (hole, next].
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private static int findEmptySlot(int[] table, int mask, long key) {
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.res;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.ActivityInfo;
+import android.graphics.drawable.Drawable;
+import android.util.TypedValue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SharedResourceCacheTest {
+    private static final int BUDGET_BYTES = 64 * 1024;
+    private static final int MAX_XML_BLOCKS = 8;
+    private static final int DENSITY = 320;
+
+    private Resources mResources;
+    private SharedResourceCache mCache;
+    private SharedResourceCache.AssetsKey mAssets;
+    private Configuration mConfig;
+    /** The opener of the XmlBlocks, stands in for their ResourcesImpl. */
+    private final Object mOpener = new Object();
+
+    @Before
+    public void setUp() {
+        mResources = Resources.getSystem();
+        mCache = new SharedResourceCache(BUDGET_BYTES, MAX_XML_BLOCKS);
+        mAssets = new SharedResourceCache.AssetsKey(mResources.getAssets().getApkAssets());
+        mConfig = new Configuration();
+        mConfig.setToDefaults();
+        mConfig.orientation = Configuration.ORIENTATION_PORTRAIT;
+    }
+
+    @Test
+    public void testDrawableHitAcrossAssetsKeys() {
+        final DummyState state = new DummyState(0);
+        assertNull(mCache.getDrawable(mAssets, 1, DENSITY, mConfig));
+        mCache.putDrawable(mAssets, 1, DENSITY, mConfig, state);
+
+        // Another ResourcesImpl of the same ApkAssets has its own key.
+        final SharedResourceCache.AssetsKey otherAssets =
+                new SharedResourceCache.AssetsKey(mResources.getAssets().getApkAssets());
+        assertSame(state, mCache.getDrawable(otherAssets, 1, DENSITY, new Configuration(mConfig)));
+        assertNull(mCache.getDrawable(mAssets, 1, DENSITY * 2, mConfig));
+        assertNull(mCache.getDrawable(mAssets, 2, DENSITY, mConfig));
+        assertNull(mCache.getComplexColor(mAssets, 1, mConfig));
+
+        assertEquals(1, mCache.getHits(SharedResourceCache.KIND_DRAWABLE));
+        assertEquals(3, mCache.getMisses(SharedResourceCache.KIND_DRAWABLE));
+        assertEquals(1, mCache.getMisses(SharedResourceCache.KIND_COMPLEX_COLOR));
+    }
+
+    @Test
+    public void testDifferentAssets() {
+        mCache.putDrawable(mAssets, 1, DENSITY, mConfig, new DummyState(0));
+        final SharedResourceCache.AssetsKey otherAssets =
+                new SharedResourceCache.AssetsKey(new ApkAssets[0]);
+        assertNull(mCache.getDrawable(otherAssets, 1, DENSITY, mConfig));
+    }
+
+    @Test
+    public void testChangingConfigurations() {
+        final DummyState state = new DummyState(ActivityInfo.CONFIG_ORIENTATION);
+        mCache.putDrawable(mAssets, 1, DENSITY, mConfig, state);
+
+        final Configuration otherConfig = new Configuration(mConfig);
+        otherConfig.fontScale = 2f;
+        assertSame(state, mCache.getDrawable(mAssets, 1, DENSITY, otherConfig));
+
+        otherConfig.orientation = Configuration.ORIENTATION_LANDSCAPE;
+        assertNull(mCache.getDrawable(mAssets, 1, DENSITY, otherConfig));
+    }
+
+    @Test
+    public void testFlush() {
+        mCache.putDrawable(mAssets, 1, DENSITY, mConfig, new DummyState(0));
+
+        mCache.flush(mAssets, true);
+        assertNotNull(mCache.getDrawable(mAssets, 1, DENSITY, mConfig));
+
+        mCache.flush(mAssets, false);
+        assertNull(mCache.getDrawable(mAssets, 1, DENSITY, mConfig));
+    }
+
+    @Test
+    public void testBudget() {
+        final int count = 2 * BUDGET_BYTES / SharedResourceCache.CONSTANT_STATE_BYTES;
+        for (int i = 0; i < count; i++) {
+            mCache.putDrawable(mAssets, i, DENSITY, mConfig, new DummyState(0));
+        }
+        int hits = 0;
+        for (int i = 0; i < count; i++) {
+            if (mCache.getDrawable(mAssets, i, DENSITY, mConfig) != null) {
+                hits++;
+            }
+        }
+        assertTrue("hits=" + hits, hits > 0 && hits <= count / 2);
+        // The most recently used entries are kept.
+        assertNotNull(mCache.getDrawable(mAssets, count - 1, DENSITY, mConfig));
+    }
+
+    @Test
+    public void testXmlBlock() throws Exception {
+        final TypedValue value = new TypedValue();
+        mResources.getValue(android.R.layout.simple_list_item_1, value, true);
+        final String file = value.string.toString();
+        final int id = android.R.layout.simple_list_item_1;
+
+        assertNull(mCache.newXmlParser(mAssets, value.assetCookie, file, id));
+        final XmlBlock block = mResources.getAssets().openXmlBlockAsset(value.assetCookie, file);
+        mCache.putXmlBlock(mAssets, value.assetCookie, file, id, block, mOpener).close();
+
+        final XmlResourceParser parser = mCache.newXmlParser(mAssets, value.assetCookie, file, id);
+        assertNotNull(parser);
+        parser.close();
+        assertEquals(1, mCache.getHits(SharedResourceCache.KIND_XML_BLOCK));
+        assertEquals(1, mCache.getMisses(SharedResourceCache.KIND_XML_BLOCK));
+
+        mCache.flush(mAssets, true);
+        assertNull(mCache.newXmlParser(mAssets, value.assetCookie, file, id));
+    }
+
+    @Test
+    public void testXmlBlockCount() throws Exception {
+        final int[] ids = {
+                android.R.layout.simple_list_item_1, android.R.layout.simple_list_item_2,
+                android.R.layout.simple_list_item_checked,
+                android.R.layout.simple_list_item_single_choice,
+                android.R.layout.simple_list_item_multiple_choice,
+                android.R.layout.simple_list_item_activated_1,
+                android.R.layout.simple_list_item_activated_2,
+                android.R.layout.simple_spinner_item,
+                android.R.layout.simple_spinner_dropdown_item,
+                android.R.layout.simple_dropdown_item_1line,
+                android.R.layout.simple_expandable_list_item_1,
+                android.R.layout.simple_expandable_list_item_2,
+                android.R.layout.simple_gallery_item, android.R.layout.simple_selectable_list_item,
+                android.R.layout.two_line_list_item, android.R.layout.select_dialog_item,
+                android.R.layout.select_dialog_singlechoice,
+                android.R.layout.select_dialog_multichoice, android.R.layout.test_list_item,
+                android.R.layout.activity_list_item,
+        };
+        for (int id : ids) {
+            putXmlBlock(id, mOpener);
+        }
+
+        // The most recently used block is kept.
+        assertTrue(isXmlBlockCached(ids[ids.length - 1]));
+        final int count = mCache.getXmlBlockCount();
+        assertTrue("count=" + count, count > 0 && count <= MAX_XML_BLOCKS);
+        mCache.flush(mAssets, true);
+        assertEquals(0, mCache.getXmlBlockCount());
+    }
+
+    @Test
+    public void testFlushXmlBlocksOfOpener() throws Exception {
+        final int id = android.R.layout.simple_list_item_1;
+        final int otherId = android.R.layout.simple_list_item_2;
+        final Object otherOpener = new Object();
+        putXmlBlock(id, mOpener);
+        putXmlBlock(otherId, otherOpener);
+
+        mCache.flushXmlBlocks(otherOpener);
+        assertTrue(isXmlBlockCached(id));
+        assertFalse(isXmlBlockCached(otherId));
+    }
+
+    @Test
+    public void testXmlBlockClosedWithOpener() throws Exception {
+        final int id = android.R.layout.simple_list_item_1;
+        final WeakReference<Object> opener = putXmlBlockOfNewOpener(id);
+
+        // The block keeps the AssetManager it was opened with alive, not its opener.
+        for (int i = 0; i < 50 && isXmlBlockCached(id); i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+            Thread.sleep(10);
+            mCache.expungeDeadOpeners();
+        }
+        assertNull(opener.get());
+        assertFalse(isXmlBlockCached(id));
+    }
+
+    private WeakReference<Object> putXmlBlockOfNewOpener(int id) throws Exception {
+        final Object opener = new Object();
+        putXmlBlock(id, opener);
+        return new WeakReference<>(opener);
+    }
+
+    private void putXmlBlock(int id, Object opener) throws Exception {
+        final TypedValue value = new TypedValue();
+        mResources.getValue(id, value, true);
+        final String file = value.string.toString();
+        final XmlBlock block = mResources.getAssets().openXmlBlockAsset(value.assetCookie, file);
+        mCache.putXmlBlock(mAssets, value.assetCookie, file, id, block, opener).close();
+    }
+
+    private boolean isXmlBlockCached(int id) {
+        final TypedValue value = new TypedValue();
+        mResources.getValue(id, value, true);
+        final XmlResourceParser parser =
+                mCache.newXmlParser(mAssets, value.assetCookie, value.string.toString(), id);
+        if (parser == null) {
+            return false;
+        }
+        parser.close();
+        return true;
+    }
+
+    private static class DummyState extends Drawable.ConstantState {
+        private final int mChangingConfigs;
+
+        DummyState(int changingConfigs) {
+            mChangingConfigs = changingConfigs;
+        }
+
+        @Override
+        public Drawable newDrawable() {
+            return null;
+        }
+
+        @Override
+        public int getChangingConfigurations() {
+            return mChangingConfigs;
+        }
+    }
+}
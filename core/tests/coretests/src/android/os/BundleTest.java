@@ -18,11 +18,17 @@ package android.os;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import android.content.Intent;
+import android.graphics.Rect;
+
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -36,6 +42,11 @@ import org.junit.runner.RunWith;
 @RunWith(AndroidJUnit4.class)
 public class BundleTest {
 
+    @After
+    public void tearDown() {
+        BaseBundle.setShouldWriteLazily(false);
+    }
+
     /**
      * Take a bundle, write it to a parcel and return the parcel.
      */
@@ -217,4 +228,227 @@ public class BundleTest {
         // return true
         assertTrue(BaseBundle.kindofEquals(bundle1, bundle2));
     }
+
+    /**
+     * Create a bundle with values of several types, send it through a parcel and return the
+     * received, still parcelled, bundle.
+     */
+    private Bundle createLazyBundle() {
+        final Bundle source = new Bundle();
+        source.putInt("int", 1);
+        source.putLong("long", 2L);
+        source.putDouble("double", 3.5);
+        source.putBoolean("boolean", true);
+        source.putString("string", "abc");
+        source.putString("null", null);
+        source.putParcelable("rect", new Rect(1, 2, 3, 4));
+        final Bundle nested = new Bundle();
+        nested.putString("nested_string", "def");
+        source.putBundle("bundle", nested);
+        source.setWriteLazily(true);
+
+        BaseBundle.setShouldWriteLazily(true);
+        final Parcel p = getParcelledBundle(source);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+        return b;
+    }
+
+    private static boolean isLazy(Bundle b, String key) {
+        return b.mMap.get(key) instanceof Parcel.LazyValue;
+    }
+
+    @Test
+    public void testLazyValues_decodedOnlyWhenAccessed() {
+        final Bundle b = createLazyBundle();
+        assertTrue(b.isParcelled());
+
+        // Reading primitives doesn't decode them.
+        assertEquals(1, b.getInt("int"));
+        assertEquals(2L, b.getLong("long"));
+        assertEquals(3.5, b.getDouble("double"), 0);
+        assertTrue(b.getBoolean("boolean"));
+        assertFalse(b.isParcelled());
+        assertEquals(8, b.size());
+        assertTrue(isLazy(b, "int"));
+        assertTrue(isLazy(b, "long"));
+        assertTrue(isLazy(b, "double"));
+        assertTrue(isLazy(b, "boolean"));
+        assertTrue(isLazy(b, "rect"));
+        assertTrue(isLazy(b, "bundle"));
+        assertFalse(isLazy(b, "null"));
+
+        // Other values are decoded once.
+        assertEquals("abc", b.getString("string"));
+        assertFalse(isLazy(b, "string"));
+        assertEquals(new Rect(1, 2, 3, 4), b.getParcelable("rect"));
+        assertFalse(isLazy(b, "rect"));
+        assertEquals("def", b.getBundle("bundle").getString("nested_string"));
+        assertNull(b.getString("null"));
+        assertTrue(b.containsKey("null"));
+
+        // Type mismatches behave as they do for decoded values.
+        assertEquals(5, b.getInt("string", 5));
+        assertEquals(6L, b.getLong("int", 6L));
+        assertNull(b.getString("int"));
+        assertFalse(isLazy(b, "int"));
+    }
+
+    @Test
+    public void testLazyValues_writtenWithoutDecoding() {
+        final Bundle b = createLazyBundle();
+        assertEquals("abc", b.getString("string"));
+        assertTrue(isLazy(b, "rect"));
+
+        final Parcel p = getParcelledBundle(b);
+        final Bundle copy = new Bundle(p);
+        p.recycle();
+
+        assertTrue(isLazy(b, "rect"));
+        assertEquals(8, copy.size());
+        assertEquals(1, copy.getInt("int"));
+        assertEquals("abc", copy.getString("string"));
+        assertEquals(new Rect(1, 2, 3, 4), copy.getParcelable("rect"));
+        assertEquals("def", copy.getBundle("bundle").getString("nested_string"));
+    }
+
+    @Test
+    public void testLazyValues_copiesDecodeIndependently() {
+        final Bundle b = createLazyBundle();
+        b.size();
+        final Bundle copy = new Bundle(b);
+
+        final Rect rect = b.getParcelable("rect");
+        assertTrue(isLazy(copy, "rect"));
+        final Rect copyRect = copy.getParcelable("rect");
+        assertEquals(rect, copyRect);
+        assertFalse(rect == copyRect);
+    }
+
+    @Test
+    public void kindofEquals_lazilyUnparcelled_same() {
+        BaseBundle.setShouldWriteLazily(true);
+        Bundle bundle1 = new Bundle();
+        bundle1.putString("StringKey", "S");
+        bundle1.putInt("IntKey", 2);
+        bundle1.setWriteLazily(true);
+        bundle1.readFromParcel(getParcelledBundle(bundle1));
+        bundle1.size();
+
+        Bundle bundle2 = new Bundle();
+        bundle2.putString("StringKey", "S");
+        bundle2.putInt("IntKey", 2);
+        bundle2.setWriteLazily(true);
+        bundle2.readFromParcel(getParcelledBundle(bundle2));
+        bundle2.size();
+
+        assertTrue(isLazy(bundle1, "StringKey"));
+        assertTrue(BaseBundle.kindofEquals(bundle1, bundle2));
+    }
+
+    @Test
+    public void testLazyValues_onlyMarkedBundles() {
+        BaseBundle.setShouldWriteLazily(true);
+        final Bundle source = new Bundle();
+        source.putParcelable("rect", new Rect(1, 2, 3, 4));
+
+        final Parcel p = getParcelledBundle(source);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+
+        b.size();
+        assertFalse(isLazy(b, "rect"));
+    }
+
+    @Test
+    public void testLazyValues_intentExtras() {
+        BaseBundle.setShouldWriteLazily(true);
+        final Intent intent = new Intent("action");
+        intent.putExtra("int", 1);
+        intent.putExtra("rect", new Rect(1, 2, 3, 4));
+
+        // Through system_server, which doesn't read the extras, to the receiver.
+        final Intent received = sendThroughParcel(sendThroughParcel(intent));
+
+        assertEquals(1, received.getIntExtra("int", 0));
+        final Bundle extras = received.getExtras();
+        assertTrue(isLazy(extras, "rect"));
+        assertEquals(new Rect(1, 2, 3, 4), extras.getParcelable("rect"));
+    }
+
+    private static Intent sendThroughParcel(Intent intent) {
+        final Parcel p = Parcel.obtain();
+        intent.writeToParcel(p, 0);
+        p.setDataPosition(0);
+        final Intent received = Intent.CREATOR.createFromParcel(p);
+        p.recycle();
+        return received;
+    }
+
+    @Test
+    public void testLazyValues_notWrittenUnlessEnabled() {
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        final Parcel p = getParcelledBundle(source);
+        final Bundle b = new Bundle(p);
+        p.recycle();
+
+        assertEquals("abc", b.getString("string"));
+        assertNull(b.mLazySource);
+    }
+
+    @Test
+    public void testLazyValues_sourceRecycledOnceDecoded() {
+        final Bundle b = createLazyBundle();
+        b.getString("string");
+        assertNotNull(b.mLazySource);
+
+        // Removed values no longer need the parcel either.
+        b.remove("rect");
+        for (String key : b.keySet()) {
+            b.get(key);
+        }
+        assertNull(b.mLazySource);
+        assertEquals(1, b.getInt("int"));
+        assertEquals("def", b.getBundle("bundle").getString("nested_string"));
+    }
+
+    @Test
+    public void testLazyValues_sharedSourceNotRecycled() {
+        final Bundle b = createLazyBundle();
+        b.size();
+        final Bundle copy = new Bundle(b);
+        assertNull(b.mLazySource);
+        assertNull(copy.mLazySource);
+
+        final Bundle other = createLazyBundle();
+        final Bundle target = createLazyBundle();
+        target.putAll(other);
+        assertNull(other.mLazySource);
+        assertNull(target.mLazySource);
+
+        // Values left lazy in one bundle stay readable once the other decoded all of its own.
+        for (String key : b.keySet()) {
+            b.get(key);
+        }
+        assertTrue(isLazy(copy, "rect"));
+        assertEquals(new Rect(1, 2, 3, 4), copy.getParcelable("rect"));
+        for (String key : other.keySet()) {
+            other.get(key);
+        }
+        assertEquals(new Rect(1, 2, 3, 4), target.getParcelable("rect"));
+    }
+
+    @Test
+    public void testLazyValues_toString() {
+        final Bundle b = createLazyBundle();
+        b.size();
+
+        final String string = b.toString();
+        assertTrue(string, string.contains("int=1"));
+        assertTrue(string, string.contains("string=abc"));
+        assertTrue(string, string.contains("android.graphics.Rect"));
+        assertFalse(string, string.contains("LazyValue"));
+        assertTrue(isLazy(b, "rect"));
+    }
 }
@@ -16,7 +16,10 @@
 
 package android.os;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import android.platform.test.annotations.Presubmit;
 
@@ -110,4 +113,96 @@ public class ParcelTest {
             assertEquals(string, p.readString16());
         }
     }
+
+    @Test
+    public void testReadArraysIntoBuffers() {
+        final Parcel p = Parcel.obtain();
+        p.writeIntArray(new int[] {1, 2, 3});
+        p.writeIntArray(null);
+        p.writeLongArray(new long[] {Long.MIN_VALUE, Long.MAX_VALUE});
+        p.writeLongArray(null);
+
+        p.setDataPosition(0);
+        final int[] ints = new int[5];
+        assertEquals(3, p.readIntArray(ints, 1));
+        assertArrayEquals(new int[] {0, 1, 2, 3, 0}, ints);
+        assertEquals(-1, p.readIntArray(ints, 0));
+        final long[] longs = new long[2];
+        assertEquals(2, p.readLongArray(longs, 0));
+        assertArrayEquals(new long[] {Long.MIN_VALUE, Long.MAX_VALUE}, longs);
+        assertEquals(-1, p.readLongArray(longs, 0));
+
+        p.setDataPosition(0);
+        try {
+            p.readIntArray(new int[3], 1);
+            fail("Expected the array not to fit");
+        } catch (RuntimeException expected) {
+        }
+        p.recycle();
+    }
+
+    @Test
+    public void testReadByteArraysIntoBuffers() {
+        final Parcel p = Parcel.obtain();
+        for (int length = 0; length <= 9; length++) {
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) (0xF0 + i);
+            }
+            p.writeByteArray(bytes);
+        }
+        p.writeByteArray(null);
+        p.writeInt(42);
+
+        p.setDataPosition(0);
+        for (int length = 0; length <= 9; length++) {
+            final byte[] expected = new byte[length + 2];
+            for (int i = 0; i < length; i++) {
+                expected[i + 1] = (byte) (0xF0 + i);
+            }
+            final byte[] dest = new byte[length + 2];
+            assertEquals(length, p.readByteArray(dest, 1));
+            assertArrayEquals(expected, dest);
+        }
+        assertEquals(-1, p.readByteArray(new byte[0], 0));
+        // The padding of the arrays was skipped.
+        assertEquals(42, p.readInt());
+
+        // Exactly sized buffers are copied at once.
+        p.setDataPosition(0);
+        p.readByteArray(new byte[0], 0);
+        final byte[] dest = new byte[1];
+        assertEquals(1, p.readByteArray(dest, 0));
+        assertEquals((byte) 0xF0, dest[0]);
+        p.recycle();
+    }
+
+    @Test
+    public void testWriteArraySlices() {
+        final Parcel p = Parcel.obtain();
+        p.writeIntArray(new int[] {1, 2, 3, 4}, 1, 2);
+        p.writeLongArray(new long[] {5, 6, 7}, 2, 1);
+
+        p.setDataPosition(0);
+        assertArrayEquals(new int[] {2, 3}, p.createIntArray());
+        assertArrayEquals(new long[] {7}, p.createLongArray());
+        p.recycle();
+    }
+
+    @Test
+    public void testRecycledParcelsAreReusedOnSameThread() {
+        final Parcel data = Parcel.obtain();
+        final Parcel reply = Parcel.obtain();
+        data.writeInt(1);
+        reply.recycle();
+        data.recycle();
+
+        final Parcel first = Parcel.obtain();
+        final Parcel second = Parcel.obtain();
+        assertSame(data, first);
+        assertSame(reply, second);
+        assertEquals(0, first.dataSize());
+        first.recycle();
+        second.recycle();
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SharedMemory;
+import android.platform.test.annotations.Presubmit;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link SettingsSnapshot}.
+ */
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsSnapshotTest {
+
+    @Test
+    public void testWriteAndLookup() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("b_setting", "2");
+        values.put("a_setting", "1");
+        values.put("null_setting", null);
+        values.put("restricted_setting", "secret");
+        values.put("unicode_setting", "\u0000\ud800日本");
+        final ArraySet<String> restricted = new ArraySet<>();
+        restricted.add("restricted_setting");
+
+        final SharedMemory memory = SettingsSnapshot.write("test", 42, values, restricted);
+        final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+        memory.close();
+
+        assertThat(snapshot.getGeneration()).isEqualTo(42);
+        assertThat(snapshot.size()).isEqualTo(5);
+
+        int index = snapshot.indexOfKey("a_setting");
+        assertThat(index).isEqualTo(0);
+        assertThat(snapshot.isRestrictedAt(index)).isFalse();
+        assertThat(snapshot.valueAt(index)).isEqualTo("1");
+
+        index = snapshot.indexOfKey("null_setting");
+        assertThat(index).isAtLeast(0);
+        assertThat(snapshot.valueAt(index)).isNull();
+
+        index = snapshot.indexOfKey("restricted_setting");
+        assertThat(index).isAtLeast(0);
+        assertThat(snapshot.isRestrictedAt(index)).isTrue();
+
+        index = snapshot.indexOfKey("unicode_setting");
+        assertThat(snapshot.keyAt(index)).isEqualTo("unicode_setting");
+        assertThat(snapshot.valueAt(index)).isEqualTo("\u0000\ud800日本");
+
+        assertThat(snapshot.indexOfKey("missing")).isLessThan(0);
+        assertThat(snapshot.indexOfKey("")).isLessThan(0);
+        assertThat(snapshot.indexOfKey("zzz")).isLessThan(0);
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        final SharedMemory memory = SettingsSnapshot.write("test", 1, new ArrayMap<>(),
+                new ArraySet<>());
+        final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+        memory.close();
+
+        assertThat(snapshot.size()).isEqualTo(0);
+        assertThat(snapshot.indexOfKey("any")).isLessThan(0);
+    }
+}
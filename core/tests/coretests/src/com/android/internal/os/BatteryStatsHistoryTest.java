@@ -21,16 +21,20 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
+import android.os.BatteryStats;
 import android.os.Parcel;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
@@ -139,6 +143,67 @@ public class BatteryStatsHistoryTest {
         verifyActiveFile(history2, "1.bin");
     }
 
+    @Test
+    public void testIterateFromTime() throws IOException {
+        BatteryStatsHistory history =
+                new BatteryStatsHistory(mBatteryStatsImpl, mSystemDir, mHistoryBuffer);
+        writeFile(history.getActiveFile(), 1000);
+        history.startNextFile();
+        writeFile(history.getActiveFile(), 2000);
+        history.startNextFile();
+        writeFile(history.getActiveFile(), 3000);
+        history.startNextFile();
+        createActiveFile(history);
+
+        assertEquals(Arrays.asList(1000L, 2000L, 3000L), iterate(history, 0, Long.MAX_VALUE));
+        assertEquals(Arrays.asList(1000L), iterate(history, 0, 2000));
+        assertEquals(Arrays.asList(2000L, 3000L), iterate(history, 1500, Long.MAX_VALUE));
+        assertEquals(Arrays.asList(3000L), iterate(history, 3000, Long.MAX_VALUE));
+        assertEquals(Collections.emptyList(), iterate(history, 3001, Long.MAX_VALUE));
+
+        // The first file is not read when iterating from a later one.
+        writeFile(new AtomicFile(new File(mHistoryDir, "0.bin")), 2600);
+        assertEquals(Arrays.asList(3000L), iterate(history, 2500, Long.MAX_VALUE));
+    }
+
+    private List<Long> iterate(BatteryStatsHistory history, long startTimeMs, long endTimeMs) {
+        final BatteryStatsHistoryIterator iterator = new BatteryStatsHistoryIterator(history,
+                Collections.emptyList(), startTimeMs, endTimeMs);
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        final List<Long> times = new ArrayList<>();
+        while (iterator.next(item)) {
+            times.add(item.time);
+        }
+        return times;
+    }
+
+    /**
+     * Writes a history file holding a single absolute record, as it would be after a history
+     * buffer was started.
+     */
+    private void writeFile(AtomicFile file, long timeMs) throws IOException {
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        item.cmd = BatteryStats.HistoryItem.CMD_UPDATE;
+        item.time = timeMs;
+        final Parcel buffer = Parcel.obtain();
+        final Parcel p = Parcel.obtain();
+        try {
+            buffer.writeInt(BatteryStatsImpl.DELTA_TIME_ABS);
+            item.writeToParcel(buffer, 0);
+            p.writeInt(BatteryStatsImpl.VERSION);
+            p.writeLong(timeMs);
+            p.writeInt(buffer.dataSize());
+            p.appendFrom(buffer, 0, buffer.dataSize());
+
+            final FileOutputStream out = file.startWrite();
+            out.write(p.marshall());
+            file.finishWrite(out);
+        } finally {
+            buffer.recycle();
+            p.recycle();
+        }
+    }
+
     private void verifyActiveFile(BatteryStatsHistory history, String file) {
         final File expectedFile = new File(mHistoryDir, file);
         assertEquals(expectedFile.getPath(), history.getActiveFile().getBaseFile().getPath());
@@ -38,6 +38,8 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.internal.os.BinderInternal.CallSession;
 
+import com.google.common.collect.Range;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -991,6 +993,120 @@ public class BinderCallsStatsTest {
         assertEquals(true, bcs.getCollectLatencyData());
     }
 
+    @Test
+    public void testRecordToRingBuffers() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        bcs.setSamplingInterval(100);
+        bcs.setRecordToRingBuffers(true);
+
+        Binder binder = new Binder();
+        for (int i = 1; i <= 10; i++) {
+            CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+            bcs.time += 10;
+            bcs.elapsedTime += i * 100;
+            bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        }
+
+        // Calls are only aggregated once the ring buffers are drained.
+        assertEquals(0, bcs.getUidEntries().size());
+        assertEquals(1, mHandler.mRunnables.size());
+        bcs.drainCallRecords();
+
+        BinderCallsStats.UidEntry uidEntry = bcs.getUidEntries().get(WORKSOURCE_UID);
+        Assert.assertNotNull(uidEntry);
+        // All the calls are recorded, regardless of the sampling interval.
+        assertEquals(10, uidEntry.callCount);
+        assertEquals(10, uidEntry.recordedCallCount);
+        assertEquals(100, uidEntry.cpuTimeMicros);
+        assertEquals(10, uidEntry.latencyHistogram.getTotalCount());
+
+        List<BinderCallsStats.CallStat> callStatsList = new ArrayList(uidEntry.getCallStatsList());
+        assertEquals(1, callStatsList.size());
+        BinderCallsStats.CallStat callStat = callStatsList.get(0);
+        assertEquals(binder.getClass(), callStat.binderClass);
+        assertEquals(1, callStat.transactionCode);
+        assertEquals(CALLING_UID, callStat.callingUid);
+        assertEquals(10, callStat.recordedCallCount);
+        assertEquals(5500, callStat.latencyMicros);
+        assertEquals(1000, callStat.maxLatencyMicros);
+        assertEquals(REQUEST_SIZE, callStat.maxRequestSizeBytes);
+        assertEquals(REPLY_SIZE, callStat.maxReplySizeBytes);
+        LatencyHistogram histogram = callStat.latencyHistogram;
+        assertEquals(10, histogram.getTotalCount());
+        assertThat(histogram.getValueAtPercentile(50)).isIn(Range.closed(500L, 500L * 9 / 8));
+        assertEquals(1000, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testRecordToRingBuffers_dropsWhenFull() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setDetailedTracking(true);
+        bcs.setRecordToRingBuffers(true);
+
+        Binder binder = new Binder();
+        for (int i = 0; i < BinderCallsStats.CALL_RECORD_BUFFER_SIZE + 10; i++) {
+            CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+            bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        }
+        assertEquals(10, bcs.getDroppedCallRecordCount());
+
+        bcs.drainCallRecords();
+        assertEquals(BinderCallsStats.CALL_RECORD_BUFFER_SIZE,
+                bcs.getUidEntries().get(WORKSOURCE_UID).callCount);
+
+        // Space is available again once drained.
+        CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+        bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        bcs.drainCallRecords();
+        assertEquals(BinderCallsStats.CALL_RECORD_BUFFER_SIZE + 1,
+                bcs.getUidEntries().get(WORKSOURCE_UID).callCount);
+
+        bcs.reset();
+        assertEquals(0, bcs.getDroppedCallRecordCount());
+    }
+
+    @Test
+    public void testRecordToRingBuffers_removesBuffersOfExitedThreads() throws Exception {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setRecordToRingBuffers(true);
+
+        Binder binder = new Binder();
+        Thread thread = new Thread(() -> {
+            for (int i = 0; i < BinderCallsStats.CALL_RECORD_BUFFER_SIZE + 3; i++) {
+                CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+                bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(1, bcs.getCallRecordBufferCount());
+
+        // The calls of the exited thread are still aggregated, and its buffer is dropped then.
+        bcs.drainCallRecords();
+        assertEquals(0, bcs.getCallRecordBufferCount());
+        assertEquals(BinderCallsStats.CALL_RECORD_BUFFER_SIZE,
+                bcs.getUidEntries().get(WORKSOURCE_UID).callCount);
+        assertEquals(3, bcs.getDroppedCallRecordCount());
+
+        bcs.reset();
+        assertEquals(0, bcs.getDroppedCallRecordCount());
+    }
+
+    @Test
+    public void testRecordToRingBuffers_resetDiscardsPendingCalls() {
+        TestBinderCallsStats bcs = new TestBinderCallsStats();
+        bcs.setRecordToRingBuffers(true);
+
+        Binder binder = new Binder();
+        CallSession callSession = bcs.callStarted(binder, 1, WORKSOURCE_UID);
+        bcs.callEnded(callSession, REQUEST_SIZE, REPLY_SIZE, WORKSOURCE_UID);
+        bcs.reset();
+        bcs.drainCallRecords();
+
+        assertEquals(0, bcs.getUidEntries().size());
+    }
+
     @Test
     public void testProcessSource() {
         BinderCallsStats defaultCallsStats = new BinderCallsStats(
@@ -1070,6 +1186,11 @@ public class BinderCallsStatsTest {
                 public BinderLatencyObserver getLatencyObserver(int processSource) {
                     return new BinderLatencyObserverTest.TestBinderLatencyObserver(processSource);
                 }
+
+                @Override
+                public Handler getCallRecordsHandler() {
+                    return mHandler;
+                }
             });
             setSamplingInterval(1);
             setAddDebugEntries(false);
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.platform.test.annotations.Presubmit;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+@Presubmit
+public class LatencyHistogramTest {
+    @Test
+    public void testSampleToBucket() {
+        // Small samples each have their own bucket.
+        for (int i = 0; i < 2 * LatencyHistogram.SUB_BUCKET_COUNT; i++) {
+            assertEquals(i, LatencyHistogram.sampleToBucket(i));
+            assertEquals(i, LatencyHistogram.bucketToMaxSample(i));
+        }
+        assertEquals(16, LatencyHistogram.sampleToBucket(16));
+        assertEquals(16, LatencyHistogram.sampleToBucket(17));
+        assertEquals(17, LatencyHistogram.sampleToBucket(18));
+        assertEquals(17, LatencyHistogram.bucketToMaxSample(16));
+    }
+
+    @Test
+    public void testBucketsAreContiguous() {
+        int previousBucket = 0;
+        for (int sample = 1; sample < 100_000; sample++) {
+            final int bucket = LatencyHistogram.sampleToBucket(sample);
+            if (bucket != previousBucket) {
+                assertEquals(previousBucket + 1, bucket);
+                assertEquals(sample - 1, LatencyHistogram.bucketToMaxSample(previousBucket));
+                previousBucket = bucket;
+            }
+        }
+    }
+
+    @Test
+    public void testRelativeError() {
+        for (int sample = 1; sample < 1_000_000; sample += 7) {
+            final long max = LatencyHistogram.bucketToMaxSample(
+                    LatencyHistogram.sampleToBucket(sample));
+            assertTrue(max >= sample);
+            assertTrue((max - sample) * LatencyHistogram.SUB_BUCKET_COUNT <= sample);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(100, histogram.getMaxValue());
+        assertEquals(51, histogram.getValueAtPercentile(50));
+        assertEquals(95, histogram.getValueAtPercentile(90));
+        assertEquals(100, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testLargeAndNegativeSamples() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getMaxValue());
+        assertEquals(Integer.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(10_000);
+        other.record(20_000);
+
+        histogram.add(other);
+        assertEquals(3, histogram.getTotalCount());
+        assertEquals(20_000, histogram.getMaxValue());
+        assertEquals(10, histogram.getValueAtPercentile(33));
+
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testCopy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(20_000);
+
+        LatencyHistogram copy = histogram.copy();
+        histogram.record(30_000);
+        assertEquals(2, copy.getTotalCount());
+        assertEquals(20_000, copy.getMaxValue());
+        assertEquals(10, copy.getValueAtPercentile(50));
+
+        copy.reset();
+        assertEquals(3, histogram.getTotalCount());
+    }
+}
@@ -27,6 +27,8 @@ import android.platform.test.annotations.Presubmit;
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.google.common.collect.Range;
+
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -292,6 +294,82 @@ public final class LooperStatsTest {
         assertThat(entry.maxDelayMillis).isEqualTo(300);
     }
 
+    @Test
+    public void testLatencyAndDelayHistograms() {
+        TestableLooperStats looperStats = new TestableLooperStats(1, 100);
+
+        for (int i = 1; i <= 100; i++) {
+            Message message = mHandlerFirst.obtainMessage(1000);
+            message.when = looperStats.getSystemUptimeMillis() - i;
+            Object token = looperStats.messageDispatchStarting();
+            looperStats.tickRealtime(i * 10);
+            looperStats.messageDispatched(token, message);
+        }
+
+        List<LooperStats.ExportedEntry> entries = looperStats.getEntries();
+        assertThat(entries).hasSize(1);
+        LooperStats.ExportedEntry entry = entries.get(0);
+        assertThat(entry.latencyHistogram.getTotalCount()).isEqualTo(100);
+        assertThat(entry.latencyHistogram.getValueAtPercentile(50)).isIn(Range.closed(500L, 560L));
+        assertThat(entry.latencyHistogram.getValueAtPercentile(100)).isEqualTo(1000);
+        assertThat(entry.delayHistogram.getTotalCount()).isEqualTo(100);
+        assertThat(entry.delayHistogram.getValueAtPercentile(50)).isIn(Range.closed(50L, 56L));
+        assertThat(entry.delayHistogram.getValueAtPercentile(100)).isEqualTo(100);
+
+        looperStats.reset();
+        assertThat(looperStats.getEntries()).isEmpty();
+    }
+
+    @Test
+    public void testSlowDispatchesAreKept() {
+        TestableLooperStats looperStats = new TestableLooperStats(1, 100);
+        looperStats.setSlowDispatchesCount(3);
+
+        final long[] latencies = {50, 400, 10, 300, 200, 100};
+        for (int i = 0; i < latencies.length; i++) {
+            Message message = mHandlerFirst.obtainMessage(i);
+            message.workSourceUid = 1000 + i;
+            message.when = looperStats.getSystemUptimeMillis();
+            Object token = looperStats.messageDispatchStarting();
+            looperStats.tickRealtime(latencies[i]);
+            looperStats.tickThreadTime(latencies[i] / 2);
+            looperStats.tickUptime(5);
+            looperStats.messageDispatched(token, message);
+        }
+        Message callbackMessage = Message.obtain(mHandlerSecond, new TestRunnable());
+        Object token = looperStats.messageDispatchStarting();
+        looperStats.tickRealtime(250);
+        looperStats.messageDispatched(token, callbackMessage);
+
+        List<LooperStats.SlowDispatch> dispatches = looperStats.getSlowDispatches();
+        assertThat(dispatches).hasSize(3);
+        assertThat(dispatches.get(0).latencyMicros).isEqualTo(400);
+        assertThat(dispatches.get(0).what).isEqualTo(1);
+        assertThat(dispatches.get(0).workSourceUid).isEqualTo(1001);
+        assertThat(dispatches.get(0).cpuUsageMicros).isEqualTo(200);
+        assertThat(dispatches.get(0).delayMillis).isEqualTo(0);
+        assertThat(dispatches.get(0).threadName).isEqualTo("TestThread1");
+        assertThat(dispatches.get(0).handlerClassName).isEqualTo(
+                "com.android.internal.os.LooperStatsTest$TestHandlerFirst");
+        assertThat(dispatches.get(0).callbackClassName).isNull();
+        assertThat(dispatches.get(1).latencyMicros).isEqualTo(300);
+        assertThat(dispatches.get(2).latencyMicros).isEqualTo(250);
+        assertThat(dispatches.get(2).threadName).isEqualTo("TestThread2");
+        assertThat(dispatches.get(2).callbackClassName).isEqualTo(
+                "com.android.internal.os.LooperStatsTest$TestRunnable");
+        assertThat(dispatches.get(2).delayMillis).isEqualTo(-1);
+
+        looperStats.reset();
+        assertThat(looperStats.getSlowDispatches()).isEmpty();
+
+        looperStats.setSlowDispatchesCount(0);
+        Message message = mHandlerFirst.obtainMessage(1);
+        token = looperStats.messageDispatchStarting();
+        looperStats.tickRealtime(1000);
+        looperStats.messageDispatched(token, message);
+        assertThat(looperStats.getSlowDispatches()).isEmpty();
+    }
+
     @Test
     public void testDataNotCollectedBeforeDeviceStateSet() {
         TestableLooperStats looperStats = new TestableLooperStats(1, 100, null);
@@ -599,4 +677,10 @@ public final class LooperStatsTest {
             super(looper);
         }
     }
+
+    private static final class TestRunnable implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
 }
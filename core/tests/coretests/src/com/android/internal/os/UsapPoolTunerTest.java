@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UsapPoolTunerTest {
+    private static final int SIZE_MIN = 1;
+    private static final int SIZE_MAX = 10;
+    private static final int REFILL_THRESHOLD = 5;
+    private static final int REFILL_DELAY_MS = 3000;
+
+    private UsapPoolTuner mTuner;
+
+    @Before
+    public void setUp() {
+        mTuner = new UsapPoolTuner();
+    }
+
+    @Test
+    public void testFixedPolicy() {
+        mTuner.setPolicy(false, SIZE_MIN, SIZE_MAX, REFILL_THRESHOLD, REFILL_DELAY_MS);
+        assertFalse(mTuner.isAdaptive());
+        for (int i = 0; i < 20; i++) {
+            mTuner.noteUsapUsed(i);
+        }
+
+        assertEquals(SIZE_MAX, mTuner.getTargetSize(20));
+        assertEquals(REFILL_DELAY_MS, mTuner.getRefillDelayMs(20));
+        assertTrue(mTuner.shouldScheduleRefill(SIZE_MAX - REFILL_THRESHOLD, 20));
+        assertFalse(mTuner.shouldScheduleRefill(SIZE_MAX - REFILL_THRESHOLD + 1, 20));
+    }
+
+    @Test
+    public void testCounters() {
+        mTuner.setPolicy(true, SIZE_MIN, SIZE_MAX, REFILL_THRESHOLD, REFILL_DELAY_MS);
+        assertTrue(mTuner.isAdaptive());
+        mTuner.noteUsapUsed(0);
+        mTuner.noteUsapUsed(1);
+        mTuner.noteForkWithoutUsap(2);
+
+        assertEquals(2, mTuner.getHits());
+        assertEquals(1, mTuner.getMisses());
+    }
+
+    @Test
+    public void testIdle() {
+        mTuner.setPolicy(true, SIZE_MIN, SIZE_MAX, REFILL_THRESHOLD, REFILL_DELAY_MS);
+
+        assertEquals(SIZE_MIN, mTuner.getTargetSize(0));
+        assertEquals(REFILL_DELAY_MS, mTuner.getRefillDelayMs(0));
+        assertFalse(mTuner.shouldScheduleRefill(SIZE_MIN, 0));
+    }
+
+    @Test
+    public void testBurst() {
+        mTuner.setPolicy(true, SIZE_MIN, SIZE_MAX, REFILL_THRESHOLD, REFILL_DELAY_MS);
+        // 10 launches in a second: about 3 launches expected during the next refill delay.
+        for (int i = 0; i < 10; i++) {
+            mTuner.noteForkWithoutUsap(i * 100);
+        }
+
+        final long now = 1000;
+        final int target = mTuner.getTargetSize(now);
+        assertTrue("target=" + target, target > SIZE_MIN + 1 && target <= SIZE_MAX);
+        assertTrue(mTuner.getRefillDelayMs(now) < REFILL_DELAY_MS);
+        assertTrue(mTuner.shouldScheduleRefill(SIZE_MIN, now));
+        assertFalse(mTuner.shouldScheduleRefill(target, now));
+
+        // A long burst is capped by the maximum size.
+        for (int i = 0; i < 100; i++) {
+            mTuner.noteUsapUsed(now + i * 10);
+        }
+        assertEquals(SIZE_MAX, mTuner.getTargetSize(2000));
+
+        // And the pool shrinks back once the launches stop.
+        assertEquals(SIZE_MIN, mTuner.getTargetSize(2000 + 20 * 60 * 1000));
+    }
+
+    @Test
+    public void testHighMemoryPressure() {
+        mTuner.setPolicy(true, SIZE_MIN, SIZE_MAX, REFILL_THRESHOLD, REFILL_DELAY_MS);
+        for (int i = 0; i < 10; i++) {
+            mTuner.noteForkWithoutUsap(i * 100);
+        }
+        mTuner.setMemoryPressureHigh(true);
+
+        assertEquals(SIZE_MIN, mTuner.getTargetSize(1000));
+        assertEquals(REFILL_DELAY_MS * 2, mTuner.getRefillDelayMs(1000));
+        assertFalse(mTuner.shouldScheduleRefill(SIZE_MIN, 1000));
+
+        mTuner.setMemoryPressureHigh(false);
+        assertTrue(mTuner.getTargetSize(1000) > SIZE_MIN);
+    }
+}
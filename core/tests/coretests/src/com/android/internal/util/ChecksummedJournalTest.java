@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ChecksummedJournalTest {
+    private static final String TAG = "ChecksummedJournalTest";
+    private static final int MAGIC = 0x54455354; // "TEST"
+    private static final int VERSION = 1;
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getContext();
+        mFile = new File(context.getCacheDir(), "test.journal");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final ChecksummedJournal writer = newJournal();
+        writer.append(1, Arrays.asList(new byte[] {1}, new byte[] {2, 3}));
+        writer.append(1, Arrays.asList(new byte[] {4, 5, 6}));
+        assertEquals(3, writer.getRecordCount());
+
+        final ChecksummedJournal reader = newJournal();
+        final List<byte[]> records = reader.read(1, payload -> payload);
+        assertEquals(3, records.size());
+        assertArrayEquals(new byte[] {1}, records.get(0));
+        assertArrayEquals(new byte[] {2, 3}, records.get(1));
+        assertArrayEquals(new byte[] {4, 5, 6}, records.get(2));
+        assertEquals(writer.getLength(), reader.getLength());
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        final ChecksummedJournal writer = newJournal();
+        writer.append(1, Arrays.asList(new byte[] {1, 2}));
+        final long validLength = writer.getLength();
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        }
+
+        final ChecksummedJournal reader = newJournal();
+        assertEquals(1, reader.read(1, payload -> payload).size());
+        assertEquals(validLength, mFile.length());
+
+        // Appends continue after the last intact record.
+        reader.append(1, Arrays.asList(new byte[] {3}));
+        assertEquals(2, newJournal().read(1, payload -> payload).size());
+    }
+
+    @Test
+    public void testCorruptedRecordIsTruncated() throws Exception {
+        final ChecksummedJournal writer = newJournal();
+        writer.append(1, Arrays.asList(new byte[] {1, 2}));
+        final long validLength = writer.getLength();
+        writer.append(1, Arrays.asList(new byte[] {3, 4}));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            // Flip a byte of the payload of the second record.
+            raf.seek(validLength + 4);
+            raf.write(42);
+        }
+
+        assertEquals(1, newJournal().read(1, payload -> payload).size());
+        assertEquals(validLength, mFile.length());
+    }
+
+    @Test
+    public void testUndecodableRecordIsTruncated() throws Exception {
+        final ChecksummedJournal writer = newJournal();
+        writer.append(1, Arrays.asList(new byte[] {1}, new byte[] {2}, new byte[] {3}));
+
+        final List<byte[]> records = newJournal().read(1,
+                payload -> payload[0] == 2 ? null : payload);
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    public void testOtherGenerationIsDiscarded() throws Exception {
+        final ChecksummedJournal writer = newJournal();
+        writer.append(1, Arrays.asList(new byte[] {1}));
+
+        final ChecksummedJournal reader = newJournal();
+        assertTrue(reader.read(2, payload -> payload).isEmpty());
+        assertFalse(mFile.exists());
+
+        // Appending for another generation replaces the journal.
+        writer.append(3, Arrays.asList(new byte[] {2}));
+        writer.append(4, Arrays.asList(new byte[] {4}));
+        final List<byte[]> records = newJournal().read(4, payload -> payload);
+        assertEquals(1, records.size());
+        assertArrayEquals(new byte[] {4}, records.get(0));
+    }
+
+    private ChecksummedJournal newJournal() {
+        return new ChecksummedJournal(mFile, TAG, MAGIC, VERSION);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.SparseArray;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class IntObjectHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+        assertEquals("default", map.get(1, "default"));
+
+        map.put(1, "one");
+        map.put(-5, "minus five");
+        map.put(Integer.MAX_VALUE, "max");
+        assertEquals(3, map.size());
+        assertEquals("one", map.get(1));
+        assertEquals("minus five", map.get(-5));
+        assertEquals("max", map.get(Integer.MAX_VALUE));
+
+        map.put(1, "uno");
+        assertEquals(3, map.size());
+        assertEquals("uno", map.get(1));
+
+        assertEquals("minus five", map.remove(-5));
+        assertNull(map.remove(-5));
+        assertEquals(2, map.size());
+        assertFalse(map.contains(-5));
+        assertTrue(map.contains(1));
+    }
+
+    @Test
+    public void testIndicesAreDense() {
+        final IntObjectHashMap<Integer> map = new IntObjectHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            map.put(i * 100000, i);
+        }
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals(i, map.indexOfKey(map.keyAt(i)));
+            assertEquals(map.keyAt(i) / 100000, (int) map.valueAt(i));
+        }
+        assertEquals(-1, map.indexOfKey(1));
+    }
+
+    @Test
+    public void testRemoveAtInReverseLoop() {
+        final IntObjectHashMap<Integer> map = new IntObjectHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        int visited = 0;
+        for (int i = map.size() - 1; i >= 0; i--) {
+            visited++;
+            if (map.keyAt(i) % 3 != 0) {
+                map.removeAt(i);
+            }
+        }
+        assertEquals(1000, visited);
+        assertEquals(334, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 3 == 0, map.contains(i));
+        }
+    }
+
+    @Test
+    public void testClear() {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>(10);
+        map.put(1, "one");
+        map.put(2, "two");
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+        map.put(2, "deux");
+        assertEquals(1, map.size());
+        assertEquals("deux", map.get(2));
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testValueAtOutOfBounds() {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>(10);
+        map.put(1, "one");
+        map.valueAt(1);
+    }
+
+    @Test
+    public void testMatchesSparseArray() {
+        final Random random = new Random(42);
+        final IntObjectHashMap<Integer> map = new IntObjectHashMap<>();
+        final SparseArray<Integer> expected = new SparseArray<>();
+        for (int i = 0; i < 20000; i++) {
+            final int key = random.nextInt(2000) * 100000;
+            if (random.nextInt(3) == 0) {
+                map.remove(key);
+                expected.remove(key);
+            } else {
+                map.put(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.valueAt(i), map.get(expected.keyAt(i)));
+        }
+    }
+
+    @Test
+    public void testToString() {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        assertEquals("{}", map.toString());
+        map.put(2, "two");
+        map.put(1, "one");
+        assertEquals("{2=two, 1=one}", map.toString());
+    }
+}
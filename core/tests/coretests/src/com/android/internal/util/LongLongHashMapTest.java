@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.LongSparseLongArray;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class LongLongHashMapTest {
+
+    @Test
+    public void testPutGetDelete() {
+        final LongLongHashMap map = new LongLongHashMap();
+        assertEquals(0, map.get(1L));
+        assertEquals(-1, map.get(1L, -1));
+
+        map.put(1L, 10);
+        map.put(Long.MIN_VALUE, 20);
+        map.put(1L << 40, 30);
+        assertEquals(3, map.size());
+        assertEquals(10, map.get(1L));
+        assertEquals(20, map.get(Long.MIN_VALUE));
+        assertEquals(30, map.get(1L << 40));
+
+        map.put(1L, 11);
+        assertEquals(3, map.size());
+        assertEquals(11, map.get(1L));
+
+        map.delete(Long.MIN_VALUE);
+        map.delete(Long.MIN_VALUE);
+        assertEquals(2, map.size());
+        assertFalse(map.contains(Long.MIN_VALUE));
+        assertTrue(map.contains(1L << 40));
+    }
+
+    @Test
+    public void testRemoveAtInReverseLoop() {
+        final LongLongHashMap map = new LongLongHashMap();
+        for (long i = 0; i < 1000; i++) {
+            map.put(i << 32, i);
+        }
+        for (int i = map.size() - 1; i >= 0; i--) {
+            if (map.valueAt(i) % 2 != 0) {
+                map.removeAt(i);
+            }
+        }
+        assertEquals(500, map.size());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0, map.contains(i << 32));
+        }
+    }
+
+    @Test
+    public void testMatchesLongSparseLongArray() {
+        final Random random = new Random(42);
+        final LongLongHashMap map = new LongLongHashMap();
+        final LongSparseLongArray expected = new LongSparseLongArray();
+        for (int i = 0; i < 20000; i++) {
+            final long key = random.nextInt(2000) * 0x100000001L;
+            if (random.nextInt(3) == 0) {
+                map.delete(key);
+                expected.delete(key);
+            } else {
+                map.put(key, i);
+                expected.put(key, i);
+            }
+            assertEquals(expected.get(key, -1), map.get(key, -1));
+        }
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals(expected.get(map.keyAt(i)), map.valueAt(i));
+        }
+    }
+}
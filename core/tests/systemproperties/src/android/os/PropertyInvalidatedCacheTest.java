@@ -21,6 +21,9 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import junit.framework.TestCase;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public class PropertyInvalidatedCacheTest extends TestCase {
     private static final String KEY = "sys.testkey";
     private static final String UNSET_KEY = "Aiw7woh6ie4toh7W";
@@ -165,4 +168,114 @@ public class PropertyInvalidatedCacheTest extends TestCase {
         assertEquals(3, cache.getRecomputeCount());
     }
 
+    @SmallTest
+    public void testConcurrentMissesShareRecompute() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TestCache cache = new TestCache() {
+            @Override
+            protected String recompute(Integer qv) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.recompute(qv);
+            }
+        };
+        cache.setCoalescedWaitMillis(5000);
+        cache.invalidateCache();
+
+        final String[] results = new String[2];
+        Thread first = new Thread(() -> results[0] = cache.query(5));
+        Thread second = new Thread(() -> results[1] = cache.query(5));
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        second.start();
+        // Wait for the second query to wait for the recompute of the first.
+        final long deadline = SystemClock.uptimeMillis() + 5000;
+        while (second.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertEquals("foo5", results[0]);
+        assertEquals("foo5", results[1]);
+        assertEquals(1, cache.getRecomputeCount());
+    }
+
+    @SmallTest
+    public void testCoalescedMissStopsWaiting() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread[] blocked = new Thread[1];
+        TestCache cache = new TestCache() {
+            @Override
+            protected String recompute(Integer qv) {
+                if (blocked[0] == Thread.currentThread()) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return super.recompute(qv);
+            }
+        };
+        cache.setCoalescedWaitMillis(50);
+        cache.invalidateCache();
+
+        final String[] results = new String[1];
+        Thread first = new Thread(() -> results[0] = cache.query(5));
+        blocked[0] = first;
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        try {
+            // The recompute in flight may be waiting for us: recompute it ourselves instead.
+            assertEquals("foo5", cache.query(5));
+            assertEquals(1, cache.getRecomputeCount());
+        } finally {
+            release.countDown();
+            first.join();
+        }
+        assertEquals("foo5", results[0]);
+        assertEquals(2, cache.getRecomputeCount());
+    }
+
+    @SmallTest
+    public void testAutoCorkerInvalidatesFirst() throws Exception {
+        TestCache cache = new TestCache();
+        PropertyInvalidatedCache.AutoCorker corker =
+                new PropertyInvalidatedCache.AutoCorker(KEY, 200, true /* invalidateFirst */);
+        cache.invalidateCache();
+        assertEquals("foo5", cache.query(5));
+        assertEquals(1, cache.getRecomputeCount());
+
+        // A lone invalidation takes effect right away, without corking.
+        corker.autoCork();
+        assertEquals("foo5", cache.query(5));
+        assertEquals("foo5", cache.query(5));
+        assertEquals(2, cache.getRecomputeCount());
+
+        // Another one right after corks the cache.
+        corker.autoCork();
+        assertEquals("foo5", cache.query(5));
+        assertEquals("foo5", cache.query(5));
+        assertEquals(4, cache.getRecomputeCount());
+
+        // Until the corker uncorks it.
+        final long deadline = SystemClock.uptimeMillis() + 5000;
+        while (SystemProperties.getLong(KEY, 0) == 2 /* corked */) {
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals("foo5", cache.query(5));
+        assertEquals("foo5", cache.query(5));
+        assertEquals(5, cache.getRecomputeCount());
+    }
 }
@@ -27,6 +27,7 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.Suppress;
 import android.util.Log;
 
+import com.android.internal.util.FileRotator.FileReader;
 import com.android.internal.util.FileRotator.Reader;
 import com.android.internal.util.FileRotator.Writer;
 import com.android.internal.util.test.FsUtil;
@@ -36,6 +37,7 @@ import com.google.android.collect.Lists;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -408,15 +410,26 @@ public class FileRotatorTest extends AndroidTestCase {
         final RecordingReader reader = new RecordingReader();
         rotate.readMatching(reader, matchStartMillis, matchEndMillis);
         reader.assertRead(expected);
+
+        // reading the files directly should match the same set
+        reader.reset();
+        rotate.readMatchingFiles(reader, matchStartMillis, matchEndMillis);
+        reader.assertRead(expected);
     }
 
-    private static class RecordingReader implements Reader {
+    private static class RecordingReader implements Reader, FileReader {
         private ArrayList<String> mActual = Lists.newArrayList();
 
         public void read(InputStream in) throws IOException {
             mActual.add(new DataInputStream(in).readUTF());
         }
 
+        public void read(File file) throws IOException {
+            try (InputStream in = new FileInputStream(file)) {
+                read(in);
+            }
+        }
+
         public void reset() {
             mActual.clear();
         }
@@ -93,6 +93,27 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * @return the current generation for the key, or -1 if it is not tracked.
+     */
+    public int getGeneration(int key) {
+        synchronized (mLock) {
+            MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore != null) {
+                try {
+                    final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
+                    if (index >= 0) {
+                        return backingStore.get(index);
+                    }
+                } catch (IOException e) {
+                    Slog.e(LOG_TAG, "Error reading generation id", e);
+                    destroyBackingStore();
+                }
+            }
+            return -1;
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
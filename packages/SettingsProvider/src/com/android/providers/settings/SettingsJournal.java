@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.android.internal.util.ChecksummedJournal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only journal of setting mutations that lives next to the XML snapshot persisted by
+ * {@link SettingsState}.
+ * <p>
+ * Every record carries the complete state of one setting (or a tombstone) together with a
+ * monotonically increasing sequence number. The snapshot remembers the sequence number of the
+ * last mutation it contains, so replaying the journal on top of the snapshot is idempotent and
+ * a crash at any point between a snapshot write and the journal truncation is harmless.
+ * </p>
+ * <p>
+ * Records are stored in a {@link ChecksummedJournal}. Its generation is unused, the sequence
+ * numbers tell which records the snapshot already contains.
+ * </p>
+ * <p>
+ * This class is not thread safe, callers serialize access with {@link SettingsState}'s write
+ * lock.
+ * </p>
+ */
+final class SettingsJournal {
+    private static final String LOG_TAG = "SettingsJournal";
+
+    static final String JOURNAL_FILE_SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x534a524e; // "SJRN"
+    private static final int VERSION = 1;
+    private static final long GENERATION = 0;
+
+    static final int OP_PUT = 1;
+    static final int OP_DELETE = 2;
+
+    private static final int FLAG_DEFAULT_FROM_SYSTEM = 1;
+    private static final int FLAG_PRESERVED_IN_RESTORE = 1 << 1;
+
+    private final ChecksummedJournal mJournal;
+
+    private long mMaxSeq;
+
+    SettingsJournal(@NonNull File statePersistFile) {
+        mJournal = new ChecksummedJournal(
+                new File(statePersistFile.getAbsolutePath() + JOURNAL_FILE_SUFFIX), LOG_TAG,
+                MAGIC, VERSION);
+    }
+
+    /** A single journaled mutation. */
+    static final class Record {
+        final int op;
+        final long seq;
+        final String name;
+        final String value;
+        final String defaultValue;
+        final String packageName;
+        final String tag;
+        final String id;
+        final boolean defaultFromSystem;
+        final boolean valuePreservedInRestore;
+
+        Record(int op, long seq, String name, String value, String defaultValue,
+                String packageName, String tag, String id, boolean defaultFromSystem,
+                boolean valuePreservedInRestore) {
+            this.op = op;
+            this.seq = seq;
+            this.name = name;
+            this.value = value;
+            this.defaultValue = defaultValue;
+            this.packageName = packageName;
+            this.tag = tag;
+            this.id = id;
+            this.defaultFromSystem = defaultFromSystem;
+            this.valuePreservedInRestore = valuePreservedInRestore;
+        }
+
+        static Record put(long seq, SettingsState.Setting setting) {
+            return new Record(OP_PUT, seq, setting.getName(), setting.getValue(),
+                    setting.getDefaultValue(), setting.getPackageName(), setting.getTag(),
+                    setting.getId(), setting.isDefaultFromSystem(),
+                    setting.isValuePreservedInRestore());
+        }
+
+        static Record delete(long seq, String name) {
+            return new Record(OP_DELETE, seq, name, null, null, null, null, null, false, false);
+        }
+    }
+
+    File getFile() {
+        return mJournal.getFile();
+    }
+
+    /** @return the number of bytes currently held by the journal file. */
+    long getLength() {
+        return mJournal.getLength();
+    }
+
+    /** @return the number of valid records currently held by the journal file. */
+    int getRecordCount() {
+        return mJournal.getRecordCount();
+    }
+
+    /**
+     * Reads all intact records from the journal. A torn or corrupted tail, e.g. from a crash in
+     * the middle of an append, is truncated away so later appends start on a record boundary.
+     *
+     * @return the records in the order they were appended, never {@code null}.
+     */
+    @NonNull
+    List<Record> read() {
+        final List<Record> records = mJournal.read(GENERATION, SettingsJournal::decodeRecord);
+        mMaxSeq = 0;
+        final int recordCount = records.size();
+        for (int i = 0; i < recordCount; i++) {
+            mMaxSeq = Math.max(mMaxSeq, records.get(i).seq);
+        }
+        return records;
+    }
+
+    /**
+     * Appends the records and syncs them to storage.
+     *
+     * @return the number of bytes appended.
+     * @throws IOException if the records could not be durably written, in which case the
+     * journal is left as it was before the call.
+     */
+    long append(@NonNull List<Record> records) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buffer);
+        long maxSeq = mMaxSeq;
+        final int recordCount = records.size();
+        final ArrayList<byte[]> payloads = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            final Record record = records.get(i);
+            buffer.reset();
+            encodeRecord(out, record);
+            out.flush();
+            payloads.add(buffer.toByteArray());
+            maxSeq = Math.max(maxSeq, record.seq);
+        }
+        final long written = mJournal.append(GENERATION, payloads);
+        mMaxSeq = maxSeq;
+        return written;
+    }
+
+    /**
+     * Drops the journal once a snapshot containing every mutation up to {@code snapshotSeq} has
+     * been durably written. If records newer than the snapshot were appended concurrently the
+     * journal is kept; replay skips the records the snapshot already covers.
+     */
+    void onSnapshotWritten(long snapshotSeq) {
+        if (mMaxSeq > snapshotSeq) {
+            return;
+        }
+        delete();
+    }
+
+    void delete() {
+        mJournal.delete();
+        if (mJournal.getLength() == 0) {
+            mMaxSeq = 0;
+        }
+    }
+
+    private static void encodeRecord(DataOutputStream out, Record record) throws IOException {
+        out.writeByte(record.op);
+        out.writeLong(record.seq);
+        writeString(out, record.name);
+        if (record.op == OP_DELETE) {
+            return;
+        }
+        int flags = 0;
+        if (record.defaultFromSystem) {
+            flags |= FLAG_DEFAULT_FROM_SYSTEM;
+        }
+        if (record.valuePreservedInRestore) {
+            flags |= FLAG_PRESERVED_IN_RESTORE;
+        }
+        out.writeByte(flags);
+        writeString(out, record.id);
+        writeString(out, record.value);
+        writeString(out, record.defaultValue);
+        writeString(out, record.packageName);
+        writeString(out, record.tag);
+    }
+
+    private static Record decodeRecord(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int op = in.readByte();
+        final long seq = in.readLong();
+        final String name = readString(in);
+        if (op == OP_DELETE) {
+            return Record.delete(seq, name);
+        }
+        if (op != OP_PUT) {
+            throw new IOException("Unknown journal op " + op);
+        }
+        final int flags = in.readByte();
+        final String id = readString(in);
+        final String value = readString(in);
+        final String defaultValue = readString(in);
+        final String packageName = readString(in);
+        final String tag = readString(in);
+        return new Record(op, seq, name, value, defaultValue, packageName, tag, id,
+                (flags & FLAG_DEFAULT_FROM_SYSTEM) != 0,
+                (flags & FLAG_PRESERVED_IN_RESTORE) != 0);
+    }
+
+    // Strings are stored as raw UTF-16 code units so that values containing unpaired
+    // surrogates survive a round trip unchanged, matching the XML snapshot's base64 encoding.
+    private static void writeString(DataOutputStream out, @Nullable String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(s.length());
+        out.writeChars(s);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > ChecksummedJournal.MAX_RECORD_SIZE / 2) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+}
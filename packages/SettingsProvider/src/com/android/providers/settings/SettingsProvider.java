@@ -86,6 +86,7 @@ import android.os.RemoteCallback;
 import android.os.RemoteException;
 import android.os.SELinux;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.DeviceConfig;
@@ -94,6 +95,7 @@ import android.provider.Settings.Config.SyncDisabledMode;
 import android.provider.Settings.Global;
 import android.provider.Settings.Secure;
 import android.provider.Settings.SetAllResult;
+import android.provider.SettingsSnapshot;
 import android.provider.settings.validators.SystemSettingsValidators;
 import android.provider.settings.validators.Validator;
 import android.text.TextUtils;
@@ -132,6 +134,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 import javax.crypto.Mac;
@@ -416,7 +419,12 @@ public class SettingsProvider extends ContentProvider {
 
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                final boolean trackingGeneration = isTrackingGeneration(args);
+                final Bundle result = packageValueForCallResult(setting, trackingGeneration);
+                if (trackingGeneration && isTrackingSnapshot(args)) {
+                    addGlobalSnapshotData(result);
+                }
+                return result;
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
@@ -871,6 +879,7 @@ public class SettingsProvider extends ContentProvider {
                 for (int i = 0; i < userCount; i++) {
                     dumpForUserLocked(users.keyAt(i), pw);
                 }
+                mSettingsRegistry.mSnapshotRegistry.dump(pw);
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
@@ -887,6 +896,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(configSettings, pw);
                 pw.println();
                 configSettings.dumpHistoricalOperations(pw);
+                configSettings.dumpPersistenceStats(pw);
             }
 
             pw.println("GLOBAL SETTINGS (user " + userId + ")");
@@ -896,6 +906,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(globalSettings, pw);
                 pw.println();
                 globalSettings.dumpHistoricalOperations(pw);
+                globalSettings.dumpPersistenceStats(pw);
             }
         }
 
@@ -906,6 +917,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(secureSettings, pw);
             pw.println();
             secureSettings.dumpHistoricalOperations(pw);
+            secureSettings.dumpPersistenceStats(pw);
         }
 
         pw.println("SYSTEM SETTINGS (user " + userId + ")");
@@ -915,6 +927,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(systemSettings, pw);
             pw.println();
             systemSettings.dumpHistoricalOperations(pw);
+            systemSettings.dumpPersistenceStats(pw);
         }
     }
 
@@ -2372,6 +2385,75 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isTrackingSnapshot(Bundle args) {
+        return SettingsSnapshot.isEnabled()
+                && args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY);
+    }
+
+    /**
+     * Adds a snapshot of the whole global table to a result tracking the generation, so the
+     * caller can serve further reads without calling into the provider. Settings the caller
+     * may only read after an access check are marked as restricted in the snapshot.
+     */
+    private void addGlobalSnapshotData(Bundle result) {
+        final int generationIndex = result.getInt(Settings.CALL_METHOD_GENERATION_INDEX_KEY, -1);
+        if (generationIndex < 0) {
+            return;
+        }
+        final Predicate<String> restrictedFilter;
+        if (UserHandle.getAppId(Binder.getCallingUid()) < Process.FIRST_APPLICATION_UID) {
+            restrictedFilter = null;
+        } else {
+            final ApplicationInfo ai = getCallingApplicationInfoOrThrow();
+            if (ai.isInstantApp()) {
+                // Instant apps are logged on access to settings they shouldn't read.
+                return;
+            }
+            if (ai.isSystemApp() || ai.isSignedWithPlatformKey()) {
+                restrictedFilter = null;
+            } else {
+                // All apps share the restricted snapshot, test only apps that may read more
+                // settings than the others read these through the provider.
+                restrictedFilter = name -> isGlobalSettingReadPermissionProtected(name)
+                        || !isGlobalSettingReadableByAnyTargetSdk(name);
+            }
+        }
+        synchronized (mLock) {
+            final SettingsState settingsState = mSettingsRegistry.getSettingsLocked(
+                    SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
+            if (settingsState == null) {
+                return;
+            }
+            // Read under the lock so the snapshot and its generation are consistent with
+            // mutations, which bump the generation while holding the same lock.
+            final int generation = mSettingsRegistry.mGenerationRegistry.getGeneration(
+                    settingsState.mKey);
+            if (generation != result.getInt(Settings.CALL_METHOD_GENERATION_KEY, -1)) {
+                // Changed since the value was read, the client will ask again.
+                return;
+            }
+            final SharedMemory snapshot = mSettingsRegistry.mSnapshotRegistry.getSnapshotLocked(
+                    settingsState, generation, restrictedFilter);
+            if (snapshot != null) {
+                result.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY, snapshot);
+            }
+        }
+    }
+
+    // Mirrors the permission checks in enforceSettingReadable().
+    private static boolean isGlobalSettingReadPermissionProtected(String name) {
+        return Settings.Global.MULTI_SIM_DATA_CALL_SUBSCRIPTION.equals(name);
+    }
+
+    // Mirrors checkReadableAnnotation() for a caller targeting any SDK.
+    private static boolean isGlobalSettingReadableByAnyTargetSdk(String name) {
+        if (!sAllGlobalSettings.contains(name)) {
+            return true;
+        }
+        return sReadableGlobalSettings.contains(name)
+                && !sReadableGlobalSettingsWithMaxTargetSdk.containsKey(name);
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2699,6 +2781,8 @@ public class SettingsProvider extends ContentProvider {
 
         private GenerationRegistry mGenerationRegistry;
 
+        private SettingsSnapshotRegistry mSnapshotRegistry;
+
         private final Handler mHandler;
 
         private final BackupManager mBackupManager;
@@ -2708,6 +2792,7 @@ public class SettingsProvider extends ContentProvider {
         public SettingsRegistry() {
             mHandler = new MyHandler(getContext().getMainLooper());
             mGenerationRegistry = new GenerationRegistry(mLock);
+            mSnapshotRegistry = new SettingsSnapshotRegistry(mLock);
             mBackupManager = new BackupManager(getContext());
         }
 
@@ -2962,6 +3047,7 @@ public class SettingsProvider extends ContentProvider {
 
             // Nuke generation tracking data
             mGenerationRegistry.onUserRemoved(userId);
+            mSnapshotRegistry.onUserRemoved(userId);
         }
 
         public boolean insertSettingLocked(int type, int userId, String name, String value,
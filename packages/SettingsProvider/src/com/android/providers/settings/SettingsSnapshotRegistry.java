@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.SharedMemory;
+import android.provider.SettingsSnapshot;
+import android.system.ErrnoException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.function.Predicate;
+
+/**
+ * This class publishes whole settings tables as {@link SettingsSnapshot}s so that client
+ * processes can answer reads locally until the generation of the table changes. A snapshot is
+ * built at most once per generation and the same shared memory region is handed to every
+ * client asking for it.
+ * <p>
+ * Every response carries its own descriptor of the region, closed once the response is garbage
+ * collected. The registry closes its descriptor as soon as the snapshot is replaced, responses
+ * that are still being parceled and the clients keep the region alive.
+ * </p>
+ * <p>
+ * Two flavors are kept per table: a full one for callers that are exempt from access checks
+ * and a restricted one in which settings that need a per caller check are marked so that
+ * clients still read them through the provider.
+ * </p>
+ */
+final class SettingsSnapshotRegistry {
+    private static final String LOG_TAG = "SettingsSnapshotRegistry";
+
+    private static final boolean DEBUG = false;
+
+    private final Object mLock;
+
+    @GuardedBy("mLock")
+    private final SparseArray<Snapshot> mFullSnapshots = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private final SparseArray<Snapshot> mRestrictedSnapshots = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private int mBuildCount;
+
+    @GuardedBy("mLock")
+    private int mServedCount;
+
+    SettingsSnapshotRegistry(Object lock) {
+        mLock = lock;
+    }
+
+    /**
+     * Returns the snapshot of a table at a generation, building it if needed.
+     *
+     * @param restrictedFilter Matches the settings clients must not read from the snapshot, or
+     *        {@code null} for the full flavor.
+     * @return a descriptor of the snapshot owned by the caller, or {@code null} if it could not
+     *         be created.
+     */
+    @GuardedBy("mLock")
+    public SharedMemory getSnapshotLocked(SettingsState settingsState, int generation,
+            Predicate<String> restrictedFilter) {
+        final int key = settingsState.mKey;
+        final SparseArray<Snapshot> snapshots = restrictedFilter == null
+                ? mFullSnapshots : mRestrictedSnapshots;
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot == null || snapshot.generation != generation) {
+            final ArrayMap<String, String> values = settingsState.getSettingValuesLocked();
+            final ArraySet<String> restrictedNames = new ArraySet<>();
+            if (restrictedFilter != null) {
+                final int settingCount = values.size();
+                for (int i = 0; i < settingCount; i++) {
+                    final String name = values.keyAt(i);
+                    if (restrictedFilter.test(name)) {
+                        restrictedNames.add(name);
+                    }
+                }
+            }
+            close(snapshot);
+            try {
+                snapshot = new Snapshot(generation, SettingsSnapshot.write(
+                        "settings-snapshot-" + key, generation, values, restrictedNames));
+            } catch (ErrnoException e) {
+                Slog.e(LOG_TAG, "Error creating snapshot for "
+                        + SettingsState.keyToString(key), e);
+                snapshots.remove(key);
+                return null;
+            }
+            snapshots.put(key, snapshot);
+            mBuildCount++;
+            if (DEBUG) {
+                Slog.i(LOG_TAG, "Built snapshot for " + SettingsState.keyToString(key)
+                        + " at generation " + generation + " with " + values.size()
+                        + " settings, " + restrictedNames.size() + " restricted");
+            }
+        }
+        try {
+            final SharedMemory memory = snapshot.memory.dup();
+            mServedCount++;
+            return memory;
+        } catch (ErrnoException e) {
+            Slog.e(LOG_TAG, "Error duplicating snapshot for "
+                    + SettingsState.keyToString(key), e);
+            return null;
+        }
+    }
+
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            removeUserLocked(mFullSnapshots, userId);
+            removeUserLocked(mRestrictedSnapshots, userId);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.print("Settings snapshots: built=");
+            pw.print(mBuildCount);
+            pw.print(" served=");
+            pw.println(mServedCount);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeUserLocked(SparseArray<Snapshot> snapshots, int userId) {
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            if (SettingsState.getUserIdFromKey(snapshots.keyAt(i)) == userId) {
+                close(snapshots.valueAt(i));
+                snapshots.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Closes the descriptor of the registry, the region lives on until the clients close theirs.
+     */
+    private static void close(Snapshot snapshot) {
+        if (snapshot != null) {
+            snapshot.memory.close();
+        }
+    }
+
+    private static final class Snapshot {
+        final int generation;
+        final SharedMemory memory;
+
+        Snapshot(int generation, SharedMemory memory) {
+            this.generation = generation;
+            this.memory = memory;
+        }
+    }
+}
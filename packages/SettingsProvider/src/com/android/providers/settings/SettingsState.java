@@ -31,6 +31,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.providers.settings.SettingsOperationProto;
@@ -94,6 +95,16 @@ final class SettingsState {
     private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
     private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
 
+    /**
+     * When set, individual mutations are appended to a {@link SettingsJournal} next to the
+     * XML file instead of rewriting the whole file on every change.
+     */
+    private static final String PROPERTY_USE_JOURNAL = "persist.sys.settings.use_journal";
+
+    // The journal is compacted into the XML snapshot once it grows past the size of the
+    // snapshot itself, but never before it reaches this many bytes.
+    private static final long MIN_JOURNAL_COMPACTION_BYTES = 16 * 1024;
+
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
 
@@ -109,6 +120,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_JOURNAL_SEQ = "journalSeq";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -208,6 +220,39 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    private final SettingsJournal mJournal;
+
+    private final boolean mUseJournal;
+
+    // Sequence number of the last batch of journal records; a snapshot records the value it was
+    // taken at so that replay can skip the records it already contains.
+    @GuardedBy("mLock")
+    private long mJournalSeq;
+
+    // Names of the settings changed since the last persist, only tracked in journal mode.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mJournalPendingNames = new ArraySet<>();
+
+    // Whether the next persist has to rewrite the whole snapshot, e.g. because state that is
+    // not journaled changed. Always true for the first persist after loading.
+    @GuardedBy("mLock")
+    private boolean mSnapshotRequired = true;
+
+    @GuardedBy("mWriteLock")
+    private long mLastSnapshotBytes;
+
+    @GuardedBy("mWriteLock")
+    private long mSnapshotBytesWritten;
+
+    @GuardedBy("mWriteLock")
+    private int mSnapshotWriteCount;
+
+    @GuardedBy("mWriteLock")
+    private long mJournalBytesWritten;
+
+    @GuardedBy("mWriteLock")
+    private int mJournalWriteCount;
+
     public static final int SETTINGS_TYPE_GLOBAL = 0;
     public static final int SETTINGS_TYPE_SYSTEM = 1;
     public static final int SETTINGS_TYPE_SECURE = 2;
@@ -259,6 +304,12 @@ final class SettingsState {
 
     public SettingsState(Context context, Object lock, File file, int key,
             int maxBytesPerAppPackage, Looper looper) {
+        this(context, lock, file, key, maxBytesPerAppPackage, looper,
+                SystemProperties.getBoolean(PROPERTY_USE_JOURNAL, false));
+    }
+
+    SettingsState(Context context, Object lock, File file, int key,
+            int maxBytesPerAppPackage, Looper looper, boolean useJournal) {
         // It is important that we use the same lock as the settings provider
         // to ensure multiple mutations on this state are atomically persisted
         // as the async persistence should be blocked while we make changes.
@@ -268,6 +319,8 @@ final class SettingsState {
         mStatePersistTag = "settings-" + getTypeFromKey(key) + "-" + getUserIdFromKey(key);
         mKey = key;
         mHandler = new MyHandler(looper);
+        mJournal = new SettingsJournal(file);
+        mUseJournal = useJournal;
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
             mMaxBytesPerAppPackage = maxBytesPerAppPackage;
             mPackageToMemoryUsage = new ArrayMap<>();
@@ -281,6 +334,7 @@ final class SettingsState {
 
         synchronized (mLock) {
             readStateSyncLocked();
+            replayJournalLocked();
         }
     }
 
@@ -321,12 +375,13 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                addJournalPendingNameLocked(name);
                 removedSomething = true;
             }
         }
 
         if (removedSomething) {
-            scheduleWriteIfNeededLocked();
+            scheduleWriteLocked();
         }
     }
 
@@ -342,6 +397,17 @@ final class SettingsState {
         return names;
     }
 
+    // The settings provider must hold its lock when calling here.
+    @GuardedBy("mLock")
+    public ArrayMap<String, String> getSettingValuesLocked() {
+        final int settingsCount = mSettings.size();
+        final ArrayMap<String, String> values = new ArrayMap<>(settingsCount);
+        for (int i = 0; i < settingsCount; i++) {
+            values.put(mSettings.keyAt(i), mSettings.valueAt(i).getValue());
+        }
+        return values;
+    }
+
     // The settings provider must hold its lock when calling here.
     @GuardedBy("mLock")
     public Setting getSettingLocked(String name) {
@@ -378,7 +444,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
-            scheduleWriteIfNeededLocked();
+            scheduleWriteIfNeededLocked(name);
         }
     }
 
@@ -433,7 +499,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -470,6 +536,8 @@ final class SettingsState {
         // The write is intentionally not scheduled here, banned hashes should and will be written
         // when the related setting changes are written
         mNamespaceBannedHashes.put(prefix, hashCode(keyValues));
+        // Banned hashes are not journaled, so the next write has to be a full snapshot.
+        mSnapshotRequired = true;
     }
 
     @GuardedBy("mLock")
@@ -502,6 +570,7 @@ final class SettingsState {
                         /* value= */ "", /* newValue= */ "", oldState.value, /* tag */ "", false,
                         getUserIdFromKey(mKey), FrameworkStatsLog.SETTING_CHANGED__REASON__DELETED);
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
+                addJournalPendingNameLocked(key);
                 changedKeys.add(key); // key was removed
             }
         }
@@ -529,10 +598,11 @@ final class SettingsState {
                     oldValue, /* tag */ null, /* make default */ false,
                     getUserIdFromKey(mKey), FrameworkStatsLog.SETTING_CHANGED__REASON__UPDATED);
             addHistoricalOperationLocked(HISTORICAL_OPERATION_UPDATE, state);
+            addJournalPendingNameLocked(key);
         }
 
         if (!changedKeys.isEmpty()) {
-            scheduleWriteIfNeededLocked();
+            scheduleWriteLocked();
         }
 
         return changedKeys;
@@ -562,7 +632,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -592,7 +662,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
-        scheduleWriteIfNeededLocked();
+        scheduleWriteIfNeededLocked(name);
 
         return true;
     }
@@ -736,8 +806,29 @@ final class SettingsState {
         return mSettings.indexOfKey(name) >= 0;
     }
 
+    // Schedules a write of state that is not captured by journal records, such as the version
+    // or banned namespace hashes.
     @GuardedBy("mLock")
     private void scheduleWriteIfNeededLocked() {
+        mSnapshotRequired = true;
+        scheduleWriteLocked();
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleWriteIfNeededLocked(String name) {
+        addJournalPendingNameLocked(name);
+        scheduleWriteLocked();
+    }
+
+    @GuardedBy("mLock")
+    private void addJournalPendingNameLocked(String name) {
+        if (mUseJournal) {
+            mJournalPendingNames.add(name);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void scheduleWriteLocked() {
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
             mDirty = true;
@@ -776,15 +867,83 @@ final class SettingsState {
     }
 
     private void doWriteState() {
+        if (mUseJournal && doWriteJournal()) {
+            return;
+        }
+        doWriteSnapshot();
+    }
+
+    /**
+     * Appends the settings changed since the last persist to the journal.
+     *
+     * @return whether the pending changes were persisted, if not a full snapshot must be written.
+     */
+    private boolean doWriteJournal() {
+        final ArrayList<SettingsJournal.Record> records;
+
+        synchronized (mLock) {
+            if (mSnapshotRequired) {
+                return false;
+            }
+            final long seq = ++mJournalSeq;
+            final int pendingCount = mJournalPendingNames.size();
+            records = new ArrayList<>(pendingCount);
+            for (int i = 0; i < pendingCount; i++) {
+                final String name = mJournalPendingNames.valueAt(i);
+                final Setting setting = mSettings.get(name);
+                records.add(setting != null
+                        ? SettingsJournal.Record.put(seq, setting)
+                        : SettingsJournal.Record.delete(seq, name));
+            }
+            mJournalPendingNames.clear();
+            mDirty = false;
+            mWriteScheduled = false;
+        }
+
+        if (records.isEmpty()) {
+            return true;
+        }
+
+        final boolean needsCompaction;
+        synchronized (mWriteLock) {
+            try {
+                mJournalBytesWritten += mJournal.append(records);
+                mJournalWriteCount++;
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[JOURNALED] " + records.size() + " settings");
+                }
+            } catch (IOException e) {
+                Slog.w(LOG_TAG, "Failed to append to settings journal, writing snapshot", e);
+                return false;
+            }
+            needsCompaction = mJournal.getLength()
+                    >= Math.max(MIN_JOURNAL_COMPACTION_BYTES, mLastSnapshotBytes);
+        }
+
+        synchronized (mLock) {
+            addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+            if (needsCompaction) {
+                // Fold the journal into a new snapshot with the usual write delay.
+                scheduleWriteIfNeededLocked();
+            }
+        }
+        return true;
+    }
+
+    private void doWriteSnapshot() {
         boolean wroteState = false;
         final int version;
+        final long journalSeq;
         final ArrayMap<String, Setting> settings;
         final ArrayMap<String, String> namespaceBannedHashes;
 
         synchronized (mLock) {
             version = mVersion;
+            journalSeq = mJournalSeq;
             settings = new ArrayMap<>(mSettings);
             namespaceBannedHashes = new ArrayMap<>(mNamespaceBannedHashes);
+            mJournalPendingNames.clear();
+            mSnapshotRequired = false;
             mDirty = false;
             mWriteScheduled = false;
         }
@@ -803,6 +962,9 @@ final class SettingsState {
                 serializer.startDocument(null, true);
                 serializer.startTag(null, TAG_SETTINGS);
                 serializer.attributeInt(null, ATTR_VERSION, version);
+                if (journalSeq != 0) {
+                    serializer.attributeLong(null, ATTR_JOURNAL_SEQ, journalSeq);
+                }
 
                 final int settingCount = settings.size();
                 for (int i = 0; i < settingCount; i++) {
@@ -836,6 +998,10 @@ final class SettingsState {
                 destination.finishWrite(out);
 
                 wroteState = true;
+                mLastSnapshotBytes = mStatePersistFile.length();
+                mSnapshotBytesWritten += mLastSnapshotBytes;
+                mSnapshotWriteCount++;
+                mJournal.onSnapshotWritten(journalSeq);
 
                 if (DEBUG_PERSISTENCE) {
                     Slog.i(LOG_TAG, "[PERSIST END]");
@@ -869,6 +1035,12 @@ final class SettingsState {
             synchronized (mLock) {
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
             }
+        } else {
+            synchronized (mLock) {
+                // The journal may not cover the changes captured above, make sure the next
+                // persist retries the snapshot.
+                mSnapshotRequired = true;
+            }
         }
     }
 
@@ -1087,6 +1259,7 @@ final class SettingsState {
             throws IOException, XmlPullParserException {
 
         mVersion = parser.getAttributeInt(null, ATTR_VERSION);
+        mJournalSeq = parser.getAttributeLong(null, ATTR_JOURNAL_SEQ, 0);
 
         final int outerDepth = parser.getDepth();
         int type;
@@ -1142,6 +1315,79 @@ final class SettingsState {
         }
     }
 
+    /**
+     * Applies the journal records that are newer than the loaded snapshot. Records are replayed
+     * even when journaling is disabled so that turning it off never loses mutations; the first
+     * persist after loading always writes a snapshot which compacts the journal away.
+     */
+    @GuardedBy("mLock")
+    private void replayJournalLocked() {
+        final ArrayList<SettingsJournal.Record> records;
+        synchronized (mWriteLock) {
+            mLastSnapshotBytes = mStatePersistFile.length();
+            records = new ArrayList<>(mJournal.read());
+        }
+        // A sync persist can append its records before the ones of a persist that started
+        // earlier on the handler, apply them in the order the mutations happened.
+        records.sort((a, b) -> Long.compare(a.seq, b.seq));
+        final long snapshotSeq = mJournalSeq;
+        int replayedCount = 0;
+        final int recordCount = records.size();
+        for (int i = 0; i < recordCount; i++) {
+            final SettingsJournal.Record record = records.get(i);
+            mJournalSeq = Math.max(mJournalSeq, record.seq);
+            if (record.seq <= snapshotSeq || TextUtils.isEmpty(record.name)) {
+                continue;
+            }
+            if (record.op == SettingsJournal.OP_DELETE) {
+                mSettings.remove(record.name);
+            } else {
+                mSettings.put(record.name, new Setting(record.name, record.value,
+                        record.defaultValue, record.packageName, record.tag,
+                        record.defaultFromSystem, record.id, record.valuePreservedInRestore));
+            }
+            replayedCount++;
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[REPLAYED] " + record.name + "=" + record.value);
+            }
+        }
+        if (replayedCount > 0) {
+            Slog.i(LOG_TAG, "Replayed " + replayedCount + " journaled settings for "
+                    + mStatePersistFile);
+        }
+    }
+
+    /**
+     * Dumps how many bytes the persistence of this state has written since it was loaded.
+     */
+    public void dumpPersistenceStats(PrintWriter pw) {
+        synchronized (mWriteLock) {
+            pw.println("Persistence (journal " + (mUseJournal ? "enabled" : "disabled") + ")");
+            pw.print("  snapshots: ");
+            pw.print(mSnapshotWriteCount);
+            pw.print(" writes, ");
+            pw.print(mSnapshotBytesWritten);
+            pw.println(" bytes");
+            pw.print("  journal: ");
+            pw.print(mJournalWriteCount);
+            pw.print(" appends, ");
+            pw.print(mJournalBytesWritten);
+            pw.print(" bytes, ");
+            pw.print(mJournal.getRecordCount());
+            pw.print(" records / ");
+            pw.print(mJournal.getLength());
+            pw.println(" bytes pending compaction");
+            pw.println();
+        }
+    }
+
+    /** @return the total number of bytes written to persist this state since it was loaded. */
+    long getPersistedBytes() {
+        synchronized (mWriteLock) {
+            return mSnapshotBytesWritten + mJournalBytesWritten;
+        }
+    }
+
     private static Map<String, String> removeNullValueOldStyle(Map<String, String> keyValues) {
         Iterator<Map.Entry<String, String>> it = keyValues.entrySet().iterator();
         while (it.hasNext()) {
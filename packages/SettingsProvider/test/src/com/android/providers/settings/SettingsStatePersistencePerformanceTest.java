@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import static junit.framework.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Compares persisting {@link SettingsState} by rewriting the XML snapshot on every change with
+ * appending to the {@link SettingsJournal}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SettingsStatePersistencePerformanceTest {
+    private static final String LOG_TAG = "SettingsStatePersistencePerformanceTest";
+
+    private static final int SETTING_COUNT = 300;
+
+    private static final int ITERATION_COUNT = 500;
+
+    private static final String TEST_PACKAGE = "package";
+
+    @Test
+    public void testMutationCostSnapshotVsJournal() {
+        final long[] snapshot = measure(/* useJournal */ false);
+        final long[] journal = measure(/* useJournal */ true);
+
+        Log.i(LOG_TAG, "Snapshot: " + snapshot[0] + " bytes written, p99 mutation "
+                + snapshot[1] + " us");
+        Log.i(LOG_TAG, "Journal: " + journal[0] + " bytes written, p99 mutation "
+                + journal[1] + " us");
+
+        assertTrue("Journal should write fewer bytes than full snapshots",
+                journal[0] < snapshot[0]);
+    }
+
+    /**
+     * @return the bytes written and the p99 latency in microseconds of a mutation that is
+     * persisted synchronously.
+     */
+    private long[] measure(boolean useJournal) {
+        final Context context = InstrumentationRegistry.getContext();
+        final File file = new File(context.getCacheDir(), "settings_perf.xml");
+        file.delete();
+        new File(file.getAbsolutePath() + SettingsJournal.JOURNAL_FILE_SUFFIX).delete();
+        final Object lock = new Object();
+
+        final SettingsState settingsState = new SettingsState(context, lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper(),
+                useJournal);
+        synchronized (lock) {
+            settingsState.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            for (int i = 0; i < SETTING_COUNT; i++) {
+                settingsState.insertSettingLocked("setting_" + i, "value_" + i, null, false,
+                        TEST_PACKAGE);
+            }
+            settingsState.persistSyncLocked();
+        }
+        final long baselineBytes = settingsState.getPersistedBytes();
+
+        final long[] latenciesMicros = new long[ITERATION_COUNT];
+        for (int i = 0; i < ITERATION_COUNT; i++) {
+            final long startMicros = SystemClock.currentTimeMicro();
+            synchronized (lock) {
+                settingsState.insertSettingLocked("setting_" + (i % SETTING_COUNT),
+                        "updated_" + i, null, false, TEST_PACKAGE);
+                settingsState.persistSyncLocked();
+            }
+            latenciesMicros[i] = SystemClock.currentTimeMicro() - startMicros;
+        }
+        Arrays.sort(latenciesMicros);
+
+        final long bytesWritten = settingsState.getPersistedBytes() - baselineBytes;
+        file.delete();
+        new File(file.getAbsolutePath() + SettingsJournal.JOURNAL_FILE_SUFFIX).delete();
+        return new long[] {bytesWritten, latenciesMicros[(int) (ITERATION_COUNT * 0.99)]};
+    }
+}
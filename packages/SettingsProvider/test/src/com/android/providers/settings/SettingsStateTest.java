@@ -15,6 +15,7 @@
  */
 package com.android.providers.settings;
 
+import android.os.FileUtils;
 import android.os.Looper;
 import android.test.AndroidTestCase;
 import android.util.TypedXmlSerializer;
@@ -24,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 public class SettingsStateTest extends AndroidTestCase {
     public static final String CRAZY_STRING =
@@ -56,6 +58,7 @@ public class SettingsStateTest extends AndroidTestCase {
     protected void setUp() {
         mSettingsFile = new File(getContext().getCacheDir(), "setting.xml");
         mSettingsFile.delete();
+        getJournalFile().delete();
     }
 
     public void testIsBinary() {
@@ -270,6 +273,112 @@ public class SettingsStateTest extends AndroidTestCase {
         assertTrue(settingsState.getSettingLocked(SETTING_NAME).isValuePreservedInRestore());
     }
 
+    /**
+     * Make sure journaled mutations are replayed on top of the snapshot.
+     */
+    public void testJournalReplay() {
+        final SettingsState ssWriter = getJournalingSettingStateObject();
+        ssWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+        ssWriter.insertSettingLocked("k2", "v2", null, false, TEST_PACKAGE);
+        // The first persist after loading always writes a snapshot.
+        ssWriter.persistSyncLocked();
+
+        ssWriter.insertSettingLocked("k1", "v1_updated", null, false, TEST_PACKAGE);
+        ssWriter.deleteSettingLocked("k2");
+        ssWriter.insertSettingLocked("k3", CRAZY_STRING, null, false, TEST_PACKAGE);
+        ssWriter.persistSyncLocked();
+        assertTrue(getJournalFile().exists());
+
+        // Replay must happen even if journaling has been turned off since.
+        final SettingsState ssReader = getSettingStateObject();
+        assertEquals("v1_updated", ssReader.getSettingLocked("k1").getValue());
+        assertTrue(ssReader.getSettingLocked("k2").isNull());
+        assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k3").getValue());
+    }
+
+    /**
+     * Make sure a torn append at the end of the journal does not lose earlier records.
+     */
+    public void testJournalReplay_tornTail() throws Exception {
+        final SettingsState ssWriter = getJournalingSettingStateObject();
+        ssWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+        ssWriter.persistSyncLocked();
+        ssWriter.insertSettingLocked("k1", "v2", null, false, TEST_PACKAGE);
+        ssWriter.persistSyncLocked();
+
+        final long validLength = getJournalFile().length();
+        try (FileOutputStream out = new FileOutputStream(getJournalFile(), true)) {
+            out.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        }
+
+        final SettingsState ssReader = getJournalingSettingStateObject();
+        assertEquals("v2", ssReader.getSettingLocked("k1").getValue());
+        assertEquals(validLength, getJournalFile().length());
+    }
+
+    /**
+     * Make sure a journal left behind by a crash right after a snapshot write is not replayed
+     * over newer state in the snapshot.
+     */
+    public void testJournalReplay_skipsRecordsInSnapshot() throws Exception {
+        final SettingsState ssWriter = getJournalingSettingStateObject();
+        ssWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+        ssWriter.persistSyncLocked();
+        ssWriter.insertSettingLocked("k1", "v2", null, false, TEST_PACKAGE);
+        ssWriter.persistSyncLocked();
+
+        final File staleJournal = new File(getContext().getCacheDir(), "stale.journal");
+        FileUtils.copy(getJournalFile(), staleJournal);
+        ssWriter.insertSettingLocked("k1", "v3", null, false, TEST_PACKAGE);
+        // Changing the version forces a snapshot, which compacts the journal.
+        ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING + 1);
+        ssWriter.persistSyncLocked();
+        assertFalse(getJournalFile().exists());
+        FileUtils.copy(staleJournal, getJournalFile());
+        staleJournal.delete();
+
+        final SettingsState ssReader = getJournalingSettingStateObject();
+        assertEquals("v3", ssReader.getSettingLocked("k1").getValue());
+    }
+
+    /**
+     * Make sure a record that was appended after a newer one for the same setting, as left
+     * behind by a sync persist racing one on the handler, does not override it.
+     */
+    public void testJournalReplay_staleRecordForSameSetting() throws Exception {
+        final SettingsState ssWriter = getJournalingSettingStateObject();
+        ssWriter.insertSettingLocked("k1", "v1", null, false, TEST_PACKAGE);
+        ssWriter.persistSyncLocked();
+
+        final SettingsJournal journal = new SettingsJournal(mSettingsFile);
+        journal.read();
+        journal.append(Arrays.asList(
+                journalPut(5, "k1", "v3"),
+                journalPut(3, "k1", "v2"),
+                journalPut(4, "k2", "v4")));
+
+        final SettingsState ssReader = getJournalingSettingStateObject();
+        assertEquals("v3", ssReader.getSettingLocked("k1").getValue());
+        assertEquals("v4", ssReader.getSettingLocked("k2").getValue());
+    }
+
+    private static SettingsJournal.Record journalPut(long seq, String name, String value) {
+        return new SettingsJournal.Record(SettingsJournal.OP_PUT, seq, name, value, null,
+                TEST_PACKAGE, null, String.valueOf(seq), false, false);
+    }
+
+    private File getJournalFile() {
+        return new File(mSettingsFile.getAbsolutePath() + SettingsJournal.JOURNAL_FILE_SUFFIX);
+    }
+
+    private SettingsState getJournalingSettingStateObject() {
+        SettingsState settingsState = new SettingsState(getContext(), mLock, mSettingsFile, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper(),
+                /* useJournal */ true);
+        settingsState.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+        return settingsState;
+    }
+
     private SettingsState getSettingStateObject() {
         SettingsState settingsState = new SettingsState(getContext(), mLock, mSettingsFile, 1,
                 SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
@@ -24,6 +24,7 @@ import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS
 import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS_ENABLED_KEY;
 import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS_IGNORE_BATTERY_STATUS_KEY;
 import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS_MAX_CALL_STATS_KEY;
+import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS_RECORD_TO_RING_BUFFERS_KEY;
 import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS_SAMPLING_INTERVAL_KEY;
 import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS_SHARDING_MODULO_KEY;
 import static com.android.internal.os.BinderCallsStats.SettingsObserver.SETTINGS_TRACK_DIRECT_CALLING_UID_KEY;
@@ -192,6 +193,9 @@ public class BinderCallsStatsService extends Binder {
             mBinderCallsStats.setShardingModulo(mParser.getInt(
                     SETTINGS_SHARDING_MODULO_KEY,
                     BinderCallsStats.SHARDING_MODULO_DEFAULT));
+            mBinderCallsStats.setRecordToRingBuffers(
+                    mParser.getBoolean(SETTINGS_RECORD_TO_RING_BUFFERS_KEY,
+                    BinderCallsStats.DEFAULT_RECORD_TO_RING_BUFFERS));
 
             mBinderCallsStats.setCollectLatencyData(
                     mParser.getBoolean(SETTINGS_COLLECT_LATENCY_DATA_KEY,
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Immutable index over the filters of an {@link IntentResolver}, used to rule out filters
+ * before {@link IntentFilter#match} is run on them.
+ * <p>
+ * Every distinct filter gets an ordinal, and actions, categories and schemes are interned to
+ * bitsets of the ordinals of the filters declaring them. Hosts live in a trie keyed by the
+ * reversed host so exact and wildcard authorities are found in a single walk. The candidates of
+ * a query are the intersection of these bitsets; it is always a superset of the filters that
+ * match, so filtering a bucket by it never changes a resolution result.
+ * </p>
+ * <p>
+ * The index is built from the state of the resolver at one point in time and must be dropped
+ * whenever a filter is added or removed.
+ * </p>
+ */
+final class IntentFilterIndex {
+    private final int mFilterCount;
+
+    // Ordinals of the filters in each bucket of the resolver, by bucket identity
+    private final IdentityHashMap<Object[], int[]> mBucketOrdinals;
+
+    private final ArrayMap<String, long[]> mActions;
+    private final ArrayMap<String, long[]> mCategories;
+    private final ArrayMap<String, long[]> mSchemes;
+
+    // Filters without any scheme, which also match content: and file: URIs
+    private final long[] mNoScheme;
+
+    // Filters that accept any host, because they declare no authority, a scheme specific part,
+    // or an authority the trie cannot represent
+    private final long[] mAnyHost;
+
+    private final HostNode mHosts;
+
+    private IntentFilterIndex(Builder builder) {
+        final ArrayList<IntentFilter> filters = builder.mFilters;
+        mFilterCount = filters.size();
+        mBucketOrdinals = builder.mBucketOrdinals;
+
+        final int words = wordCount(mFilterCount);
+        mActions = new ArrayMap<>();
+        mCategories = new ArrayMap<>();
+        mSchemes = new ArrayMap<>();
+        mNoScheme = new long[words];
+        mAnyHost = new long[words];
+        mHosts = new HostNode();
+
+        for (int ordinal = 0; ordinal < mFilterCount; ordinal++) {
+            final IntentFilter filter = filters.get(ordinal);
+            for (int i = filter.countActions() - 1; i >= 0; i--) {
+                setBit(mActions, filter.getAction(i), ordinal, words);
+            }
+            for (int i = filter.countCategories() - 1; i >= 0; i--) {
+                setBit(mCategories, filter.getCategory(i), ordinal, words);
+            }
+            final int schemeCount = filter.countDataSchemes();
+            if (schemeCount == 0) {
+                setBit(mNoScheme, ordinal);
+            }
+            for (int i = schemeCount - 1; i >= 0; i--) {
+                setBit(mSchemes, filter.getDataScheme(i), ordinal, words);
+            }
+            indexHosts(filter, ordinal, words);
+        }
+    }
+
+    private void indexHosts(IntentFilter filter, int ordinal, int words) {
+        // Authorities are only looked at for filters with a scheme, and not at all once a
+        // scheme specific part matched.
+        final int authorityCount = filter.countDataAuthorities();
+        if (filter.countDataSchemes() == 0 || authorityCount == 0
+                || filter.countDataSchemeSpecificParts() != 0) {
+            setBit(mAnyHost, ordinal);
+            return;
+        }
+        for (int i = 0; i < authorityCount; i++) {
+            if (!isAscii(filter.getDataAuthority(i).getHost())) {
+                setBit(mAnyHost, ordinal);
+                return;
+            }
+        }
+        for (int i = 0; i < authorityCount; i++) {
+            final String host = filter.getDataAuthority(i).getHost();
+            final boolean wild = host.length() > 0 && host.charAt(0) == '*';
+            final String name = (wild ? host.substring(1) : host).toLowerCase(Locale.ROOT);
+            HostNode node = mHosts;
+            for (int c = name.length() - 1; c >= 0; c--) {
+                node = node.getOrAddChild(name.charAt(c));
+            }
+            if (wild) {
+                if (node.mWild == null) {
+                    node.mWild = new long[words];
+                }
+                setBit(node.mWild, ordinal);
+            } else {
+                if (node.mExact == null) {
+                    node.mExact = new long[words];
+                }
+                setBit(node.mExact, ordinal);
+            }
+        }
+    }
+
+    int getFilterCount() {
+        return mFilterCount;
+    }
+
+    /**
+     * @return the ordinals of the filters of the bucket, in bucket order, or {@code null} if the
+     * bucket was not part of the resolver when the index was built.
+     */
+    @Nullable
+    int[] getOrdinals(@NonNull Object[] bucket) {
+        return mBucketOrdinals.get(bucket);
+    }
+
+    /**
+     * Computes the filters that may match an intent, as {@link IntentFilter#match} would see it.
+     *
+     * @return a bitset of candidate ordinals, or {@code null} if no filter can match.
+     */
+    @Nullable
+    long[] getCandidates(@Nullable String action, @Nullable Set<String> categories,
+            @Nullable String scheme, @Nullable Uri data) {
+        final int words = wordCount(mFilterCount);
+        final long[] result;
+        if (action != null) {
+            final long[] bits = mActions.get(action);
+            if (bits == null) {
+                return null;
+            }
+            result = Arrays.copyOf(bits, words);
+        } else {
+            result = new long[words];
+            Arrays.fill(result, -1L);
+        }
+
+        if (categories != null) {
+            for (String category : categories) {
+                final long[] bits = mCategories.get(category);
+                if (bits == null || !and(result, bits)) {
+                    return null;
+                }
+            }
+        }
+
+        final long[] schemeBits = mSchemes.get(scheme != null ? scheme : "");
+        final boolean schemeless = scheme == null || scheme.isEmpty()
+                || "content".equals(scheme) || "file".equals(scheme);
+        if (!andEither(result, schemeBits, schemeless ? mNoScheme : null)) {
+            return null;
+        }
+
+        final String host = data != null ? data.getHost() : null;
+        if (host == null) {
+            if (!and(result, mAnyHost)) {
+                return null;
+            }
+        } else if (isAscii(host)) {
+            final long[] hostBits = mAnyHost.clone();
+            HostNode node = mHosts;
+            for (int c = host.length() - 1; node != null; c--) {
+                or(hostBits, node.mWild);
+                if (c < 0) {
+                    or(hostBits, node.mExact);
+                    break;
+                }
+                node = node.getChild(Character.toLowerCase(host.charAt(c)));
+            }
+            if (!and(result, hostBits)) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    static boolean isCandidate(@NonNull long[] candidates, int ordinal) {
+        return (candidates[ordinal >>> 6] & (1L << ordinal)) != 0;
+    }
+
+    private static int wordCount(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static void setBit(long[] bits, int ordinal) {
+        bits[ordinal >>> 6] |= 1L << ordinal;
+    }
+
+    private static void setBit(ArrayMap<String, long[]> map, String key, int ordinal,
+            int words) {
+        long[] bits = map.get(key);
+        if (bits == null) {
+            bits = new long[words];
+            map.put(key, bits);
+        }
+        setBit(bits, ordinal);
+    }
+
+    private static void or(long[] dest, @Nullable long[] src) {
+        if (src != null) {
+            for (int i = 0; i < dest.length; i++) {
+                dest[i] |= src[i];
+            }
+        }
+    }
+
+    /** @return whether any bit is left in {@code dest}. */
+    private static boolean and(long[] dest, long[] src) {
+        long any = 0;
+        for (int i = 0; i < dest.length; i++) {
+            any |= (dest[i] &= src[i]);
+        }
+        return any != 0;
+    }
+
+    /** Intersects {@code dest} with the union of two optional bitsets. */
+    private static boolean andEither(long[] dest, @Nullable long[] first,
+            @Nullable long[] second) {
+        long any = 0;
+        for (int i = 0; i < dest.length; i++) {
+            final long mask = (first != null ? first[i] : 0) | (second != null ? second[i] : 0);
+            any |= (dest[i] &= mask);
+        }
+        return any != 0;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Node of the trie of lower cased hosts, keyed by their characters from last to first. */
+    private static final class HostNode {
+        private static final char[] EMPTY_KEYS = new char[0];
+        private static final HostNode[] EMPTY_CHILDREN = new HostNode[0];
+
+        // Sorted, parallel to mChildren
+        private char[] mKeys = EMPTY_KEYS;
+        private HostNode[] mChildren = EMPTY_CHILDREN;
+
+        // Filters with an authority for exactly the host ending at this node
+        private long[] mExact;
+        // Filters with a wildcard authority for any host ending with this node
+        private long[] mWild;
+
+        @Nullable
+        HostNode getChild(char key) {
+            final int index = Arrays.binarySearch(mKeys, key);
+            return index >= 0 ? mChildren[index] : null;
+        }
+
+        HostNode getOrAddChild(char key) {
+            int index = Arrays.binarySearch(mKeys, key);
+            if (index >= 0) {
+                return mChildren[index];
+            }
+            index = ~index;
+            final int count = mKeys.length;
+            final char[] keys = new char[count + 1];
+            final HostNode[] children = new HostNode[count + 1];
+            System.arraycopy(mKeys, 0, keys, 0, index);
+            System.arraycopy(mChildren, 0, children, 0, index);
+            System.arraycopy(mKeys, index, keys, index + 1, count - index);
+            System.arraycopy(mChildren, index, children, index + 1, count - index);
+            keys[index] = key;
+            children[index] = new HostNode();
+            mKeys = keys;
+            mChildren = children;
+            return children[index];
+        }
+    }
+
+    /**
+     * Collects the buckets of a resolver and the filters in them.
+     */
+    static final class Builder {
+        private final ArrayList<IntentFilter> mFilters = new ArrayList<>();
+        private final IdentityHashMap<IntentFilter, Integer> mOrdinals = new IdentityHashMap<>();
+        private final IdentityHashMap<Object[], int[]> mBucketOrdinals = new IdentityHashMap<>();
+
+        /**
+         * @return the ordinal of the filter, assigning one if it was not seen before.
+         */
+        int addFilter(@NonNull IntentFilter filter) {
+            Integer ordinal = mOrdinals.get(filter);
+            if (ordinal == null) {
+                ordinal = mFilters.size();
+                mFilters.add(filter);
+                mOrdinals.put(filter, ordinal);
+            }
+            return ordinal;
+        }
+
+        void addBucket(@NonNull Object[] bucket, @NonNull int[] ordinals) {
+            mBucketOrdinals.put(bucket, ordinals);
+        }
+
+        IntentFilterIndex build() {
+            return new IntentFilterIndex(this);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import android.util.Printer;
 import android.util.Slog;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import java.io.PrintWriter;
@@ -60,6 +61,7 @@ public abstract class IntentResolver<F, R extends Object> {
         }
 
         mFilters.add(f);
+        mCompiledIndex = null;
         int numS = register_intent_filter(f, intentFilter.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -203,6 +205,7 @@ public abstract class IntentResolver<F, R extends Object> {
             intentFilter.dump(new LogPrinter(Log.VERBOSE, TAG, Log.LOG_ID_SYSTEM), "      ");
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
+        mCompiledIndex = null;
 
         int numS = unregister_intent_filter(f, intentFilter.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
@@ -391,7 +394,7 @@ public abstract class IntentResolver<F, R extends Object> {
         int N = listCut.size();
         for (int i = 0; i < N; ++i) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType, scheme,
-                    listCut.get(i), resultList, userId);
+                    listCut.get(i), null, null, resultList, userId);
         }
         filterResults(resultList);
         sortResults(resultList);
@@ -470,22 +473,35 @@ public abstract class IntentResolver<F, R extends Object> {
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
+        // Rule out the filters that cannot match before walking the cuts.  Debug resolutions
+        // go through every filter of the cuts so the log explains why each did not match.
+        final IntentFilterIndex index = debug ? null : getCompiledIndex();
+        long[] candidates = null;
+        if (index != null && (firstTypeCut != null || secondTypeCut != null
+                || thirdTypeCut != null || schemeCut != null)) {
+            candidates = index.getCandidates(intent.getAction(), intent.getCategories(),
+                    scheme, intent.getData());
+            if (candidates == null) {
+                firstTypeCut = secondTypeCut = thirdTypeCut = schemeCut = null;
+            }
+        }
+
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
         if (firstTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
+                    scheme, firstTypeCut, index, candidates, finalList, userId);
         }
         if (secondTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
+                    scheme, secondTypeCut, index, candidates, finalList, userId);
         }
         if (thirdTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
+                    scheme, thirdTypeCut, index, candidates, finalList, userId);
         }
         if (schemeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+                    scheme, schemeCut, index, candidates, finalList, userId);
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -725,8 +741,9 @@ public abstract class IntentResolver<F, R extends Object> {
 
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
             boolean debug, boolean defaultOnly, String resolvedType, String scheme,
-            F[] src, List<R> dest, int userId) {
+            F[] src, IntentFilterIndex index, long[] candidates, List<R> dest, int userId) {
         final String action = intent.getAction();
+        final int[] ordinals = candidates != null ? index.getOrdinals(src) : null;
         final Uri data = intent.getData();
         final String packageName = intent.getPackage();
 
@@ -748,6 +765,9 @@ public abstract class IntentResolver<F, R extends Object> {
         F filter;
         for (i=0; i<N && (filter=src[i]) != null; i++) {
             int match;
+            if (ordinals != null && !IntentFilterIndex.isCandidate(candidates, ordinals[i])) {
+                continue;
+            }
             if (debug) Slog.v(TAG, "Matching against filter " + filter);
 
             if (excludingStopped && isFilterStopped(filter, userId)) {
@@ -829,6 +849,52 @@ public abstract class IntentResolver<F, R extends Object> {
         }
     }
 
+    /**
+     * Controls whether queries are narrowed down by the compiled index of the filters; they
+     * always give the same results either way.
+     */
+    @VisibleForTesting
+    public void setCompiledIndexEnabled(boolean enabled) {
+        mCompiledIndexEnabled = enabled;
+    }
+
+    /**
+     * @return the compiled index of the current filters, building it if the filters changed
+     * since it was last built, or {@code null} if it is disabled.
+     */
+    private IntentFilterIndex getCompiledIndex() {
+        if (!mCompiledIndexEnabled) {
+            return null;
+        }
+        IntentFilterIndex index = mCompiledIndex;
+        if (index == null) {
+            // Snapshots are queried without a lock, so two threads may both build the index
+            // here; they build the same one.
+            final IntentFilterIndex.Builder builder = new IntentFilterIndex.Builder();
+            addBuckets(builder, mTypeToFilter);
+            addBuckets(builder, mBaseTypeToFilter);
+            addBuckets(builder, mWildTypeToFilter);
+            addBuckets(builder, mSchemeToFilter);
+            addBuckets(builder, mActionToFilter);
+            addBuckets(builder, mTypedActionToFilter);
+            index = builder.build();
+            mCompiledIndex = index;
+        }
+        return index;
+    }
+
+    private void addBuckets(IntentFilterIndex.Builder builder, ArrayMap<String, F[]> map) {
+        for (int mapi = 0; mapi < map.size(); mapi++) {
+            final F[] bucket = map.valueAt(mapi);
+            final int[] ordinals = new int[bucket.length];
+            F filter;
+            for (int i = 0; i < bucket.length && (filter = bucket[i]) != null; i++) {
+                ordinals[i] = builder.addFilter(getIntentFilter(filter));
+            }
+            builder.addBucket(bucket, ordinals);
+        }
+    }
+
     // Sorts a List of IntentFilter objects into descending priority order.
     @SuppressWarnings("rawtypes")
     private static final Comparator mResolvePrioritySorter = new Comparator() {
@@ -879,6 +945,8 @@ public abstract class IntentResolver<F, R extends Object> {
         copyInto(mSchemeToFilter, orig.mSchemeToFilter);
         copyInto(mActionToFilter, orig.mActionToFilter);
         copyInto(mTypedActionToFilter, orig.mTypedActionToFilter);
+        mCompiledIndex = null;
+        mCompiledIndexEnabled = orig.mCompiledIndexEnabled;
     }
 
     /**
@@ -924,6 +992,14 @@ public abstract class IntentResolver<F, R extends Object> {
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
 
+    /**
+     * Index of the filters in all of the maps above, dropped whenever a filter is added or
+     * removed and rebuilt by the next query.
+     */
+    private volatile IntentFilterIndex mCompiledIndex;
+
+    private volatile boolean mCompiledIndexEnabled = true;
+
     /**
      * Rather than refactoring the entire class, this allows the input {@link F} to be a type
      * other than {@link IntentFilter}, transforming it whenever necessary. It is valid to use
@@ -53,6 +53,7 @@ public class LooperStatsService extends Binder {
     private static final String SETTINGS_SAMPLING_INTERVAL_KEY = "sampling_interval";
     private static final String SETTINGS_TRACK_SCREEN_INTERACTIVE_KEY = "track_screen_state";
     private static final String SETTINGS_IGNORE_BATTERY_STATUS_KEY = "ignore_battery_status";
+    private static final String SETTINGS_SLOW_DISPATCHES_COUNT_KEY = "slow_dispatches_count";
     private static final String DEBUG_SYS_LOOPER_STATS_ENABLED =
             "debug.sys.looper_stats_enabled";
     private static final int DEFAULT_SAMPLING_INTERVAL = 1000;
@@ -66,6 +67,7 @@ public class LooperStatsService extends Binder {
     private boolean mEnabled = false;
     private boolean mTrackScreenInteractive = false;
     private boolean mIgnoreBatteryStatus = LooperStats.DEFAULT_IGNORE_BATTERY_STATUS;
+    private int mSlowDispatchesCount = LooperStats.DEFAULT_SLOW_DISPATCHES_COUNT;
 
     private LooperStatsService(Context context, LooperStats stats) {
         this.mContext = context;
@@ -90,6 +92,9 @@ public class LooperStatsService extends Binder {
         setIgnoreBatteryStatus(
                 parser.getBoolean(SETTINGS_IGNORE_BATTERY_STATUS_KEY,
                 LooperStats.DEFAULT_IGNORE_BATTERY_STATUS));
+        setSlowDispatchesCount(
+                parser.getInt(SETTINGS_SLOW_DISPATCHES_COUNT_KEY,
+                LooperStats.DEFAULT_SLOW_DISPATCHES_COUNT));
         // Manually specified value takes precedence over Settings.
         setEnabled(SystemProperties.getBoolean(
                 DEBUG_SYS_LOOPER_STATS_ENABLED,
@@ -155,6 +160,62 @@ public class LooperStatsService extends Binder {
                     entry.maxDelayMillis,
                     entry.exceptionCount);
         }
+
+        pw.println();
+        pw.println(String.join(",", Arrays.asList(
+                "work_source_uid",
+                "thread_name",
+                "handler_class",
+                "message_name",
+                "is_interactive",
+                "p50_latency_micros",
+                "p90_latency_micros",
+                "p99_latency_micros",
+                "p50_delay_millis",
+                "p90_delay_millis",
+                "p99_delay_millis")));
+        for (LooperStats.ExportedEntry entry : entries) {
+            if (entry.messageName.startsWith(LooperStats.DEBUG_ENTRY_PREFIX)
+                    || entry.recordedMessageCount == 0) {
+                continue;
+            }
+            pw.printf("%s,%s,%s,%s,%s,%d,%d,%d,%d,%d,%d\n",
+                    packageMap.mapUid(entry.workSourceUid),
+                    entry.threadName,
+                    entry.handlerClassName,
+                    entry.messageName,
+                    entry.isInteractive,
+                    entry.latencyHistogram.getValueAtPercentile(50),
+                    entry.latencyHistogram.getValueAtPercentile(90),
+                    entry.latencyHistogram.getValueAtPercentile(99),
+                    entry.delayHistogram.getValueAtPercentile(50),
+                    entry.delayHistogram.getValueAtPercentile(90),
+                    entry.delayHistogram.getValueAtPercentile(99));
+        }
+
+        pw.println();
+        pw.println(String.join(",", Arrays.asList(
+                "work_source_uid",
+                "thread_name",
+                "handler_class",
+                "callback_class",
+                "what",
+                "dispatch_uptime_millis",
+                "latency_micros",
+                "cpu_micros",
+                "delay_millis")));
+        for (LooperStats.SlowDispatch dispatch : mStats.getSlowDispatches()) {
+            pw.printf("%s,%s,%s,%s,%d,%d,%d,%d,%d\n",
+                    packageMap.mapUid(dispatch.workSourceUid),
+                    dispatch.threadName,
+                    dispatch.handlerClassName,
+                    dispatch.callbackClassName != null ? dispatch.callbackClassName : "",
+                    dispatch.what,
+                    dispatch.dispatchUptimeMillis,
+                    dispatch.latencyMicros,
+                    dispatch.cpuUsageMicros,
+                    dispatch.delayMillis);
+        }
     }
 
     private void setEnabled(boolean enabled) {
@@ -181,6 +242,16 @@ public class LooperStatsService extends Binder {
         }
     }
 
+    private void setSlowDispatchesCount(int count) {
+        if (count < 0) {
+            Slog.w(TAG, "Ignored invalid slow dispatches count (value must not be negative): "
+                    + count);
+        } else if (mSlowDispatchesCount != count) {
+            mSlowDispatchesCount = count;
+            mStats.setSlowDispatchesCount(count);
+        }
+    }
+
     private void setSamplingInterval(int samplingInterval) {
         if (samplingInterval > 0) {
             mStats.setSamplingInterval(samplingInterval);
@@ -18,11 +18,11 @@ package com.android.server.am;
 
 import android.app.ActivityManager;
 import android.os.UserHandle;
-import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.CompositeRWLock;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IntObjectHashMap;
 
 import java.io.PrintWriter;
 
@@ -34,8 +34,12 @@ final class ActiveUids {
 
     private final boolean mPostChangesToAtm;
 
+    /**
+     * Hashed rather than a SparseArray, as it holds every uid with a running process and is
+     * looked up on each oom adj update. Indices are not in uid order.
+     */
     @CompositeRWLock({"mService", "mProcLock"})
-    private final SparseArray<UidRecord> mActiveUids = new SparseArray<>();
+    private final IntObjectHashMap<UidRecord> mActiveUids = new IntObjectHashMap<>();
 
     ActiveUids(ActivityManagerService service, boolean postChangesToAtm) {
         mService = service;
@@ -582,6 +582,7 @@ final class ActivityManagerConstants extends ContentObserver {
     @SuppressWarnings("unused")
     private static final int OOMADJ_UPDATE_POLICY_SLOW = 0;
     private static final int OOMADJ_UPDATE_POLICY_QUICK = 1;
+    private static final int OOMADJ_UPDATE_POLICY_INCREMENTAL = 2;
     private static final int DEFAULT_OOMADJ_UPDATE_POLICY = OOMADJ_UPDATE_POLICY_QUICK;
 
     private static final String KEY_OOMADJ_UPDATE_POLICY = "oomadj_update_policy";
@@ -590,7 +591,13 @@ final class ActivityManagerConstants extends ContentObserver {
     // in which no futher actions will be performed if there are no significant adj/proc state
     // changes for the specific process; otherwise, use the traditonal slow path which would
     // keep updating all processes in the LRU list.
-    public boolean OOMADJ_UPDATE_QUICK = DEFAULT_OOMADJ_UPDATE_POLICY == OOMADJ_UPDATE_POLICY_QUICK;
+    public boolean OOMADJ_UPDATE_QUICK = DEFAULT_OOMADJ_UPDATE_POLICY >= OOMADJ_UPDATE_POLICY_QUICK;
+
+    // Indicate if the oom adjuster should, on top of the quick path, track the processes whose
+    // bindings changed and only re-evaluate those and the processes reachable from them when a
+    // process goes away, instead of updating all processes in the LRU list.
+    public boolean OOMADJ_UPDATE_INCREMENTAL =
+            DEFAULT_OOMADJ_UPDATE_POLICY == OOMADJ_UPDATE_POLICY_INCREMENTAL;
 
     private static final long MIN_AUTOMATIC_HEAP_DUMP_PSS_THRESHOLD_BYTES = 100 * 1024; // 100 KB
 
@@ -1039,11 +1046,12 @@ final class ActivityManagerConstants extends ContentObserver {
     }
 
     private void updateOomAdjUpdatePolicy() {
-        OOMADJ_UPDATE_QUICK = DeviceConfig.getInt(
+        final int policy = DeviceConfig.getInt(
                 DeviceConfig.NAMESPACE_ACTIVITY_MANAGER,
                 KEY_OOMADJ_UPDATE_POLICY,
-                /* defaultValue */ DEFAULT_OOMADJ_UPDATE_POLICY)
-                == OOMADJ_UPDATE_POLICY_QUICK;
+                /* defaultValue */ DEFAULT_OOMADJ_UPDATE_POLICY);
+        OOMADJ_UPDATE_QUICK = policy >= OOMADJ_UPDATE_POLICY_QUICK;
+        OOMADJ_UPDATE_INCREMENTAL = policy == OOMADJ_UPDATE_POLICY_INCREMENTAL;
     }
 
     private void updateForceRestrictedBackgroundCheck() {
@@ -1342,5 +1350,6 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.print("  CUR_TRIM_EMPTY_PROCESSES="); pw.println(CUR_TRIM_EMPTY_PROCESSES);
         pw.print("  CUR_TRIM_CACHED_PROCESSES="); pw.println(CUR_TRIM_CACHED_PROCESSES);
         pw.print("  OOMADJ_UPDATE_QUICK="); pw.println(OOMADJ_UPDATE_QUICK);
+        pw.print("  OOMADJ_UPDATE_INCREMENTAL="); pw.println(OOMADJ_UPDATE_INCREMENTAL);
     }
 }
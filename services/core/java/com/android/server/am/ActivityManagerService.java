@@ -2223,7 +2223,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         mIntentFirewall = hasHandlerThread
                 ? new IntentFirewall(new IntentFirewallInterface(), mHandler) : null;
-        mProcessStats = null;
+        mProcessStats = injector.getProcessStatsService(this);
         mCpHelper = new ContentProviderHelper(this, false);
         // For the usage of {@link ActiveServices#cleanUpServices} that may be invoked from
         // {@link ActivityTaskSupervisor#cleanUpRemovedTaskLocked}.
@@ -3156,7 +3156,10 @@ public class ActivityManagerService extends IActivityManager.Stub
             handleAppDiedLocked(app, pid, false, true, fromBinderDied);
 
             if (doOomAdj) {
-                updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_PROCESS_END);
+                // Nothing but the bindings of the dead process changed, which allows an
+                // incremental update.
+                mOomAdjuster.updateOomAdjAfterProcessDeathLocked(
+                        OomAdjuster.OOM_ADJ_REASON_PROCESS_END);
             }
             if (doLowMem) {
                 mAppProfiler.doLowMemReportIfNeededLocked(app);
@@ -16927,6 +16930,13 @@ public class ActivityManagerService extends IActivityManager.Stub
             return new ProcessList();
         }
 
+        /**
+         * Return the process stats service used by tests, or {@code null} if they don't need one.
+         */
+        public ProcessStatsService getProcessStatsService(ActivityManagerService service) {
+            return null;
+        }
+
         private boolean ensureHasNetworkManagementInternal() {
             if (mNmi == null) {
                 mNmi = LocalServices.getService(NetworkManagementInternal.class);
@@ -74,6 +74,7 @@ import android.util.Slog;
 import android.util.StatsEvent;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.IBatteryStats;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.BatteryStatsHelper;
@@ -105,6 +106,7 @@ import java.nio.CharBuffer;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -146,11 +148,30 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     private static final int MAX_LOW_POWER_STATS_SIZE = 16384;
     private static final int POWER_STATS_QUERY_TIMEOUT_MILLIS = 2000;
     private static final String EMPTY = "Empty";
+    /**
+     * Maximum number of updates applied with a single acquisition of the {@link #mStats} lock, so
+     * that binder threads reading the stats do not wait for a whole burst of events.
+     */
+    private static final int MAX_UPDATES_PER_BATCH = 64;
 
     private final HandlerThread mHandlerThread;
     private final Handler mHandler;
     private final Object mLock = new Object();
 
+    /**
+     * Updates of {@link #mStats} that were not applied yet, in the order of their timestamps.
+     * Events are appended here instead of being posted to {@link #mHandler} one message each, and
+     * the handler applies them in batches.
+     */
+    @GuardedBy("mLock")
+    private ArrayList<Runnable> mPendingUpdates = new ArrayList<>();
+    /**
+     * The updates being applied, swapped with {@link #mPendingUpdates}. Only used on
+     * {@link #mHandler}.
+     */
+    private ArrayList<Runnable> mApplyingUpdates = new ArrayList<>();
+    private final Runnable mApplyPendingUpdates = this::applyPendingUpdates;
+
     private final Object mPowerStatsLock = new Object();
     @GuardedBy("mPowerStatsLock")
     private PowerStatsInternal mPowerStatsInternal = null;
@@ -473,7 +494,67 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         awaitUninterruptibly(mWorker.scheduleSync(reason, flags));
     }
 
-    private void awaitCompletion() {
+    /**
+     * Queues an update to be applied on {@link #mHandler} while the {@link #mStats} lock is held
+     * for its whole batch. The update still locks {@link #mStats} itself, which is then only a
+     * recursive acquisition.
+     */
+    @GuardedBy("mLock")
+    private void postStatsUpdateLocked(Runnable update) {
+        mPendingUpdates.add(update);
+        if (mPendingUpdates.size() == 1) {
+            mHandler.post(mApplyPendingUpdates);
+        }
+    }
+
+    /**
+     * Queues a task to run on {@link #mHandler} in order with the updates, but without the
+     * {@link #mStats} lock held, for tasks that call out or take other locks of the stats first.
+     */
+    @GuardedBy("mLock")
+    private void postLocked(Runnable task) {
+        postStatsUpdateLocked(new UnlockedTask(task));
+    }
+
+    private void applyPendingUpdates() {
+        final ArrayList<Runnable> updates;
+        synchronized (mLock) {
+            updates = mPendingUpdates;
+            mPendingUpdates = mApplyingUpdates;
+        }
+        final int count = updates.size();
+        int i = 0;
+        while (i < count) {
+            if (updates.get(i) instanceof UnlockedTask) {
+                updates.get(i++).run();
+                continue;
+            }
+            final int end = Math.min(count, i + MAX_UPDATES_PER_BATCH);
+            synchronized (mStats) {
+                for (; i < end && !(updates.get(i) instanceof UnlockedTask); i++) {
+                    updates.get(i).run();
+                }
+            }
+        }
+        updates.clear();
+        mApplyingUpdates = updates;
+    }
+
+    private static final class UnlockedTask implements Runnable {
+        private final Runnable mTask;
+
+        UnlockedTask(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+    }
+
+    @VisibleForTesting
+    void awaitCompletion() {
         final CountDownLatch latch = new CountDownLatch(1);
         mHandler.post(() -> {
             latch.countDown();
@@ -534,7 +615,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.notePowerSaveModeLocked(result.batterySaverEnabled,
                             elapsedRealtime, uptime, false);
@@ -573,7 +654,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     void removeUid(final int uid) {
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.removeUidStatsLocked(uid, elapsedRealtime);
                 }
@@ -584,7 +665,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     void onCleanupUser(final int userId) {
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.onCleanupUserLocked(userId, elapsedRealtime);
                 }
@@ -594,7 +675,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void onUserRemoved(final int userId) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.onUserRemovedLocked(userId);
                 }
@@ -606,7 +687,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.addIsolatedUidLocked(isolatedUid, appUid, elapsedRealtime, uptime);
                 }
@@ -616,7 +697,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void removeIsolatedUid(final int isolatedUid, final int appUid) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.scheduleRemoveIsolatedUidLocked(isolatedUid, appUid);
                 }
@@ -628,7 +709,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteProcessStartLocked(name, uid, elapsedRealtime, uptime);
                 }
@@ -642,7 +723,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteProcessCrashLocked(name, uid, elapsedRealtime, uptime);
                 }
@@ -656,7 +737,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteProcessAnrLocked(name, uid, elapsedRealtime, uptime);
                 }
@@ -668,7 +749,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteProcessFinishLocked(name, uid, elapsedRealtime, uptime);
                 }
@@ -683,7 +764,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteUidProcessStateLocked(uid, state, elapsedRealtime, uptime);
                 }
@@ -858,7 +939,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteEventLocked(code, name, uid, elapsedRealtime, uptime);
                 }
@@ -871,7 +952,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteSyncStartLocked(name, uid, elapsedRealtime, uptime);
                 }
@@ -886,7 +967,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteSyncFinishLocked(name, uid, elapsedRealtime, uptime);
                 }
@@ -902,7 +983,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteJobStartLocked(name, uid, elapsedRealtime, uptime);
                 }
@@ -916,7 +997,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteJobFinishLocked(name, uid, stopReason, elapsedRealtime, uptime);
                 }
@@ -929,7 +1010,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteJobsDeferredLocked(uid, numDeferred, sinceLast,
                             elapsedRealtime, uptime);
@@ -945,7 +1026,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWakupAlarmLocked(name, uid, localWs, tag,
                             elapsedRealtime, uptime);
@@ -960,7 +1041,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteAlarmStartLocked(name, localWs, uid, elapsedRealtime, uptime);
                 }
@@ -974,7 +1055,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteAlarmFinishLocked(name, localWs, uid, elapsedRealtime, uptime);
                 }
@@ -988,7 +1069,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteStartWakeLocked(uid, pid, null, name, historyName, type,
                             unimportantForLogging, elapsedRealtime, uptime);
@@ -1003,7 +1084,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteStopWakeLocked(uid, pid, null, name, historyName, type,
                             elapsedRealtime, uptime);
@@ -1019,7 +1100,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteStartWakeFromSourceLocked(localWs, pid, name, historyName,
                             type, unimportantForLogging, elapsedRealtime, uptime);
@@ -1038,7 +1119,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteChangeWakelockFromSourceLocked(localWs, pid, name, historyName, type,
                             localNewWs, newPid, newName, newHistoryName, newType,
@@ -1055,7 +1136,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteStopWakeFromSourceLocked(localWs, pid, name, historyName, type,
                             elapsedRealtime, uptime);
@@ -1071,7 +1152,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockStart(name, historyName, uid,
                             elapsedRealtime, uptime);
@@ -1088,7 +1169,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockStartFromSource(name, historyName, localWs,
                             elapsedRealtime, uptime);
@@ -1104,7 +1185,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockFinish(name, historyName, uid,
                             elapsedRealtime, uptime);
@@ -1121,7 +1202,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteLongPartialWakelockFinishFromSource(name, historyName, localWs,
                             elapsedRealtime, uptime);
@@ -1135,7 +1216,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteStartSensorLocked(uid, sensor, elapsedRealtime, uptime);
                 }
@@ -1150,7 +1231,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteStopSensorLocked(uid, sensor, elapsedRealtime, uptime);
                 }
@@ -1165,7 +1246,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteVibratorOnLocked(uid, durationMillis, elapsedRealtime, uptime);
                 }
@@ -1178,7 +1259,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteVibratorOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1194,7 +1275,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteGpsChangedLocked(localOldWs, localNewWs, elapsedRealtime, uptime);
                 }
@@ -1206,7 +1287,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteGpsSignalQualityLocked(signalLevel, elapsedRealtime, uptime);
                 }
@@ -1220,7 +1301,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
             final long currentTime = System.currentTimeMillis();
-            mHandler.post(() -> {
+            postLocked(() -> {
                 if (DBG) Slog.d(TAG, "begin noteScreenState");
                 synchronized (mStats) {
                     mStats.noteScreenStateLocked(0, state, elapsedRealtime, uptime, currentTime);
@@ -1236,7 +1317,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteScreenBrightnessLocked(0, brightness, elapsedRealtime, uptime);
                 }
@@ -1250,7 +1331,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteUserActivityLocked(uid, event, elapsedRealtime, uptime);
                 }
@@ -1263,7 +1344,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWakeUpLocked(reason, reasonUid, elapsedRealtime, uptime);
                 }
@@ -1275,7 +1356,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteInteractiveLocked(interactive, elapsedRealtime);
                 }
@@ -1288,7 +1369,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteConnectivityChangedLocked(type, extra, elapsedRealtime, uptime);
                 }
@@ -1302,7 +1383,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postLocked(() -> {
                 final boolean update;
                 synchronized (mStats) {
                     // Ignore if no power state change.
@@ -1327,7 +1408,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneOnLocked(elapsedRealtime, uptime);
                 }
@@ -1340,7 +1421,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneOffLocked(elapsedRealtime, uptime);
                 }
@@ -1353,7 +1434,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneSignalStrengthLocked(signalStrength, elapsedRealtime, uptime);
                 }
@@ -1367,7 +1448,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.notePhoneDataConnectionStateLocked(dataType, hasData, serviceType,
                             elapsedRealtime, uptime);
@@ -1381,7 +1462,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postLocked(() -> {
                 int simState = mContext.getSystemService(TelephonyManager.class).getSimState();
                 synchronized (mStats) {
                     mStats.notePhoneStateLocked(state, simState, elapsedRealtime, uptime);
@@ -1395,7 +1476,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiOnLocked(elapsedRealtime, uptime);
                 }
@@ -1410,7 +1491,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiOffLocked(elapsedRealtime, uptime);
                 }
@@ -1425,7 +1506,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteAudioOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1440,7 +1521,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteAudioOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1455,7 +1536,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteVideoOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1470,7 +1551,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteVideoOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1485,7 +1566,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteResetAudioLocked(elapsedRealtime, uptime);
                 }
@@ -1500,7 +1581,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteResetVideoLocked(elapsedRealtime, uptime);
                 }
@@ -1515,7 +1596,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteFlashlightOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1530,7 +1611,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteFlashlightOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1546,7 +1627,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteCameraOnLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1562,7 +1643,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteCameraOffLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1577,7 +1658,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteResetCameraLocked(elapsedRealtime, uptime);
                 }
@@ -1592,7 +1673,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteResetFlashlightLocked(elapsedRealtime, uptime);
                 }
@@ -1608,7 +1689,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postLocked(() -> {
                 // There was a change in WiFi power state.
                 // Collect data now for the past activity.
                 synchronized (mStats) {
@@ -1639,7 +1720,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiRunningLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1657,7 +1738,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiRunningChangedLocked(
                             localOldWs, localNewWs, elapsedRealtime, uptime);
@@ -1676,7 +1757,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiStoppedLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1690,7 +1771,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         enforceCallingPermission();
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiStateLocked(wifiState, accessPoint, elapsedRealtime);
                 }
@@ -1703,7 +1784,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiSupplicantStateChangedLocked(supplState, failedAuth,
                             elapsedRealtime, uptime);
@@ -1717,7 +1798,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiRssiChangedLocked(newRssi, elapsedRealtime, uptime);
                 }
@@ -1730,7 +1811,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockAcquiredLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1743,7 +1824,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockReleasedLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1756,7 +1837,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStartedLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1769,7 +1850,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStoppedLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1782,7 +1863,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiMulticastEnabledLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1795,7 +1876,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiMulticastDisabledLocked(uid, elapsedRealtime, uptime);
                 }
@@ -1809,7 +1890,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockAcquiredFromSourceLocked(
                             localWs, elapsedRealtime, uptime);
@@ -1824,7 +1905,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteFullWifiLockReleasedFromSourceLocked(
                             localWs, elapsedRealtime, uptime);
@@ -1839,7 +1920,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStartedFromSourceLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1853,7 +1934,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiScanStoppedFromSourceLocked(localWs, elapsedRealtime, uptime);
                 }
@@ -1867,7 +1948,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiBatchedScanStartedFromSourceLocked(localWs, csph,
                             elapsedRealtime, uptime);
@@ -1882,7 +1963,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteWifiBatchedScanStoppedFromSourceLocked(
                             localWs, elapsedRealtime, uptime);
@@ -1895,7 +1976,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     public void noteNetworkInterfaceForTransports(final String iface, int[] transportTypes) {
         PermissionUtils.enforceNetworkStackPermission(mContext);
         synchronized (mLock) {
-            mHandler.post(() -> {
+            postLocked(() -> {
                 mStats.noteNetworkInterfaceForTransports(iface, transportTypes);
             });
         }
@@ -1923,7 +2004,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteDeviceIdleModeLocked(mode, activeReason, activeUid,
                             elapsedRealtime, uptime);
@@ -1937,7 +2018,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.notePackageInstalledLocked(pkgName, versionCode,
                             elapsedRealtime, uptime);
@@ -1951,7 +2032,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.notePackageUninstalledLocked(pkgName, elapsedRealtime, uptime);
                 }
@@ -1966,7 +2047,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteBluetoothScanStartedFromSourceLocked(localWs, isUnoptimized,
                             elapsedRealtime, uptime);
@@ -1982,7 +2063,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteBluetoothScanStoppedFromSourceLocked(localWs, isUnoptimized,
                             uptime, elapsedRealtime);
@@ -1997,7 +2078,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteResetBluetoothScanLocked(elapsedRealtime, uptime);
                 }
@@ -2012,7 +2093,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteBluetoothScanResultsFromSourceLocked(localWs, numNewResults,
                             elapsedRealtime, uptime);
@@ -2033,7 +2114,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postLocked(() -> {
                 mStats.updateWifiState(info, POWER_DATA_UNAVAILABLE, elapsedRealtime, uptime);
             });
         }
@@ -2050,7 +2131,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.updateBluetoothStateLocked(
                             info, POWER_DATA_UNAVAILABLE, elapsedRealtime, uptime);
@@ -2071,7 +2152,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postLocked(() -> {
                 mStats.noteModemControllerActivity(info, POWER_DATA_UNAVAILABLE, elapsedRealtime,
                         uptime);
             });
@@ -2716,7 +2797,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postLocked(() -> {
                 if (!isOnBattery()) {
                     return;
                 }
@@ -2736,7 +2817,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
             final long currentTime = System.currentTimeMillis();
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteCurrentTimeChangedLocked(currentTime, elapsedRealtime, uptime);
                 }
@@ -2749,7 +2830,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     if (resumed) {
                         mStats.noteActivityResumedLocked(uid, elapsedRealtime, uptime);
@@ -2768,7 +2849,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
 
     void noteProcessDied(final int uid, final int pid) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.noteProcessDiedLocked(uid, pid);
                 }
@@ -2779,7 +2860,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
     void reportExcessiveCpu(final int uid, final String processName, final long uptimeSince,
             long cputimeUsed) {
         synchronized (mLock) {
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     mStats.reportExcessiveCpuLocked(uid, processName, uptimeSince, cputimeUsed);
                 }
@@ -2791,7 +2872,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
@@ -2805,7 +2886,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
@@ -2819,7 +2900,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
@@ -2833,7 +2914,7 @@ public final class BatteryStatsService extends IBatteryStats.Stub
         synchronized (mLock) {
             final long elapsedRealtime = SystemClock.elapsedRealtime();
             final long uptime = SystemClock.uptimeMillis();
-            mHandler.post(() -> {
+            postStatsUpdateLocked(() -> {
                 synchronized (mStats) {
                     final BatteryStatsImpl.Uid.Pkg.Serv stats = mStats.getServiceStatsLocked(uid,
                             pkg, name, elapsedRealtime, uptime);
@@ -41,6 +41,7 @@ public class BroadcastConstants {
     static final String KEY_DEFERRAL_FLOOR = "bcast_deferral_floor";
     static final String KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT =
             "bcast_allow_bg_activity_start_timeout";
+    static final String KEY_BATCH_BY_PROCESS = "bcast_batch_by_process";
 
     // All time intervals are in milliseconds
     private static final long DEFAULT_TIMEOUT = 10_000 * Build.HW_TIMEOUT_MULTIPLIER;
@@ -50,6 +51,7 @@ public class BroadcastConstants {
     private static final long DEFAULT_DEFERRAL_FLOOR = 0;
     private static final long DEFAULT_ALLOW_BG_ACTIVITY_START_TIMEOUT =
             10_000 * Build.HW_TIMEOUT_MULTIPLIER;
+    private static final boolean DEFAULT_BATCH_BY_PROCESS = true;
 
     // All time constants are in milliseconds
 
@@ -67,6 +69,10 @@ public class BroadcastConstants {
     // For a receiver that has been allowed to start background activities, how long after it
     // started its process can start a background activity.
     public long ALLOW_BG_ACTIVITY_START_TIMEOUT = DEFAULT_ALLOW_BG_ACTIVITY_START_TIMEOUT;
+    // Whether the manifest receivers of a non-ordered broadcast are delivered grouped by
+    // their hosting process, with processes that are already running served first. Only
+    // receivers of the same priority are reordered, whose order isn't guaranteed anyway.
+    public boolean BATCH_BY_PROCESS = DEFAULT_BATCH_BY_PROCESS;
 
     // Settings override tracking for this instance
     private String mSettingsKey;
@@ -123,6 +129,7 @@ public class BroadcastConstants {
             DEFERRAL_FLOOR = mParser.getLong(KEY_DEFERRAL_FLOOR, DEFERRAL_FLOOR);
             ALLOW_BG_ACTIVITY_START_TIMEOUT = mParser.getLong(KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT,
                     ALLOW_BG_ACTIVITY_START_TIMEOUT);
+            BATCH_BY_PROCESS = mParser.getBoolean(KEY_BATCH_BY_PROCESS, BATCH_BY_PROCESS);
         }
     }
 
@@ -159,6 +166,9 @@ public class BroadcastConstants {
             pw.print("    "); pw.print(KEY_ALLOW_BG_ACTIVITY_START_TIMEOUT); pw.print(" = ");
             TimeUtils.formatDuration(ALLOW_BG_ACTIVITY_START_TIMEOUT, pw);
             pw.println();
+
+            pw.print("    "); pw.print(KEY_BATCH_BY_PROCESS); pw.print(" = ");
+            pw.println(BATCH_BY_PROCESS);
         }
     }
 }
@@ -265,6 +265,15 @@ public class BroadcastDispatcher {
         }
     }
 
+    /**
+     * Number of broadcasts waiting for delivery, including the one in flight
+     */
+    public int getPendingCountLocked() {
+        return (mCurrentBroadcast != null ? 1 : 0) + mOrderedBroadcasts.size()
+                + pendingInDeferralsList(mDeferredBroadcasts)
+                + pendingInDeferralsList(mAlarmBroadcasts);
+    }
+
     private static int pendingInDeferralsList(ArrayList<Deferrals> list) {
         int pending = 0;
         final int numEntries = list.size();
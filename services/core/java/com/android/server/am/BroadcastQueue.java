@@ -61,12 +61,15 @@ import android.os.Trace;
 import android.os.UserHandle;
 import android.permission.IPermissionManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.LatencyHistogram;
 import com.android.internal.util.FrameworkStatsLog;
 
 import java.io.FileDescriptor;
@@ -74,7 +77,9 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * BROADCASTS
@@ -187,6 +192,21 @@ public final class BroadcastQueue {
     // log latency metrics for ordered broadcasts during BOOT_COMPLETED processing
     boolean mLogLatencyMetrics = true;
 
+    /**
+     * Number of broadcasts waiting in this queue, sampled whenever one is enqueued.
+     */
+    final LatencyHistogram mQueueDepthHistogram = new LatencyHistogram();
+
+    /**
+     * Time in ms from enqueueing a broadcast to dispatching it to its first receiver.
+     */
+    final LatencyHistogram mDispatchLatencyHistogram = new LatencyHistogram();
+
+    /**
+     * Time in ms a manifest receiver took from being dispatched to finishing.
+     */
+    final LatencyHistogram mReceiverLatencyHistogram = new LatencyHistogram();
+
     final BroadcastHandler mHandler;
 
     private final class BroadcastHandler extends Handler {
@@ -253,6 +273,9 @@ public final class BroadcastQueue {
      */
     private void enqueueBroadcastHelper(BroadcastRecord r) {
         r.enqueueClockTime = System.currentTimeMillis();
+        r.enqueueTime = SystemClock.uptimeMillis();
+        mQueueDepthHistogram.record(
+                mParallelBroadcasts.size() + mDispatcher.getPendingCountLocked());
 
         if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
             Trace.asyncTraceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -483,6 +506,9 @@ public final class BroadcastQueue {
         // nextReceiver is zero; in which case time-to-process bookkeeping doesn't apply.
         if (r.nextReceiver > 0) {
             r.duration[r.nextReceiver - 1] = elapsed;
+            if (receiver != null && state != BroadcastRecord.IDLE) {
+                mReceiverLatencyHistogram.record(elapsed);
+            }
         }
 
         // if this receiver was slow, impose deferral policy on the app.  This will kick in
@@ -1021,6 +1047,7 @@ public final class BroadcastQueue {
             r = mParallelBroadcasts.remove(0);
             r.dispatchTime = SystemClock.uptimeMillis();
             r.dispatchClockTime = System.currentTimeMillis();
+            mDispatchLatencyHistogram.record(r.dispatchTime - r.enqueueTime);
 
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -1223,6 +1250,16 @@ public final class BroadcastQueue {
                 continue;
             }
 
+            // Before a non-ordered broadcast starts, group its manifest receivers by process
+            // if configured to do so.
+            if (mConstants.BATCH_BY_PROCESS && !r.ordered && r.dispatchTime == 0) {
+                batchReceiversByProcess(r.receivers, info -> {
+                    final ProcessRecord app = mService.getProcessRecordLocked(info.processName,
+                            info.applicationInfo.uid);
+                    return app != null && app.getThread() != null && !app.isKilled();
+                });
+            }
+
             // Check whether the next receiver is under deferral policy, and handle that
             // accordingly.  If the current broadcast was already part of deferred-delivery
             // tracking, we know that it must now be deliverable as-is without re-deferral.
@@ -1308,6 +1345,7 @@ public final class BroadcastQueue {
         if (recIdx == 0) {
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
+            mDispatchLatencyHistogram.record(r.dispatchTime - r.enqueueTime);
 
             if (mLogLatencyMetrics) {
                 FrameworkStatsLog.write(
@@ -1744,6 +1782,96 @@ public final class BroadcastQueue {
         mPendingBroadcastRecvIndex = recIdx;
     }
 
+    /**
+     * Reorders the receivers of a broadcast that has not been dispatched yet so that the
+     * manifest receivers hosted by the same process are delivered back to back, starting with
+     * the processes that are already running.  Receivers that need their process to be started
+     * then no longer hold up those that can be served right away, and each process is started
+     * at most once per priority band.  Receivers are only moved within a run of manifest
+     * receivers of the same priority, so receivers of a higher priority are still delivered
+     * first.  Only valid for non-ordered broadcasts.
+     *
+     * @param isRunning whether the process hosting a receiver is running
+     */
+    @VisibleForTesting
+    static void batchReceiversByProcess(List<Object> receivers,
+            Predicate<ActivityInfo> isRunning) {
+        final int count = receivers.size();
+        int bandStart = 0;
+        while (bandStart < count) {
+            int bandEnd = bandStart + 1;
+            if (receivers.get(bandStart) instanceof ResolveInfo) {
+                final int priority = ((ResolveInfo) receivers.get(bandStart)).priority;
+                while (bandEnd < count && receivers.get(bandEnd) instanceof ResolveInfo
+                        && ((ResolveInfo) receivers.get(bandEnd)).priority == priority) {
+                    bandEnd++;
+                }
+                batchBandByProcess(receivers, bandStart, bandEnd, isRunning);
+            }
+            bandStart = bandEnd;
+        }
+    }
+
+    private static void batchBandByProcess(List<Object> receivers, int start, int end,
+            Predicate<ActivityInfo> isRunning) {
+        if (end - start < 2) {
+            return;
+        }
+        final ArrayMap<String, ArrayList<Object>> groupsByProcess = new ArrayMap<>();
+        final ArrayList<ArrayList<Object>> runningGroups = new ArrayList<>();
+        final ArrayList<ArrayList<Object>> coldGroups = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            final Object receiver = receivers.get(i);
+            final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+            final String processKey = info.processName + "/" + info.applicationInfo.uid;
+            ArrayList<Object> group = groupsByProcess.get(processKey);
+            if (group == null) {
+                group = new ArrayList<>();
+                groupsByProcess.put(processKey, group);
+                if (isRunning.test(info)) {
+                    runningGroups.add(group);
+                } else {
+                    coldGroups.add(group);
+                }
+            }
+            group.add(receiver);
+        }
+        if (groupsByProcess.size() < 2) {
+            return;
+        }
+
+        int index = start;
+        for (int i = 0; i < runningGroups.size(); i++) {
+            final ArrayList<Object> group = runningGroups.get(i);
+            for (int j = 0; j < group.size(); j++) {
+                receivers.set(index++, group.get(j));
+            }
+        }
+        for (int i = 0; i < coldGroups.size(); i++) {
+            final ArrayList<Object> group = coldGroups.get(i);
+            for (int j = 0; j < group.size(); j++) {
+                receivers.set(index++, group.get(j));
+            }
+        }
+        if (DEBUG_BROADCAST) {
+            Slog.v(TAG_BROADCAST, "Batched " + (end - start) + " receivers into "
+                    + runningGroups.size() + " running and " + coldGroups.size()
+                    + " cold processes");
+        }
+    }
+
+    private static void dumpHistogram(PrintWriter pw, String name, LatencyHistogram histogram) {
+        pw.print("    "); pw.print(name); pw.print(": count=");
+        pw.print(histogram.getTotalCount());
+        if (histogram.getTotalCount() > 0) {
+            pw.print(" p50<="); pw.print(histogram.getValueAtPercentile(50));
+            pw.print(" p90<="); pw.print(histogram.getValueAtPercentile(90));
+            pw.print(" p99<="); pw.print(histogram.getValueAtPercentile(99));
+            pw.print(" max="); pw.print(histogram.getMaxValue());
+        }
+        pw.println();
+    }
+
     private boolean noteOpForManifestReceiver(int appOp, BroadcastRecord r, ResolveInfo info,
             ComponentName component) {
         if (info.activityInfo.attributionTags == null) {
@@ -2107,6 +2235,12 @@ public final class BroadcastQueue {
 
         mConstants.dump(pw);
 
+        pw.println();
+        pw.println("  Broadcast latencies [" + mQueueName + "]:");
+        dumpHistogram(pw, "Queue depth at enqueue", mQueueDepthHistogram);
+        dumpHistogram(pw, "Dispatch latency (ms)", mDispatchLatencyHistogram);
+        dumpHistogram(pw, "Manifest receiver latency (ms)", mReceiverLatencyHistogram);
+
         int i;
         boolean printed = false;
 
@@ -72,6 +72,7 @@ final class BroadcastRecord extends Binder {
     boolean deferred;
     int splitCount;         // refcount for result callback, when split
     int splitToken;         // identifier for cross-BroadcastRecord refcount
+    long enqueueTime;       // when the broadcast was enqueued
     long enqueueClockTime;  // the clock time the broadcast was enqueued
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
@@ -312,6 +313,7 @@ final class BroadcastRecord extends Binder {
         delivery = from.delivery;
         duration = from.duration;
         resultTo = from.resultTo;
+        enqueueTime = from.enqueueTime;
         enqueueClockTime = from.enqueueClockTime;
         dispatchTime = from.dispatchTime;
         dispatchClockTime = from.dispatchClockTime;
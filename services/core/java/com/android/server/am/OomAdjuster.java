@@ -264,6 +264,26 @@ public class OomAdjuster {
     private final ArraySet<ProcessRecord> mPendingProcessSet = new ArraySet<>();
     private final ArraySet<ProcessRecord> mProcessesInCycle = new ArraySet<>();
 
+    /**
+     * Host processes of the service and provider bindings that were added or removed since they
+     * were last evaluated; only tracked with
+     * {@link ActivityManagerConstants#OOMADJ_UPDATE_INCREMENTAL}.
+     */
+    @GuardedBy("mService")
+    private final ArraySet<ProcessRecord> mDirtyProcessSet = new ArraySet<>();
+
+    /** Number of updates which evaluated the whole LRU list. */
+    @GuardedBy("mService")
+    private long mNumFullUpdates;
+
+    /** Number of full updates which were replaced with an update of the dirty processes. */
+    @GuardedBy("mService")
+    private long mNumIncrementalUpdates;
+
+    /** Total number of processes evaluated by the incremental updates. */
+    @GuardedBy("mService")
+    private long mNumIncrementalUpdateProcs;
+
     /**
      * Flag to mark if there is an ongoing oomAdjUpdate: potentially the oomAdjUpdate
      * could be called recursively because of the indirect calls during the update;
@@ -564,15 +584,45 @@ public class OomAdjuster {
         }
     }
 
+    /**
+     * Update OomAdj after a single process went away.
+     * <p>
+     * With {@link ActivityManagerConstants#OOMADJ_UPDATE_INCREMENTAL}, only the processes whose
+     * bindings changed and the processes reachable from them are evaluated: none of the remaining
+     * processes changed by itself, only the ones the dead process was bound to lost a client, and
+     * these are in {@link #mDirtyProcessSet} as the bindings were torn down. Callers which may
+     * have changed anything else have to use {@link #updateOomAdjLocked(String)}.
+     * </p>
+     */
+    @GuardedBy("mService")
+    void updateOomAdjAfterProcessDeathLocked(String oomAdjReason) {
+        synchronized (mProcLock) {
+            updateOomAdjLSP(oomAdjReason, mConstants.OOMADJ_UPDATE_INCREMENTAL);
+        }
+    }
+
     @GuardedBy({"mService", "mProcLock"})
     private void updateOomAdjLSP(String oomAdjReason) {
+        updateOomAdjLSP(oomAdjReason, false);
+    }
+
+    /**
+     * @param incremental Whether to only update the processes whose bindings changed and the
+     *                    processes reachable from them, instead of all processes in LRU list.
+     */
+    @GuardedBy({"mService", "mProcLock"})
+    private void updateOomAdjLSP(String oomAdjReason, boolean incremental) {
         if (checkAndEnqueueOomAdjTargetLocked(null)) {
             // Simply return as there is an oomAdjUpdate ongoing
             return;
         }
         try {
             mOomAdjUpdateOngoing = true;
-            performUpdateOomAdjLSP(oomAdjReason);
+            if (incremental) {
+                performIncrementalUpdateOomAdjLSP(oomAdjReason);
+            } else {
+                performUpdateOomAdjLSP(oomAdjReason);
+            }
         } finally {
             // Kick off the handling of any pending targets enqueued during the above update
             mOomAdjUpdateOngoing = false;
@@ -585,6 +635,8 @@ public class OomAdjuster {
         final ProcessRecord topApp = mService.getTopApp();
         // Clear any pending ones because we are doing a full update now.
         mPendingProcessSet.clear();
+        mDirtyProcessSet.clear();
+        mNumFullUpdates++;
         mService.mAppProfiler.mHasPreviousProcess = mService.mAppProfiler.mHasHomeProcess = false;
         updateOomAdjInnerLSP(oomAdjReason, topApp , null, null, true, true);
     }
@@ -796,6 +848,7 @@ public class OomAdjuster {
     void removeOomAdjTargetLocked(ProcessRecord app, boolean procDied) {
         if (app != null) {
             mPendingProcessSet.remove(app);
+            mDirtyProcessSet.remove(app);
             if (procDied) {
                 getPlatformCompatCache().invalidate(app.info);
             }
@@ -874,6 +927,67 @@ public class OomAdjuster {
         Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
     }
 
+    /**
+     * Note that a service binding of a client was added or removed, so the process hosting the
+     * service has to be re-evaluated, along with the processes it binds to.
+     */
+    @GuardedBy("mService")
+    void onConnectionChangedLocked(ConnectionRecord cr) {
+        final ServiceRecord service = cr.binding.service;
+        onBindingChangedLocked((cr.flags & ServiceInfo.FLAG_ISOLATED_PROCESS) != 0
+                ? service.isolatedProc : service.app);
+    }
+
+    /**
+     * Note that a provider connection of a client was added or removed, so the process hosting
+     * the provider has to be re-evaluated, along with the processes it binds to.
+     */
+    @GuardedBy("mService")
+    void onProviderConnectionChangedLocked(ContentProviderConnection conn) {
+        onBindingChangedLocked(conn.provider.proc);
+    }
+
+    @GuardedBy("mService")
+    private void onBindingChangedLocked(@Nullable ProcessRecord host) {
+        if (host != null && mConstants.OOMADJ_UPDATE_INCREMENTAL) {
+            mDirtyProcessSet.add(host);
+        }
+    }
+
+    @GuardedBy("mService")
+    private void addDirtyProcessesToPendingLocked() {
+        for (int i = mDirtyProcessSet.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mDirtyProcessSet.valueAt(i);
+            if (!app.isKilledByAm() && app.getThread() != null) {
+                mPendingProcessSet.add(app);
+            }
+        }
+        mDirtyProcessSet.clear();
+    }
+
+    @GuardedBy({"mService", "mProcLock"})
+    private void performIncrementalUpdateOomAdjLSP(String oomAdjReason) {
+        final ProcessRecord topApp = mService.getTopApp();
+
+        Trace.traceBegin(Trace.TRACE_TAG_ACTIVITY_MANAGER, oomAdjReason);
+        mService.mOomAdjProfiler.oomAdjStarted();
+
+        addDirtyProcessesToPendingLocked();
+        final ArrayList<ProcessRecord> processes = mTmpProcessList;
+        final ActiveUids uids = mTmpUidRecords;
+        collectReachableProcessesLocked(mPendingProcessSet, processes, uids);
+        mPendingProcessSet.clear();
+        mNumIncrementalUpdates++;
+        mNumIncrementalUpdateProcs += processes.size();
+        // Even with nothing to evaluate, this still trims the LRU list and recounts the
+        // processes of each kind, which did change with the process that went away.
+        updateOomAdjInnerLSP(oomAdjReason, topApp, processes, uids, true, false);
+        processes.clear();
+
+        mService.mOomAdjProfiler.oomAdjEnded();
+        Trace.traceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER);
+    }
+
     /**
      * Update OomAdj for all processes within the given list (could be partial), or the whole LRU
      * list if the given list is null; when it's partial update, each process's client proc won't
@@ -3064,6 +3178,10 @@ public class OomAdjuster {
                 + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
                 + " mNumServiceProcs=" + mNumServiceProcs
                 + " mNewNumServiceProcs=" + mNewNumServiceProcs);
+        pw.println("  mNumFullUpdates=" + mNumFullUpdates
+                + " mNumIncrementalUpdates=" + mNumIncrementalUpdates
+                + " mNumIncrementalUpdateProcs=" + mNumIncrementalUpdateProcs
+                + " (" + mDirtyProcessSet.size() + " dirty)");
     }
 
     @GuardedBy("mProcLock")
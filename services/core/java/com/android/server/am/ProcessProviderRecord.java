@@ -92,10 +92,15 @@ final class ProcessProviderRecord {
 
     void addProviderConnection(ContentProviderConnection connection) {
         mConProviders.add(connection);
+        mService.mOomAdjuster.onProviderConnectionChangedLocked(connection);
     }
 
     boolean removeProviderConnection(ContentProviderConnection connection) {
-        return mConProviders.remove(connection);
+        if (!mConProviders.remove(connection)) {
+            return false;
+        }
+        mService.mOomAdjuster.onProviderConnectionChangedLocked(connection);
+        return true;
     }
 
     ProcessProviderRecord(ProcessRecord app) {
@@ -141,6 +146,7 @@ final class ProcessProviderRecord {
             for (int i = mConProviders.size() - 1; i >= 0; i--) {
                 final ContentProviderConnection conn = mConProviders.get(i);
                 conn.provider.connections.remove(conn);
+                mService.mOomAdjuster.onProviderConnectionChangedLocked(conn);
                 mService.stopAssociationLocked(mApp.uid, mApp.processName, conn.provider.uid,
                         conn.provider.appInfo.longVersionCode, conn.provider.name,
                         conn.provider.info.processName);
@@ -305,13 +305,19 @@ final class ProcessServiceRecord {
 
     void addConnection(ConnectionRecord connection) {
         mConnections.add(connection);
+        mService.mOomAdjuster.onConnectionChangedLocked(connection);
     }
 
     void removeConnection(ConnectionRecord connection) {
-        mConnections.remove(connection);
+        if (mConnections.remove(connection)) {
+            mService.mOomAdjuster.onConnectionChangedLocked(connection);
+        }
     }
 
     void removeAllConnections() {
+        for (int i = mConnections.size() - 1; i >= 0; i--) {
+            mService.mOomAdjuster.onConnectionChangedLocked(mConnections.valueAt(i));
+        }
         mConnections.clear();
     }
 
@@ -142,6 +142,7 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
+import android.util.IntArray;
 import android.util.KeyValueListParser;
 import android.util.LongSparseArray;
 import android.util.Pair;
@@ -169,9 +170,11 @@ import com.android.internal.app.MessageSamplingConfig;
 import com.android.internal.compat.IPlatformCompat;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
+import com.android.internal.util.IntObjectHashMap;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 import com.android.internal.util.function.pooled.PooledLambda;
+import com.android.server.IoThread;
 import com.android.server.LocalServices;
 import com.android.server.LockGuard;
 import com.android.server.SystemServerInitThreadPool;
@@ -186,6 +189,8 @@ import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -194,6 +199,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
@@ -269,6 +275,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     final Context mContext;
     final AtomicFile mFile;
+    /** Per uid shards holding the persisted state, {@link #mFile} only indexes them. */
+    private final AppOpsShardStore mShardStore;
     private final @Nullable File mNoteOpCallerStacktracesFile;
     final Handler mHandler;
 
@@ -332,9 +340,41 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     };
 
+    /** Indices are not in uid order, removing in a reverse loop is safe. */
     @GuardedBy("this")
     @VisibleForTesting
-    final SparseArray<UidState> mUidStates = new SparseArray<>();
+    final IntObjectHashMap<UidState> mUidStates = new IntObjectHashMap<>();
+
+    /**
+     * Uids whose persisted state has not been read from their shard yet, mapped to the packages
+     * the shard has state for. A shard is read the first time its uid is accessed.
+     */
+    @GuardedBy("this")
+    private final SparseArray<String[]> mColdUids = new SparseArray<>();
+
+    /**
+     * Whether {@link #mColdUids} may not be empty, so callers about to access a uid can skip
+     * reading its shard without taking the lock once every shard was read.
+     */
+    private volatile boolean mHasColdUids;
+
+    /**
+     * Uids whose state may have changed since it was last written. The shards of all other uids
+     * are current and are not serialized again, {@link #mShardPackages} holds their index entry.
+     * Code changing the state of a uid must mark it with {@link #markUidDirtyLocked}, which
+     * {@link #getUidStateLocked} does for the callers that edit.
+     */
+    @GuardedBy("this")
+    @VisibleForTesting
+    final SparseBooleanArray mDirtyUids = new SparseBooleanArray();
+
+    /** Whether the state of every uid has to be written, e.g. after an upgrade. */
+    @GuardedBy("this")
+    private boolean mAllUidsDirty;
+
+    /** The packages the current shard of a uid has state for, as written to the index. */
+    @GuardedBy("this")
+    private final SparseArray<String[]> mShardPackages = new SparseArray<>();
 
     volatile @NonNull HistoricalRegistry mHistoricalRegistry = new HistoricalRegistry(this);
 
@@ -967,6 +1007,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             } else {
                 mAccessEvents.put(key, new NoteOpEvent(noteTime, duration, proxyInfo));
             }
+            markUidDirtyLocked(parent.uid);
         }
 
         /**
@@ -1004,6 +1045,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             } else {
                 mRejectEvents.put(key, new NoteOpEvent(noteTime, -1, null));
             }
+            markUidDirtyLocked(parent.uid);
         }
 
         /**
@@ -1128,6 +1170,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         accessDurationMillis, proxyCopy);
                 mAccessEvents.put(makeKey(event.getUidState(), event.getFlags()),
                         finishedEvent);
+                markUidDirtyLocked(parent.uid);
 
                 mHistoricalRegistry.increaseOpAccessDuration(parent.op, parent.uid,
                         parent.packageName, tag, event.getUidState(),
@@ -1380,6 +1423,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
             mAccessEvents = add(mAccessEvents, opToAdd.mAccessEvents);
             mRejectEvents = add(mRejectEvents, opToAdd.mRejectEvents);
+            markUidDirtyLocked(parent.uid);
         }
 
         public boolean isRunning() {
@@ -1773,6 +1817,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath, "appops");
+        mShardStore = new AppOpsShardStore(storagePath);
         if (AppOpsManager.NOTE_OP_COLLECTION_ENABLED) {
             mNoteOpCallerStacktracesFile = new File(SystemServiceManager.ensureSystemDir(),
                     "noteOpStackTraces.json");
@@ -1806,13 +1851,14 @@ public class AppOpsService extends IAppOpsService.Stub {
 
             if (action.equals(ACTION_PACKAGE_REMOVED) && !intent.hasExtra(EXTRA_REPLACING)) {
                 synchronized (AppOpsService.this) {
-                    UidState uidState = mUidStates.get(uid);
+                    UidState uidState = peekUidStateLocked(uid);
                     if (uidState == null || uidState.pkgOps == null) {
                         return;
                     }
 
                     Ops removedOps = uidState.pkgOps.remove(pkgName);
                     if (removedOps != null) {
+                        markUidDirtyLocked(uid);
                         scheduleFastWriteLocked();
                     }
                 }
@@ -1842,7 +1888,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
 
                 synchronized (AppOpsService.this) {
-                    UidState uidState = mUidStates.get(uid);
+                    UidState uidState = peekUidStateLocked(uid);
                     if (uidState == null || uidState.pkgOps == null) {
                         return;
                     }
@@ -1879,6 +1925,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                             newAttributedOp.add(op.mAttributions.valueAt(attributionNum));
                             op.mAttributions.removeAt(attributionNum);
 
+                            markUidDirtyLocked(uid);
                             scheduleFastWriteLocked();
                         }
                     }
@@ -1935,6 +1982,32 @@ public class AppOpsService extends IAppOpsService.Stub {
                             "Update app-ops uidState in case package " + pkg + " changed");
                 }
             }
+
+            // Uids that were not accessed yet are only read if one of their packages is gone.
+            // Updates of their packages while the device was off are not replayed, stale
+            // attributions are merged on the next update of the package instead.
+            for (int i = mColdUids.size() - 1; i >= 0; i--) {
+                final int uid = mColdUids.keyAt(i);
+                final String[] pkgsInUid = getPackagesForUid(uid);
+                if (ArrayUtils.isEmpty(pkgsInUid)) {
+                    mColdUids.removeAt(i);
+                    scheduleFastWriteLocked();
+                    continue;
+                }
+                for (String pkg : mColdUids.valueAt(i)) {
+                    if (!ArrayUtils.contains(pkgsInUid, pkg)) {
+                        final UidState uidState = peekUidStateLocked(uid);
+                        if (uidState != null && uidState.pkgOps != null
+                                && uidState.pkgOps.remove(pkg) != null) {
+                            markUidDirtyLocked(uid);
+                            scheduleFastWriteLocked();
+                        }
+                    }
+                }
+            }
+            if (mColdUids.size() > 0) {
+                IoThread.getHandler().post(this::loadColdUids);
+            }
         }
 
         final IntentFilter packageSuspendFilter = new IntentFilter();
@@ -2027,7 +2100,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void packageRemoved(int uid, String packageName) {
         synchronized (this) {
-            UidState uidState = mUidStates.get(uid);
+            UidState uidState = peekUidStateLocked(uid);
             if (uidState == null) {
                 return;
             }
@@ -2046,6 +2119,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (ops != null) {
+                markUidDirtyLocked(uid);
                 scheduleFastWriteLocked();
 
                 final int numOps = ops.size();
@@ -2078,6 +2152,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mUidStates.remove(uid);
                 scheduleFastWriteLocked();
             }
+            if (mColdUids.indexOfKey(uid) >= 0) {
+                mColdUids.remove(uid);
+                scheduleFastWriteLocked();
+            }
         }
     }
 
@@ -2245,7 +2323,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                 Manifest.permission.GET_APP_OPS_STATS, Binder.getCallingPid(),
                 Binder.getCallingUid(), null) == PackageManager.PERMISSION_GRANTED;
         ArrayList<AppOpsManager.PackageOps> res = null;
+        loadColdUids();
         synchronized (this) {
+            loadAllColdUidsLocked();
             final int uidStateCount = mUidStates.size();
             for (int i = 0; i < uidStateCount; i++) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -2472,6 +2552,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             Ops ops = getOpsLocked(uid, packageName, null, false, null, /* edit */ false);
             if (ops != null) {
                 ops.remove(op.op);
+                markUidDirtyLocked(uid);
                 if (ops.size() <= 0) {
                     UidState uidState = ops.uidState;
                     ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
@@ -2527,6 +2608,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             updatePermissionRevokedCompat(uid, code, mode);
         }
 
+        loadColdUid(uid);
         int previousMode;
         synchronized (this) {
             final int defaultMode = AppOpsManager.opToDefaultMode(code);
@@ -2541,12 +2623,14 @@ public class AppOpsService extends IAppOpsService.Stub {
                 uidState.opModes = new SparseIntArray();
                 uidState.opModes.put(code, mode);
                 mUidStates.put(uid, uidState);
+                markUidDirtyLocked(uid);
                 scheduleWriteLocked();
             } else if (uidState.opModes == null) {
                 previousMode = MODE_DEFAULT;
                 if (mode != defaultMode) {
                     uidState.opModes = new SparseIntArray();
                     uidState.opModes.put(code, mode);
+                    markUidDirtyLocked(uid);
                     scheduleWriteLocked();
                 }
             } else {
@@ -2562,6 +2646,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 } else {
                     uidState.opModes.put(code, mode);
                 }
+                markUidDirtyLocked(uid);
                 scheduleWriteLocked();
             }
             uidState.evalForegroundOps(mOpModeWatchers);
@@ -2953,8 +3038,18 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         ArrayList<ChangeRec> allChanges = new ArrayList<>();
+        if (reqUid == -1) {
+            loadColdUids();
+        } else {
+            loadColdUid(reqUid);
+        }
         synchronized (this) {
             boolean changed = false;
+            if (reqUid == -1) {
+                loadAllColdUidsLocked();
+            } else {
+                peekUidStateLocked(reqUid);
+            }
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
 
@@ -2966,6 +3061,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         if (AppOpsManager.opAllowsReset(code)) {
                             int previousMode = opModes.valueAt(j);
                             opModes.removeAt(j);
+                            markUidDirtyLocked(uidState.uid);
                             if (opModes.size() <= 0) {
                                 uidState.opModes = null;
                             }
@@ -3016,6 +3112,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                             changed = true;
                             uidChanged = true;
                             final int uid = curOp.uidState.uid;
+                            markUidDirtyLocked(uid);
                             callbacks = addCallbacks(callbacks, curOp.op, uid, packageName,
                                     previousMode, mOpModeWatchers.get(curOp.op));
                             callbacks = addCallbacks(callbacks, curOp.op, uid, packageName,
@@ -4379,14 +4476,18 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private @Nullable UidState getUidStateLocked(int uid, boolean edit) {
-        UidState uidState = mUidStates.get(uid);
+        UidState uidState = peekUidStateLocked(uid);
         if (uidState == null) {
             if (!edit) {
                 return null;
             }
             uidState = new UidState(uid);
             mUidStates.put(uid, uidState);
+            markUidDirtyLocked(uid);
         } else {
+            if (edit) {
+                markUidDirtyLocked(uid);
+            }
             updatePendingStateIfNeededLocked(uidState);
         }
         return uidState;
@@ -4536,9 +4637,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                     /* isAttributionTagValid */ true);
         }
 
+        loadColdUid(uid);
         // Do not check if uid/packageName/attributionTag is already known.
         synchronized (this) {
-            UidState uidState = mUidStates.get(uid);
+            UidState uidState = peekUidStateLocked(uid);
             if (uidState != null && uidState.pkgOps != null) {
                 Ops ops = uidState.pkgOps.get(packageName);
 
@@ -4813,38 +4915,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 boolean success = false;
                 mUidStates.clear();
+                mColdUids.clear();
+                mShardPackages.clear();
                 try {
-                    TypedXmlPullParser parser = Xml.resolvePullParser(stream);
-                    int type;
-                    while ((type = parser.next()) != XmlPullParser.START_TAG
-                            && type != XmlPullParser.END_DOCUMENT) {
-                        ;
-                    }
-
-                    if (type != XmlPullParser.START_TAG) {
-                        throw new IllegalStateException("no start tag found");
-                    }
-
-                    oldVersion = parser.getAttributeInt(null, "v", NO_VERSION);
-
-                    int outerDepth = parser.getDepth();
-                    while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-                        if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
-
-                        String tagName = parser.getName();
-                        if (tagName.equals("pkg")) {
-                            readPackage(parser);
-                        } else if (tagName.equals("uid")) {
-                            readUidOps(parser);
-                        } else {
-                            Slog.w(TAG, "Unknown element under <app-ops>: "
-                                    + parser.getName());
-                            XmlUtils.skipCurrentTag(parser);
-                        }
-                    }
+                    oldVersion = readStateLocked(Xml.resolvePullParser(stream), false);
                     success = true;
                 } catch (IllegalStateException e) {
                     Slog.w(TAG, "Failed parsing " + e);
@@ -4861,6 +4935,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 } finally {
                     if (!success) {
                         mUidStates.clear();
+                        mColdUids.clear();
+                        mShardPackages.clear();
                     }
                     try {
                         stream.close();
@@ -4874,6 +4950,174 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Reads an app-ops document, either the index in {@link #mFile}, which may also still hold
+     * the state of all uids inline if it was written before state was sharded, or the shard of
+     * a single uid.
+     *
+     * @param fromShard Whether a shard is read after boot, in which case the uid modes are set
+     *                  directly instead of going through {@link #setUidMode}.
+     * @return the version of the document.
+     */
+    @GuardedBy("this")
+    private int readStateLocked(TypedXmlPullParser parser, boolean fromShard)
+            throws NumberFormatException, XmlPullParserException, IOException {
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+            ;
+        }
+
+        if (type != XmlPullParser.START_TAG) {
+            throw new IllegalStateException("no start tag found");
+        }
+
+        final int version = parser.getAttributeInt(null, "v", NO_VERSION);
+
+        int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+
+            String tagName = parser.getName();
+            if (tagName.equals("pkg")) {
+                readPackage(parser);
+            } else if (tagName.equals("uid")) {
+                readUidOps(parser, fromShard);
+            } else if (tagName.equals("shard") && !fromShard) {
+                readShardEntry(parser);
+            } else {
+                Slog.w(TAG, "Unknown element under <app-ops>: "
+                        + parser.getName());
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+        return version;
+    }
+
+    private void readShardEntry(TypedXmlPullParser parser)
+            throws NumberFormatException, XmlPullParserException, IOException {
+        final int uid = parser.getAttributeInt(null, "n");
+        final ArrayList<String> pkgNames = new ArrayList<>();
+        int outerDepth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            if (parser.getName().equals("pkg")) {
+                pkgNames.add(parser.getAttributeValue(null, "n"));
+            }
+            XmlUtils.skipCurrentTag(parser);
+        }
+        final String[] pkgs = pkgNames.toArray(new String[0]);
+        mColdUids.put(uid, pkgs);
+        mHasColdUids = true;
+        mShardPackages.put(uid, pkgs);
+    }
+
+    /**
+     * Returns the state of a uid without creating it, reading it from the uid's shard first if
+     * it was not accessed since boot.
+     */
+    @GuardedBy("this")
+    private @Nullable UidState peekUidStateLocked(int uid) {
+        final int coldIndex = mColdUids.indexOfKey(uid);
+        if (coldIndex >= 0) {
+            mColdUids.removeAt(coldIndex);
+            parseShardLocked(uid, mShardStore.readShard(uid));
+        }
+        return mUidStates.get(uid);
+    }
+
+    @GuardedBy("this")
+    private void markUidDirtyLocked(int uid) {
+        mDirtyUids.put(uid, true);
+    }
+
+    @GuardedBy("this")
+    private void parseShardLocked(int uid, @Nullable byte[] shard) {
+        if (shard == null) {
+            return;
+        }
+        try {
+            readStateLocked(Xml.resolvePullParser(new ByteArrayInputStream(shard)), true);
+            // The state now matches its shard.
+            mDirtyUids.delete(uid);
+            return;
+        } catch (IllegalStateException | NullPointerException | NumberFormatException
+                | XmlPullParserException | IOException | IndexOutOfBoundsException e) {
+            Slog.w(TAG, "Failed parsing shard of uid " + uid + ": " + e);
+        }
+        mUidStates.remove(uid);
+    }
+
+    /**
+     * Reads the shards of all uids not accessed yet, for callers that go over every uid. The
+     * uids are not marked dirty, callers changing their state have to mark them.
+     */
+    @GuardedBy("this")
+    private void loadAllColdUidsLocked() {
+        while (mColdUids.size() > 0) {
+            final int uid = mColdUids.keyAt(mColdUids.size() - 1);
+            mColdUids.removeAt(mColdUids.size() - 1);
+            parseShardLocked(uid, mShardStore.readShard(uid));
+        }
+        mHasColdUids = false;
+    }
+
+    /**
+     * Reads the shards of the uids not accessed yet without holding the lock, so that the first
+     * access of a uid after boot does not have to read its shard on a binder thread, and callers
+     * going over every uid don't read them with the lock held.
+     */
+    private void loadColdUids() {
+        if (!mHasColdUids) {
+            return;
+        }
+        final IntArray uids = new IntArray();
+        synchronized (this) {
+            for (int i = 0; i < mColdUids.size(); i++) {
+                uids.add(mColdUids.keyAt(i));
+            }
+        }
+        final int uidCount = uids.size();
+        for (int i = 0; i < uidCount; i++) {
+            loadColdUid(uids.get(i));
+        }
+    }
+
+    /**
+     * Reads the shard of a uid if it was not accessed yet without holding the lock, for callers
+     * about to access the uid. Uids accessed without calling this read their shard with the
+     * lock held.
+     */
+    private void loadColdUid(int uid) {
+        if (!mHasColdUids) {
+            return;
+        }
+        synchronized (this) {
+            if (mColdUids.indexOfKey(uid) < 0) {
+                return;
+            }
+        }
+        final byte[] shard = mShardStore.readShard(uid);
+        synchronized (this) {
+            final int coldIndex = mColdUids.indexOfKey(uid);
+            // The uid might have been accessed or removed in the meantime.
+            if (coldIndex >= 0) {
+                mColdUids.removeAt(coldIndex);
+                parseShardLocked(uid, shard);
+            }
+            if (mColdUids.size() == 0) {
+                mHasColdUids = false;
+            }
+        }
+    }
+
     private void upgradeRunAnyInBackgroundLocked() {
         for (int i = 0; i < mUidStates.size(); i++) {
             final UidState uidState = mUidStates.valueAt(i);
@@ -4915,6 +5159,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             return;
         }
         Slog.d(TAG, "Upgrading app-ops xml from version " + oldVersion + " to " + CURRENT_VERSION);
+        loadAllColdUidsLocked();
+        mAllUidsDirty = true;
         switch (oldVersion) {
             case NO_VERSION:
                 upgradeRunAnyInBackgroundLocked();
@@ -4925,8 +5171,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         scheduleFastWriteLocked();
     }
 
-    private void readUidOps(TypedXmlPullParser parser) throws NumberFormatException,
-            XmlPullParserException, IOException {
+    private void readUidOps(TypedXmlPullParser parser, boolean fromShard)
+            throws NumberFormatException, XmlPullParserException, IOException {
         final int uid = parser.getAttributeInt(null, "n");
         int outerDepth = parser.getDepth();
         int type;
@@ -4940,7 +5186,17 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (tagName.equals("op")) {
                 final int code = parser.getAttributeInt(null, "n");
                 final int mode = parser.getAttributeInt(null, "m");
-                setUidMode(code, uid, mode);
+                if (fromShard) {
+                    // Only the persisted state is restored, nobody observed it changing.
+                    final UidState uidState = getUidStateLocked(uid, true);
+                    if (uidState.opModes == null) {
+                        uidState.opModes = new SparseIntArray();
+                    }
+                    uidState.opModes.put(code, mode);
+                    uidState.evalForegroundOps(mOpModeWatchers);
+                } else {
+                    setUidMode(code, uid, mode);
+                }
             } else {
                 Slog.w(TAG, "Unknown element under <uid-ops>: "
                         + parser.getName());
@@ -5058,6 +5314,94 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void writeState() {
         synchronized (mFile) {
+            final long startTime = SystemClock.elapsedRealtime();
+            final IntArray uids = new IntArray();
+            // Uids that were not accessed since boot or since the last write are unchanged,
+            // their shards are kept as is.
+            final SparseArray<String[]> shardUids;
+            synchronized (this) {
+                shardUids = mColdUids.clone();
+                final int uidStateCount = mUidStates.size();
+                for (int i = 0; i < uidStateCount; i++) {
+                    final int uid = mUidStates.keyAt(i);
+                    final String[] pkgNames = mShardPackages.get(uid);
+                    if (mAllUidsDirty || pkgNames == null || mDirtyUids.get(uid)) {
+                        uids.add(uid);
+                    } else {
+                        shardUids.put(uid, pkgNames);
+                    }
+                }
+                mDirtyUids.clear();
+                mAllUidsDirty = false;
+            }
+
+            // Only one uid worth of state is copied out of the lock and serialized at a time.
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            int shardsWritten = 0;
+            final int uidCount = uids.size();
+            for (int i = 0; i < uidCount; i++) {
+                final int uid = uids.get(i);
+                SparseIntArray opModes = null;
+                final ArrayList<AppOpsManager.PackageOps> pkgOps = new ArrayList<>();
+                synchronized (this) {
+                    final UidState uidState = mUidStates.get(uid);
+                    if (uidState == null) {
+                        continue;
+                    }
+                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                        opModes = uidState.opModes.clone();
+                    }
+                    if (uidState.pkgOps != null) {
+                        final int packageCount = uidState.pkgOps.size();
+                        for (int j = 0; j < packageCount; j++) {
+                            final Ops ops = uidState.pkgOps.valueAt(j);
+                            final ArrayList<AppOpsManager.OpEntry> resOps = collectOps(ops, null);
+                            if (resOps != null) {
+                                pkgOps.add(new AppOpsManager.PackageOps(ops.packageName, uid,
+                                        resOps));
+                            }
+                        }
+                    }
+                }
+                if (opModes == null && pkgOps.isEmpty()) {
+                    synchronized (this) {
+                        mShardPackages.remove(uid);
+                    }
+                    continue;
+                }
+
+                final String[] pkgNames = new String[pkgOps.size()];
+                for (int j = 0; j < pkgNames.length; j++) {
+                    pkgNames[j] = pkgOps.get(j).getPackageName();
+                }
+                // Even if writing fails the uid stays indexed, its previous shard is still there.
+                shardUids.put(uid, pkgNames);
+
+                buffer.reset();
+                try {
+                    TypedXmlSerializer out = Xml.newBinarySerializer();
+                    out.setOutput(buffer, StandardCharsets.UTF_8.name());
+                    out.startDocument(null, true);
+                    out.startTag(null, "app-ops");
+                    out.attributeInt(null, "v", CURRENT_VERSION);
+                    writeUidState(out, uid, opModes, pkgOps);
+                    out.endTag(null, "app-ops");
+                    out.endDocument();
+                    if (mShardStore.writeShardIfChanged(uid, buffer.toByteArray())) {
+                        shardsWritten++;
+                    }
+                    synchronized (this) {
+                        mShardPackages.put(uid, pkgNames);
+                    }
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to write state of uid " + uid, e);
+                    // Try again on the next write.
+                    synchronized (this) {
+                        markUidDirtyLocked(uid);
+                    }
+                }
+            }
+
             FileOutputStream stream;
             try {
                 stream = mFile.startWrite();
@@ -5066,163 +5410,155 @@ public class AppOpsService extends IAppOpsService.Stub {
                 return;
             }
 
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
-
             try {
                 TypedXmlSerializer out = Xml.resolveSerializer(stream);
                 out.startDocument(null, true);
                 out.startTag(null, "app-ops");
                 out.attributeInt(null, "v", CURRENT_VERSION);
-
-                SparseArray<SparseIntArray> uidStatesClone;
-                synchronized (this) {
-                    uidStatesClone = new SparseArray<>(mUidStates.size());
-
-                    final int uidStateCount = mUidStates.size();
-                    for (int uidStateNum = 0; uidStateNum < uidStateCount; uidStateNum++) {
-                        UidState uidState = mUidStates.valueAt(uidStateNum);
-                        int uid = mUidStates.keyAt(uidStateNum);
-
-                        SparseIntArray opModes = uidState.opModes;
-                        if (opModes != null && opModes.size() > 0) {
-                            uidStatesClone.put(uid, new SparseIntArray(opModes.size()));
-
-                            final int opCount = opModes.size();
-                            for (int opCountNum = 0; opCountNum < opCount; opCountNum++) {
-                                uidStatesClone.get(uid).put(
-                                        opModes.keyAt(opCountNum),
-                                        opModes.valueAt(opCountNum));
-                            }
-                        }
+                final int shardCount = shardUids.size();
+                for (int i = 0; i < shardCount; i++) {
+                    out.startTag(null, "shard");
+                    out.attributeInt(null, "n", shardUids.keyAt(i));
+                    for (String pkgName : shardUids.valueAt(i)) {
+                        out.startTag(null, "pkg");
+                        out.attribute(null, "n", pkgName);
+                        out.endTag(null, "pkg");
                     }
+                    out.endTag(null, "shard");
                 }
+                out.endTag(null, "app-ops");
+                out.endDocument();
+                mFile.finishWrite(stream);
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to write state, restoring backup.", e);
+                mFile.failWrite(stream);
+                return;
+            }
 
-                final int uidStateCount = uidStatesClone.size();
-                for (int uidStateNum = 0; uidStateNum < uidStateCount; uidStateNum++) {
-                    SparseIntArray opModes = uidStatesClone.valueAt(uidStateNum);
-                    if (opModes != null && opModes.size() > 0) {
-                        out.startTag(null, "uid");
-                        out.attributeInt(null, "n", uidStatesClone.keyAt(uidStateNum));
-                        final int opCount = opModes.size();
-                        for (int opCountNum = 0; opCountNum < opCount; opCountNum++) {
-                            final int op = opModes.keyAt(opCountNum);
-                            final int mode = opModes.valueAt(opCountNum);
-                            out.startTag(null, "op");
-                            out.attributeInt(null, "n", op);
-                            out.attributeInt(null, "m", mode);
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
+            final SparseBooleanArray keep = new SparseBooleanArray(shardUids.size());
+            for (int i = 0; i < shardUids.size(); i++) {
+                keep.put(shardUids.keyAt(i), true);
+            }
+            synchronized (this) {
+                // Uids that were created after the state was copied are dirty and not affected.
+                for (int i = mShardPackages.size() - 1; i >= 0; i--) {
+                    if (!keep.get(mShardPackages.keyAt(i))) {
+                        mShardPackages.removeAt(i);
                     }
                 }
+            }
+            mShardStore.deleteShardsExcept(keep);
+            mShardStore.onWriteFinished(shardUids.size(), shardsWritten,
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+        mHistoricalRegistry.writeAndClearDiscreteHistory();
+    }
 
-                if (allOps != null) {
-                    String lastPkg = null;
-                    for (int i=0; i<allOps.size(); i++) {
-                        AppOpsManager.PackageOps pkg = allOps.get(i);
-                        if (!Objects.equals(pkg.getPackageName(), lastPkg)) {
-                            if (lastPkg != null) {
-                                out.endTag(null, "pkg");
-                            }
-                            lastPkg = pkg.getPackageName();
-                            if (lastPkg != null) {
-                                out.startTag(null, "pkg");
-                                out.attribute(null, "n", lastPkg);
-                            }
+    /**
+     * Writes the uid modes and the package ops of a single uid.
+     */
+    private static void writeUidState(TypedXmlSerializer out, int uid,
+            @Nullable SparseIntArray opModes, @NonNull List<AppOpsManager.PackageOps> pkgOps)
+            throws IOException {
+        if (opModes != null) {
+            out.startTag(null, "uid");
+            out.attributeInt(null, "n", uid);
+            final int opCount = opModes.size();
+            for (int opCountNum = 0; opCountNum < opCount; opCountNum++) {
+                final int op = opModes.keyAt(opCountNum);
+                final int mode = opModes.valueAt(opCountNum);
+                out.startTag(null, "op");
+                out.attributeInt(null, "n", op);
+                out.attributeInt(null, "m", mode);
+                out.endTag(null, "op");
+            }
+            out.endTag(null, "uid");
+        }
+
+        for (int i = 0; i < pkgOps.size(); i++) {
+            AppOpsManager.PackageOps pkg = pkgOps.get(i);
+            out.startTag(null, "pkg");
+            out.attribute(null, "n", pkg.getPackageName());
+            out.startTag(null, "uid");
+            out.attributeInt(null, "n", pkg.getUid());
+            List<AppOpsManager.OpEntry> ops = pkg.getOps();
+            for (int j=0; j<ops.size(); j++) {
+                AppOpsManager.OpEntry op = ops.get(j);
+                out.startTag(null, "op");
+                out.attributeInt(null, "n", op.getOp());
+                if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
+                    out.attributeInt(null, "m", op.getMode());
+                }
+
+                for (String attributionTag : op.getAttributedOpEntries().keySet()) {
+                    final AttributedOpEntry attribution =
+                            op.getAttributedOpEntries().get(attributionTag);
+
+                    final ArraySet<Long> keys = attribution.collectKeys();
+
+                    final int keyCount = keys.size();
+                    for (int k = 0; k < keyCount; k++) {
+                        final long key = keys.valueAt(k);
+
+                        final int uidState = AppOpsManager.extractUidStateFromKey(key);
+                        final int flags = AppOpsManager.extractFlagsFromKey(key);
+
+                        final long accessTime = attribution.getLastAccessTime(uidState,
+                                uidState, flags);
+                        final long rejectTime = attribution.getLastRejectTime(uidState,
+                                uidState, flags);
+                        final long accessDuration = attribution.getLastDuration(
+                                uidState, uidState, flags);
+                        // Proxy information for rejections is not backed up
+                        final OpEventProxyInfo proxy = attribution.getLastProxyInfo(
+                                uidState, uidState, flags);
+
+                        if (accessTime <= 0 && rejectTime <= 0 && accessDuration <= 0
+                                && proxy == null) {
+                            continue;
                         }
-                        out.startTag(null, "uid");
-                        out.attributeInt(null, "n", pkg.getUid());
-                        List<AppOpsManager.OpEntry> ops = pkg.getOps();
-                        for (int j=0; j<ops.size(); j++) {
-                            AppOpsManager.OpEntry op = ops.get(j);
-                            out.startTag(null, "op");
-                            out.attributeInt(null, "n", op.getOp());
-                            if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
-                                out.attributeInt(null, "m", op.getMode());
-                            }
-
-                            for (String attributionTag : op.getAttributedOpEntries().keySet()) {
-                                final AttributedOpEntry attribution =
-                                        op.getAttributedOpEntries().get(attributionTag);
-
-                                final ArraySet<Long> keys = attribution.collectKeys();
-
-                                final int keyCount = keys.size();
-                                for (int k = 0; k < keyCount; k++) {
-                                    final long key = keys.valueAt(k);
-
-                                    final int uidState = AppOpsManager.extractUidStateFromKey(key);
-                                    final int flags = AppOpsManager.extractFlagsFromKey(key);
-
-                                    final long accessTime = attribution.getLastAccessTime(uidState,
-                                            uidState, flags);
-                                    final long rejectTime = attribution.getLastRejectTime(uidState,
-                                            uidState, flags);
-                                    final long accessDuration = attribution.getLastDuration(
-                                            uidState, uidState, flags);
-                                    // Proxy information for rejections is not backed up
-                                    final OpEventProxyInfo proxy = attribution.getLastProxyInfo(
-                                            uidState, uidState, flags);
-
-                                    if (accessTime <= 0 && rejectTime <= 0 && accessDuration <= 0
-                                            && proxy == null) {
-                                        continue;
-                                    }
-
-                                    String proxyPkg = null;
-                                    String proxyAttributionTag = null;
-                                    int proxyUid = Process.INVALID_UID;
-                                    if (proxy != null) {
-                                        proxyPkg = proxy.getPackageName();
-                                        proxyAttributionTag = proxy.getAttributionTag();
-                                        proxyUid = proxy.getUid();
-                                    }
 
-                                    out.startTag(null, "st");
-                                    if (attributionTag != null) {
-                                        out.attribute(null, "id", attributionTag);
-                                    }
-                                    out.attributeLong(null, "n", key);
-                                    if (accessTime > 0) {
-                                        out.attributeLong(null, "t", accessTime);
-                                    }
-                                    if (rejectTime > 0) {
-                                        out.attributeLong(null, "r", rejectTime);
-                                    }
-                                    if (accessDuration > 0) {
-                                        out.attributeLong(null, "d", accessDuration);
-                                    }
-                                    if (proxyPkg != null) {
-                                        out.attribute(null, "pp", proxyPkg);
-                                    }
-                                    if (proxyAttributionTag != null) {
-                                        out.attribute(null, "pc", proxyAttributionTag);
-                                    }
-                                    if (proxyUid >= 0) {
-                                        out.attributeInt(null, "pu", proxyUid);
-                                    }
-                                    out.endTag(null, "st");
-                                }
-                            }
+                        String proxyPkg = null;
+                        String proxyAttributionTag = null;
+                        int proxyUid = Process.INVALID_UID;
+                        if (proxy != null) {
+                            proxyPkg = proxy.getPackageName();
+                            proxyAttributionTag = proxy.getAttributionTag();
+                            proxyUid = proxy.getUid();
+                        }
 
-                            out.endTag(null, "op");
+                        out.startTag(null, "st");
+                        if (attributionTag != null) {
+                            out.attribute(null, "id", attributionTag);
                         }
-                        out.endTag(null, "uid");
-                    }
-                    if (lastPkg != null) {
-                        out.endTag(null, "pkg");
+                        out.attributeLong(null, "n", key);
+                        if (accessTime > 0) {
+                            out.attributeLong(null, "t", accessTime);
+                        }
+                        if (rejectTime > 0) {
+                            out.attributeLong(null, "r", rejectTime);
+                        }
+                        if (accessDuration > 0) {
+                            out.attributeLong(null, "d", accessDuration);
+                        }
+                        if (proxyPkg != null) {
+                            out.attribute(null, "pp", proxyPkg);
+                        }
+                        if (proxyAttributionTag != null) {
+                            out.attribute(null, "pc", proxyAttributionTag);
+                        }
+                        if (proxyUid >= 0) {
+                            out.attributeInt(null, "pu", proxyUid);
+                        }
+                        out.endTag(null, "st");
                     }
                 }
 
-                out.endTag(null, "app-ops");
-                out.endDocument();
-                mFile.finishWrite(stream);
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state, restoring backup.", e);
-                mFile.failWrite(stream);
+                out.endTag(null, "op");
             }
+            out.endTag(null, "uid");
+            out.endTag(null, "pkg");
         }
-        mHistoricalRegistry.writeAndClearDiscreteHistory();
     }
 
     static class Shell extends ShellCommand {
@@ -5966,11 +6302,15 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
         final Date date = new Date();
+        loadColdUids();
         synchronized (this) {
             pw.println("Current AppOps Service state:");
             if (!dumpHistory && !dumpWatchers) {
                 mConstants.dump(pw);
+                mShardStore.dump(pw);
             }
+            // Uids that were never accessed since boot only exist in their shard.
+            loadAllColdUidsLocked();
             pw.println();
             final long now = System.currentTimeMillis();
             final long nowElapsed = SystemClock.elapsedRealtime();
@@ -6682,12 +7022,13 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (uid == Process.INVALID_UID) {
                 return;
             }
-            UidState uidState = mUidStates.get(uid);
+            UidState uidState = peekUidStateLocked(uid);
             if (uidState == null || uidState.pkgOps == null) {
                 return;
             }
             Ops removedOps = uidState.pkgOps.remove(packageName);
             if (removedOps != null) {
+                markUidDirtyLocked(uid);
                 scheduleFastWriteLocked();
             }
         }
@@ -7012,6 +7353,11 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mUidStates.removeAt(i);
             }
         }
+        for (int i = mColdUids.size() - 1; i >= 0; --i) {
+            if (UserHandle.getUserId(mColdUids.keyAt(i)) == userHandle) {
+                mColdUids.removeAt(i);
+            }
+        }
     }
 
     private void checkSystemUid(String function) {
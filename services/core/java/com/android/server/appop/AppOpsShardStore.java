@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Files holding the persisted app-op state of one uid each, next to the app-ops file that
+ * indexes them.
+ * <p>
+ * Every shard is a self contained app-ops document restricted to a single uid. The store
+ * remembers a digest of what it last wrote or read for each uid so that unchanged shards are
+ * not rewritten.
+ * </p>
+ */
+final class AppOpsShardStore {
+    private static final String TAG = "AppOpsShardStore";
+
+    private final Object mLock = new Object();
+
+    private final File mDir;
+
+    @GuardedBy("mLock")
+    private final SparseLongArray mDigests = new SparseLongArray();
+
+    @GuardedBy("mLock")
+    private int mShardsRead;
+
+    @GuardedBy("mLock")
+    private int mShardsWritten;
+
+    @GuardedBy("mLock")
+    private int mShardsSkipped;
+
+    @GuardedBy("mLock")
+    private long mBytesWritten;
+
+    @GuardedBy("mLock")
+    private long mLastWriteDurationMillis = -1;
+
+    @GuardedBy("mLock")
+    private int mLastWriteShardCount;
+
+    @GuardedBy("mLock")
+    private int mLastWriteShardsWritten;
+
+    AppOpsShardStore(@NonNull File indexFile) {
+        mDir = new File(indexFile.getParentFile(), indexFile.getName() + ".shards");
+    }
+
+    private AtomicFile getShardFile(int uid) {
+        return new AtomicFile(new File(mDir, Integer.toString(uid)));
+    }
+
+    /**
+     * @return the content of the shard of the uid, or {@code null} if there is none.
+     */
+    @Nullable
+    byte[] readShard(int uid) {
+        final byte[] shard;
+        try {
+            shard = getShardFile(uid).readFully();
+        } catch (FileNotFoundException e) {
+            Slog.w(TAG, "No shard for uid " + uid);
+            return null;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed reading shard for uid " + uid, e);
+            return null;
+        }
+        synchronized (mLock) {
+            mDigests.put(uid, digest(shard));
+            mShardsRead++;
+        }
+        return shard;
+    }
+
+    /**
+     * Persists the shard of a uid unless it is identical to what was last read or written.
+     *
+     * @return whether the shard was written, {@code false} if it was unchanged.
+     * @throws IOException if the shard could not be written.
+     */
+    boolean writeShardIfChanged(int uid, @NonNull byte[] shard) throws IOException {
+        final long digest = digest(shard);
+        synchronized (mLock) {
+            final int index = mDigests.indexOfKey(uid);
+            if (index >= 0 && mDigests.valueAt(index) == digest) {
+                mShardsSkipped++;
+                return false;
+            }
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+        final AtomicFile file = getShardFile(uid);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            stream.write(shard);
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            file.failWrite(stream);
+            synchronized (mLock) {
+                mDigests.delete(uid);
+            }
+            throw e;
+        }
+        synchronized (mLock) {
+            mDigests.put(uid, digest);
+            mShardsWritten++;
+            mBytesWritten += shard.length;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the shards of all uids but the given ones.
+     */
+    void deleteShardsExcept(@NonNull SparseBooleanArray uids) {
+        final String[] names = mDir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            final int uid;
+            try {
+                // Also matches the backup and new files left by an interrupted AtomicFile write.
+                final int end = name.indexOf('.');
+                uid = Integer.parseInt(end < 0 ? name : name.substring(0, end));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (uids.get(uid)) {
+                continue;
+            }
+            if (!new File(mDir, name).delete()) {
+                Slog.w(TAG, "Failed to delete shard " + name);
+            }
+            synchronized (mLock) {
+                mDigests.delete(uid);
+            }
+        }
+    }
+
+    void onWriteFinished(int shardCount, int shardsWritten, long durationMillis) {
+        synchronized (mLock) {
+            mLastWriteShardCount = shardCount;
+            mLastWriteShardsWritten = shardsWritten;
+            mLastWriteDurationMillis = durationMillis;
+        }
+    }
+
+    void dump(@NonNull PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("  Persistence:");
+            pw.print("    shardsRead=");
+            pw.print(mShardsRead);
+            pw.print(" shardsWritten=");
+            pw.print(mShardsWritten);
+            pw.print(" shardsUnchanged=");
+            pw.print(mShardsSkipped);
+            pw.print(" bytesWritten=");
+            pw.println(mBytesWritten);
+            pw.print("    lastWrite: ");
+            pw.print(mLastWriteShardsWritten);
+            pw.print("/");
+            pw.print(mLastWriteShardCount);
+            pw.print(" shards in ");
+            pw.print(mLastWriteDurationMillis);
+            pw.println("ms");
+        }
+    }
+
+    private static long digest(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        final int hash = Arrays.hashCode(data);
+        // Two independent checksums keep the odds of mistaking a changed shard for an
+        // unchanged one negligible.
+        return (crc.getValue() << 32) | (hash & 0xFFFFFFFFL);
+    }
+}
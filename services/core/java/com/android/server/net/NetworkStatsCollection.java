@@ -27,6 +27,8 @@ import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
 import static android.net.TrafficStats.UID_REMOVED;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
@@ -62,24 +64,30 @@ import com.android.internal.util.IndentingPrintWriter;
 import libcore.io.IoUtils;
 
 import com.google.android.collect.Lists;
-import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Objects;
 
@@ -102,6 +110,30 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_UNIFIED_INDEXED = 17;
+
+    /**
+     * Size of the fixed header of {@link #VERSION_UNIFIED_INDEXED} files: magic, version, ident
+     * count, key count and the length of the serialized idents.
+     */
+    private static final int INDEXED_HEADER_SIZE = 20;
+    /**
+     * Size of a key entry: uid, set, tag, ident index, bucket duration, bucket count, data offset
+     * and data length.
+     */
+    private static final int INDEXED_KEY_SIZE = 44;
+    /**
+     * Buckets of a key are stored as rows of var-longs: the delta of the bucket start to the
+     * previous row, active time, rx/tx bytes/packets and operations. Every this many rows a
+     * checkpoint with the absolute bucket start and the offset of the row is stored in front of
+     * the rows instead of the delta, so that a range is found with a binary search over the
+     * checkpoints.
+     */
+    private static final int BUCKETS_PER_CHECKPOINT = 16;
+    /** Size of a checkpoint: bucket start and row offset. */
+    private static final int CHECKPOINT_SIZE = 12;
+    /** Upper bound on buckets per key, anything larger is considered corruption. */
+    private static final int MAX_INDEXED_BUCKETS = 1 << 20;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -472,12 +504,326 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 }
                 break;
             }
+            case VERSION_UNIFIED_INDEXED: {
+                // Same data as the mapped reads in readMatching(), read front to back since the
+                // bucket data is stored in key order.
+                final int identCount = in.readInt();
+                final int keyCount = in.readInt();
+                in.readInt(); // length of the idents, only needed to locate the keys
+                final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+                for (int i = 0; i < identCount; i++) {
+                    idents[i] = new NetworkIdentitySet(in);
+                }
+
+                final Key[] keys = new Key[keyCount];
+                final long[] bucketDurations = new long[keyCount];
+                final int[] bucketCounts = new int[keyCount];
+                for (int i = 0; i < keyCount; i++) {
+                    final int uid = in.readInt();
+                    final int set = in.readInt();
+                    final int tag = in.readInt();
+                    final int identIndex = in.readInt();
+                    if (identIndex < 0 || identIndex >= identCount) {
+                        throw new ProtocolException("unexpected ident index: " + identIndex);
+                    }
+                    keys[i] = new Key(idents[identIndex], uid, set, tag);
+                    bucketDurations[i] = in.readLong();
+                    bucketCounts[i] = in.readInt();
+                    in.readLong(); // data offset, the data follows in key order
+                    in.readInt(); // data length
+                }
+
+                final NetworkStatsHistory.Entry bucket = new NetworkStatsHistory.Entry();
+                final NetworkStats.Entry recycle = new NetworkStats.Entry();
+                for (int i = 0; i < keyCount; i++) {
+                    final int count = bucketCounts[i];
+                    if (count < 0 || count > MAX_INDEXED_BUCKETS) {
+                        throw new ProtocolException("unexpected bucket count: " + count);
+                    }
+                    final long[] checkpointStarts = new long[getCheckpointCount(count)];
+                    for (int j = 0; j < checkpointStarts.length; j++) {
+                        checkpointStarts[j] = in.readLong();
+                        in.readInt(); // row offset, only needed to seek
+                    }
+                    final NetworkStatsHistory history = new NetworkStatsHistory(
+                            checkBucketDuration(bucketDurations[i]), count);
+                    long bucketStart = 0;
+                    for (int j = 0; j < count; j++) {
+                        if (j % BUCKETS_PER_CHECKPOINT == 0) {
+                            bucketStart = checkpointStarts[j / BUCKETS_PER_CHECKPOINT];
+                        } else {
+                            bucketStart += readVarLong(in);
+                        }
+                        bucket.bucketStart = bucketStart;
+                        readBucketValues(in, bucket);
+                        recordBucket(history, bucket, recycle);
+                    }
+                    recordReadHistory(keys[i], history);
+                }
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
         }
     }
 
+    /**
+     * Read the parts of a file written by {@link #write(OutputStream)} that overlap the given
+     * time range. Files in the indexed format are memory mapped and only their index and the
+     * touched buckets are read; files written in older formats are read entirely.
+     */
+    public void readMatching(File file, long start, long end) throws IOException {
+        readMatching(file, false, UID_ALL, start, end);
+    }
+
+    /**
+     * Like {@link #readMatching(File, long, long)}, but only reads the history of a single uid.
+     */
+    public void readMatchingUid(File file, int uid, long start, long end) throws IOException {
+        readMatching(file, true, uid, start, end);
+    }
+
+    private void readMatching(File file, boolean filterUid, int uid, long start, long end)
+            throws IOException {
+        ByteBuffer buffer = null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size >= INDEXED_HEADER_SIZE && size <= Integer.MAX_VALUE) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+        try {
+            if (buffer == null || buffer.getInt(0) != FILE_MAGIC
+                    || buffer.getInt(4) != VERSION_UNIFIED_INDEXED) {
+                // written before files were indexed, fall back to reading everything
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                    read(in);
+                }
+                return;
+            }
+            readMatching(buffer, file, filterUid, uid, start, end);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new ProtocolException("truncated data in " + file);
+        } finally {
+            // don't wait for the GC to unmap the file
+            if (buffer != null) {
+                NioUtils.freeDirectBuffer(buffer);
+            }
+        }
+    }
+
+    private void readMatching(ByteBuffer buffer, File file, boolean filterUid, int uid,
+            long start, long end) throws IOException {
+        final int identCount = buffer.getInt(8);
+        final int keyCount = buffer.getInt(12);
+        final int identsLength = buffer.getInt(16);
+        final long keysOffset = (long) INDEXED_HEADER_SIZE + identsLength;
+        if (identCount < 0 || keyCount < 0 || identsLength < 0
+                || keysOffset + (long) keyCount * INDEXED_KEY_SIZE > buffer.capacity()) {
+            throw new ProtocolException("corrupted index in " + file);
+        }
+
+        // keys are sorted by uid, so the keys of a single uid are a contiguous run
+        int first = 0;
+        int last = keyCount;
+        if (filterUid) {
+            first = findFirstKeyOfUid(buffer, (int) keysOffset, keyCount, uid);
+            last = first;
+            while (last < keyCount && getKeyInt(buffer, (int) keysOffset, last, 0) == uid) {
+                last++;
+            }
+        }
+        if (first == last) return;
+
+        // idents are few and small, parse them all once something matches
+        final byte[] identBytes = new byte[identsLength];
+        buffer.position(INDEXED_HEADER_SIZE);
+        buffer.get(identBytes);
+        final DataInputStream identIn = new DataInputStream(new ByteArrayInputStream(identBytes));
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identCount];
+        for (int i = 0; i < identCount; i++) {
+            idents[i] = new NetworkIdentitySet(identIn);
+        }
+
+        final NetworkStatsHistory.Entry bucket = new NetworkStatsHistory.Entry();
+        final NetworkStats.Entry recycle = new NetworkStats.Entry();
+        for (int k = first; k < last; k++) {
+            final int keyOffset = (int) keysOffset + k * INDEXED_KEY_SIZE;
+            final int identIndex = buffer.getInt(keyOffset + 12);
+            final long bucketDuration = checkBucketDuration(buffer.getLong(keyOffset + 16));
+            final int count = buffer.getInt(keyOffset + 24);
+            final long dataOffset = buffer.getLong(keyOffset + 28);
+            final int dataLength = buffer.getInt(keyOffset + 36);
+            final int checkpointCount = getCheckpointCount(count);
+            if (identIndex < 0 || identIndex >= identCount || count < 0
+                    || count > MAX_INDEXED_BUCKETS || dataOffset < 0
+                    || dataLength < (long) checkpointCount * CHECKPOINT_SIZE
+                    || dataOffset + dataLength > buffer.capacity()) {
+                throw new ProtocolException("corrupted key " + k + " in " + file);
+            }
+            if (count == 0) continue;
+            final int checkpointsOffset = (int) dataOffset;
+            final int rowsOffset = checkpointsOffset + checkpointCount * CHECKPOINT_SIZE;
+
+            // last checkpoint at or before the first bucket that ends at or after the start of
+            // the range
+            final long minBucketStart = start == Long.MIN_VALUE ? Long.MIN_VALUE
+                    : start - bucketDuration;
+            int lo = 0;
+            int hi = checkpointCount;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (buffer.getLong(checkpointsOffset + mid * CHECKPOINT_SIZE) < minBucketStart) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            final int checkpoint = Math.max(lo - 1, 0);
+            buffer.limit(checkpointsOffset + dataLength);
+            buffer.position(rowsOffset
+                    + buffer.getInt(checkpointsOffset + checkpoint * CHECKPOINT_SIZE + 8));
+
+            NetworkStatsHistory history = null;
+            long bucketStart = 0;
+            for (int i = checkpoint * BUCKETS_PER_CHECKPOINT; i < count; i++) {
+                if (i % BUCKETS_PER_CHECKPOINT == 0) {
+                    bucketStart = buffer.getLong(
+                            checkpointsOffset + i / BUCKETS_PER_CHECKPOINT * CHECKPOINT_SIZE);
+                } else {
+                    bucketStart += getVarLong(buffer);
+                }
+                if (bucketStart > end) break;
+                bucket.bucketStart = bucketStart;
+                readBucketValues(buffer, bucket);
+                if (bucketStart < minBucketStart) continue;
+                if (history == null) {
+                    history = new NetworkStatsHistory(bucketDuration, 10);
+                }
+                recordBucket(history, bucket, recycle);
+            }
+            buffer.limit(buffer.capacity());
+            if (history != null) {
+                final Key key = new Key(idents[identIndex], buffer.getInt(keyOffset),
+                        buffer.getInt(keyOffset + 4), buffer.getInt(keyOffset + 8));
+                recordReadHistory(key, history);
+            }
+        }
+    }
+
+    private static int getCheckpointCount(int bucketCount) {
+        return (bucketCount + BUCKETS_PER_CHECKPOINT - 1) / BUCKETS_PER_CHECKPOINT;
+    }
+
+    private static int getKeyInt(ByteBuffer buffer, int keysOffset, int index, int field) {
+        return buffer.getInt(keysOffset + index * INDEXED_KEY_SIZE + field);
+    }
+
+    private static int findFirstKeyOfUid(ByteBuffer buffer, int keysOffset, int keyCount,
+            int uid) {
+        int lo = 0;
+        int hi = keyCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (getKeyInt(buffer, keysOffset, mid, 0) < uid) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static long checkBucketDuration(long bucketDuration) throws ProtocolException {
+        if (bucketDuration <= 0) {
+            throw new ProtocolException("unexpected bucket duration: " + bucketDuration);
+        }
+        return bucketDuration;
+    }
+
+    private static void readBucketValues(DataInput in, NetworkStatsHistory.Entry bucket)
+            throws IOException {
+        bucket.activeTime = readVarLong(in);
+        bucket.rxBytes = readVarLong(in);
+        bucket.rxPackets = readVarLong(in);
+        bucket.txBytes = readVarLong(in);
+        bucket.txPackets = readVarLong(in);
+        bucket.operations = readVarLong(in);
+    }
+
+    private static void readBucketValues(ByteBuffer buffer, NetworkStatsHistory.Entry bucket)
+            throws ProtocolException {
+        bucket.activeTime = getVarLong(buffer);
+        bucket.rxBytes = getVarLong(buffer);
+        bucket.rxPackets = getVarLong(buffer);
+        bucket.txBytes = getVarLong(buffer);
+        bucket.txPackets = getVarLong(buffer);
+        bucket.operations = getVarLong(buffer);
+    }
+
+    /**
+     * Like {@link NetworkStatsHistory.DataStreamUtils#readVarLong(DataInput)}, from the current
+     * position of a buffer.
+     */
+    private static long getVarLong(ByteBuffer buffer) throws ProtocolException {
+        int shift = 0;
+        long result = 0;
+        while (shift < 64) {
+            final byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+        }
+        throw new ProtocolException("malformed long");
+    }
+
+    /**
+     * Appends a bucket read from a file to the end of the history, keeping its values exactly as
+     * they were written, including the active time that recordData() would derive from the span.
+     */
+    private static void recordBucket(NetworkStatsHistory history,
+            NetworkStatsHistory.Entry bucket, NetworkStats.Entry recycle)
+            throws ProtocolException {
+        if (bucket.activeTime < 0 || bucket.rxBytes < 0 || bucket.rxPackets < 0
+                || bucket.txBytes < 0 || bucket.txPackets < 0 || bucket.operations < 0) {
+            throw new ProtocolException("negative bucket at " + bucket.bucketStart);
+        }
+        final int size = history.size();
+        if (size > 0 && bucket.bucketStart < history.getEnd()) {
+            throw new ProtocolException("overlapping bucket at " + bucket.bucketStart);
+        }
+        // create the bucket containing the start, recordData() ignores empty entries
+        recycle.rxBytes = 0;
+        recycle.rxPackets = 0;
+        recycle.txBytes = 0;
+        recycle.txPackets = 0;
+        recycle.operations = 1;
+        history.recordData(bucket.bucketStart, bucket.bucketStart + 1, recycle);
+        if (history.size() != size + 1) {
+            throw new ProtocolException("unaligned bucket at " + bucket.bucketStart);
+        }
+        history.setValues(size, bucket);
+    }
+
+    /**
+     * Records a history that was just read from a file. Unlike {@link #recordHistory}, the
+     * history is adopted as is when there is none for the key yet, so that the persisted active
+     * times survive.
+     */
+    private void recordReadHistory(Key key, NetworkStatsHistory history) {
+        if (history.size() == 0) return;
+        if (mStats.containsKey(key)) {
+            recordHistory(key, history);
+            return;
+        }
+        noteRecordedHistory(history.getStart(), history.getEnd(), history.getTotalBytes());
+        mStats.put(key, history);
+    }
+
     @Override
     public void write(OutputStream out) throws IOException {
         final FastDataOutput dataOut = new FastDataOutput(out, BUFFER_SIZE);
@@ -486,34 +832,89 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     }
 
     private void write(DataOutput out) throws IOException {
-        // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
-        for (Key key : mStats.keySet()) {
-            ArrayList<Key> keys = keysByIdent.get(key.ident);
-            if (keys == null) {
-                keys = Lists.newArrayList();
-                keysByIdent.put(key.ident, keys);
+        // number idents in order of appearance so keys can refer to them by index
+        final ArrayMap<NetworkIdentitySet, Integer> identIndexes = new ArrayMap<>();
+        final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+        final DataOutputStream identOut = new DataOutputStream(identBytes);
+        final ArrayList<Key> keys = Lists.newArrayList();
+        for (int i = 0; i < mStats.size(); i++) {
+            final Key key = mStats.keyAt(i);
+            if (!identIndexes.containsKey(key.ident)) {
+                identIndexes.put(key.ident, identIndexes.size());
+                key.ident.writeToStream(identOut);
             }
             keys.add(key);
         }
+        identOut.flush();
+        // sorted by uid so that the keys of a uid can be found with a binary search
+        Collections.sort(keys, (a, b) -> {
+            int res = Integer.compare(a.uid, b.uid);
+            if (res == 0) res = Integer.compare(a.set, b.set);
+            if (res == 0) res = Integer.compare(a.tag, b.tag);
+            if (res == 0) res = Integer.compare(identIndexes.get(a.ident),
+                    identIndexes.get(b.ident));
+            return res;
+        });
+
+        // the key table holds the offsets of the data, so the data is encoded first
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final DataOutputStream dataOut = new DataOutputStream(data);
+        final ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        final DataOutputStream rowsOut = new DataOutputStream(rows);
+        final int[] dataLengths = new int[keys.size()];
+        NetworkStatsHistory.Entry entry = null;
+        for (int k = 0; k < keys.size(); k++) {
+            final NetworkStatsHistory history = mStats.get(keys.get(k));
+            final int count = history.size();
+            final int dataStart = data.size();
+            rows.reset();
+            long previousStart = 0;
+            for (int i = 0; i < count; i++) {
+                entry = history.getValues(i, entry);
+                if (i % BUCKETS_PER_CHECKPOINT == 0) {
+                    rowsOut.flush();
+                    dataOut.writeLong(entry.bucketStart);
+                    dataOut.writeInt(rows.size());
+                } else {
+                    writeVarLong(rowsOut, entry.bucketStart - previousStart);
+                }
+                writeVarLong(rowsOut, entry.activeTime);
+                writeVarLong(rowsOut, entry.rxBytes);
+                writeVarLong(rowsOut, entry.rxPackets);
+                writeVarLong(rowsOut, entry.txBytes);
+                writeVarLong(rowsOut, entry.txPackets);
+                writeVarLong(rowsOut, entry.operations);
+                previousStart = entry.bucketStart;
+            }
+            rowsOut.flush();
+            rows.writeTo(dataOut);
+            dataOut.flush();
+            dataLengths[k] = data.size() - dataStart;
+        }
 
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
-
-        out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
-            ident.writeToStream(out);
-
-            out.writeInt(keys.size());
-            for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
-            }
+        out.writeInt(VERSION_UNIFIED_INDEXED);
+        out.writeInt(identIndexes.size());
+        out.writeInt(keys.size());
+        out.writeInt(identBytes.size());
+        out.write(identBytes.toByteArray());
+
+        long dataOffset = INDEXED_HEADER_SIZE + identBytes.size()
+                + (long) keys.size() * INDEXED_KEY_SIZE;
+        for (int k = 0; k < keys.size(); k++) {
+            final Key key = keys.get(k);
+            final NetworkStatsHistory history = mStats.get(key);
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeInt(identIndexes.get(key.ident));
+            out.writeLong(history.getBucketDuration());
+            out.writeInt(history.size());
+            out.writeLong(dataOffset);
+            out.writeInt(dataLengths[k]);
+            dataOffset += dataLengths[k];
         }
+        out.write(data.toByteArray());
     }
 
     @Deprecated
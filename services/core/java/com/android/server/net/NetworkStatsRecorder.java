@@ -172,20 +172,53 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Load history overlapping the given range. Unless the complete history is
+     * still cached, only the index and the buckets touched by the range are
+     * read from each file.
+     */
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
         Objects.requireNonNull(mRotator, "missing FileRotator");
         NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
         if (res == null) {
-            res = loadLocked(start, end);
+            res = loadLocked(start, end, (collection, file) ->
+                    collection.readMatching(file, start, end));
+        }
+        return res;
+    }
+
+    /**
+     * Load the history of a single UID overlapping the given range. Unless the
+     * complete history is still cached, only the index and the buckets of that
+     * UID touched by the range are read from each file.
+     */
+    public NetworkStatsCollection getOrLoadPartialLocked(int uid, long start, long end) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
+        if (res == null) {
+            res = loadLocked(start, end, (collection, file) ->
+                    collection.readMatchingUid(file, uid, start, end));
         }
         return res;
     }
 
+    private interface PartialReader {
+        void read(NetworkStatsCollection collection, File file) throws IOException;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
+        return loadLocked(start, end, null);
+    }
+
+    private NetworkStatsCollection loadLocked(long start, long end, PartialReader partial) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
         try {
-            mRotator.readMatching(res, start, end);
+            if (partial != null) {
+                mRotator.readMatchingFiles(file -> partial.read(res, file), start, end);
+            } else {
+                mRotator.readMatching(res, start, end);
+            }
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
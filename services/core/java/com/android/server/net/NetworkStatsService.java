@@ -726,6 +726,33 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Return UID stats covering at least the given range, reading only the touched
+             * buckets unless this session already loaded the complete history.
+             */
+            private NetworkStatsCollection getUidRange(boolean tags, long start, long end) {
+                synchronized (mStatsLock) {
+                    final NetworkStatsCollection complete = tags ? mUidTagComplete : mUidComplete;
+                    if (complete != null) {
+                        return complete;
+                    }
+                    return (tags ? mUidTagRecorder : mUidRecorder).getOrLoadPartialLocked(
+                            start, end);
+                }
+            }
+
+            private NetworkStatsCollection getUidRange(boolean tags, int uid, long start,
+                    long end) {
+                synchronized (mStatsLock) {
+                    final NetworkStatsCollection complete = tags ? mUidTagComplete : mUidComplete;
+                    if (complete != null) {
+                        return complete;
+                    }
+                    return (tags ? mUidTagRecorder : mUidRecorder).getOrLoadPartialLocked(
+                            uid, start, end);
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -755,10 +782,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStats getSummaryForAllUid(
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 try {
-                    final NetworkStats stats = getUidComplete()
+                    final NetworkStats stats = getUidRange(false, start, end)
                             .getSummary(template, start, end, mAccessLevel, mCallingUid);
                     if (includeTags) {
-                        final NetworkStats tagStats = getUidTagComplete()
+                        final NetworkStats tagStats = getUidRange(true, start, end)
                                 .getSummary(template, start, end, mAccessLevel, mCallingUid);
                         stats.combineAllValues(tagStats);
                     }
@@ -789,11 +816,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    return getUidRange(false, uid, start, end).getHistory(template, null, uid,
+                            set, tag, fields, start, end, mAccessLevel, mCallingUid);
                 } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    return getUidRange(true, uid, start, end).getHistory(template, null, uid,
+                            set, tag, fields, start, end, mAccessLevel, mCallingUid);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
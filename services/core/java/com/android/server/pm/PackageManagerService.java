@@ -343,6 +343,7 @@ import com.android.internal.content.NativeLibraryHelper;
 import com.android.internal.content.PackageHelper;
 import com.android.internal.content.om.OverlayConfig;
 import com.android.internal.logging.MetricsLogger;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.SomeArgs;
 import com.android.internal.policy.AttributeCache;
 import com.android.internal.security.VerityUtils;
@@ -469,6 +470,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -1871,9 +1873,14 @@ public class PackageManagerService extends IPackageManager.Stub
         public final AppsFilter appsFilter;
         public final ComponentResolver componentResolver;
         public final PackageManagerService service;
+        // The snapshot version this snapshot reflects.  Always zero for live snapshots.
+        public final long version;
 
         Snapshot(int type) {
             if (type == Snapshot.SNAPPED) {
+                // Read the version before copying anything.  A change reported while the copy
+                // is made bumps the version again, so the snapshot is rebuilt on next use.
+                version = sSnapshotVersion.get();
                 settings = mSettings.snapshot();
                 isolatedOwners = mIsolatedOwnersSnapshot.snapshot();
                 packages = mPackagesSnapshot.snapshot();
@@ -1897,6 +1904,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 appsFilter = mAppsFilter.snapshot();
                 componentResolver = mComponentResolver.snapshot();
             } else if (type == Snapshot.LIVE) {
+                version = 0;
                 settings = mSettings;
                 isolatedOwners = mIsolatedOwners;
                 packages = mPackages;
@@ -1992,6 +2000,16 @@ public class PackageManagerService extends IPackageManager.Stub
             return 0;
         }
 
+        /**
+         * Fetch the snapshot version this computer was built from.
+         * @return The value of the snapshot version when the snapshot was built, or zero for
+         * the live computer.
+         */
+        @LiveImplementation(override = LiveImplementation.NOT_ALLOWED)
+        default long getVersion() {
+            return 0;
+        }
+
         @LiveImplementation(override = LiveImplementation.NOT_ALLOWED)
         @NonNull List<ResolveInfo> queryIntentActivitiesInternal(Intent intent, String resolvedType,
                 int flags, @PrivateResolveFlags int privateResolveFlags, int filterCallingUid,
@@ -2153,8 +2171,11 @@ public class PackageManagerService extends IPackageManager.Stub
     @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
     protected static class ComputerEngine implements Computer {
 
-        // The administrative use counter.
-        private int mUsed = 0;
+        // The administrative use counter.  Snapshots are used concurrently without any lock.
+        private final AtomicInteger mUsed = new AtomicInteger(0);
+
+        // The snapshot version this computer was built from.
+        private final long mVersion;
 
         // Cached attributes.  The names in this class are the same as the
         // names in PackageManagerService; see that class for documentation.
@@ -2211,6 +2232,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         ComputerEngine(Snapshot args) {
+            mVersion = args.version;
             mSettings = args.settings;
             mIsolatedOwners = args.isolatedOwners;
             mPackages = args.packages;
@@ -2252,14 +2274,21 @@ public class PackageManagerService extends IPackageManager.Stub
          * Record that the snapshot was used.
          */
         public final void use() {
-            mUsed++;
+            mUsed.incrementAndGet();
         }
 
         /**
          * Return the usage counter.
          */
         public final int getUsed() {
-            return mUsed;
+            return mUsed.get();
+        }
+
+        /**
+         * Return the snapshot version.
+         */
+        public final long getVersion() {
+            return mVersion;
         }
 
         public final @NonNull List<ResolveInfo> queryIntentActivitiesInternal(Intent intent,
@@ -5352,13 +5381,17 @@ public class PackageManagerService extends IPackageManager.Stub
             return current;
         }
 
-        private ThreadComputer snapshot() {
+        /**
+         * @param method The name of the calling method, under which the snapshot request is
+         *               recorded in the statistics.
+         */
+        private ThreadComputer snapshot(String method) {
             ThreadComputer current = mService.sThreadComputer.get();
             if (current.mRefCount > 0) {
                 current.acquire();
                 mReusedSnapshot.incrementAndGet();
             } else {
-                current.acquire(mService.snapshotComputer());
+                current.acquire(mService.snapshotComputer(method));
             }
             return current;
         }
@@ -5367,7 +5400,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 String resolvedType, int flags, @PrivateResolveFlags int privateResolveFlags,
                 int filterCallingUid, int userId, boolean resolveForStart,
                 boolean allowDynamicSplits) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("queryIntentActivitiesInternal");
             try {
                 return current.mComputer.queryIntentActivitiesInternal(intent, resolvedType, flags,
                         privateResolveFlags, filterCallingUid, userId, resolveForStart,
@@ -5378,7 +5411,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         public final @NonNull List<ResolveInfo> queryIntentActivitiesInternal(Intent intent,
                 String resolvedType, int flags, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("queryIntentActivitiesInternal");
             try {
                 return current.mComputer.queryIntentActivitiesInternal(intent, resolvedType, flags,
                         userId);
@@ -5389,7 +5422,7 @@ public class PackageManagerService extends IPackageManager.Stub
         public final @NonNull List<ResolveInfo> queryIntentServicesInternal(Intent intent,
                 String resolvedType, int flags, int userId, int callingUid,
                 boolean includeInstantApps) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("queryIntentServicesInternal");
             try {
                 return current.mComputer.queryIntentServicesInternal(intent, resolvedType, flags,
                         userId, callingUid, includeInstantApps);
@@ -5412,7 +5445,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final ActivityInfo getActivityInfo(ComponentName component, int flags, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getActivityInfo");
             try {
                 return current.mComputer.getActivityInfo(component, flags, userId);
             } finally {
@@ -5421,7 +5454,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         public final ActivityInfo getActivityInfoInternal(ComponentName component, int flags,
                 int filterCallingUid, int userId) {
-            ThreadComputer current = live();
+            ThreadComputer current = snapshot("getActivityInfoInternal");
             try {
                 return current.mComputer.getActivityInfoInternal(component, flags, filterCallingUid,
                         userId);
@@ -5430,7 +5463,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final AndroidPackage getPackage(String packageName) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getPackage");
             try {
                 return current.mComputer.getPackage(packageName);
             } finally {
@@ -5438,7 +5471,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final AndroidPackage getPackage(int uid) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getPackage");
             try {
                 return current.mComputer.getPackage(uid);
             } finally {
@@ -5456,7 +5489,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final ApplicationInfo getApplicationInfo(String packageName, int flags, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getApplicationInfo");
             try {
                 return current.mComputer.getApplicationInfo(packageName, flags, userId);
             } finally {
@@ -5465,7 +5498,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         public final ApplicationInfo getApplicationInfoInternal(String packageName, int flags,
                 int filterCallingUid, int userId) {
-            ThreadComputer current = live();
+            ThreadComputer current = snapshot("getApplicationInfoInternal");
             try {
                 return current.mComputer.getApplicationInfoInternal(packageName, flags,
                         filterCallingUid, userId);
@@ -5539,7 +5572,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final PackageInfo getPackageInfo(String packageName, int flags, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getPackageInfo");
             try {
                 return current.mComputer.getPackageInfo(packageName, flags, userId);
             } finally {
@@ -5548,7 +5581,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         public final PackageInfo getPackageInfoInternal(String packageName, long versionCode,
                 int flags, int filterCallingUid, int userId) {
-            ThreadComputer current = live();
+            ThreadComputer current = snapshot("getPackageInfoInternal");
             try {
                 return current.mComputer.getPackageInfoInternal(packageName, versionCode, flags,
                         filterCallingUid, userId);
@@ -5557,7 +5590,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final PackageSetting getPackageSetting(String packageName) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getPackageSetting");
             try {
                 return current.mComputer.getPackageSetting(packageName);
             } finally {
@@ -5573,7 +5606,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final ParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getInstalledPackages");
             try {
                 return current.mComputer.getInstalledPackages(flags, userId);
             } finally {
@@ -5591,7 +5624,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final ServiceInfo getServiceInfo(ComponentName component, int flags, int userId) {
-            ThreadComputer current = live();
+            ThreadComputer current = snapshot("getServiceInfo");
             try {
                 return current.mComputer.getServiceInfo(component, flags, userId);
             } finally {
@@ -5607,7 +5640,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final SigningDetails getSigningDetails(@NonNull String packageName) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getSigningDetails");
             try {
                 return current.mComputer.getSigningDetails(packageName);
             } finally {
@@ -5615,7 +5648,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final SigningDetails getSigningDetails(int uid) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getSigningDetails");
             try {
                 return current.mComputer.getSigningDetails(uid);
             } finally {
@@ -5623,7 +5656,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final String getInstantAppPackageName(int callingUid) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getInstantAppPackageName");
             try {
                 return current.mComputer.getInstantAppPackageName(callingUid);
             } finally {
@@ -5647,7 +5680,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final String[] getPackagesForUid(int uid) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("getPackagesForUid");
             try {
                 return current.mComputer.getPackagesForUid(uid);
             } finally {
@@ -5671,7 +5704,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final boolean filterAppAccess(AndroidPackage pkg, int callingUid, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("filterAppAccess");
             try {
                 return current.mComputer.filterAppAccess(pkg, callingUid, userId);
             } finally {
@@ -5679,7 +5712,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final boolean filterAppAccess(String packageName, int callingUid, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("filterAppAccess");
             try {
                 return current.mComputer.filterAppAccess(packageName, callingUid, userId);
             } finally {
@@ -5731,7 +5764,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final boolean isInstantApp(String packageName, int userId) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("isInstantApp");
             try {
                 return current.mComputer.isInstantApp(packageName, userId);
             } finally {
@@ -5786,7 +5819,7 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         public final int checkUidPermission(String permName, int uid) {
-            ThreadComputer current = snapshot();
+            ThreadComputer current = snapshot("checkUidPermission");
             try {
                 return current.mComputer.checkUidPermission(permName, uid);
             } finally {
@@ -5923,11 +5956,11 @@ public class PackageManagerService extends IPackageManager.Stub
     // A trampoline that directs callers to either the live or snapshot computer.
     private final ComputerTracker mComputer = new ComputerTracker(this);
 
-    // If true, the snapshot is invalid (stale).  The attribute is static since it may be
-    // set from outside classes.  The attribute may be set to true anywhere, although it
-    // should only be set true while holding mLock.  However, the attribute id guaranteed
-    // to be set false only while mLock and mSnapshotLock are both held.
-    private static AtomicBoolean sSnapshotInvalid = new AtomicBoolean(true);
+    // The snapshot version.  Every reported change increments it, and a snapshot is stale
+    // once the version moved past the one it was built from.  The attribute is static since
+    // it may be incremented from outside classes.  It should only be incremented while
+    // holding mLock, after the change was made.
+    private static final AtomicLong sSnapshotVersion = new AtomicLong(0);
     // The package manager that is using snapshots.
     private static PackageManagerService sSnapshotConsumer = null;
     // If true, the snapshot is corked.  Do not create a new snapshot but use the live
@@ -5967,9 +6000,9 @@ public class PackageManagerService extends IPackageManager.Stub
             }};
 
     /**
-     * This lock is used to make reads from {@link #sSnapshotInvalid} and
-     * {@link #mSnapshotComputer} atomic inside {@code snapshotComputer()}.  This lock is
-     * not meant to be used outside that method.  This lock must be taken before
+     * This lock serializes the rebuilds of {@link #mSnapshotComputer} inside
+     * {@code snapshotComputer()}; a current snapshot is handed out without taking it.  This
+     * lock is not meant to be used outside that method.  This lock must be taken before
      * {@link #mLock} is taken.
      */
     private final Object mSnapshotLock = new Object();
@@ -6002,32 +6035,52 @@ public class PackageManagerService extends IPackageManager.Stub
      * Return the cached computer.  The method will rebuild the cached computer if necessary.
      * The live computer will be returned if snapshots are disabled.
      */
-    private Computer snapshotComputer() {
+    @VisibleForTesting(visibility = VisibleForTesting.Visibility.PRIVATE)
+    Computer snapshotComputer() {
+        return snapshotComputer(null);
+    }
+
+    /**
+     * Return the cached computer, recording the request under the name of the calling method
+     * in the snapshot statistics.
+     * @param method The calling method, or null if the request should not be recorded.
+     */
+    private Computer snapshotComputer(@Nullable String method) {
         if (!mSnapshotEnabled) {
             return mLiveComputer;
         }
         if (Thread.holdsLock(mLock)) {
             // If the current thread holds mLock then it may have modified state but not
             // yet invalidated the snapshot.  Always give the thread the live computer.
+            mSnapshotStatistics.methodLive(method);
             return mLiveComputer;
         } else if (sSnapshotCorked.get() > 0) {
             // Snapshots are corked, which means new ones should not be built right now.
             mSnapshotStatistics.corked();
+            mSnapshotStatistics.methodLive(method);
             return mLiveComputer;
         }
+        // The snapshot is immutable, so as long as no change was reported since it was built
+        // it can be handed out without taking any lock.  mSnapshotComputer is null while it is
+        // being rebuilt, in which case this falls through to wait for the rebuild.
+        Computer c = mSnapshotComputer;
+        if (c != null && c.getVersion() == sSnapshotVersion.get()) {
+            c.use();
+            mSnapshotStatistics.methodHit(method);
+            return c;
+        }
         synchronized (mSnapshotLock) {
-            // This synchronization block serializes access to the snapshot computer and
-            // to the code that samples mSnapshotInvalid.
-            Computer c = mSnapshotComputer;
-            if (sSnapshotInvalid.getAndSet(false) || (c == null)) {
-                // The snapshot is invalid if it is marked as invalid or if it is null.  If it
-                // is null, then it is currently being rebuilt by rebuildSnapshot().
+            // This synchronization block serializes the rebuilds.  Another thread may have
+            // rebuilt the snapshot while this one was waiting for the lock.
+            c = mSnapshotComputer;
+            if (c == null || c.getVersion() != sSnapshotVersion.get()) {
+                final long duration;
                 synchronized (mLock) {
-                    // Rebuild the snapshot if it is invalid.  Note that the snapshot might be
+                    // Rebuild the snapshot if it is stale.  Note that the snapshot might be
                     // invalidated as it is rebuilt.  However, the snapshot is still
                     // self-consistent (the lock is being held) and is current as of the time
                     // this function is entered.
-                    rebuildSnapshot();
+                    duration = rebuildSnapshot();
 
                     // Guaranteed to be non-null.  mSnapshotComputer is only be set to null
                     // temporarily in rebuildSnapshot(), which is guarded by mLock().  Since
@@ -6035,6 +6088,9 @@ public class PackageManagerService extends IPackageManager.Stub
                     // complete, the attribute can not now be null.
                     c = mSnapshotComputer;
                 }
+                mSnapshotStatistics.methodRebuild(method, duration);
+            } else {
+                mSnapshotStatistics.methodHit(method);
             }
             c.use();
             return c;
@@ -6043,10 +6099,12 @@ public class PackageManagerService extends IPackageManager.Stub
 
     /**
      * Rebuild the cached computer.  mSnapshotComputer is temporarily set to null to block other
-     * threads from using the invalid computer until it is rebuilt.
+     * threads from using the invalid computer until it is rebuilt.  The snapshotted structures
+     * which did not change since the last rebuild are reused rather than copied again.
+     * @return The duration of the rebuild, in us.
      */
     @GuardedBy({ "mLock", "mSnapshotLock"})
-    private void rebuildSnapshot() {
+    private long rebuildSnapshot() {
         final long now = SystemClock.currentTimeMicro();
         final int hits = mSnapshotComputer == null ? -1 : mSnapshotComputer.getUsed();
         mSnapshotComputer = null;
@@ -6055,6 +6113,7 @@ public class PackageManagerService extends IPackageManager.Stub
         final long done = SystemClock.currentTimeMicro();
 
         mSnapshotStatistics.rebuild(now, done, hits);
+        return done - now;
     }
 
     /**
@@ -6081,6 +6140,15 @@ public class PackageManagerService extends IPackageManager.Stub
         mHandler.sendMessageDelayed(message, SNAPSHOT_AUTOCORK_DELAY_MS * multiplier);
     }
 
+    /**
+     * Uncork snapshots.  A PackageManagerService built with a mocked {@link SystemWrapper}
+     * never uncorks them at the end of its constructor.
+     */
+    @VisibleForTesting
+    static void uncorkSnapshotsForTest() {
+        sSnapshotCorked.set(0);
+    }
+
     /**
      * Create a live computer
      */
@@ -6098,7 +6166,7 @@ public class PackageManagerService extends IPackageManager.Stub
         if (TRACE_SNAPSHOTS) {
             Log.i(TAG, "snapshot: onChange(" + what + ")");
         }
-        sSnapshotInvalid.set(true);
+        sSnapshotVersion.incrementAndGet();
     }
 
     /**
@@ -7517,7 +7585,7 @@ public class PackageManagerService extends IPackageManager.Stub
             mSnapshotStatistics = new SnapshotStatistics();
             sSnapshotConsumer = this;
             sSnapshotCorked.set(1);
-            sSnapshotInvalid.set(true);
+            sSnapshotVersion.incrementAndGet();
             mLiveComputer = createLiveComputer();
             mSnapshotComputer = null;
             mSnapshotEnabled = SNAPSHOT_ENABLED;
@@ -7794,7 +7862,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
             }
 
+            // Only needed by the next boot, so don't hold this one up writing it.
+            final Runnable writeCacheIndex = packageParser.getCacheIndexWriter();
             packageParser.close();
+            BackgroundThread.getHandler().post(writeCacheIndex);
 
             List<Runnable> unfinishedTasks = executorService.shutdownNow();
             if (!unfinishedTasks.isEmpty()) {
@@ -23,7 +23,6 @@ import android.os.Process;
 import android.os.Trace;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.util.ConcurrentUtils;
 import com.android.server.pm.parsing.PackageParser2;
 import com.android.server.pm.parsing.pkg.ParsedPackage;
 
@@ -31,24 +30,38 @@ import java.io.File;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
+ * <p>Parsing requests are processed by a work-stealing pool with one thread per core, at
+ * least {@link #MIN_THREADS}, so that idle threads pick up the remaining packages of a
+ * partition while others are busy with large ones.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
  */
 class ParallelPackageParser {
 
     private static final int QUEUE_CAPACITY = 30;
-    private static final int MAX_THREADS = 4;
+    private static final int MIN_THREADS = 4;
 
     private volatile String mInterruptedInThread;
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
     static ExecutorService makeExecutorService() {
-        return ConcurrentUtils.newFixedThreadPool(MAX_THREADS, "package-parsing-thread",
-                Process.THREAD_PRIORITY_FOREGROUND);
+        final int threads = Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors());
+        return new ForkJoinPool(threads, pool -> new ForkJoinWorkerThread(pool) {
+            {
+                setName("package-parsing-thread" + getPoolIndex());
+            }
+
+            @Override
+            protected void onStart() {
+                super.onStart();
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+            }
+        }, null /* handler */, true /* asyncMode */);
     }
 
     private final PackageParser2 mPackageParser;
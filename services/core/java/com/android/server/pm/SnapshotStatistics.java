@@ -27,8 +27,13 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.server.EventLogTags;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class records statistics about PackageManagerService snapshots.  It maintains two sets of
@@ -122,6 +127,26 @@ public class SnapshotStatistics {
      */
     private Handler mHandler = null;
 
+    /**
+     * The snapshot requests of a single method.  The counters are updated without taking
+     * {@link #mLock}, since a request served from the current snapshot takes no lock either.
+     */
+    private static class MethodStats {
+        // The number of requests served by a current snapshot.
+        final AtomicInteger mHits = new AtomicInteger(0);
+        // The number of requests which had to rebuild the snapshot first.
+        final AtomicInteger mRebuilds = new AtomicInteger(0);
+        // The total time spent by these rebuilds, in us.
+        final AtomicLong mRebuildTimeUs = new AtomicLong(0);
+        // The number of requests served by the live computer.
+        final AtomicInteger mLive = new AtomicInteger(0);
+    }
+
+    /**
+     * The snapshot requests, by the name of the requesting method, since process boot.
+     */
+    private final ConcurrentHashMap<String, MethodStats> mMethods = new ConcurrentHashMap<>();
+
     /**
      * Convert ns to an int ms.  The maximum range of this method is about 24 days.  There
      * is no expectation that an event will take longer than that.
@@ -568,6 +593,49 @@ public class SnapshotStatistics {
         }
     }
 
+    @Nullable
+    private MethodStats methodStats(@Nullable String method) {
+        if (method == null) {
+            return null;
+        }
+        return mMethods.computeIfAbsent(method, k -> new MethodStats());
+    }
+
+    /**
+     * Record a request of the method that was served by a current snapshot.
+     * @param method The requesting method, or null if the request is not attributed.
+     */
+    public final void methodHit(@Nullable String method) {
+        final MethodStats stats = methodStats(method);
+        if (stats != null) {
+            stats.mHits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a request of the method that had to rebuild the snapshot.
+     * @param method The requesting method, or null if the request is not attributed.
+     * @param duration The duration of the rebuild, in us.
+     */
+    public final void methodRebuild(@Nullable String method, long duration) {
+        final MethodStats stats = methodStats(method);
+        if (stats != null) {
+            stats.mRebuilds.incrementAndGet();
+            stats.mRebuildTimeUs.addAndGet(duration);
+        }
+    }
+
+    /**
+     * Record a request of the method that was served by the live computer.
+     * @param method The requesting method, or null if the request is not attributed.
+     */
+    public final void methodLive(@Nullable String method) {
+        final MethodStats stats = methodStats(method);
+        if (stats != null) {
+            stats.mLive.incrementAndGet();
+        }
+    }
+
     /**
      * Roll a stats array.  Shift the elements up an index and create a new element at
      * index zero.  The old element zero is completed with the specified time.
@@ -639,6 +707,8 @@ public class SnapshotStatistics {
                   unrecorded, corkLevel);
         pw.println();
         dump(pw, indent, now, l, s, "stats");
+        pw.println();
+        dumpMethods(pw, indent);
         if (brief) {
             return;
         }
@@ -647,4 +717,23 @@ public class SnapshotStatistics {
         pw.println();
         dump(pw, indent, now, l, s, "usage");
     }
+
+    /**
+     * Dump the snapshot requests of every method, sorted by method name.
+     */
+    private void dumpMethods(PrintWriter pw, String indent) {
+        final ArrayList<String> methods = new ArrayList<>(mMethods.keySet());
+        Collections.sort(methods);
+        pw.format(Locale.US, "%s%-36s %10s %10s %10s %10s", indent, "Method", "Hits",
+                  "Rebuilds", "RebuildMs", "Live");
+        pw.println();
+        for (int i = 0; i < methods.size(); i++) {
+            final String method = methods.get(i);
+            final MethodStats stats = mMethods.get(method);
+            pw.format(Locale.US, "%s%-36s %10d %10d %10d %10d", indent, method,
+                      stats.mHits.get(), stats.mRebuilds.get(),
+                      stats.mRebuildTimeUs.get() / US_IN_MS, stats.mLive.get());
+            pw.println();
+        }
+    }
 }
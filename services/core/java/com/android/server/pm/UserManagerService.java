@@ -4770,6 +4770,8 @@ public class UserManagerService extends IUserManager.Stub {
                         + " includingPreCreated=" + Arrays.toString(mUserIdsIncludingPreCreated));
             }
         }
+        // Users were added or removed, which changes the serial numbers they map to and from.
+        UserManager.invalidateUserSerialNumberCache();
     }
 
     /**
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm.parsing;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A single file holding the cached parse results of many packages, mapped into memory at once
+ * instead of opening one cache file per package.
+ * <p>
+ * The file starts with a header naming the build it was written by, followed by one entry per
+ * package keyed by its path and parse flags, and the serialized packages themselves. An entry
+ * is only valid while the size and modification time of the package file match the ones it was
+ * written with.
+ * </p>
+ */
+final class PackageCacheIndex {
+    private static final String TAG = "PackageCacheIndex";
+
+    private static final int MAGIC = 0x50434958; // PCIX
+    private static final int VERSION = 1;
+
+    /** Location of a cached package in the index. */
+    static final class Entry {
+        final String path;
+        final int flags;
+        final long size;
+        final long mtime;
+        final int offset;
+        final int length;
+
+        Entry(String path, int flags, long size, long mtime, int offset, int length) {
+            this.path = path;
+            this.flags = flags;
+            this.size = size;
+            this.mtime = mtime;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean matches(long size, long mtime) {
+            return this.size == size && this.mtime == mtime;
+        }
+    }
+
+    @NonNull
+    private final MappedByteBuffer mBuffer;
+
+    @NonNull
+    private final HashMap<String, Entry> mEntries;
+
+    private PackageCacheIndex(MappedByteBuffer buffer, HashMap<String, Entry> entries) {
+        mBuffer = buffer;
+        mEntries = entries;
+    }
+
+    static String getKey(@NonNull String path, int flags) {
+        return path + '-' + flags;
+    }
+
+    /**
+     * Maps the index file and reads its entries.
+     *
+     * @return the index, or {@code null} if there is none or it was written by another build.
+     */
+    @Nullable
+    static PackageCacheIndex load(@NonNull File file, @NonNull String fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+        final MappedByteBuffer buffer;
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to map " + file, e);
+            return null;
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || !fingerprint.equals(readString(buffer))) {
+                return null;
+            }
+            final int count = buffer.getInt();
+            final HashMap<String, Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                final Entry entry = new Entry(readString(buffer), buffer.getInt(),
+                        buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt());
+                if (entry.offset < 0 || entry.length < 0
+                        || entry.offset > buffer.capacity() - entry.length) {
+                    Slog.w(TAG, "Invalid entry for " + entry.path + " in " + file);
+                    return null;
+                }
+                entries.put(getKey(entry.path, entry.flags), entry);
+            }
+            return new PackageCacheIndex(buffer, entries);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            Slog.w(TAG, "Truncated or corrupt " + file, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    Entry getEntry(@NonNull String key) {
+        return mEntries.get(key);
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    void forEachEntry(@NonNull BiConsumer<String, Entry> consumer) {
+        mEntries.forEach(consumer);
+    }
+
+    /**
+     * @return a copy of the serialized package of the entry.
+     */
+    @NonNull
+    byte[] read(@NonNull Entry entry) {
+        final byte[] bytes = new byte[entry.length];
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(entry.offset);
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** Source of the serialized package of an entry being written. */
+    interface BlobSource {
+        @NonNull
+        byte[] read(@NonNull Entry entry) throws IOException;
+    }
+
+    /**
+     * Writes a new index holding the given entries. Their offsets are ignored, and their content
+     * is read from {@code source} one entry at a time so that the packages are never all held in
+     * memory at once.
+     *
+     * @return whether the index was written.
+     */
+    static boolean write(@NonNull File file, @NonNull String fingerprint,
+            @NonNull List<Entry> entries, @NonNull BlobSource source) {
+        final int count = entries.size();
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream stream = null;
+        try {
+            long offset = 4 + 4 + stringSize(fingerprint) + 4;
+            for (int i = 0; i < count; i++) {
+                offset += stringSize(entries.get(i).path) + 4 + 8 + 8 + 4 + 4;
+            }
+            stream = atomicFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, fingerprint);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                final Entry entry = entries.get(i);
+                if (offset + entry.length > Integer.MAX_VALUE) {
+                    throw new IOException("Package cache index too large");
+                }
+                writeString(out, entry.path);
+                out.writeInt(entry.flags);
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeInt((int) offset);
+                out.writeInt(entry.length);
+                offset += entry.length;
+            }
+            for (int i = 0; i < count; i++) {
+                final Entry entry = entries.get(i);
+                final byte[] blob = source.read(entry);
+                if (blob.length != entry.length) {
+                    throw new IOException("Cache entry for " + entry.path + " changed");
+                }
+                out.write(blob);
+            }
+            out.flush();
+            atomicFile.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write " + file, e);
+            atomicFile.failWrite(stream);
+            return false;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int stringSize(String s) {
+        return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
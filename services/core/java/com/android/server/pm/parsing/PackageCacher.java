@@ -17,9 +17,13 @@
 package com.android.server.pm.parsing;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.pm.PackageParserCacheHelper;
+import android.os.Build;
+import android.os.Environment;
 import android.os.FileUtils;
 import android.os.Parcel;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
@@ -35,12 +39,21 @@ import libcore.io.IoUtils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class PackageCacher {
 
     private static final String TAG = "PackageCacher";
 
+    /**
+     * Name of the file holding the {@link PackageCacheIndex}; the leading dot keeps it from
+     * being mistaken for the cache entry of a package.
+     */
+    private static final String INDEX_FILE_NAME = ".index";
+
     /**
      * Total number of packages that were read from the cache.  We use it only for logging.
      */
@@ -49,8 +62,36 @@ public class PackageCacher {
     @NonNull
     private File mCacheDir;
 
+    private final boolean mUseIndex;
+
+    private final Object mIndexLock = new Object();
+
+    private volatile boolean mIndexLoaded;
+
+    @Nullable
+    private volatile PackageCacheIndex mIndex;
+
+    /** Entries of the index that were read since it was loaded, by key. */
+    private final ConcurrentHashMap<String, PackageCacheIndex.Entry> mUsedEntries =
+            new ConcurrentHashMap<>();
+
+    /** Packages only found in their own cache file, by key, to be added to the index. */
+    private final ConcurrentHashMap<String, PackageCacheIndex.Entry> mNewEntries =
+            new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, File> mNewEntryFiles = new ConcurrentHashMap<>();
+
     public PackageCacher(@NonNull File cacheDir) {
+        this(cacheDir, true /* useIndex */);
+    }
+
+    /**
+     * @param useIndex whether to look packages up in, and add them to, the index of the cache
+     *                 before falling back to the cache file of each package.
+     */
+    public PackageCacher(@NonNull File cacheDir, boolean useIndex) {
         this.mCacheDir = cacheDir;
+        this.mUseIndex = useIndex;
     }
 
     /**
@@ -146,6 +187,13 @@ public class PackageCacher {
      * or {@code null} if no cached result exists.
      */
     public ParsedPackage getCachedResult(File packageFile, int flags) {
+        if (mUseIndex && isIndexable(packageFile)) {
+            final ParsedPackage parsed = getIndexedResult(packageFile, flags);
+            if (parsed != null) {
+                return parsed;
+            }
+        }
+
         final String cacheKey = getCacheKey(packageFile, flags);
         final File cacheFile = new File(mCacheDir, cacheKey);
 
@@ -156,7 +204,9 @@ public class PackageCacher {
             }
 
             final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            return fromCacheEntry(bytes);
+            final ParsedPackage parsed = fromCacheEntry(bytes);
+            addToIndex(packageFile, flags, cacheFile, bytes.length);
+            return parsed;
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
 
@@ -192,16 +242,163 @@ public class PackageCacher {
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
                 cacheFile.delete();
+                return;
             }
+            addToIndex(packageFile, flags, cacheFile, cacheEntry.length);
         } catch (Throwable e) {
             Slog.w(TAG, "Error saving package cache.", e);
         }
     }
 
+    @Nullable
+    private PackageCacheIndex getIndex() {
+        if (!mIndexLoaded) {
+            synchronized (mIndexLock) {
+                if (!mIndexLoaded) {
+                    mIndex = PackageCacheIndex.load(new File(mCacheDir, INDEX_FILE_NAME),
+                            Build.FINGERPRINT);
+                    mIndexLoaded = true;
+                }
+            }
+        }
+        return mIndex;
+    }
+
+    /**
+     * Returns the parse result for {@code packageFile} held by the index of the cache, if it is
+     * still valid for the size and modification time of the package file.
+     */
+    @Nullable
+    private ParsedPackage getIndexedResult(File packageFile, int flags) {
+        final PackageCacheIndex index = getIndex();
+        if (index == null) {
+            return null;
+        }
+        final String path = packageFile.getAbsolutePath();
+        final String key = PackageCacheIndex.getKey(path, flags);
+        final PackageCacheIndex.Entry entry = index.getEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            final StructStat stat = Os.stat(path);
+            if (!entry.matches(stat.st_size, stat.st_mtime)) {
+                return null;
+            }
+            final ParsedPackage parsed = fromCacheEntry(index.read(entry));
+            mUsedEntries.put(key, entry);
+            return parsed;
+        } catch (Throwable e) {
+            Slog.w(TAG, "Error reading package cache index entry for " + path, e);
+            return null;
+        }
+    }
+
+    private void addToIndex(File packageFile, int flags, File cacheFile, int length) {
+        if (!mUseIndex || !isIndexable(packageFile)) {
+            return;
+        }
+        final String path = packageFile.getAbsolutePath();
+        try {
+            final StructStat stat = Os.stat(path);
+            final String key = PackageCacheIndex.getKey(path, flags);
+            mNewEntryFiles.put(key, cacheFile);
+            mNewEntries.put(key, new PackageCacheIndex.Entry(path, flags, stat.st_size,
+                    stat.st_mtime, 0, length));
+        } catch (ErrnoException e) {
+            Slog.w(TAG, "Error while stating " + path, e);
+        }
+    }
+
     /**
-     * Delete the cache files for the given {@code packageFile}.
+     * Merges the packages cached in their own file since the index was loaded into it, so the
+     * next boot reads them all from a single mapped file. Entries of the previous index whose
+     * package file changed or disappeared are dropped. The cache files of the merged packages
+     * are deleted once the index is written.
+     */
+    public void writeIndex() {
+        if (!mUseIndex || mNewEntries.isEmpty()) {
+            return;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+        final PackageCacheIndex index = getIndex();
+        final ArrayList<PackageCacheIndex.Entry> entries = new ArrayList<>(
+                mNewEntries.size() + (index != null ? index.size() : mUsedEntries.size()));
+        entries.addAll(mNewEntries.values());
+        if (index != null) {
+            index.forEachEntry((key, entry) -> {
+                if (mNewEntries.containsKey(key) || !isIndexable(new File(entry.path))) {
+                    return;
+                }
+                if (mUsedEntries.containsKey(key) || isStillValid(entry)) {
+                    entries.add(entry);
+                }
+            });
+        }
+
+        final boolean written = PackageCacheIndex.write(new File(mCacheDir, INDEX_FILE_NAME),
+                Build.FINGERPRINT, entries, entry -> {
+                    final String key = PackageCacheIndex.getKey(entry.path, entry.flags);
+                    if (mNewEntries.get(key) == entry) {
+                        return IoUtils.readFileAsByteArray(
+                                mNewEntryFiles.get(key).getAbsolutePath());
+                    }
+                    return index.read(entry);
+                });
+        if (!written) {
+            return;
+        }
+        for (Map.Entry<String, File> newEntry : mNewEntryFiles.entrySet()) {
+            if (!newEntry.getValue().delete()) {
+                Slog.w(TAG, "Unable to delete cache file: " + newEntry.getValue());
+            }
+        }
+        Slog.i(TAG, "Wrote package cache index: " + entries.size() + " packages, "
+                + mNewEntries.size() + " new, in " + (SystemClock.uptimeMillis() - startTime)
+                + " ms");
+        mNewEntries.clear();
+        mNewEntryFiles.clear();
+        mUsedEntries.clear();
+        synchronized (mIndexLock) {
+            mIndex = null;
+            mIndexLoaded = false;
+        }
+    }
+
+    /**
+     * Returns whether the parse result of {@code packageFile} may be held by the index. The
+     * packages of an APEX keep their size and modification time when it is updated, so the index
+     * could not tell that they changed; they are only cached in their own file, which
+     * {@link #cleanCachedResult} deletes when the APEX is updated.
+     */
+    private static boolean isIndexable(File packageFile) {
+        return !FileUtils.contains(Environment.getApexDirectory(), packageFile);
+    }
+
+    private static boolean isStillValid(PackageCacheIndex.Entry entry) {
+        try {
+            final StructStat stat = Os.stat(entry.path);
+            return entry.matches(stat.st_size, stat.st_mtime);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete the cache files for the given {@code packageFile}. Entries of the index for it are
+     * dropped when the index is next written, since the package file is gone or, for an APEX, is
+     * never indexed.
      */
     public void cleanCachedResult(@NonNull File packageFile) {
+        final String path = packageFile.getAbsolutePath();
+        mNewEntries.entrySet().removeIf(entry -> {
+            if (FileUtils.contains(path, entry.getValue().path)) {
+                mNewEntryFiles.remove(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+        mUsedEntries.values().removeIf(entry -> FileUtils.contains(path, entry.path));
         final String packageName = packageFile.getName();
         final File[] files = FileUtils.listFilesOrEmpty(mCacheDir,
                 (dir, name) -> name.startsWith(packageName));
@@ -195,6 +195,27 @@ public class PackageParser2 implements AutoCloseable {
         mSharedAppInfo.remove();
     }
 
+    /**
+     * Folds the packages cached while this parser was used into the index of the cache, so a
+     * later parser reads them from a single mapped file. Does nothing without a cache.
+     *
+     * @see PackageCacher#writeIndex()
+     */
+    @AnyThread
+    public void writeCacheIndex() {
+        getCacheIndexWriter().run();
+    }
+
+    /**
+     * Returns a task doing {@link #writeCacheIndex()}, which only uses the cache this parser was
+     * created with, so it may still run once the parser is closed.
+     */
+    @NonNull
+    public Runnable getCacheIndexWriter() {
+        final PackageCacher cacher = mCacher;
+        return cacher != null ? cacher::writeIndex : () -> { };
+    }
+
     public static abstract class Callback implements ParsingPackageUtils.Callback {
 
         @Override
@@ -208,6 +208,10 @@ class BLASTSyncEngine {
         mActiveSyncs.get(id).finishNow();
     }
 
+    boolean hasActiveSync() {
+        return mActiveSyncs.size() != 0;
+    }
+
     void onSurfacePlacement() {
         // backwards since each state can remove itself if finished
         for (int i = mActiveSyncs.size() - 1; i >= 0; --i) {
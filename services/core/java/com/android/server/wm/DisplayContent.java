@@ -128,6 +128,7 @@ import static com.android.server.wm.DisplayContentProto.SLEEP_TOKENS;
 import static com.android.server.wm.SurfaceAnimator.ANIMATION_TYPE_ALL;
 import static com.android.server.wm.SurfaceAnimator.ANIMATION_TYPE_APP_TRANSITION;
 import static com.android.server.wm.SurfaceAnimator.ANIMATION_TYPE_RECENTS;
+import static com.android.server.wm.WindowContainer.AnimationFlags.CHILDREN;
 import static com.android.server.wm.WindowContainer.AnimationFlags.PARENTS;
 import static com.android.server.wm.WindowContainer.AnimationFlags.TRANSITION;
 import static com.android.server.wm.WindowContainerChildProto.DISPLAY_CONTENT;
@@ -150,6 +151,7 @@ import static com.android.server.wm.WindowManagerService.dipToPixel;
 import static com.android.server.wm.WindowState.EXCLUSION_LEFT;
 import static com.android.server.wm.WindowState.EXCLUSION_RIGHT;
 import static com.android.server.wm.WindowState.RESIZE_HANDLE_WIDTH_IN_DP;
+import static com.android.server.wm.WindowStateAnimator.COMMIT_DRAW_PENDING;
 import static com.android.server.wm.WindowStateAnimator.READY_TO_SHOW;
 import static com.android.server.wm.utils.RegionUtils.forEachRectReverse;
 import static com.android.server.wm.utils.RegionUtils.rectListToRegion;
@@ -578,6 +580,17 @@ class DisplayContent extends RootDisplayArea implements WindowManagerPolicy.Disp
      */
     int mLayoutSeq = 0;
 
+    /**
+     * Whether something may have changed in this display since its surfaces were last placed, so
+     * that the next surface placement can not reuse {@link #mLastSurfacePlacementResult}. Also
+     * kept set while windows are still waiting to be shown or animating.
+     */
+    private boolean mSurfacePlacementDirty = true;
+
+    /** What the windows of this display contributed to the last surface placement. */
+    final RootWindowContainer.SurfacePlacementResult mLastSurfacePlacementResult =
+            new RootWindowContainer.SurfacePlacementResult();
+
     /**
      * Specifies the count to determine whether to defer updating the IME target until ready.
      */
@@ -826,6 +839,8 @@ class DisplayContent extends RootDisplayArea implements WindowManagerPolicy.Disp
     };
 
     private final Consumer<WindowState> mPerformLayout = w -> {
+        mWmService.mWindowPlacerLocked.onWindowVisited();
+
         // Don't do layout of a window if it is not visible, or soon won't be visible, to avoid
         // wasting time and funky changes while a window is animating away.
         final boolean gone = w.isGoneForLayout();
@@ -913,12 +928,15 @@ class DisplayContent extends RootDisplayArea implements WindowManagerPolicy.Disp
         return w.canBeImeTarget();
     };
 
-    private final Consumer<WindowState> mApplyPostLayoutPolicy =
-            w -> getDisplayPolicy().applyPostLayoutPolicyLw(w, w.mAttrs, w.getParentWindow(),
-                    mImeLayeringTarget);
+    private final Consumer<WindowState> mApplyPostLayoutPolicy = w -> {
+        mWmService.mWindowPlacerLocked.onWindowVisited();
+        getDisplayPolicy().applyPostLayoutPolicyLw(w, w.mAttrs, w.getParentWindow(),
+                mImeLayeringTarget);
+    };
 
     private final Consumer<WindowState> mApplySurfaceChangesTransaction = w -> {
         final WindowSurfacePlacer surfacePlacer = mWmService.mWindowPlacerLocked;
+        surfacePlacer.onWindowVisited();
         final boolean obscuredChanged = w.mObscured !=
                 mTmpApplySurfaceChangesTransactionState.obscured;
         final RootWindowContainer root = mWmService.mRoot;
@@ -1017,6 +1035,11 @@ class DisplayContent extends RootDisplayArea implements WindowManagerPolicy.Disp
                     }
                 }
             }
+            if (winAnimator.mDrawState == COMMIT_DRAW_PENDING
+                    || winAnimator.mDrawState == READY_TO_SHOW) {
+                // Still waiting to be shown, e.g. for the other windows of its activity.
+                mSurfacePlacementDirty = true;
+            }
         }
 
         final ActivityRecord activity = w.mActivityRecord;
@@ -4223,6 +4246,23 @@ class DisplayContent extends RootDisplayArea implements WindowManagerPolicy.Disp
         return mLayoutNeeded;
     }
 
+    /**
+     * Marks this display to be placed by the next surface placement, see
+     * {@link WindowSurfacePlacer#requestTraversal(DisplayContent)}.
+     */
+    void setSurfacePlacementDirty() {
+        mSurfacePlacementDirty = true;
+    }
+
+    /**
+     * @return whether nothing changed in this display since its surfaces were last placed, so
+     *         that walking its windows again would give {@link #mLastSurfacePlacementResult}.
+     */
+    boolean canSkipSurfacePlacement() {
+        return !mSurfacePlacementDirty && !mLayoutNeeded && pendingLayoutChanges == 0
+                && mWinInsetsChanged.isEmpty();
+    }
+
     void dumpTokens(PrintWriter pw, boolean dumpAll) {
         if (mTokenMap.isEmpty()) {
             return;
@@ -4424,6 +4464,7 @@ class DisplayContent extends RootDisplayArea implements WindowManagerPolicy.Disp
         final WindowSurfacePlacer surfacePlacer = mWmService.mWindowPlacerLocked;
 
         mTmpUpdateAllDrawn.clear();
+        mSurfacePlacementDirty = false;
 
         int repeats = 0;
         do {
@@ -4510,6 +4551,17 @@ class DisplayContent extends RootDisplayArea implements WindowManagerPolicy.Disp
             mWmService.mWallpaperVisibilityListeners.notifyWallpaperVisibilityChanged(this);
         }
 
+        // Keep placing this display while it is in the middle of a change that may continue
+        // without requesting a traversal for it.
+        if (!mTmpUpdateAllDrawn.isEmpty() || mWaitingForConfig || mWmService.mDisplayFrozen
+                || surfacePlacer.isLayoutDeferred()
+                || mAppTransition.isTransitionSet() || mAppTransition.isRunning()
+                || mTransitionController.inTransition()
+                || isAnimating(TRANSITION | CHILDREN, ANIMATION_TYPE_ALL)
+                || mInsetsStateController.getImeSourceProvider().isShowImePostLayoutPending()) {
+            mSurfacePlacementDirty = true;
+        }
+
         while (!mTmpUpdateAllDrawn.isEmpty()) {
             final ActivityRecord activity = mTmpUpdateAllDrawn.removeLast();
             // See if any windows have been drawn, so they (and others associated with them)
@@ -187,6 +187,13 @@ final class ImeInsetsSourceProvider extends InsetsSourceProvider {
         }
     }
 
+    /**
+     * @return whether the IME is scheduled to be shown once it is laid out and drawn.
+     */
+    boolean isShowImePostLayoutPending() {
+        return mShowImeRunner != null;
+    }
+
     /**
      * Abort any pending request to show IME post layout.
      */
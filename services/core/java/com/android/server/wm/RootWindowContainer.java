@@ -847,11 +847,7 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
             displayContent.setExitingTokensHasVisible(false);
         }
 
-        mHoldScreen = null;
-        mScreenBrightnessOverride = PowerManager.BRIGHTNESS_INVALID_FLOAT;
-        mUserActivityTimeout = -1;
-        mObscureApplicationContentOnSecondaryDisplays = false;
-        mSustainedPerformanceModeCurrent = false;
+        resetSurfacePlacementState();
         mWmService.mTransactionSequence++;
 
         // TODO(multi-display): recents animation & wallpaper need support multi-display.
@@ -868,6 +864,8 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
             applySurfaceChangesTransaction();
         } catch (RuntimeException e) {
             Slog.wtf(TAG, "Unhandled exception in Window Manager", e);
+            // Some displays may have been left half placed, do not reuse their results.
+            forAllDisplays(DisplayContent::setSurfacePlacementDirty);
         } finally {
             mWmService.closeSurfaceTransaction("performLayoutAndPlaceSurfaces");
             Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
@@ -1067,6 +1065,35 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
         }
     }
 
+    /** Resets what the windows contribute to the root during a surface placement pass. */
+    private void resetSurfacePlacementState() {
+        mHoldScreen = null;
+        mScreenBrightnessOverride = PowerManager.BRIGHTNESS_INVALID_FLOAT;
+        mUserActivityTimeout = -1;
+        mObscureApplicationContentOnSecondaryDisplays = false;
+        mSustainedPerformanceModeCurrent = false;
+    }
+
+    /**
+     * Places the surfaces of the displays like a surface placement pass does, skipping the ones
+     * that did not change, and returns what their windows contributed to the root. The obscuring
+     * of secondary displays is returned in {@link SurfacePlacementResult#obscureApplicationContent}.
+     */
+    @VisibleForTesting
+    SurfacePlacementResult applySurfaceChangesForTest() {
+        resetSurfacePlacementState();
+        applySurfaceChangesTransaction();
+        final SurfacePlacementResult state = new SurfacePlacementResult();
+        state.holdScreen = mHoldScreen;
+        state.holdScreenWindow = mHoldScreenWindow;
+        state.obscuringWindow = mObscuringWindow;
+        state.screenBrightnessOverride = mScreenBrightnessOverride;
+        state.userActivityTimeout = mUserActivityTimeout;
+        state.sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+        state.obscureApplicationContent = mObscureApplicationContentOnSecondaryDisplays;
+        return state;
+    }
+
     private void applySurfaceChangesTransaction() {
         mHoldScreenWindow = null;
         mObscuringWindow = null;
@@ -1087,10 +1114,28 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
                     mWmService.getDefaultDisplayRotation(), mDisplayTransaction);
         }
 
+        final WindowSurfacePlacer surfacePlacer = mWmService.mWindowPlacerLocked;
+        final boolean allDisplaysDirty = surfacePlacer.consumeAllDisplaysDirty()
+                || mWmService.mSyncEngine.hasActiveSync();
+        final boolean keyguardShowing = mWmService.mPolicy.isKeyguardShowing();
         final int count = mChildren.size();
         for (int j = 0; j < count; ++j) {
             final DisplayContent dc = mChildren.get(j);
-            dc.applySurfaceChangesTransaction();
+            if (allDisplaysDirty) {
+                dc.setSurfacePlacementDirty();
+            }
+            final SurfacePlacementResult lastResult = dc.mLastSurfacePlacementResult;
+            if (dc.canSkipSurfacePlacement() && lastResult.keyguardShowing == keyguardShowing
+                    && lastResult.obscuredApplicationContent
+                            == mObscureApplicationContentOnSecondaryDisplays
+                    && !lastResult.refersToRemovedWindow()) {
+                // Nothing changed in this display, what its windows contributed is still valid.
+                mergeSurfacePlacementResult(lastResult);
+                surfacePlacer.onDisplaySkipped();
+                continue;
+            }
+            applySurfaceChangesTransaction(dc, keyguardShowing);
+            surfacePlacer.onDisplayPlaced();
         }
 
         // Give the display manager a chance to adjust properties like display rotation if it needs
@@ -1099,6 +1144,100 @@ class RootWindowContainer extends WindowContainer<DisplayContent>
         SurfaceControl.mergeToGlobalTransaction(mDisplayTransaction);
     }
 
+    /**
+     * Places the surfaces of {@code dc}, recording what its windows contribute to the state of the
+     * root, like the window holding the screen on, so that it can be reused while nothing changes
+     * in the display.
+     */
+    private void applySurfaceChangesTransaction(DisplayContent dc, boolean keyguardShowing) {
+        final Session holdScreen = mHoldScreen;
+        final WindowState holdScreenWindow = mHoldScreenWindow;
+        final WindowState obscuringWindow = mObscuringWindow;
+        final float screenBrightnessOverride = mScreenBrightnessOverride;
+        final long userActivityTimeout = mUserActivityTimeout;
+        final boolean sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+        // Secondary displays read this one, it is not reset.
+        final boolean obscureApplicationContent = mObscureApplicationContentOnSecondaryDisplays;
+        mHoldScreen = null;
+        mHoldScreenWindow = null;
+        mObscuringWindow = null;
+        mScreenBrightnessOverride = PowerManager.BRIGHTNESS_INVALID_FLOAT;
+        mUserActivityTimeout = -1;
+        mSustainedPerformanceModeCurrent = false;
+
+        dc.applySurfaceChangesTransaction();
+
+        final SurfacePlacementResult result = dc.mLastSurfacePlacementResult;
+        result.holdScreen = mHoldScreen;
+        result.holdScreenWindow = mHoldScreenWindow;
+        result.obscuringWindow = mObscuringWindow;
+        result.screenBrightnessOverride = mScreenBrightnessOverride;
+        result.userActivityTimeout = mUserActivityTimeout;
+        result.sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+        result.obscureApplicationContent =
+                mObscureApplicationContentOnSecondaryDisplays && !obscureApplicationContent;
+        result.obscuredApplicationContent = obscureApplicationContent;
+        result.keyguardShowing = keyguardShowing;
+
+        mHoldScreen = holdScreen;
+        mHoldScreenWindow = holdScreenWindow;
+        mObscuringWindow = obscuringWindow;
+        mScreenBrightnessOverride = screenBrightnessOverride;
+        mUserActivityTimeout = userActivityTimeout;
+        mSustainedPerformanceModeCurrent = sustainedPerformanceMode;
+        mergeSurfacePlacementResult(result);
+    }
+
+    /**
+     * Applies what the windows of a display contributed, as if they were visited now. The rules
+     * are the ones of {@link #handleNotObscuredLocked}: the last display holding the screen on
+     * wins, the first one overriding the brightness or the user activity timeout wins.
+     */
+    private void mergeSurfacePlacementResult(SurfacePlacementResult result) {
+        if (result.holdScreen != null) {
+            mHoldScreen = result.holdScreen;
+            mHoldScreenWindow = result.holdScreenWindow;
+        }
+        if (result.obscuringWindow != null) {
+            mObscuringWindow = result.obscuringWindow;
+        }
+        if (Float.isNaN(mScreenBrightnessOverride)) {
+            mScreenBrightnessOverride = result.screenBrightnessOverride;
+        }
+        if (mUserActivityTimeout < 0) {
+            mUserActivityTimeout = result.userActivityTimeout;
+        }
+        mSustainedPerformanceModeCurrent |= result.sustainedPerformanceMode;
+        mObscureApplicationContentOnSecondaryDisplays |= result.obscureApplicationContent;
+    }
+
+    /**
+     * What the windows of a display contributed to the root during the last surface placement of
+     * the display.
+     */
+    static final class SurfacePlacementResult {
+        Session holdScreen;
+        WindowState holdScreenWindow;
+        WindowState obscuringWindow;
+        float screenBrightnessOverride = PowerManager.BRIGHTNESS_INVALID_FLOAT;
+        long userActivityTimeout = -1;
+        boolean sustainedPerformanceMode;
+        boolean obscureApplicationContent;
+
+        // The inputs of the placement that do not come from the display itself.
+        boolean obscuredApplicationContent;
+        boolean keyguardShowing;
+
+        /**
+         * @return whether a window that contributed was removed since, which the root must not
+         *         keep referring to even if its display was not marked.
+         */
+        boolean refersToRemovedWindow() {
+            return (holdScreenWindow != null && holdScreenWindow.mRemoved)
+                    || (obscuringWindow != null && obscuringWindow.mRemoved);
+        }
+    }
+
     /**
      * Handles resizing windows during surface placement.
      */
@@ -17,58 +17,149 @@
 package com.android.server.wm;
 
 import android.annotation.Nullable;
+import android.app.ActivityManager;
+import android.hardware.HardwareBuffer;
+import android.os.SystemProperties;
 import android.window.TaskSnapshot;
 import android.util.ArrayMap;
 
 import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * The snapshot buffers held by the cache are bounded by a byte budget. Once it is exceeded, the
+ * least recently used snapshots which have been written to disk are evicted, and are restored
+ * from disk when they are needed again, even by the lookups that don't restore from disk
+ * otherwise. The buffers of evicted snapshots are left to the garbage collector, as they may
+ * still be in use by the starting window or sent to a client.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    /** Overrides the byte budget of the cache, in kilobytes. */
+    private static final String MAX_SIZE_KB_PROPERTY = "persist.wm.task_snapshot_cache_kb";
+    private static final long DEFAULT_MAX_SIZE_KB = 48 * 1024;
+    private static final long LOW_RAM_MAX_SIZE_KB = 16 * 1024;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
+    @Nullable
+    private final TaskSnapshotPersister mPersister;
+    private final long mMaxSizeBytes;
+    private long mSizeBytes;
     private final ArrayMap<ActivityRecord, Integer> mAppTaskMap = new ArrayMap<>();
-    private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    // The top apps of the tasks whose snapshot was evicted, by task id.
+    private final ArrayMap<Integer, ActivityRecord> mEvictedTasks = new ArrayMap<>();
+    // In access order, so the least recently used entries come first.
+    private final LinkedHashMap<Integer, CacheEntry> mRunningCache =
+            new LinkedHashMap<>(16 /* initialCapacity */, 0.75f /* loadFactor */,
+                    true /* accessOrder */);
 
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader, null /* persister */, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param persister The persister the snapshots are restored from once evicted, which must
+     *                  report the snapshots it wrote to {@link #onSnapshotPersisted}.
+     * @param maxSizeBytes The byte budget of the snapshot buffers held by the cache.
+     */
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            @Nullable TaskSnapshotPersister persister, long maxSizeBytes) {
         mService = service;
         mLoader = loader;
+        mPersister = persister;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * @return the default byte budget of the cache for this device.
+     */
+    static long getDefaultMaxSizeBytes() {
+        final long defaultSizeKb = ActivityManager.isLowRamDeviceStatic()
+                ? LOW_RAM_MAX_SIZE_KB : DEFAULT_MAX_SIZE_KB;
+        return SystemProperties.getLong(MAX_SIZE_KB_PROPERTY, defaultSizeKb) * 1024;
     }
 
     void clearRunningCache() {
         mRunningCache.clear();
+        mAppTaskMap.clear();
+        mEvictedTasks.clear();
+        mSizeBytes = 0;
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
-        final CacheEntry entry = mRunningCache.get(task.mTaskId);
-        if (entry != null) {
-            mAppTaskMap.remove(entry.topApp);
-        }
+        removeRunningEntry(task.mTaskId);
         final ActivityRecord top = task.getTopMostActivity();
+        final CacheEntry newEntry = new CacheEntry(snapshot, top);
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, top));
+        mRunningCache.put(task.mTaskId, newEntry);
+        mSizeBytes += newEntry.sizeBytes;
+        trimToMaxSize();
+    }
+
+    /**
+     * Called once a snapshot was written to disk, so it can be evicted if it is still the one
+     * cached for its task.
+     */
+    void onSnapshotPersisted(TaskSnapshot snapshot) {
+        // Not a lookup by task id, which would count as a use of the entry.
+        for (CacheEntry entry : mRunningCache.values()) {
+            if (entry.snapshot == snapshot) {
+                entry.persisted = true;
+                trimToMaxSize();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used snapshots which can be restored from disk until the cache is
+     * within its budget. The most recent snapshot is always kept.
+     */
+    void trimToMaxSize() {
+        if (mSizeBytes <= mMaxSizeBytes || mPersister == null) {
+            return;
+        }
+        int remaining = mRunningCache.size();
+        final Iterator<Map.Entry<Integer, CacheEntry>> it = mRunningCache.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && --remaining > 0) {
+            final Map.Entry<Integer, CacheEntry> mapEntry = it.next();
+            final CacheEntry entry = mapEntry.getValue();
+            if (!entry.persisted) {
+                continue;
+            }
+            it.remove();
+            mEvictedTasks.put(mapEntry.getKey(), entry.topApp);
+            mSizeBytes -= entry.sizeBytes;
+        }
     }
 
     /**
      * If {@param restoreFromDisk} equals {@code true}, DO NOT HOLD THE WINDOW MANAGER LOCK!
+     * Snapshots evicted from the cache are restored from disk regardless.
      */
     @Nullable TaskSnapshot getSnapshot(int taskId, int userId, boolean restoreFromDisk,
             boolean isLowResolution) {
 
+        final boolean evicted;
         synchronized (mService.mGlobalLock) {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
                 return entry.snapshot;
             }
+            evicted = mEvictedTasks.containsKey(taskId);
         }
 
-        // Try to restore from disk if asked.
-        if (!restoreFromDisk) {
+        // Try to restore from disk if asked, or if the snapshot would still be cached without
+        // the budget; callers holding the lock rely on finding it then.
+        if (!restoreFromDisk && !evicted) {
             return null;
         }
         return tryRestoreFromDisk(taskId, userId, isLowResolution);
@@ -110,10 +201,14 @@ class TaskSnapshotCache {
     }
 
     void removeRunningEntry(int taskId) {
-        final CacheEntry entry = mRunningCache.get(taskId);
+        final CacheEntry entry = mRunningCache.remove(taskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
-            mRunningCache.remove(taskId);
+            mSizeBytes -= entry.sizeBytes;
+        }
+        final ActivityRecord evictedTop = mEvictedTasks.remove(taskId);
+        if (evictedTop != null) {
+            mAppTaskMap.remove(evictedTop);
         }
     }
 
@@ -121,11 +216,16 @@ class TaskSnapshotCache {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
-        for (int i = mRunningCache.size() - 1; i >= 0; i--) {
-            final CacheEntry entry = mRunningCache.valueAt(i);
-            pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
+        pw.println(doublePrefix + "sizeBytes=" + mSizeBytes + " maxSizeBytes=" + mMaxSizeBytes);
+        for (Map.Entry<Integer, CacheEntry> mapEntry : mRunningCache.entrySet()) {
+            final CacheEntry entry = mapEntry.getValue();
+            pw.println(doublePrefix + "Entry taskId=" + mapEntry.getKey());
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
+            pw.println(triplePrefix + "persisted=" + entry.persisted);
+        }
+        for (int i = 0; i < mEvictedTasks.size(); i++) {
+            pw.println(doublePrefix + "Evicted taskId=" + mEvictedTasks.keyAt(i));
         }
     }
 
@@ -137,9 +237,25 @@ class TaskSnapshotCache {
         /** The app token that was on top of the task when the snapshot was taken */
         final ActivityRecord topApp;
 
+        /** Whether the snapshot was written to disk, so it can be restored once evicted */
+        boolean persisted;
+
+        /** The size of the buffer of the snapshot */
+        final long sizeBytes;
+
         CacheEntry(TaskSnapshot snapshot, ActivityRecord topApp) {
             this.snapshot = snapshot;
             this.topApp = topApp;
+            this.sizeBytes = getSizeBytes(snapshot);
+        }
+
+        private static long getSizeBytes(TaskSnapshot snapshot) {
+            final HardwareBuffer buffer = snapshot.getHardwareBuffer();
+            if (buffer == null || buffer.isClosed()) {
+                return 0;
+            }
+            final int bytesPerPixel = buffer.getFormat() == HardwareBuffer.RGB_565 ? 2 : 4;
+            return (long) buffer.getWidth() * buffer.getHeight() * bytesPerPixel;
         }
     }
 }
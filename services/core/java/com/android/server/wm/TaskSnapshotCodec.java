@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static android.graphics.Bitmap.CompressFormat.JPEG;
+
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.hardware.HardwareBuffer;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes the bitmaps of {@link android.window.TaskSnapshot}s to files and decodes them back.
+ * <p>
+ * Test class: {@link TaskSnapshotPersisterLoaderTest}
+ */
+abstract class TaskSnapshotCodec {
+
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "TaskSnapshotCodec" : TAG_WM;
+
+    /** Lossy and small, but slow to encode. */
+    static final TaskSnapshotCodec JPEG_CODEC = new JpegCodec();
+
+    /** Lossless and fast to encode and decode, but larger on disk. */
+    static final TaskSnapshotCodec RAW_CODEC = new RawCodec();
+
+    static final TaskSnapshotCodec[] ALL_CODECS = { JPEG_CODEC, RAW_CODEC };
+
+    private final String mName;
+    private final String mExtension;
+
+    TaskSnapshotCodec(String name, String extension) {
+        mName = name;
+        mExtension = extension;
+    }
+
+    /**
+     * @return the codec with the given name, or the JPEG codec if there is none.
+     */
+    @NonNull
+    static TaskSnapshotCodec forName(@Nullable String name) {
+        for (TaskSnapshotCodec codec : ALL_CODECS) {
+            if (codec.mName.equals(name)) {
+                return codec;
+            }
+        }
+        return JPEG_CODEC;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the extension of the files written by this codec, including the dot.
+     */
+    String getExtension() {
+        return mExtension;
+    }
+
+    /**
+     * @return the config the software copy of a snapshot buffer should have to be encoded.
+     */
+    Config getEncodeConfig(HardwareBuffer buffer) {
+        return Config.ARGB_8888;
+    }
+
+    abstract void encode(Bitmap bitmap, OutputStream out) throws IOException;
+
+    /**
+     * @return the decoded software bitmap, or {@code null} if the file could not be decoded.
+     */
+    @Nullable
+    abstract Bitmap decode(File file, Config preferredConfig);
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    private static final class JpegCodec extends TaskSnapshotCodec {
+        private static final int QUALITY = 95;
+
+        JpegCodec() {
+            super("jpeg", ".jpg");
+        }
+
+        @Override
+        void encode(Bitmap bitmap, OutputStream out) throws IOException {
+            bitmap.compress(JPEG, QUALITY, out);
+        }
+
+        @Override
+        Bitmap decode(File file, Config preferredConfig) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = preferredConfig;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    /**
+     * Stores the pixels of the snapshot as they are, in the 16 bit format of the snapshot buffer
+     * when it has one, compressed with the fastest deflate level.
+     */
+    private static final class RawCodec extends TaskSnapshotCodec {
+        private static final int MAGIC = 0x54535258; // TSRX
+        private static final int VERSION = 1;
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        RawCodec() {
+            super("raw", ".raw");
+        }
+
+        @Override
+        Config getEncodeConfig(HardwareBuffer buffer) {
+            return buffer.getFormat() == HardwareBuffer.RGB_565 ? Config.RGB_565 : Config.ARGB_8888;
+        }
+
+        @Override
+        void encode(Bitmap bitmap, OutputStream out) throws IOException {
+            final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(pixels);
+
+            final DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(bitmap.getWidth());
+            header.writeInt(bitmap.getHeight());
+            header.writeBoolean(bitmap.getConfig() == Config.RGB_565);
+            header.writeInt(pixels.capacity());
+            header.flush();
+
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                final DeflaterOutputStream deflaterOut =
+                        new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                deflaterOut.write(pixels.array());
+                deflaterOut.finish();
+                deflaterOut.flush();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        Bitmap decode(File file, Config preferredConfig) {
+            final Inflater inflater = new Inflater();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Slog.w(TAG, "Unknown snapshot format: " + file);
+                    return null;
+                }
+                final int width = in.readInt();
+                final int height = in.readInt();
+                final Config config = in.readBoolean() ? Config.RGB_565 : Config.ARGB_8888;
+                final int byteCount = in.readInt();
+                if (width <= 0 || height <= 0) {
+                    Slog.w(TAG, "Invalid snapshot dimensions in " + file);
+                    return null;
+                }
+                final Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+                if (bitmap.getByteCount() != byteCount) {
+                    Slog.w(TAG, "Unexpected snapshot size in " + file);
+                    bitmap.recycle();
+                    return null;
+                }
+                final byte[] pixels = new byte[byteCount];
+                new DataInputStream(new InflaterInputStream(in, inflater, BUFFER_SIZE))
+                        .readFully(pixels);
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+                return bitmap;
+            } catch (IOException e) {
+                Slog.w(TAG, "Unable to decode " + file, e);
+                return null;
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
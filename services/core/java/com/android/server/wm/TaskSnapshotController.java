@@ -123,7 +123,15 @@ class TaskSnapshotController {
         mService = service;
         mPersister = new TaskSnapshotPersister(mService, Environment::getDataSystemCeDirectory);
         mLoader = new TaskSnapshotLoader(mPersister);
-        mCache = new TaskSnapshotCache(mService, mLoader);
+        mCache = new TaskSnapshotCache(mService, mLoader, mPersister,
+                TaskSnapshotCache.getDefaultMaxSizeBytes());
+        // Snapshots can only be evicted once they are written.
+        mPersister.setOnSnapshotPersistedListener((taskId, userId, snapshot) ->
+                mService.mH.post(() -> {
+                    synchronized (mService.mGlobalLock) {
+                        mCache.onSnapshotPersisted(snapshot);
+                    }
+                }));
         mIsRunningOnTv = mService.mContext.getPackageManager().hasSystemFeature(
                 PackageManager.FEATURE_LEANBACK);
         mIsRunningOnIoT = mService.mContext.getPackageManager().hasSystemFeature(
@@ -23,8 +23,6 @@ import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapFactory.Options;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.hardware.HardwareBuffer;
@@ -144,7 +142,9 @@ class TaskSnapshotLoader {
         try {
             final byte[] bytes = Files.readAllBytes(protoFile.toPath());
             final TaskSnapshotProto proto = TaskSnapshotProto.parseFrom(bytes);
-            final File highResBitmap = mPersister.getHighResolutionBitmapFile(taskId, userId);
+            final TaskSnapshotCodec codec = mPersister.getCodec(taskId, userId);
+            final File highResBitmap = mPersister.getHighResolutionBitmapFile(taskId, userId,
+                    codec);
 
             PreRLegacySnapshotConfig legacyConfig = getLegacySnapshotConfig(proto.taskWidth,
                     proto.legacyScale, highResBitmap.exists(), loadLowResolutionBitmap);
@@ -152,17 +152,16 @@ class TaskSnapshotLoader {
             boolean forceLoadReducedJpeg =
                     legacyConfig != null && legacyConfig.mForceLoadReducedJpeg;
             File bitmapFile = (loadLowResolutionBitmap || forceLoadReducedJpeg)
-                    ? mPersister.getLowResolutionBitmapFile(taskId, userId) : highResBitmap;
+                    ? mPersister.getLowResolutionBitmapFile(taskId, userId, codec) : highResBitmap;
 
             if (!bitmapFile.exists()) {
                 return null;
             }
 
-            final Options options = new Options();
-            options.inPreferredConfig = mPersister.use16BitFormat() && !proto.isTranslucent
+            final Config preferredConfig = mPersister.use16BitFormat() && !proto.isTranslucent
                     ? Config.RGB_565
                     : Config.ARGB_8888;
-            final Bitmap bitmap = BitmapFactory.decodeFile(bitmapFile.getPath(), options);
+            final Bitmap bitmap = codec.decode(bitmapFile, preferredConfig);
             if (bitmap == null) {
                 Slog.w(TAG, "Failed to load bitmap: " + bitmapFile.getPath());
                 return null;
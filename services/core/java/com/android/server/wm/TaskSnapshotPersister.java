@@ -16,17 +16,18 @@
 
 package com.android.server.wm;
 
-import static android.graphics.Bitmap.CompressFormat.JPEG;
-
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
 import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.TestApi;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.hardware.HardwareBuffer;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
@@ -43,6 +44,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Iterator;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
@@ -55,11 +57,12 @@ class TaskSnapshotPersister {
     private static final String SNAPSHOTS_DIRNAME = "snapshots";
     private static final String LOW_RES_FILE_POSTFIX = "_reduced";
     private static final long DELAY_MS = 100;
-    private static final int QUALITY = 95;
     private static final String PROTO_EXTENSION = ".proto";
-    private static final String BITMAP_EXTENSION = ".jpg";
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
 
+    /** Name of the {@link TaskSnapshotCodec} snapshot bitmaps are written with. */
+    private static final String CODEC_PROPERTY = "persist.wm.task_snapshot_codec";
+
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
@@ -74,7 +77,10 @@ class TaskSnapshotPersister {
     private final float mLowResScaleFactor;
     private boolean mEnableLowResSnapshots;
     private final boolean mUse16BitFormat;
+    private final TaskSnapshotCodec mCodec;
     private final UserManagerInternal mUserManagerInternal;
+    @Nullable
+    private OnSnapshotPersistedListener mOnSnapshotPersisted;
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -84,7 +90,14 @@ class TaskSnapshotPersister {
     private final ArraySet<Integer> mPersistedTaskIdsSinceLastRemoveObsolete = new ArraySet<>();
 
     TaskSnapshotPersister(WindowManagerService service, DirectoryResolver resolver) {
+        this(service, resolver, TaskSnapshotCodec.forName(SystemProperties.get(CODEC_PROPERTY)));
+    }
+
+    @VisibleForTesting
+    TaskSnapshotPersister(WindowManagerService service, DirectoryResolver resolver,
+            TaskSnapshotCodec codec) {
         mDirectoryResolver = resolver;
+        mCodec = codec;
         mUserManagerInternal = LocalServices.getService(UserManagerInternal.class);
 
         final float highResTaskSnapshotScale = service.mContext.getResources().getFloat(
@@ -114,6 +127,13 @@ class TaskSnapshotPersister {
                 com.android.internal.R.bool.config_use16BitTaskSnapshotPixelFormat);
     }
 
+    /**
+     * Sets the callback run on the persister thread every time a snapshot was written.
+     */
+    void setOnSnapshotPersistedListener(@Nullable OnSnapshotPersistedListener listener) {
+        mOnSnapshotPersisted = listener;
+    }
+
     /**
      * Starts persisting.
      */
@@ -134,6 +154,13 @@ class TaskSnapshotPersister {
     void persistSnapshot(int taskId, int userId, TaskSnapshot snapshot) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.add(taskId);
+            final StoreWriteQueueItem queuedItem = findQueuedStoreItemLocked(taskId, userId);
+            if (queuedItem != null) {
+                // Only the latest snapshot of a task is of any use, so rather than encoding every
+                // snapshot of a task taken while the queue is busy, replace the queued one.
+                queuedItem.mSnapshot = snapshot;
+                return;
+            }
             sendToQueueLocked(new StoreWriteQueueItem(taskId, userId, snapshot));
         }
     }
@@ -147,6 +174,15 @@ class TaskSnapshotPersister {
     void onTaskRemovedFromRecents(int taskId, int userId) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.remove(taskId);
+            // The files would be deleted right after being written, and no later snapshot of the
+            // task may be coalesced into a store item queued before the delete.
+            for (Iterator<StoreWriteQueueItem> it = mStoreQueueItems.iterator(); it.hasNext(); ) {
+                final StoreWriteQueueItem item = it.next();
+                if (item.mTaskId == taskId && item.mUserId == userId) {
+                    it.remove();
+                    mWriteQueue.remove(item);
+                }
+            }
             sendToQueueLocked(new DeleteWriteQueueItem(taskId, userId));
         }
     }
@@ -190,6 +226,31 @@ class TaskSnapshotPersister {
         return mUse16BitFormat;
     }
 
+    TaskSnapshotCodec getCodec() {
+        return mCodec;
+    }
+
+    /**
+     * @return the codec the bitmaps of the snapshot of a task were written with, which is the
+     *         current one unless they were written before it changed.
+     */
+    TaskSnapshotCodec getCodec(int taskId, int userId) {
+        if (hasBitmapFiles(taskId, userId, mCodec)) {
+            return mCodec;
+        }
+        for (TaskSnapshotCodec codec : TaskSnapshotCodec.ALL_CODECS) {
+            if (codec != mCodec && hasBitmapFiles(taskId, userId, codec)) {
+                return codec;
+            }
+        }
+        return mCodec;
+    }
+
+    private boolean hasBitmapFiles(int taskId, int userId, TaskSnapshotCodec codec) {
+        return getHighResolutionBitmapFile(taskId, userId, codec).exists()
+                || getLowResolutionBitmapFile(taskId, userId, codec).exists();
+    }
+
     @TestApi
     void waitForQueueEmpty() {
         while (true) {
@@ -212,6 +273,16 @@ class TaskSnapshotPersister {
         }
     }
 
+    @GuardedBy("mLock")
+    private StoreWriteQueueItem findQueuedStoreItemLocked(int taskId, int userId) {
+        for (StoreWriteQueueItem item : mStoreQueueItems) {
+            if (item.mTaskId == taskId && item.mUserId == userId) {
+                return item;
+            }
+        }
+        return null;
+    }
+
     @GuardedBy("mLock")
     private void ensureStoreQueueDepthLocked() {
         while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
@@ -230,12 +301,22 @@ class TaskSnapshotPersister {
     }
 
     File getHighResolutionBitmapFile(int taskId, int userId) {
-        return new File(getDirectory(userId), taskId + BITMAP_EXTENSION);
+        return getHighResolutionBitmapFile(taskId, userId, mCodec);
+    }
+
+    File getHighResolutionBitmapFile(int taskId, int userId, TaskSnapshotCodec codec) {
+        return new File(getDirectory(userId), taskId + codec.getExtension());
     }
 
     @NonNull
     File getLowResolutionBitmapFile(int taskId, int userId) {
-        return new File(getDirectory(userId), taskId + LOW_RES_FILE_POSTFIX + BITMAP_EXTENSION);
+        return getLowResolutionBitmapFile(taskId, userId, mCodec);
+    }
+
+    @NonNull
+    File getLowResolutionBitmapFile(int taskId, int userId, TaskSnapshotCodec codec) {
+        return new File(getDirectory(userId),
+                taskId + LOW_RES_FILE_POSTFIX + codec.getExtension());
     }
 
     private boolean createDirectory(int userId) {
@@ -245,17 +326,40 @@ class TaskSnapshotPersister {
 
     private void deleteSnapshot(int taskId, int userId) {
         final File protoFile = getProtoFile(taskId, userId);
-        final File bitmapLowResFile = getLowResolutionBitmapFile(taskId, userId);
         protoFile.delete();
-        if (bitmapLowResFile.exists()) {
-            bitmapLowResFile.delete();
+        for (TaskSnapshotCodec codec : TaskSnapshotCodec.ALL_CODECS) {
+            final File bitmapLowResFile = getLowResolutionBitmapFile(taskId, userId, codec);
+            if (bitmapLowResFile.exists()) {
+                bitmapLowResFile.delete();
+            }
+            final File bitmapFile = getHighResolutionBitmapFile(taskId, userId, codec);
+            if (bitmapFile.exists()) {
+                bitmapFile.delete();
+            }
         }
-        final File bitmapFile = getHighResolutionBitmapFile(taskId, userId);
-        if (bitmapFile.exists()) {
-            bitmapFile.delete();
+    }
+
+    /**
+     * Deletes the bitmaps a snapshot of the task was written with by other codecs, so they are
+     * not loaded instead of the ones just written.
+     */
+    private void deleteOtherCodecBitmaps(int taskId, int userId) {
+        for (TaskSnapshotCodec codec : TaskSnapshotCodec.ALL_CODECS) {
+            if (codec != mCodec) {
+                getLowResolutionBitmapFile(taskId, userId, codec).delete();
+                getHighResolutionBitmapFile(taskId, userId, codec).delete();
+            }
         }
     }
 
+    /**
+     * Notified of the snapshots that were written. Snapshots which were purged from the queue,
+     * replaced by a later one, or failed to be written are not reported.
+     */
+    interface OnSnapshotPersistedListener {
+        void onSnapshotPersisted(int taskId, int userId, TaskSnapshot snapshot);
+    }
+
     interface DirectoryResolver {
         File getSystemDirectoryForUser(int userId);
     }
@@ -329,7 +433,9 @@ class TaskSnapshotPersister {
     private class StoreWriteQueueItem extends WriteQueueItem {
         private final int mTaskId;
         private final int mUserId;
-        private final TaskSnapshot mSnapshot;
+        // Replaced by later snapshots of the task with mLock held until the item is dequeued,
+        // and only read by write() afterwards.
+        private TaskSnapshot mSnapshot;
 
         StoreWriteQueueItem(int taskId, int userId, TaskSnapshot snapshot) {
             mTaskId = taskId;
@@ -369,6 +475,12 @@ class TaskSnapshotPersister {
             }
             if (failed) {
                 deleteSnapshot(mTaskId, mUserId);
+                return;
+            }
+            deleteOtherCodecBitmaps(mTaskId, mUserId);
+            final OnSnapshotPersistedListener listener = mOnSnapshotPersisted;
+            if (listener != null) {
+                listener.onSnapshotPersisted(mTaskId, mUserId, mSnapshot);
             }
         }
 
@@ -416,12 +528,14 @@ class TaskSnapshotPersister {
                 return false;
             }
 
-            final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
+            final HardwareBuffer buffer = mSnapshot.getHardwareBuffer();
+            final Bitmap swBitmap = bitmap.copy(mCodec.getEncodeConfig(buffer),
+                    false /* isMutable */);
 
             final File file = getHighResolutionBitmapFile(mTaskId, mUserId);
             try {
                 FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
+                mCodec.encode(swBitmap, fos);
                 fos.close();
             } catch (IOException e) {
                 Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
@@ -441,7 +555,7 @@ class TaskSnapshotPersister {
             final File lowResFile = getLowResolutionBitmapFile(mTaskId, mUserId);
             try {
                 FileOutputStream lowResFos = new FileOutputStream(lowResFile);
-                lowResBitmap.compress(JPEG, QUALITY, lowResFos);
+                mCodec.encode(lowResBitmap, lowResFos);
                 lowResFos.close();
             } catch (IOException e) {
                 Slog.e(TAG, "Unable to open " + lowResFile + " for persisting.", e);
@@ -504,7 +618,7 @@ class TaskSnapshotPersister {
 
         @VisibleForTesting
         int getTaskId(String fileName) {
-            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)) {
+            if (!fileName.endsWith(PROTO_EXTENSION) && !isBitmapFile(fileName)) {
                 return -1;
             }
             final int end = fileName.lastIndexOf('.');
@@ -521,5 +635,14 @@ class TaskSnapshotPersister {
                 return -1;
             }
         }
+
+        private boolean isBitmapFile(String fileName) {
+            for (TaskSnapshotCodec codec : TaskSnapshotCodec.ALL_CODECS) {
+                if (fileName.endsWith(codec.getExtension())) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
@@ -166,7 +166,8 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
     private SurfaceControl mLastRelativeToLayer = null;
 
     // TODO(b/132320879): Remove this from WindowContainers except DisplayContent.
-    private final Transaction mPendingTransaction;
+    // Created on first use: most containers are on a display and use its pending transaction.
+    private Transaction mPendingTransaction;
 
     /**
      * Windows that clients are waiting to have drawn.
@@ -308,7 +309,8 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
      * on how this container is handled during parent changes.
      */
     BLASTSyncEngine.SyncGroup mSyncGroup = null;
-    final SurfaceControl.Transaction mSyncTransaction;
+    /** Created when this container first joins a sync-group, see {@link #prepareSync}. */
+    SurfaceControl.Transaction mSyncTransaction;
     @SyncState int mSyncState = SYNC_STATE_NONE;
 
     private final List<WindowContainerListener> mListeners = new ArrayList<>();
@@ -316,8 +318,6 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
     WindowContainer(WindowManagerService wms) {
         mWmService = wms;
         mTransitionController = mWmService.mAtmService.getTransitionController();
-        mPendingTransaction = wms.mTransactionFactory.get();
-        mSyncTransaction = wms.mTransactionFactory.get();
         mSurfaceAnimator = new SurfaceAnimator(this, this::onAnimationFinished, wms);
         mSurfaceFreezer = new SurfaceFreezer(this, wms);
     }
@@ -818,7 +818,7 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
             mSurfaceFreezer.unfreeze(getPendingTransaction());
         }
         mDisplayContent = dc;
-        if (dc != null && dc != this) {
+        if (dc != null && dc != this && mPendingTransaction != null) {
             dc.getPendingTransaction().merge(mPendingTransaction);
         }
         for (int i = mChildren.size() - 1; i >= 0; --i) {
@@ -2548,6 +2548,9 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
         // let the caller to save the surface operations within the local mPendingTransaction.
         // If this is not a DisplayContent, we will merge it to the pending transaction of its
         // display once it attaches to it.
+        if (mPendingTransaction == null) {
+            mPendingTransaction = mWmService.mTransactionFactory.get();
+        }
         return mPendingTransaction;
     }
 
@@ -3385,6 +3388,9 @@ class WindowContainer<E extends WindowContainer> extends ConfigurationContainer<
             final WindowContainer child = getChildAt(i);
             child.prepareSync();
         }
+        if (mSyncTransaction == null) {
+            mSyncTransaction = mWmService.mTransactionFactory.get();
+        }
         mSyncState = SYNC_STATE_READY;
         return true;
     }
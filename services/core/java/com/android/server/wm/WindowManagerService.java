@@ -1103,6 +1103,14 @@ public class WindowManagerService extends IWindowManager.Stub
         sThreadPriorityBooster.reset();
     }
 
+    /** The number of global surface transactions closed, each applied to SurfaceFlinger. */
+    long mSurfaceTransactionsApplied;
+    /**
+     * The number of surface changes merged into the pending transaction of their display, and
+     * applied with the next frame, instead of applying a transaction of their own.
+     */
+    long mSurfaceTransactionsMerged;
+
     void openSurfaceTransaction() {
         try {
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "openSurfaceTransaction");
@@ -1120,6 +1128,7 @@ public class WindowManagerService extends IWindowManager.Stub
         try {
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "closeSurfaceTransaction");
             SurfaceControl.closeTransaction();
+            mSurfaceTransactionsApplied++;
             mWindowTracing.logState(where);
         } finally {
             Trace.traceEnd(TRACE_TAG_WINDOW_MANAGER);
@@ -2406,8 +2415,9 @@ public class WindowManagerService extends IWindowManager.Stub
             }
 
             // We may be deferring layout passes at the moment, but since the client is interested
-            // in the new out values right now we need to force a layout.
-            mWindowPlacerLocked.performSurfacePlacement(true /* force */);
+            // in the new out values right now we need to force a layout. Only the display of the
+            // window changed, the other displays are placed only if something else requested it.
+            mWindowPlacerLocked.performSurfacePlacement(displayContent, true /* force */);
 
             if (shouldRelayout) {
                 Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER, "relayoutWindow: viewVisibility_1");
@@ -2690,7 +2700,7 @@ public class WindowManagerService extends IWindowManager.Stub
                                 WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER;
                     }
                     win.setDisplayLayoutNeeded();
-                    mWindowPlacerLocked.requestTraversal();
+                    mWindowPlacerLocked.requestTraversal(win.getDisplayContent());
                 }
             }
         } finally {
@@ -6541,6 +6551,9 @@ public class WindowManagerService extends IWindowManager.Stub
         pw.print("  mLastWakeLockHoldingWindow=");pw.print(mLastWakeLockHoldingWindow);
                 pw.print(" mLastWakeLockObscuringWindow="); pw.print(mLastWakeLockObscuringWindow);
                 pw.println();
+        mWindowPlacerLocked.dumpStats(pw, "  ");
+        pw.print("  Surface transactions: applied="); pw.print(mSurfaceTransactionsApplied);
+                pw.print(" merged="); pw.println(mSurfaceTransactionsMerged);
 
         mInputManagerCallback.dump(pw, "  ");
         mTaskSnapshotController.dump(pw, "  ");
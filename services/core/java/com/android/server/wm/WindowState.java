@@ -665,7 +665,8 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
     private final Rect mTmpRect2 = new Rect();
     private final Point mTmpPoint = new Point();
 
-    private final Transaction mTmpTransaction;
+    /** Created on first use, see {@link #getTmpTransaction}. */
+    private Transaction mTmpTransaction;
 
     /**
      * If a window is on a display which has been re-parented to a view in another window,
@@ -1059,7 +1060,6 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
             int ownerId, int showUserId, boolean ownerCanAddInternalSystemWindow,
             PowerManagerWrapper powerManagerWrapper) {
         super(service);
-        mTmpTransaction = service.mTransactionFactory.get();
         mSession = s;
         mClient = c;
         mAppOp = appOp;
@@ -3592,8 +3592,18 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
     // various indicators of whether the client has released the surface.
     // This is in general unsafe, and most callers should use {@link #destroySurface}
     void destroySurfaceUnchecked() {
-        mWinAnimator.destroySurfaceLocked(mTmpTransaction);
-        mTmpTransaction.apply();
+        if (getDisplayContent() != null) {
+            // Remove the surface with the other surface changes of the next frame, so that the
+            // windows of an activity, or a starting window and its activity, are removed together
+            // instead of each applying a transaction of its own.
+            mWinAnimator.destroySurfaceLocked(getPendingTransaction());
+            mWmService.mSurfaceTransactionsMerged++;
+            mWmService.scheduleAnimationLocked();
+        } else {
+            final Transaction t = getTmpTransaction();
+            mWinAnimator.destroySurfaceLocked(t);
+            t.apply();
+        }
 
         // Clear animating flags now, since the surface is now gone. (Note this is true even
         // if the surface is saved, to outside world the surface is still NO_SURFACE.)
@@ -6297,28 +6307,36 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
      * See {@link WindowState#mPendingDrawHandlers}
      */
     boolean executeDrawHandlers(SurfaceControl.Transaction t) {
-        boolean hadHandlers = false;
-        boolean applyHere = false;
-        if (t == null) {
-            t = mTmpTransaction;
-            applyHere = true;
+        if (mReadyDrawHandlers.isEmpty()) {
+            // Nothing to apply, don't send an empty transaction.
+            return false;
+        }
+        final boolean applyHere = t == null;
+        if (applyHere) {
+            t = getTmpTransaction();
         }
 
         for (int i = 0; i < mReadyDrawHandlers.size(); i++) {
             mReadyDrawHandlers.get(i).accept(t);
-            hadHandlers = true;
-        }
-
-        if (hadHandlers) {
-            mReadyDrawHandlers.clear();
-            mWmService.mH.removeMessages(WINDOW_STATE_BLAST_SYNC_TIMEOUT, this);
         }
+        mReadyDrawHandlers.clear();
+        mWmService.mH.removeMessages(WINDOW_STATE_BLAST_SYNC_TIMEOUT, this);
 
         if (applyHere) {
             t.apply();
         }
 
-        return hadHandlers;
+        return true;
+    }
+
+    /**
+     * @return a transaction for changes that are applied right away, most windows never need one.
+     */
+    private Transaction getTmpTransaction() {
+        if (mTmpTransaction == null) {
+            mTmpTransaction = mWmService.mTransactionFactory.get();
+        }
+        return mTmpTransaction;
     }
 
     /**
@@ -23,6 +23,7 @@ import static com.android.server.wm.WindowManagerService.H.REPORT_WINDOWS_CHANGE
 import static com.android.server.wm.WindowManagerService.LAYOUT_REPEAT_THRESHOLD;
 
 import android.os.Debug;
+import android.os.SystemClock;
 import android.util.Slog;
 
 import java.io.PrintWriter;
@@ -50,11 +51,29 @@ class WindowSurfacePlacer {
     /** The number of layout requests when deferring. */
     private int mDeferredRequests;
 
+    /**
+     * Whether surface placement was requested without telling which display changed, so that the
+     * next pass must place all the displays. See {@link #requestTraversal(DisplayContent)}.
+     */
+    private boolean mAllDisplaysDirty = true;
+
+    // Statistics of the surface placement passes, for dumpsys.
+    private long mTraversalCount;
+    private long mPassCount;
+    private long mDisplaysPlaced;
+    private long mDisplaysSkipped;
+    private long mWindowsVisited;
+    private int mLastPassWindowsVisited;
+    private long mTotalPassTimeNs;
+    private long mLastPassTimeNs;
+    private long mMaxPassTimeNs;
+
     private class Traverser implements Runnable {
         @Override
         public void run() {
             synchronized (mService.mGlobalLock) {
-                performSurfacePlacement();
+                // The displays to place were marked when the traversal was requested.
+                performSurfacePlacementInner(false /* force */);
             }
         }
     }
@@ -107,7 +126,7 @@ class WindowSurfacePlacer {
 
     void performSurfacePlacementIfScheduled() {
         if (mTraversalScheduled) {
-            performSurfacePlacement();
+            performSurfacePlacementInner(false /* force */);
         }
     }
 
@@ -116,10 +135,26 @@ class WindowSurfacePlacer {
     }
 
     final void performSurfacePlacement(boolean force) {
+        mAllDisplaysDirty = true;
+        performSurfacePlacementInner(force);
+    }
+
+    /**
+     * Like {@link #performSurfacePlacement(boolean)}, for a change that is known to only affect
+     * the windows of {@code dc}. The displays that did not change since they were last placed
+     * reuse the result of that placement instead of walking their windows again.
+     */
+    final void performSurfacePlacement(DisplayContent dc, boolean force) {
+        dc.setSurfacePlacementDirty();
+        performSurfacePlacementInner(force);
+    }
+
+    private void performSurfacePlacementInner(boolean force) {
         if (mDeferDepth > 0 && !force) {
             mDeferredRequests++;
             return;
         }
+        mTraversalCount++;
         int loopCount = 6;
         do {
             mTraversalScheduled = false;
@@ -174,7 +209,10 @@ class WindowSurfacePlacer {
         }
 
         try {
+            final long startTimeNs = SystemClock.elapsedRealtimeNanos();
+            mLastPassWindowsVisited = 0;
             mService.mRoot.performSurfacePlacement();
+            onPassFinished(SystemClock.elapsedRealtimeNanos() - startTimeNs);
 
             mInLayout = false;
 
@@ -211,6 +249,51 @@ class WindowSurfacePlacer {
     }
 
     void requestTraversal() {
+        mAllDisplaysDirty = true;
+        scheduleTraversal();
+    }
+
+    /**
+     * Requests a traversal for a change that is known to only affect the windows of {@code dc}.
+     * The other displays are only placed again if something else requested it.
+     */
+    void requestTraversal(DisplayContent dc) {
+        dc.setSurfacePlacementDirty();
+        scheduleTraversal();
+    }
+
+    /**
+     * @return whether all the displays need to be placed, resetting it for the next pass.
+     */
+    boolean consumeAllDisplaysDirty() {
+        final boolean allDisplaysDirty = mAllDisplaysDirty;
+        mAllDisplaysDirty = false;
+        return allDisplaysDirty;
+    }
+
+    void onDisplayPlaced() {
+        mDisplaysPlaced++;
+    }
+
+    void onDisplaySkipped() {
+        mDisplaysSkipped++;
+    }
+
+    void onWindowVisited() {
+        mLastPassWindowsVisited++;
+    }
+
+    private void onPassFinished(long durationNs) {
+        mPassCount++;
+        mWindowsVisited += mLastPassWindowsVisited;
+        mTotalPassTimeNs += durationNs;
+        mLastPassTimeNs = durationNs;
+        if (durationNs > mMaxPassTimeNs) {
+            mMaxPassTimeNs = durationNs;
+        }
+    }
+
+    private void scheduleTraversal() {
         if (mTraversalScheduled) {
             return;
         }
@@ -231,4 +314,17 @@ class WindowSurfacePlacer {
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
     }
+
+    void dumpStats(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Surface placement: traversals="); pw.print(mTraversalCount);
+        pw.print(" passes="); pw.print(mPassCount);
+        pw.print(" displaysPlaced="); pw.print(mDisplaysPlaced);
+        pw.print(" displaysSkipped="); pw.println(mDisplaysSkipped);
+        pw.print(prefix); pw.print("  windowsVisited: last="); pw.print(mLastPassWindowsVisited);
+        pw.print(" avg="); pw.println(mPassCount > 0 ? mWindowsVisited / mPassCount : 0);
+        pw.print(prefix); pw.print("  passTimeUs: last="); pw.print(mLastPassTimeNs / 1000);
+        pw.print(" avg="); pw.print(mPassCount > 0 ? mTotalPassTimeNs / mPassCount / 1000 : 0);
+        pw.print(" max="); pw.print(mMaxPassTimeNs / 1000);
+        pw.println();
+    }
 }
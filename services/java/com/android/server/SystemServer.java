@@ -792,6 +792,9 @@ public final class SystemServer implements Dumpable {
             // to avoid throwing BadParcelableException.
             BaseBundle.setShouldDefuse(true);
 
+            // Within the system server, forward the extras of intents without decoding them.
+            BaseBundle.setShouldWriteLazily(true);
+
             // Within the system server, when parceling exceptions, include the stack trace
             Parcel.setStackTraceParceling(true);
 
@@ -63,6 +63,7 @@ import static com.android.server.am.ProcessList.UNKNOWN_ADJ;
 import static com.android.server.am.ProcessList.VISIBLE_APP_ADJ;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.AdditionalAnswers.answer;
 import static org.mockito.Mockito.any;
@@ -2078,6 +2079,80 @@ public class MockingOomAdjusterTests {
         assertProcStates(app2, false, PROCESS_STATE_SERVICE, SERVICE_ADJ, "started-services");
     }
 
+    @SuppressWarnings("GuardedBy")
+    @Test
+    public void testUpdateOomAdj_Incremental_ClientDied() {
+        ProcessRecord app = spy(makeDefaultProcessRecord(MOCKAPP_PID, MOCKAPP_UID,
+                MOCKAPP_PROCESSNAME, MOCKAPP_PACKAGENAME, false));
+        ProcessRecord client = spy(makeDefaultProcessRecord(MOCKAPP2_PID, MOCKAPP2_UID,
+                MOCKAPP2_PROCESSNAME, MOCKAPP2_PACKAGENAME, false));
+        ProcessRecord other = spy(makeDefaultProcessRecord(MOCKAPP3_PID, MOCKAPP3_UID,
+                MOCKAPP3_PROCESSNAME, MOCKAPP3_PACKAGENAME, false));
+        bindService(app, client, null, 0, mock(IBinder.class));
+        client.mServices.setHasForegroundServices(true, 0);
+        ArrayList<ProcessRecord> lru = sService.mProcessList.getLruProcessesLOSP();
+        lru.clear();
+        lru.add(app);
+        lru.add(client);
+        lru.add(other);
+        sService.mWakefulness.set(PowerManagerInternal.WAKEFULNESS_AWAKE);
+        sService.mOomAdjuster.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_NONE);
+
+        assertProcStates(app, PROCESS_STATE_FOREGROUND_SERVICE, PERCEPTIBLE_APP_ADJ,
+                SCHED_GROUP_DEFAULT);
+        final int otherAdjSeq = other.mState.getCompletedAdjSeq();
+
+        sService.mConstants.OOMADJ_UPDATE_INCREMENTAL = true;
+        try {
+            // The client goes away, tearing down its bindings.
+            client.mServices.removeAllConnections();
+            lru.remove(client);
+            sService.mOomAdjuster.updateOomAdjAfterProcessDeathLocked(
+                    OomAdjuster.OOM_ADJ_REASON_PROCESS_END);
+        } finally {
+            sService.mConstants.OOMADJ_UPDATE_INCREMENTAL = false;
+        }
+
+        assertEquals(PROCESS_STATE_CACHED_EMPTY, app.mState.getSetProcState());
+        // The process which wasn't bound to the client wasn't evaluated again.
+        assertEquals(otherAdjSeq, other.mState.getCompletedAdjSeq());
+    }
+
+    @SuppressWarnings("GuardedBy")
+    @Test
+    public void testUpdateOomAdj_Incremental_ForcedFullUpdate() {
+        ProcessRecord app = spy(makeDefaultProcessRecord(MOCKAPP_PID, MOCKAPP_UID,
+                MOCKAPP_PROCESSNAME, MOCKAPP_PACKAGENAME, false));
+        ProcessRecord client = spy(makeDefaultProcessRecord(MOCKAPP2_PID, MOCKAPP2_UID,
+                MOCKAPP2_PROCESSNAME, MOCKAPP2_PACKAGENAME, false));
+        ProcessRecord other = spy(makeDefaultProcessRecord(MOCKAPP3_PID, MOCKAPP3_UID,
+                MOCKAPP3_PROCESSNAME, MOCKAPP3_PACKAGENAME, false));
+        bindService(app, client, null, 0, mock(IBinder.class));
+        client.mServices.setHasForegroundServices(true, 0);
+        ArrayList<ProcessRecord> lru = sService.mProcessList.getLruProcessesLOSP();
+        lru.clear();
+        lru.add(app);
+        lru.add(client);
+        lru.add(other);
+        sService.mWakefulness.set(PowerManagerInternal.WAKEFULNESS_AWAKE);
+        sService.mOomAdjuster.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_NONE);
+        final int otherAdjSeq = other.mState.getCompletedAdjSeq();
+
+        sService.mConstants.OOMADJ_UPDATE_INCREMENTAL = true;
+        try {
+            client.mServices.removeAllConnections();
+            lru.remove(client);
+            // Callers like setProcessLimit() or killPackageProcessesLocked() use the same reason
+            // as a single process death, but may have changed any process.
+            sService.mOomAdjuster.updateOomAdjLocked(OomAdjuster.OOM_ADJ_REASON_PROCESS_END);
+        } finally {
+            sService.mConstants.OOMADJ_UPDATE_INCREMENTAL = false;
+        }
+
+        assertEquals(PROCESS_STATE_CACHED_EMPTY, app.mState.getSetProcState());
+        assertNotEquals(otherAdjSeq, other.mState.getCompletedAdjSeq());
+    }
+
     private ProcessRecord makeDefaultProcessRecord(int pid, int uid, String processName,
             String packageName, boolean hasShownUi) {
         long now = SystemClock.uptimeMillis();
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.appop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.FileUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.TypedXmlSerializer;
+import android.util.Xml;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures how long persisting the app-op state of a device with many packages takes, and how
+ * much heap it allocates, when all of it changed and when none of it did.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AppOpsPersistencePerfTest {
+    private static final String TAG = AppOpsPersistencePerfTest.class.getSimpleName();
+    private static final String APP_OPS_FILENAME = "appops-perf-test.xml";
+
+    private static final int PACKAGE_COUNT = 600;
+    private static final int FIRST_UID = 10000;
+    private static final int[] OPS = {
+            AppOpsManager.OP_COARSE_LOCATION, AppOpsManager.OP_CAMERA,
+            AppOpsManager.OP_RECORD_AUDIO, AppOpsManager.OP_READ_CLIPBOARD,
+            AppOpsManager.OP_RUN_ANY_IN_BACKGROUND};
+    private static final int ITERATIONS = 5;
+
+    private File mAppOpsFile;
+    private Context mContext;
+    private Handler mHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mAppOpsFile = new File(mContext.getFilesDir(), APP_OPS_FILENAME);
+        deleteState();
+        writeLegacyState();
+        HandlerThread handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mHandler.getLooper().quitSafely();
+        deleteState();
+    }
+
+    @Test
+    public void testWriteState() {
+        AppOpsService service = createService();
+        synchronized (service) {
+            assertEquals(PACKAGE_COUNT, service.mUidStates.size());
+        }
+
+        // The state was read from a file predating shards, so every shard is written.
+        long[] result = measureWriteState(service);
+        Log.i(TAG, "writeState, all " + PACKAGE_COUNT + " uids changed: " + result[0] + "ms, "
+                + result[1] + " bytes allocated");
+
+        result = measureWriteState(service);
+        Log.i(TAG, "writeState, no uid changed: " + result[0] + "ms, " + result[1]
+                + " bytes allocated");
+
+        // A fresh service has no uid loaded until it is accessed.
+        service = createService();
+        synchronized (service) {
+            assertEquals(0, service.mUidStates.size());
+        }
+        result = measureWriteState(service);
+        Log.i(TAG, "writeState, no uid loaded: " + result[0] + "ms, " + result[1]
+                + " bytes allocated");
+
+        service.setUidMode(AppOpsManager.OP_CAMERA, FIRST_UID, AppOpsManager.MODE_IGNORED);
+        result = measureWriteState(service);
+        Log.i(TAG, "writeState, one uid changed: " + result[0] + "ms, " + result[1]
+                + " bytes allocated");
+        synchronized (service) {
+            assertTrue(service.mUidStates.size() < PACKAGE_COUNT);
+        }
+    }
+
+    /** @return the average duration in milliseconds and allocated bytes of a writeState */
+    private long[] measureWriteState(AppOpsService service) {
+        final Runtime runtime = Runtime.getRuntime();
+        long totalMillis = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            runtime.gc();
+            final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            final long start = SystemClock.elapsedRealtime();
+            service.writeState();
+            totalMillis += SystemClock.elapsedRealtime() - start;
+            totalBytes += Math.max(0, runtime.totalMemory() - runtime.freeMemory() - heapBefore);
+        }
+        return new long[] {totalMillis / ITERATIONS, totalBytes / ITERATIONS};
+    }
+
+    private AppOpsService createService() {
+        Context testContext = spy(mContext);
+        doNothing().when(testContext).enforcePermission(anyString(), anyInt(), anyInt(),
+                nullable(String.class));
+        PackageManager testPM = mock(PackageManager.class);
+        when(testContext.getPackageManager()).thenReturn(testPM);
+        when(testPM.getPackagesForUid(anyInt())).thenReturn(null);
+
+        final AppOpsService service = new AppOpsService(mAppOpsFile, mHandler, testContext);
+        mHandler.removeCallbacks(service.mWriteRunner);
+        return service;
+    }
+
+    /** Writes the state of many packages in the format used before state was sharded. */
+    private void writeLegacyState() throws IOException {
+        final long now = System.currentTimeMillis();
+        final long key = AppOpsManager.makeKey(AppOpsManager.UID_STATE_TOP,
+                AppOpsManager.OP_FLAG_SELF);
+        try (FileOutputStream stream = new FileOutputStream(mAppOpsFile)) {
+            TypedXmlSerializer out = Xml.resolveSerializer(stream);
+            out.startDocument(null, true);
+            out.startTag(null, "app-ops");
+            out.attributeInt(null, "v", 1);
+            for (int i = 0; i < PACKAGE_COUNT; i++) {
+                out.startTag(null, "pkg");
+                out.attribute(null, "n", "com.example.perf" + i);
+                out.startTag(null, "uid");
+                out.attributeInt(null, "n", FIRST_UID + i);
+                for (int op : OPS) {
+                    out.startTag(null, "op");
+                    out.attributeInt(null, "n", op);
+                    out.attributeInt(null, "m", AppOpsManager.MODE_ALLOWED);
+                    out.startTag(null, "st");
+                    out.attributeLong(null, "n", key);
+                    out.attributeLong(null, "t", now - i);
+                    out.attributeLong(null, "d", 1000);
+                    out.endTag(null, "st");
+                    out.endTag(null, "op");
+                }
+                out.endTag(null, "uid");
+                out.endTag(null, "pkg");
+            }
+            out.endTag(null, "app-ops");
+            out.endDocument();
+        }
+    }
+
+    private void deleteState() {
+        mAppOpsFile.delete();
+        FileUtils.deleteContentsAndDir(
+                new File(mContext.getFilesDir(), APP_OPS_FILENAME + ".shards"));
+    }
+}
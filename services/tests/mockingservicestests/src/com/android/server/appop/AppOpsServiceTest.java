@@ -47,6 +47,7 @@ import android.app.AppOpsManager.PackageOps;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.pm.PackageManagerInternal;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Process;
@@ -109,6 +110,8 @@ public class AppOpsServiceTest {
             // Start with a clean state (persisted into XML).
             mAppOpsFile.delete();
         }
+        FileUtils.deleteContentsAndDir(
+                new File(sContext.getFilesDir(), APP_OPS_FILENAME + ".shards"));
 
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
@@ -220,6 +223,67 @@ public class AppOpsServiceTest {
         assertContainsOp(loggedOps, OP_WRITE_SMS, -1, mTestStartMillis, MODE_ERRORED);
     }
 
+    // Tests that the state of a uid is only read from its shard once the uid is accessed.
+    @Test
+    public void testStatePersistence_uidLoadedOnAccess() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ERRORED);
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, sMyPackageName, null, false, null, false);
+        mAppOpsService.writeState();
+
+        setupAppOpsService();
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mUidStates.get(mMyUid)).isNull();
+        }
+
+        assertContainsOp(getLoggedOps(), OP_READ_SMS, -1, mTestStartMillis, MODE_ERRORED);
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mUidStates.get(mMyUid)).isNotNull();
+        }
+
+        // Writing again without changes keeps the state of the uid.
+        mAppOpsService.writeState();
+        setupAppOpsService();
+        assertContainsOp(getLoggedOps(), OP_READ_SMS, -1, mTestStartMillis, MODE_ERRORED);
+    }
+
+    // Tests that only uids that were accessed since the last write are serialized again.
+    @Test
+    public void testStatePersistence_onlyDirtyUidsWritten() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, sMyPackageName, MODE_ERRORED);
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mDirtyUids.get(mMyUid)).isTrue();
+        }
+        mAppOpsService.writeState();
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mDirtyUids.get(mMyUid)).isFalse();
+        }
+
+        // Reading every uid, as dumps and queries over all packages do, does not dirty them.
+        setupAppOpsService();
+        mAppOpsService.getPackagesForOps(null);
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mUidStates.get(mMyUid)).isNotNull();
+            assertThat(mAppOpsService.mDirtyUids.get(mMyUid)).isFalse();
+        }
+        // Nor does checking an op of the uid.
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, sMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mDirtyUids.get(mMyUid)).isFalse();
+        }
+        mAppOpsService.writeState();
+        setupAppOpsService();
+        assertContainsOp(getLoggedOps(), OP_READ_SMS, -1, -1, MODE_ERRORED);
+
+        mAppOpsService.noteOperation(OP_READ_SMS, mMyUid, sMyPackageName, null, false, null, false);
+        synchronized (mAppOpsService) {
+            assertThat(mAppOpsService.mDirtyUids.get(mMyUid)).isTrue();
+        }
+        mAppOpsService.writeState();
+        setupAppOpsService();
+        assertContainsOp(getLoggedOps(), OP_READ_SMS, -1, mTestStartMillis, MODE_ERRORED);
+    }
+
     // Tests that ops are persisted during shutdown.
     @Test
     public void testShutdown() {
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm
+
+import android.content.pm.ApplicationInfo
+import android.os.Build
+import android.os.Handler
+import android.testing.AndroidTestingRunner
+import android.testing.TestableLooper
+import android.testing.TestableLooper.RunWithLooper
+import com.android.server.testutils.whenever
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidTestingRunner::class)
+@RunWithLooper
+class PackageManagerServiceSnapshotTests {
+
+    companion object {
+        val TEST_PACKAGE_NAME = "test.package"
+        val TEST_USER_ID = 0
+    }
+
+    @Rule
+    @JvmField
+    val rule = MockSystemRule()
+
+    @Before
+    @Throws(Exception::class)
+    fun setup() {
+        rule.system().stageNominalSystemState()
+        whenever(rule.mocks().injector.handler)
+            .thenReturn(Handler(TestableLooper.get(this).looper))
+        rule.system().stageScanExistingPackage(
+            TEST_PACKAGE_NAME,
+            1L,
+            rule.system().dataAppDirectory)
+    }
+
+    @Test
+    fun testCurrentSnapshotIsReused() {
+        val pm = createPackageManagerService()
+
+        val snapshot = pm.snapshotComputer()
+        assertNotEquals(0L, snapshot.version)
+        assertSame(snapshot, pm.snapshotComputer())
+    }
+
+    @Test
+    fun testStaleSnapshotIsNotReused() {
+        val pm = createPackageManagerService()
+
+        val stale = pm.snapshotComputer()
+        PackageManagerService.onChange(null)
+        val current = pm.snapshotComputer()
+        assertNotSame(stale, current)
+        assertTrue(current.version > stale.version)
+        assertSame(current, pm.snapshotComputer())
+    }
+
+    @Test
+    fun testReadAfterChangeSeesChange() {
+        val pm = createPackageManagerService()
+
+        val before = pm.getApplicationInfo(TEST_PACKAGE_NAME, 0, TEST_USER_ID)
+        assertEquals(0, before.flags and ApplicationInfo.FLAG_STOPPED)
+        val stale = pm.snapshotComputer()
+
+        pm.setPackageStoppedState(TEST_PACKAGE_NAME, true, TEST_USER_ID)
+
+        val after = pm.getApplicationInfo(TEST_PACKAGE_NAME, 0, TEST_USER_ID)
+        assertNotEquals(0, after.flags and ApplicationInfo.FLAG_STOPPED)
+        assertTrue(pm.snapshotComputer().version > stale.version)
+    }
+
+    private fun createPackageManagerService(): PackageManagerService {
+        val pm = PackageManagerService(rule.mocks().injector,
+            false /*coreOnly*/,
+            false /*factoryTest*/,
+            MockSystem.DEFAULT_VERSION_INFO.fingerprint,
+            false /*isEngBuild*/,
+            false /*isUserDebugBuild*/,
+            Build.VERSION_CODES.CUR_DEVELOPMENT,
+            Build.VERSION.INCREMENTAL)
+        rule.system().validateFinalState()
+        TestableLooper.get(this).processAllMessages()
+        // The mocked SystemWrapper leaves the snapshots corked, which serves the live computer.
+        PackageManagerService.uncorkSnapshotsForTest()
+        return pm
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.util.ArraySet;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+/**
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:IntentFilterIndexTest
+ */
+@SmallTest
+public class IntentFilterIndexTest {
+
+    @Test
+    public void testActionsAndCategories() {
+        final IntentFilter main = new IntentFilter(Intent.ACTION_MAIN);
+        main.addCategory(Intent.CATEGORY_LAUNCHER);
+        final IntentFilter noCategory = new IntentFilter(Intent.ACTION_MAIN);
+        final IntentFilter send = new IntentFilter(Intent.ACTION_SEND);
+        final IntentFilterIndex index = build(main, noCategory, send);
+
+        assertCandidates("011", index.getCandidates(Intent.ACTION_MAIN, null, null, null));
+        assertCandidates("001", index.getCandidates(Intent.ACTION_MAIN,
+                categories(Intent.CATEGORY_LAUNCHER), null, null));
+        assertCandidates("111", index.getCandidates(null, null, null, null));
+        assertNull(index.getCandidates("unknown", null, null, null));
+        assertNull(index.getCandidates(Intent.ACTION_SEND,
+                categories(Intent.CATEGORY_LAUNCHER), null, null));
+    }
+
+    @Test
+    public void testSchemes() {
+        final IntentFilter http = new IntentFilter(Intent.ACTION_VIEW);
+        http.addDataScheme("http");
+        final IntentFilter typeOnly = new IntentFilter(Intent.ACTION_VIEW);
+        final IntentFilterIndex index = build(http, typeOnly);
+
+        assertCandidates("01", index.getCandidates(Intent.ACTION_VIEW, null, "http",
+                Uri.parse("http://a.com")));
+        assertCandidates("10", index.getCandidates(Intent.ACTION_VIEW, null, "content",
+                Uri.parse("content://a/b")));
+        assertCandidates("10", index.getCandidates(Intent.ACTION_VIEW, null, null, null));
+        assertNull(index.getCandidates(Intent.ACTION_VIEW, null, "ftp",
+                Uri.parse("ftp://a.com")));
+    }
+
+    @Test
+    public void testHosts() {
+        final IntentFilter exact = viewFilter("www.Example.com");
+        final IntentFilter wild = viewFilter("*.example.com");
+        final IntentFilter wildNoDot = viewFilter("*ample.com");
+        final IntentFilter anyHost = viewFilter(null);
+        final IntentFilter ssp = viewFilter("other.com");
+        ssp.addDataSchemeSpecificPart("//x", PatternMatcher.PATTERN_PREFIX);
+        final IntentFilterIndex index = build(exact, wild, wildNoDot, anyHost, ssp);
+
+        assertCandidates("11111", index.getCandidates(Intent.ACTION_VIEW, null, "https",
+                Uri.parse("https://WWW.example.com/path")));
+        assertCandidates("11110", index.getCandidates(Intent.ACTION_VIEW, null, "https",
+                Uri.parse("https://m.example.com/")));
+        assertCandidates("11100", index.getCandidates(Intent.ACTION_VIEW, null, "https",
+                Uri.parse("https://example.com/")));
+        assertCandidates("11000", index.getCandidates(Intent.ACTION_VIEW, null, "https",
+                Uri.parse("https://unknown.org/")));
+        assertCandidates("11000", index.getCandidates(Intent.ACTION_VIEW, null, "https",
+                Uri.parse("https:opaque")));
+    }
+
+    @Test
+    public void testBucketOrdinals() {
+        final IntentFilter first = new IntentFilter(Intent.ACTION_MAIN);
+        final IntentFilter second = new IntentFilter(Intent.ACTION_SEND);
+        final IntentFilterIndex.Builder builder = new IntentFilterIndex.Builder();
+        final Object[] bucket = new Object[] { second, first, null };
+        final int[] ordinals = new int[] {
+                builder.addFilter(second), builder.addFilter(first), 0 };
+        builder.addBucket(bucket, ordinals);
+        assertEquals(0, builder.addFilter(second));
+        final IntentFilterIndex index = builder.build();
+
+        assertEquals(2, index.getFilterCount());
+        assertSame(ordinals, index.getOrdinals(bucket));
+        assertNull(index.getOrdinals(new Object[] { first }));
+    }
+
+    private static IntentFilter viewFilter(String host) {
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_VIEW);
+        filter.addDataScheme("https");
+        if (host != null) {
+            filter.addDataAuthority(host, null);
+        }
+        return filter;
+    }
+
+    private static IntentFilterIndex build(IntentFilter... filters) {
+        final IntentFilterIndex.Builder builder = new IntentFilterIndex.Builder();
+        for (IntentFilter filter : filters) {
+            builder.addFilter(filter);
+        }
+        return builder.build();
+    }
+
+    private static Set<String> categories(String... categories) {
+        return new ArraySet<>(categories);
+    }
+
+    /**
+     * @param expected the candidate bits, with the filter added first on the right.
+     */
+    private static void assertCandidates(String expected, long[] candidates) {
+        final StringBuilder actual = new StringBuilder();
+        for (int i = expected.length() - 1; i >= 0; i--) {
+            actual.append(candidates != null && IntentFilterIndex.isCandidate(candidates, i)
+                    ? '1' : '0');
+        }
+        assertEquals(expected, actual.toString());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link BroadcastQueue#batchReceiversByProcess}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:BroadcastQueueBatchingTest
+ */
+@SmallTest
+public class BroadcastQueueBatchingTest {
+    private static final int UID_A = 10001;
+    private static final int UID_B = 10002;
+    private static final int UID_C = 10003;
+
+    @Test
+    public void testGroupsByProcessRunningFirst() {
+        final ResolveInfo a1 = createReceiver("a", UID_A, 0);
+        final ResolveInfo b1 = createReceiver("b", UID_B, 0);
+        final ResolveInfo c1 = createReceiver("c", UID_C, 0);
+        final ResolveInfo a2 = createReceiver("a", UID_A, 0);
+        final ResolveInfo b2 = createReceiver("b", UID_B, 0);
+        final List<Object> receivers = new ArrayList<>(Arrays.asList(a1, b1, c1, a2, b2));
+
+        batch(receivers, Set.of("b", "c"));
+
+        // running processes in their original order, then the cold ones
+        assertReceivers(receivers, b1, b2, c1, a1, a2);
+    }
+
+    @Test
+    public void testKeepsPriorityBands() {
+        final ResolveInfo a1 = createReceiver("a", UID_A, 10);
+        final ResolveInfo b1 = createReceiver("b", UID_B, 10);
+        final ResolveInfo a2 = createReceiver("a", UID_A, 10);
+        final ResolveInfo c1 = createReceiver("c", UID_C, 0);
+        final ResolveInfo a3 = createReceiver("a", UID_A, 0);
+        final ResolveInfo c2 = createReceiver("c", UID_C, 0);
+        final ResolveInfo b2 = createReceiver("b", UID_B, -5);
+        final List<Object> receivers =
+                new ArrayList<>(Arrays.asList(a1, b1, a2, c1, a3, c2, b2));
+
+        batch(receivers, Set.of("b", "a"));
+
+        // no receiver crosses into another priority band, even to join its process
+        assertReceivers(receivers, a1, a2, b1, a3, c1, c2, b2);
+    }
+
+    @Test
+    public void testDoesNotMoveRegisteredReceivers() {
+        final ResolveInfo a1 = createReceiver("a", UID_A, 0);
+        final ResolveInfo b1 = createReceiver("b", UID_B, 0);
+        final ResolveInfo a2 = createReceiver("a", UID_A, 0);
+        final Object registered = new Object();
+        final ResolveInfo b2 = createReceiver("b", UID_B, 0);
+        final ResolveInfo a3 = createReceiver("a", UID_A, 0);
+        final List<Object> receivers =
+                new ArrayList<>(Arrays.asList(a1, b1, a2, registered, b2, a3));
+
+        batch(receivers, Set.of("b"));
+
+        assertReceivers(receivers, b1, a1, a2, registered, b2, a3);
+    }
+
+    @Test
+    public void testSameProcessNameOtherUid() {
+        final ResolveInfo a1 = createReceiver("shared", UID_A, 0);
+        final ResolveInfo b1 = createReceiver("shared", UID_B, 0);
+        final ResolveInfo a2 = createReceiver("shared", UID_A, 0);
+        final List<Object> receivers = new ArrayList<>(Arrays.asList(a1, b1, a2));
+
+        BroadcastQueue.batchReceiversByProcess(receivers,
+                info -> info.applicationInfo.uid == UID_B);
+
+        assertReceivers(receivers, b1, a1, a2);
+    }
+
+    private static void batch(List<Object> receivers, Set<String> runningProcesses) {
+        BroadcastQueue.batchReceiversByProcess(receivers,
+                info -> runningProcesses.contains(info.processName));
+    }
+
+    private static void assertReceivers(List<Object> actual, Object... expected) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertSame("receiver " + i, expected[i], actual.get(i));
+        }
+    }
+
+    private static ResolveInfo createReceiver(String processName, int uid, int priority) {
+        final ApplicationInfo appInfo = new ApplicationInfo();
+        appInfo.packageName = processName;
+        appInfo.uid = uid;
+        final ActivityInfo activityInfo = new ActivityInfo();
+        activityInfo.applicationInfo = appInfo;
+        activityInfo.processName = processName;
+        final ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.activityInfo = activityInfo;
+        resolveInfo.priority = priority;
+        return resolveInfo;
+    }
+}
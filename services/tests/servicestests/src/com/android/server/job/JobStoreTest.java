@@ -6,6 +6,7 @@ import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -204,6 +205,104 @@ public class JobStoreTest {
                 taskStatus2.getLatestRunTimeElapsed(), loaded2.getLatestRunTimeElapsed());
     }
 
+    @Test
+    public void testJournaledChangesAreReplayed() throws Exception {
+        final JobInfo task1 = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(12, mComponent)
+                .setMinimumLatency(5000L)
+                .setOverrideDeadline(30000L)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2Updated = new Builder(12, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(10000L)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus1 = JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null);
+        final JobStatus taskStatus2 = JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(taskStatus1);
+        mTaskStoreUnderTest.add(taskStatus2);
+        waitForPendingIo();
+        assertTrue("First write should rewrite the jobs file",
+                mTaskStoreUnderTest.getPersistStats().lastSaveWasFull);
+
+        final JobStatus taskStatus2Updated =
+                JobStatus.createFromJobInfo(task2Updated, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.remove(taskStatus1, true);
+        mTaskStoreUnderTest.add(taskStatus2Updated);
+        waitForPendingIo();
+        assertFalse("Changes should only be journaled",
+                mTaskStoreUnderTest.getPersistStats().lastSaveWasFull);
+        assertEquals(2, mTaskStoreUnderTest.getPersistStats().countJobsWrittenLastSave);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.getAllJobs().iterator().next();
+        assertTasksEqual(task2Updated, loaded.getJob());
+    }
+
+    @Test
+    public void testJournaledInPlaceUpdate() throws Exception {
+        final JobInfo task = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus = JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(taskStatus);
+        waitForPendingIo();
+
+        taskStatus.addInternalFlags(JobStatus.INTERNAL_FLAG_HAS_FOREGROUND_EXEMPTION);
+        mTaskStoreUnderTest.touchJob(taskStatus);
+        waitForPendingIo();
+        assertFalse("Changes should only be journaled",
+                mTaskStoreUnderTest.getPersistStats().lastSaveWasFull);
+        assertEquals(1, mTaskStoreUnderTest.getPersistStats().countJobsWrittenLastSave);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.getAllJobs().iterator().next();
+        assertEquals(JobStatus.INTERNAL_FLAG_HAS_FOREGROUND_EXEMPTION,
+                loaded.getInternalFlags());
+    }
+
+    @Test
+    public void testJournalIsFoldedIntoJobsFile() throws Exception {
+        final JobInfo task = new Builder(8, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task, SOME_UID, null, -1, null));
+        waitForPendingIo();
+
+        final JobInfo task2 = new Builder(12, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null));
+        waitForPendingIo();
+        assertFalse(mTaskStoreUnderTest.getPersistStats().lastSaveWasFull);
+
+        // Removing the jobs of a user forces the next write to rewrite the jobs file, which
+        // must also carry the jobs that were only journaled so far.
+        mTaskStoreUnderTest.removeJobsOfUnlistedUsers(new int[] {0});
+        final JobInfo task3 = new Builder(16, mComponent)
+                .setRequiresBatteryNotLow(true)
+                .setPersisted(true)
+                .build();
+        mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(task3, SOME_UID, null, -1, null));
+        waitForPendingIo();
+        assertTrue(mTaskStoreUnderTest.getPersistStats().lastSaveWasFull);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 3, jobStatusSet.size());
+    }
+
     @Test
     public void testWritingTaskWithExtras() throws Exception {
         JobInfo.Builder b = new Builder(8, mComponent)
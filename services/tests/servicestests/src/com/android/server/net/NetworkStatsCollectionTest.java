@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.telephony.TelephonyManager;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the file format of {@link NetworkStatsCollection}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class NetworkStatsCollectionTest {
+    private static final long BUCKET_DURATION = HOUR_IN_MILLIS;
+    private static final long START = 1_600_002_000_000L - 1_600_002_000_000L % BUCKET_DURATION;
+    // more buckets than fit between two checkpoints
+    private static final int BUCKET_COUNT = 40;
+    private static final int[] UIDS = {1000, 10001, 10002};
+    private static final int[] TAGS = {TAG_NONE, 0xF00D};
+
+    private final NetworkIdentitySet mWifi = new NetworkIdentitySet();
+    private final NetworkIdentitySet mMobile = new NetworkIdentitySet();
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mWifi.add(new NetworkIdentity(TYPE_WIFI, 0, null, "wifi", false, false, true,
+                NetworkIdentity.OEM_NONE));
+        mMobile.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE,
+                "310260000000000", null, false, true, true, NetworkIdentity.OEM_NONE));
+        mFile = File.createTempFile("netstats", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testWriteReadRoundTrip() throws Exception {
+        final NetworkStatsCollection collection =
+                buildCollection(Long.MIN_VALUE, Long.MAX_VALUE, null, null);
+        final byte[] written = write(collection);
+
+        // reading everything back gives the same file, active times included
+        final NetworkStatsCollection read = new NetworkStatsCollection(BUCKET_DURATION);
+        read.read(new ByteArrayInputStream(written));
+        assertArrayEquals(written, write(read));
+        assertEquals(collection.getTotalBytes(), read.getTotalBytes());
+        assertEquals(collection.getStartMillis(), read.getStartMillis());
+        assertEquals(collection.getEndMillis(), read.getEndMillis());
+
+        writeFile(written);
+        final NetworkStatsCollection mapped = new NetworkStatsCollection(BUCKET_DURATION);
+        mapped.readMatching(mFile, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertArrayEquals(written, write(mapped));
+    }
+
+    @Test
+    public void testReadMatchingRange() throws Exception {
+        writeFile(write(buildCollection(Long.MIN_VALUE, Long.MAX_VALUE, null, null)));
+
+        // ranges within the first checkpoint, across checkpoints and past the end
+        final long[][] ranges = {
+                {START, START + 3 * BUCKET_DURATION},
+                {START + 14 * BUCKET_DURATION + 1, START + 33 * BUCKET_DURATION - 1},
+                {START + 35 * BUCKET_DURATION, START + 100 * BUCKET_DURATION},
+                {START + 100 * BUCKET_DURATION, START + 200 * BUCKET_DURATION},
+        };
+        for (long[] range : ranges) {
+            final NetworkStatsCollection expected =
+                    buildCollection(range[0], range[1], null, null);
+            final NetworkStatsCollection read = new NetworkStatsCollection(BUCKET_DURATION);
+            read.readMatching(mFile, range[0], range[1]);
+            assertArrayEquals(write(expected), write(read));
+            assertEquals(expected.getTotalBytes(), read.getTotalBytes());
+        }
+
+        final long start = START + 20 * BUCKET_DURATION;
+        final long end = START + 25 * BUCKET_DURATION;
+        final NetworkStatsCollection expected = buildCollection(start, end, UIDS[1], null);
+        final NetworkStatsCollection read = new NetworkStatsCollection(BUCKET_DURATION);
+        read.readMatchingUid(mFile, UIDS[1], start, end);
+        assertArrayEquals(write(expected), write(read));
+        assertArrayEquals(new int[] {UIDS[1]},
+                read.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+
+        final NetworkStatsCollection unknownUid = new NetworkStatsCollection(BUCKET_DURATION);
+        unknownUid.readMatchingUid(mFile, 12345, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertTrue(unknownUid.isEmpty());
+    }
+
+    @Test
+    public void testFileSize() throws Exception {
+        final List<NetworkStatsHistory> histories = new ArrayList<>();
+        final NetworkStatsCollection collection =
+                buildCollection(Long.MIN_VALUE, Long.MAX_VALUE, null, histories);
+
+        // the unified layout the index replaces: the idents, then per key its uid, set and tag
+        // followed by the history as var-long arrays
+        final ByteArrayOutputStream unified = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(unified);
+        mWifi.writeToStream(out);
+        mMobile.writeToStream(out);
+        for (NetworkStatsHistory history : histories) {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            history.writeToStream(out);
+        }
+        out.flush();
+
+        final int indexedSize = write(collection).length;
+        assertTrue("indexed " + indexedSize + " bytes, unified " + unified.size() + " bytes",
+                indexedSize <= unified.size());
+    }
+
+    /**
+     * Builds a collection with buckets that are only partially active. Only buckets that overlap
+     * the range, and the history of the given uid if any, are included.
+     */
+    private NetworkStatsCollection buildCollection(long start, long end, Integer onlyUid,
+            List<NetworkStatsHistory> histories) {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        for (NetworkIdentitySet ident : new NetworkIdentitySet[] {mWifi, mMobile}) {
+            for (int uid : UIDS) {
+                if (onlyUid != null && uid != onlyUid) continue;
+                for (int tag : TAGS) {
+                    final NetworkStatsHistory history = new NetworkStatsHistory(BUCKET_DURATION);
+                    for (int i = 0; i < BUCKET_COUNT; i++) {
+                        final long bucketStart = START + i * BUCKET_DURATION;
+                        if (bucketStart + BUCKET_DURATION < start || bucketStart > end) continue;
+                        final NetworkStats.Entry entry = new NetworkStats.Entry(IFACE_ALL, uid,
+                                SET_DEFAULT, tag, 1000L * (i + 1) + uid, i + 1,
+                                (long) uid * (i + 7), i + 2, i % 3);
+                        final long activeStart = bucketStart + 5 * MINUTE_IN_MILLIS;
+                        final long activeEnd = activeStart + (i + 1) * MINUTE_IN_MILLIS;
+                        collection.recordData(ident, uid, SET_DEFAULT, tag, activeStart,
+                                activeEnd, entry);
+                        history.recordData(activeStart, activeEnd, entry);
+                    }
+                    if (histories != null) {
+                        histories.add(history);
+                    }
+                }
+            }
+        }
+        return collection;
+    }
+
+    private static byte[] write(NetworkStatsCollection collection) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        collection.write(out);
+        return out.toByteArray();
+    }
+
+    private void writeFile(byte[] data) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(data);
+        }
+    }
+}
@@ -40,6 +40,7 @@ import android.content.pm.PackageUserState;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
 import android.content.pm.parsing.ParsingPackage;
+import android.content.pm.parsing.ParsingPackageUtils;
 import android.content.pm.parsing.component.ParsedActivity;
 import android.content.pm.parsing.component.ParsedComponent;
 import android.content.pm.parsing.component.ParsedInstrumentation;
@@ -160,6 +161,29 @@ public class PackageParserTest {
         assertEquals("android", pkg.getPackageName());
     }
 
+    @Test
+    public void testParse_withCacheIndex() throws Exception {
+        CachePackageNameParser pp = new CachePackageNameParser(mTmpDir);
+        pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        pp.writeCacheIndex();
+
+        // The cache entry of the package was moved into the index.
+        assertArrayEquals(new String[] { ".index" }, mTmpDir.list());
+
+        pp = new CachePackageNameParser(mTmpDir);
+        ParsedPackage pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+        assertEquals("cache_android", pkg.getPackageName());
+
+        // Other flags are cached separately, and nothing new means nothing to write.
+        pkg = pp.parsePackage(FRAMEWORK, ParsingPackageUtils.PARSE_IGNORE_PROCESSES,
+                true /* useCaches */);
+        assertEquals("android", pkg.getPackageName());
+        pp = new CachePackageNameParser(mTmpDir);
+        pp.writeCacheIndex();
+        assertEquals(2, mTmpDir.list().length);
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         try (PackageParser2 pp = PackageParser2.forParsingFileWithDefaults()) {
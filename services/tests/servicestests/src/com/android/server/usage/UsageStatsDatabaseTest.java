@@ -22,7 +22,10 @@ import static junit.framework.TestCase.fail;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import android.app.usage.EventList;
 import android.app.usage.TimeSparseArray;
 import android.app.usage.UsageEvents.Event;
 import android.app.usage.UsageStats;
@@ -398,6 +401,70 @@ public class UsageStatsDatabaseTest {
         runWriteReadTest(UsageStatsManager.INTERVAL_YEARLY);
     }
 
+    /**
+     * Checks that the events read through the event index for the given range and package
+     * include every event of the full file matching them, and returns how many were read.
+     */
+    private int verifyQueryEvents(long beginTime, long endTime, String packageName) {
+        final List<IntervalStats> full = mUsageStatsDatabase.queryUsageStats(
+                UsageStatsManager.INTERVAL_DAILY, 0, mEndTime, mIntervalStatsVerifier);
+        final List<IntervalStats> indexed = mUsageStatsDatabase.queryEvents(beginTime, endTime,
+                packageName, mIntervalStatsVerifier);
+        assertEquals(1, indexed.size());
+        assertEquals(full.get(0).endTime, indexed.get(0).endTime);
+
+        final EventList expected = full.get(0).events;
+        final EventList actual = indexed.get(0).events;
+        int index = actual.firstIndexOnOrAfter(beginTime);
+        for (int i = expected.firstIndexOnOrAfter(beginTime); i < expected.size(); i++) {
+            final Event event = expected.get(i);
+            if (event.mTimeStamp >= endTime) {
+                break;
+            }
+            if (packageName != null && !packageName.equals(event.mPackage)) {
+                continue;
+            }
+            while (index < actual.size() && (event.mTimeStamp != actual.get(index).mTimeStamp
+                    || !event.mPackage.equals(actual.get(index).mPackage))) {
+                index++;
+            }
+            if (index == actual.size()) {
+                fail("Event " + i + " was not read through the event index");
+            }
+            compareUsageEvent(event, actual.get(index), i, MAX_TESTED_VERSION);
+            index++;
+        }
+        return actual.size();
+    }
+
+    @Test
+    public void testQueryEvents() throws IOException {
+        mUsageStatsDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, mIntervalStats);
+
+        assertEquals(mIntervalStats.events.size(), verifyQueryEvents(0, mEndTime, null));
+    }
+
+    @Test
+    public void testQueryEvents_timeRange() throws IOException {
+        mUsageStatsDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, mIntervalStats);
+
+        final long beginTime = mIntervalStats.events.get(1000).mTimeStamp;
+        final long endTime = mIntervalStats.events.get(1200).mTimeStamp;
+        final int count = verifyQueryEvents(beginTime, endTime, null);
+        // Only the blocks overlapping the range are read.
+        assertTrue(count >= 200);
+        assertTrue(count <= 200 + 2 * UsageStatsProtoV2.EVENTS_PER_BLOCK);
+    }
+
+    @Test
+    public void testQueryEvents_package() throws IOException {
+        mUsageStatsDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, mIntervalStats);
+
+        verifyQueryEvents(0, mEndTime, "fake.package.name3");
+        assertNull(mUsageStatsDatabase.queryEvents(0, mEndTime, "fake.package.unknown",
+                mIntervalStatsVerifier));
+    }
+
     /**
      * Runs the Version Change tests.
      * Will write the generated IntervalStat to disk in one version format, "upgrade" to another
@@ -26,6 +26,9 @@ import static android.app.WindowConfiguration.WINDOWING_MODE_SPLIT_SCREEN_PRIMAR
 import static android.content.pm.ActivityInfo.FLAG_ALWAYS_FOCUSABLE;
 import static android.view.Display.DEFAULT_DISPLAY;
 import static android.view.Display.TYPE_VIRTUAL;
+import static android.view.WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON;
+import static android.view.WindowManager.LayoutParams.PRIVATE_FLAG_SUSTAINED_PERFORMANCE_MODE;
+import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY;
 import static android.window.DisplayAreaOrganizer.FEATURE_VENDOR_FIRST;
 
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doNothing;
@@ -47,6 +50,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -72,6 +76,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.graphics.PixelFormat;
 import android.os.UserHandle;
 import android.platform.test.annotations.Presubmit;
 import android.util.MergedConfiguration;
@@ -165,6 +170,127 @@ public class RootWindowContainerTests extends WindowTestsBase {
         assertThat(mWm.mRoot.allPausedActivitiesComplete()).isTrue();
     }
 
+    @Test
+    public void testRequestTraversalForDisplay() {
+        final DisplayContent display = createNewDisplay();
+        final DisplayContent otherDisplay = createNewDisplay();
+        final WindowSurfacePlacer surfacePlacer = mWm.mWindowPlacerLocked;
+        surfacePlacer.consumeAllDisplaysDirty();
+        display.applySurfaceChangesTransaction();
+        otherDisplay.applySurfaceChangesTransaction();
+        assertTrue(display.canSkipSurfacePlacement());
+        assertTrue(otherDisplay.canSkipSurfacePlacement());
+
+        // Keep the requested traversals from running.
+        surfacePlacer.deferLayout();
+        try {
+            // Only the display that changed needs to be placed again.
+            surfacePlacer.requestTraversal(display);
+            assertFalse(surfacePlacer.consumeAllDisplaysDirty());
+            assertFalse(display.canSkipSurfacePlacement());
+            assertTrue(otherDisplay.canSkipSurfacePlacement());
+
+            otherDisplay.setLayoutNeeded();
+            assertFalse(otherDisplay.canSkipSurfacePlacement());
+
+            surfacePlacer.requestTraversal();
+            assertTrue(surfacePlacer.consumeAllDisplaysDirty());
+        } finally {
+            surfacePlacer.continueLayout(false /* hasChanges */);
+        }
+    }
+
+    @Test
+    public void testSkippedDisplaysKeepRootState() {
+        final DisplayContent secondaryDisplay = createNewDisplay();
+        final WindowState defaultWindow = createWindow(null, TYPE_APPLICATION_OVERLAY,
+                mDisplayContent, "defaultWindow");
+        final WindowState secondaryWindow = createWindow(null, TYPE_APPLICATION_OVERLAY,
+                secondaryDisplay, "secondaryWindow");
+        defaultWindow.mAttrs.format = PixelFormat.OPAQUE;
+        defaultWindow.mAttrs.screenBrightness = 0.5f;
+        secondaryWindow.mAttrs.format = PixelFormat.TRANSLUCENT;
+        secondaryWindow.mAttrs.flags |= FLAG_KEEP_SCREEN_ON;
+        secondaryWindow.mAttrs.userActivityTimeout = 1000;
+        secondaryWindow.mAttrs.privateFlags |= PRIVATE_FLAG_SUSTAINED_PERFORMANCE_MODE;
+        makeWindowVisibleAndDrawn(defaultWindow, secondaryWindow);
+        // Obscures the application content of the secondary displays.
+        ((TestWindowManagerPolicy) mWm.mPolicy).mKeyguardShowingAndNotOccluded = true;
+
+        placeSurfaces(true /* allDisplays */);
+        final RootWindowContainer.SurfacePlacementResult walked =
+                placeSurfaces(true /* allDisplays */);
+        assertEquals(secondaryWindow.mSession, walked.holdScreen);
+        assertEquals(secondaryWindow, walked.holdScreenWindow);
+        assertEquals(0.5f, walked.screenBrightnessOverride, 0f);
+        assertEquals(1000, walked.userActivityTimeout);
+        assertTrue(walked.sustainedPerformanceMode);
+        assertTrue(walked.obscureApplicationContent);
+
+        // Nothing changed, the displays reuse what their windows contributed.
+        assertTrue(mDisplayContent.canSkipSurfacePlacement());
+        assertTrue(secondaryDisplay.canSkipSurfacePlacement());
+        assertSurfacePlacementState(walked, placeSurfaces(false /* allDisplays */));
+
+        // Only the default display changed, the secondary one must still be obscured.
+        mDisplayContent.setSurfacePlacementDirty();
+        assertSurfacePlacementState(walked, placeSurfaces(false /* allDisplays */));
+
+        // Once the keyguard goes away the secondary displays are walked again.
+        ((TestWindowManagerPolicy) mWm.mPolicy).mKeyguardShowingAndNotOccluded = false;
+        final RootWindowContainer.SurfacePlacementResult unlocked =
+                placeSurfaces(false /* allDisplays */);
+        assertFalse(unlocked.obscureApplicationContent);
+        assertSurfacePlacementState(placeSurfaces(true /* allDisplays */), unlocked);
+    }
+
+    @Test
+    public void testSkippedDisplayDropsRemovedWindows() {
+        final DisplayContent secondaryDisplay = createNewDisplay();
+        final WindowState defaultWindow = createWindow(null, TYPE_APPLICATION_OVERLAY,
+                mDisplayContent, "defaultWindow");
+        final WindowState secondaryWindow = createWindow(null, TYPE_APPLICATION_OVERLAY,
+                secondaryDisplay, "secondaryWindow");
+        defaultWindow.mAttrs.flags |= FLAG_KEEP_SCREEN_ON;
+        secondaryWindow.mAttrs.flags |= FLAG_KEEP_SCREEN_ON;
+        makeWindowVisibleAndDrawn(defaultWindow, secondaryWindow);
+        placeSurfaces(true /* allDisplays */);
+        // The last display holding the screen on wins.
+        assertEquals(secondaryWindow, placeSurfaces(true /* allDisplays */).holdScreenWindow);
+
+        // The secondary display must not keep referring to the window it cached.
+        secondaryWindow.removeImmediately();
+        final RootWindowContainer.SurfacePlacementResult skipped =
+                placeSurfaces(false /* allDisplays */);
+        assertNotSame(secondaryWindow, skipped.holdScreenWindow);
+        assertNotSame(secondaryWindow, skipped.obscuringWindow);
+        assertSurfacePlacementState(placeSurfaces(true /* allDisplays */), skipped);
+        assertEquals(defaultWindow, skipped.holdScreenWindow);
+    }
+
+    /**
+     * Places the surfaces of the displays, all of them or only the ones that changed, and returns
+     * the resulting state of the root.
+     */
+    private RootWindowContainer.SurfacePlacementResult placeSurfaces(boolean allDisplays) {
+        if (allDisplays) {
+            mWm.mRoot.forAllDisplays(DisplayContent::setSurfacePlacementDirty);
+        }
+        return mWm.mRoot.applySurfaceChangesForTest();
+    }
+
+    private static void assertSurfacePlacementState(
+            RootWindowContainer.SurfacePlacementResult expected,
+            RootWindowContainer.SurfacePlacementResult actual) {
+        assertEquals(expected.holdScreen, actual.holdScreen);
+        assertEquals(expected.holdScreenWindow, actual.holdScreenWindow);
+        assertEquals(expected.obscuringWindow, actual.obscuringWindow);
+        assertEquals(expected.screenBrightnessOverride, actual.screenBrightnessOverride, 0f);
+        assertEquals(expected.userActivityTimeout, actual.userActivityTimeout);
+        assertEquals(expected.sustainedPerformanceMode, actual.sustainedPerformanceMode);
+        assertEquals(expected.obscureApplicationContent, actual.obscureApplicationContent);
+    }
+
     @Test
     public void testTaskLayerRank() {
         final Task rootTask = new TaskBuilder(mSupervisor).build();
@@ -20,7 +20,9 @@ import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
 
 import static junit.framework.Assert.assertEquals;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 
 import android.window.TaskSnapshot;
@@ -124,6 +126,92 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
                 true /* restoreFromDisk */, false /* isLowResolution */));
     }
 
+    @Test
+    public void testEvictsLeastRecentlyUsedPersisted() {
+        // Room for two of the 100x100 RGBA snapshots.
+        mCache = new TaskSnapshotCache(mWm, mLoader, mPersister, 100 * 100 * 4 * 2);
+        final Task task1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1").getTask();
+        final Task task2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2").getTask();
+        final Task task3 = createWindow(null, FIRST_APPLICATION_WINDOW, "window3").getTask();
+        final TaskSnapshot snapshot1 = createSnapshot();
+        final TaskSnapshot snapshot2 = createSnapshot();
+        mCache.putSnapshot(task1, snapshot1);
+        mCache.putSnapshot(task2, snapshot2);
+        mCache.onSnapshotPersisted(snapshot1);
+        mCache.onSnapshotPersisted(snapshot2);
+
+        // Make task2 the least recently used one.
+        assertNotNull(mCache.getSnapshot(task1.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        mCache.putSnapshot(task3, createSnapshot());
+
+        assertEquals(snapshot1, mCache.getSnapshot(task1.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        // Nothing was written to disk to restore it from.
+        assertNull(mCache.getSnapshot(task2.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        // The buffer may still be in use by whoever got the snapshot before.
+        assertFalse(snapshot2.getHardwareBuffer().isClosed());
+        assertNotNull(mCache.getSnapshot(task3.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+    }
+
+    @Test
+    public void testEvictsOnceWritten() {
+        mCache = new TaskSnapshotCache(mWm, mLoader, mPersister, 1 /* maxSizeBytes */);
+        final Task task1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1").getTask();
+        final Task task2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2").getTask();
+        final TaskSnapshot snapshot1 = createSnapshot();
+        mPersister.persistSnapshot(task1.mTaskId, mWm.mCurrentUserId, snapshot1);
+        mCache.putSnapshot(task1, snapshot1);
+        mCache.putSnapshot(task2, createSnapshot());
+
+        // The snapshot of task1 was not reported as written yet.
+        assertEquals(snapshot1, mCache.getSnapshot(task1.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+
+        mPersister.waitForQueueEmpty();
+        mCache.onSnapshotPersisted(snapshot1);
+
+        // Evicted, but still found by the lookups that don't restore from disk.
+        final TaskSnapshot restored = mCache.getSnapshot(task1.mTaskId, mWm.mCurrentUserId,
+                false /* restoreFromDisk */, false /* isLowResolution */);
+        assertNotNull(restored);
+        assertNotSame(snapshot1, restored);
+        assertFalse(snapshot1.getHardwareBuffer().isClosed());
+    }
+
+    @Test
+    public void testDoesNotEvictReplacedSnapshot() {
+        mCache = new TaskSnapshotCache(mWm, mLoader, mPersister, 1 /* maxSizeBytes */);
+        final Task task1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1").getTask();
+        final Task task2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2").getTask();
+        final TaskSnapshot snapshot1 = createSnapshot();
+        final TaskSnapshot newSnapshot1 = createSnapshot();
+        mCache.putSnapshot(task1, snapshot1);
+        mCache.putSnapshot(task1, newSnapshot1);
+        mCache.putSnapshot(task2, createSnapshot());
+
+        // The snapshot written is not the one cached, which isn't on disk yet.
+        mCache.onSnapshotPersisted(snapshot1);
+        assertEquals(newSnapshot1, mCache.getSnapshot(task1.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+    }
+
+    @Test
+    public void testDoesNotEvictUnpersisted() {
+        mCache = new TaskSnapshotCache(mWm, mLoader, mPersister, 1 /* maxSizeBytes */);
+        final Task task1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1").getTask();
+        final Task task2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2").getTask();
+        mCache.putSnapshot(task1, createSnapshot());
+        mCache.putSnapshot(task2, createSnapshot());
+
+        assertNotNull(mCache.getSnapshot(task1.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+        assertNotNull(mCache.getSnapshot(task2.mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* isLowResolution */));
+    }
+
     @Test
     public void testClearCache() {
         final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
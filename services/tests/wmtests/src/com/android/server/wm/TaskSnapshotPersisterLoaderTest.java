@@ -49,6 +49,8 @@ import org.junit.runner.RunWith;
 import org.mockito.MockitoSession;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Test class for {@link TaskSnapshotPersister} and {@link TaskSnapshotLoader}
@@ -111,6 +113,70 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertTrue(SystemClock.elapsedRealtime() - ms > 500);
     }
 
+    /**
+     * Tests that snapshots of a task taken while a previous one is queued replace it.
+     */
+    @Test
+    public void testCoalescing() {
+        final ArrayList<TaskSnapshot> persisted = new ArrayList<>();
+        mPersister.setOnSnapshotPersistedListener((taskId, userId, s) -> persisted.add(s));
+        final TaskSnapshot latest = new TaskSnapshotBuilder()
+                .setRotation(Surface.ROTATION_270)
+                .build();
+        mPersister.setPaused(true);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(1, mTestUserId, latest);
+        mPersister.setPaused(false);
+        mPersister.waitForQueueEmpty();
+        mPersister.setOnSnapshotPersistedListener(null);
+
+        // Only the snapshot that was written is reported.
+        assertEquals(Arrays.asList(latest), persisted);
+        final TaskSnapshot snapshot = mLoader.loadTask(1, mTestUserId,
+                false /* isLowResolution */);
+        assertNotNull(snapshot);
+        assertEquals(Surface.ROTATION_270, snapshot.getRotation());
+    }
+
+    @Test
+    public void testCoalescing_removedFromRecents() {
+        mPersister.setPaused(true);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.onTaskRemovedFromRecents(1, mTestUserId);
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
+        mPersister.setPaused(false);
+        mPersister.waitForQueueEmpty();
+
+        // The last snapshot must not have been deleted by the removal queued before it.
+        assertTrue(new File(FILES_DIR.getPath() + "/snapshots/1.proto").exists());
+    }
+
+    @Test
+    public void testRawCodecPersistAndLoadSnapshot() {
+        final TaskSnapshotPersister persister = new TaskSnapshotPersister(mWm,
+                userId -> FILES_DIR, TaskSnapshotCodec.RAW_CODEC);
+        final TaskSnapshotLoader loader = new TaskSnapshotLoader(persister);
+        persister.start();
+        persister.persistSnapshot(1, mTestUserId, createSnapshot());
+        persister.waitForQueueEmpty();
+        final File[] files = new File[]{new File(FILES_DIR.getPath() + "/snapshots/1.proto"),
+                new File(FILES_DIR.getPath() + "/snapshots/1.raw"),
+                new File(FILES_DIR.getPath() + "/snapshots/1_reduced.raw")};
+        assertTrueForFiles(files, File::exists, " must exist");
+
+        final TaskSnapshot snapshot = loader.loadTask(1, mTestUserId,
+                false /* isLowResolution */);
+        assertNotNull(snapshot);
+        assertEquals(MOCK_SNAPSHOT_ID, snapshot.getId());
+        assertEquals(TEST_INSETS, snapshot.getContentInsets());
+        final TaskSnapshot lowResSnapshot = loader.loadTask(1, mTestUserId,
+                true /* isLowResolution */);
+        assertNotNull(lowResSnapshot);
+
+        // Snapshots written with another codec are still found.
+        assertNotNull(mLoader.loadTask(1, mTestUserId, false /* isLowResolution */));
+    }
+
     /**
      * Tests that too many store write queue items are being purged.
      */
@@ -150,6 +216,8 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertEquals(12, removeObsoleteFilesQueueItem.getTaskId("12.proto"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1.jpg"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.jpg"));
+        assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1.raw"));
+        assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.raw"));
     }
 
     @Test
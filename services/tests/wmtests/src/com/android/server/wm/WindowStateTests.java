@@ -999,4 +999,17 @@ public class WindowStateTests extends WindowTestsBase {
         assertFalse(app.isVisible());
         assertTrue(app.isVisibleRequested());
     }
+
+    @Test
+    public void testDestroySurfaceWithNextFrame() {
+        final WindowState app = createWindow(null, TYPE_APPLICATION, "app");
+        spyOn(app.mWinAnimator);
+        final long merged = mWm.mSurfaceTransactionsMerged;
+
+        app.destroySurfaceUnchecked();
+
+        // The surface is removed with the pending transaction of the display.
+        verify(app.mWinAnimator).destroySurfaceLocked(eq(mDisplayContent.getPendingTransaction()));
+        assertEquals(merged + 1, mWm.mSurfaceTransactionsMerged);
+    }
 }
@@ -108,6 +108,20 @@ public final class PackagesTokenData {
         return token;
     }
 
+    /**
+     * Fetches the token mapped to the given package name without creating a new one.
+     *
+     * @param packageName the package name whose token is being fetched
+     * @return the mapped token or {@code PackagesTokenData.UNASSIGNED_TOKEN} if not mapped
+     */
+    public int getPackageToken(String packageName) {
+        final ArrayMap<String, Integer> packageTokensMap = packagesToTokensMap.get(packageName);
+        if (packageTokensMap == null) {
+            return UNASSIGNED_TOKEN;
+        }
+        return packageTokensMap.getOrDefault(packageName, UNASSIGNED_TOKEN);
+    }
+
     /**
      * Fetches the token mapped to the given key within the package's context. If there is no
      * mapping, a new token is created and the relevant mappings are updated.
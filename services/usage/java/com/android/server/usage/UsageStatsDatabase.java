@@ -16,6 +16,7 @@
 
 package com.android.server.usage;
 
+import android.annotation.Nullable;
 import android.app.usage.TimeSparseArray;
 import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
@@ -808,27 +809,71 @@ public class UsageStatsDatabase {
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
         synchronized (mLock) {
-            if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
-                throw new IllegalArgumentException("Bad interval type " + intervalType);
+            return queryStatsLocked(intervalType, beginTime, endTime, false,
+                    PackagesTokenData.UNASSIGNED_TOKEN, combiner);
+        }
+    }
+
+    /**
+     * Find the events of the daily {@link IntervalStats} for the given range, optionally only the
+     * ones of the given package.
+     * <p/>
+     * Unlike {@link #queryUsageStats}, only the end time and the events of the
+     * {@link IntervalStats} passed to the combiner are populated, and only the blocks of events
+     * which the event index of a file lists as overlapping the range and holding events of the
+     * package are read. The combiner still needs to filter the events it is given by time and
+     * package.
+     */
+    public <T> List<T> queryEvents(long beginTime, long endTime, @Nullable String packageName,
+            StatCombiner<T> combiner) {
+        synchronized (mLock) {
+            int packageToken = PackagesTokenData.UNASSIGNED_TOKEN;
+            if (packageName != null) {
+                packageToken = mPackagesTokenData.getPackageToken(packageName);
+                if (packageToken == PackagesTokenData.UNASSIGNED_TOKEN) {
+                    // Nothing on disk can belong to a package without a token.
+                    return null;
+                }
             }
+            return queryStatsLocked(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime, true,
+                    packageToken, combiner);
+        }
+    }
 
-            final TimeSparseArray<AtomicFile> intervalStats = mSortedStatFiles[intervalType];
+    private <T> List<T> queryStatsLocked(int intervalType, long beginTime, long endTime,
+            boolean eventsOnly, int packageToken, StatCombiner<T> combiner) {
+        if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
+            throw new IllegalArgumentException("Bad interval type " + intervalType);
+        }
 
-            if (endTime <= beginTime) {
-                if (DEBUG) {
-                    Slog.d(TAG, "endTime(" + endTime + ") <= beginTime(" + beginTime + ")");
-                }
-                return null;
+        final TimeSparseArray<AtomicFile> intervalStats = mSortedStatFiles[intervalType];
+
+        if (endTime <= beginTime) {
+            if (DEBUG) {
+                Slog.d(TAG, "endTime(" + endTime + ") <= beginTime(" + beginTime + ")");
             }
+            return null;
+        }
 
-            int startIndex = intervalStats.closestIndexOnOrBefore(beginTime);
-            if (startIndex < 0) {
-                // All the stats available have timestamps after beginTime, which means they all
-                // match.
-                startIndex = 0;
+        int startIndex = intervalStats.closestIndexOnOrBefore(beginTime);
+        if (startIndex < 0) {
+            // All the stats available have timestamps after beginTime, which means they all
+            // match.
+            startIndex = 0;
+        }
+
+        int endIndex = intervalStats.closestIndexOnOrBefore(endTime);
+        if (endIndex < 0) {
+            // All the stats start after this range ends, so nothing matches.
+            if (DEBUG) {
+                Slog.d(TAG, "No results for this range. All stats start after.");
             }
+            return null;
+        }
 
-            int endIndex = intervalStats.closestIndexOnOrBefore(endTime);
+        if (intervalStats.keyAt(endIndex) == endTime) {
+            // The endTime is exclusive, so if we matched exactly take the one before.
+            endIndex--;
             if (endIndex < 0) {
                 // All the stats start after this range ends, so nothing matches.
                 if (DEBUG) {
@@ -836,41 +881,33 @@ public class UsageStatsDatabase {
                 }
                 return null;
             }
+        }
 
-            if (intervalStats.keyAt(endIndex) == endTime) {
-                // The endTime is exclusive, so if we matched exactly take the one before.
-                endIndex--;
-                if (endIndex < 0) {
-                    // All the stats start after this range ends, so nothing matches.
-                    if (DEBUG) {
-                        Slog.d(TAG, "No results for this range. All stats start after.");
-                    }
-                    return null;
-                }
-            }
-
-            final ArrayList<T> results = new ArrayList<>();
-            for (int i = startIndex; i <= endIndex; i++) {
-                final AtomicFile f = intervalStats.valueAt(i);
-                final IntervalStats stats = new IntervalStats();
+        final ArrayList<T> results = new ArrayList<>();
+        for (int i = startIndex; i <= endIndex; i++) {
+            final AtomicFile f = intervalStats.valueAt(i);
+            final IntervalStats stats = new IntervalStats();
 
-                if (DEBUG) {
-                    Slog.d(TAG, "Reading stat file " + f.getBaseFile().getAbsolutePath());
-                }
+            if (DEBUG) {
+                Slog.d(TAG, "Reading stat file " + f.getBaseFile().getAbsolutePath());
+            }
 
-                try {
+            try {
+                if (eventsOnly) {
+                    readEventsLocked(f, stats, beginTime, endTime, packageToken);
+                } else {
                     readLocked(f, stats);
-                    if (beginTime < stats.endTime) {
-                        combiner.combine(stats, false, results);
-                    }
-                } catch (Exception e) {
-                    Slog.e(TAG, "Failed to read usage stats file", e);
-                    // We continue so that we return results that are not
-                    // corrupt.
                 }
+                if (beginTime < stats.endTime) {
+                    combiner.combine(stats, false, results);
+                }
+            } catch (Exception e) {
+                Slog.e(TAG, "Failed to read usage stats file", e);
+                // We continue so that we return results that are not
+                // corrupt.
             }
-            return results;
         }
+        return results;
     }
 
     /**
@@ -1080,6 +1117,29 @@ public class UsageStatsDatabase {
         readLocked(file, statsOut, mCurrentVersion, mPackagesTokenData);
     }
 
+    /**
+     * Reads the end time and the events of the given file which may fall within the given range
+     * and belong to the package of the given token, or of any package if it is
+     * {@link PackagesTokenData#UNASSIGNED_TOKEN}. Files without an event index are read in full.
+     */
+    private void readEventsLocked(AtomicFile file, IntervalStats statsOut, long beginTime,
+            long endTime, int packageToken) throws IOException {
+        if (mCurrentVersion < 5) {
+            readLocked(file, statsOut);
+            return;
+        }
+        try (FileInputStream in = file.openRead()) {
+            statsOut.beginTime = parseBeginTime(file);
+            if (UsageStatsProtoV2.readEvents(in.getChannel(), statsOut, beginTime, endTime,
+                    packageToken)) {
+                statsOut.deobfuscateData(mPackagesTokenData);
+            } else {
+                readLocked(in, statsOut, mCurrentVersion, mPackagesTokenData);
+            }
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+        }
+    }
+
     /**
      * Returns {@code true} if any stats were omitted while reading, {@code false} otherwise.
      * <p/>
@@ -22,13 +22,19 @@ import android.content.res.Configuration;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.util.proto.ProtoInputStream;
 import android.util.proto.ProtoOutputStream;
+import android.util.proto.ProtoParseException;
+import android.util.proto.ProtoStream;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Map;
@@ -492,17 +498,7 @@ final class UsageStatsProtoV2 {
                     }
                     break;
                 case (int) IntervalStatsObfuscatedProto.EVENT_LOG:
-                    try {
-                        final long eventsToken = proto.start(
-                                IntervalStatsObfuscatedProto.EVENT_LOG);
-                        UsageEvents.Event event = parseEvent(proto, stats.beginTime);
-                        proto.end(eventsToken);
-                        if (event != null) {
-                            stats.events.insert(event);
-                        }
-                    } catch (IOException e) {
-                        Slog.e(TAG, "Unable to read some events from proto.", e);
-                    }
+                    loadEvent(proto, stats);
                     break;
                 case ProtoInputStream.NO_MORE_FIELDS:
                     // update the begin and end time stamps for all usage stats
@@ -525,7 +521,9 @@ final class UsageStatsProtoV2 {
      */
     public static void write(OutputStream out, IntervalStats stats)
             throws IOException, IllegalArgumentException {
-        final ProtoOutputStream proto = new ProtoOutputStream(out);
+        // Everything but the event log is written first, on its own, so that the offsets of the
+        // event blocks following it are known.
+        final ProtoOutputStream proto = new ProtoOutputStream();
         proto.write(IntervalStatsObfuscatedProto.END_TIME_MS,
                 getOffsetTimestamp(stats.endTime, stats.beginTime));
         proto.write(IntervalStatsObfuscatedProto.MAJOR_VERSION, stats.majorVersion);
@@ -565,18 +563,301 @@ final class UsageStatsProtoV2 {
                 Slog.e(TAG, "Unable to write some configuration stats to proto.", e);
             }
         }
+        final byte[] header = proto.getBytes();
+        out.write(header);
+        writeEventLog(out, header.length, stats);
+        out.flush();
+    }
+
+    /***** Event index logic. *****/
+
+    /*
+     * The event log of an interval is written in blocks of EVENTS_PER_BLOCK events, followed by an
+     * index describing the time range and the packages of every block, and a fixed size trailer
+     * holding the offset of the index. This lets event queries read the index from the end of the
+     * file and then only the blocks they need.
+     *
+     * The index and the trailer are fields of the IntervalStatsObfuscatedProto message which
+     * readers of the whole file skip as unknown fields, so files with and without an index can be
+     * read by both read() and readEvents().
+     */
+    static final int EVENTS_PER_BLOCK = 64;
+
+    private static final long EVENT_INDEX = ProtoStream.makeFieldId(1000,
+            ProtoStream.FIELD_COUNT_SINGLE | ProtoStream.FIELD_TYPE_MESSAGE);
+    private static final long EVENT_INDEX_OFFSET = ProtoStream.makeFieldId(1001,
+            ProtoStream.FIELD_COUNT_SINGLE | ProtoStream.FIELD_TYPE_FIXED64);
+    // A two byte tag followed by the fixed64 offset of the index.
+    private static final int EVENT_INDEX_TRAILER_SIZE = 10;
+
+    // Fields of the event index. Times are offsets of the interval begin time.
+    private static final long EVENT_INDEX_END_TIME_MS = ProtoStream.makeFieldId(1,
+            ProtoStream.FIELD_COUNT_SINGLE | ProtoStream.FIELD_TYPE_INT64);
+    private static final long EVENT_INDEX_BLOCKS = ProtoStream.makeFieldId(2,
+            ProtoStream.FIELD_COUNT_REPEATED | ProtoStream.FIELD_TYPE_MESSAGE);
+
+    // Fields of an event block. The offset is from the start of the file.
+    private static final long EVENT_BLOCK_OFFSET = ProtoStream.makeFieldId(1,
+            ProtoStream.FIELD_COUNT_SINGLE | ProtoStream.FIELD_TYPE_INT64);
+    private static final long EVENT_BLOCK_LENGTH = ProtoStream.makeFieldId(2,
+            ProtoStream.FIELD_COUNT_SINGLE | ProtoStream.FIELD_TYPE_INT32);
+    private static final long EVENT_BLOCK_FIRST_TIME_MS = ProtoStream.makeFieldId(3,
+            ProtoStream.FIELD_COUNT_SINGLE | ProtoStream.FIELD_TYPE_INT64);
+    private static final long EVENT_BLOCK_LAST_TIME_MS = ProtoStream.makeFieldId(4,
+            ProtoStream.FIELD_COUNT_SINGLE | ProtoStream.FIELD_TYPE_INT64);
+    private static final long EVENT_BLOCK_PACKAGE_TOKENS = ProtoStream.makeFieldId(5,
+            ProtoStream.FIELD_COUNT_REPEATED | ProtoStream.FIELD_TYPE_INT32);
+
+    /** Location and summary of a block of events, as read from the event index. */
+    private static final class EventBlock {
+        long offset;
+        int length;
+        long firstTime;
+        long lastTime;
+        boolean hasPackage;
+    }
+
+    private static void loadEvent(ProtoInputStream proto, IntervalStats stats) {
+        try {
+            final long eventsToken = proto.start(IntervalStatsObfuscatedProto.EVENT_LOG);
+            UsageEvents.Event event = parseEvent(proto, stats.beginTime);
+            proto.end(eventsToken);
+            if (event != null) {
+                stats.events.insert(event);
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Unable to read some events from proto.", e);
+        }
+    }
+
+    /**
+     * Returns the time stamp an event written with the given time stamp is read back with, see
+     * {@link #writeOffsetTimestamp}.
+     */
+    private static long getReadTimestamp(long timestamp, long beginTime) {
+        if (timestamp > beginTime - ONE_HOUR_MS) {
+            return beginTime + getOffsetTimestamp(timestamp, beginTime);
+        }
+        return beginTime;
+    }
+
+    private static void writeEventLog(OutputStream out, long offset, IntervalStats stats)
+            throws IOException {
+        final ProtoOutputStream index = new ProtoOutputStream();
+        final long indexToken = index.start(EVENT_INDEX);
+        index.write(EVENT_INDEX_END_TIME_MS, getOffsetTimestamp(stats.endTime, stats.beginTime));
+
+        final SparseBooleanArray packageTokens = new SparseBooleanArray();
         final int eventCount = stats.events.size();
-        for (int i = 0; i < eventCount; i++) {
-            try {
-                final long token = proto.start(IntervalStatsObfuscatedProto.EVENT_LOG);
-                writeEvent(proto, stats.beginTime, stats.events.get(i));
-                proto.end(token);
-            } catch (IllegalArgumentException e) {
-                Slog.e(TAG, "Unable to write some events to proto.", e);
+        for (int start = 0; start < eventCount; start += EVENTS_PER_BLOCK) {
+            final int end = Math.min(start + EVENTS_PER_BLOCK, eventCount);
+            final ProtoOutputStream proto = new ProtoOutputStream();
+            long firstTime = Long.MAX_VALUE;
+            long lastTime = Long.MIN_VALUE;
+            packageTokens.clear();
+            for (int i = start; i < end; i++) {
+                final UsageEvents.Event event = stats.events.get(i);
+                try {
+                    final long token = proto.start(IntervalStatsObfuscatedProto.EVENT_LOG);
+                    writeEvent(proto, stats.beginTime, event);
+                    proto.end(token);
+                } catch (IllegalArgumentException e) {
+                    Slog.e(TAG, "Unable to write some events to proto.", e);
+                    continue;
+                }
+                final long time = getReadTimestamp(event.mTimeStamp, stats.beginTime);
+                firstTime = Math.min(firstTime, time);
+                lastTime = Math.max(lastTime, time);
+                if (event.mPackageToken != PackagesTokenData.UNASSIGNED_TOKEN) {
+                    packageTokens.put(event.mPackageToken, true);
+                }
+            }
+            final byte[] block = proto.getBytes();
+            if (block.length == 0) {
+                continue;
+            }
+            out.write(block);
+
+            final long blockToken = index.start(EVENT_INDEX_BLOCKS);
+            index.write(EVENT_BLOCK_OFFSET, offset);
+            index.write(EVENT_BLOCK_LENGTH, block.length);
+            index.write(EVENT_BLOCK_FIRST_TIME_MS, firstTime - stats.beginTime);
+            index.write(EVENT_BLOCK_LAST_TIME_MS, lastTime - stats.beginTime);
+            final int tokenCount = packageTokens.size();
+            for (int i = 0; i < tokenCount; i++) {
+                index.write(EVENT_BLOCK_PACKAGE_TOKENS, packageTokens.keyAt(i) + 1);
             }
+            index.end(blockToken);
+            offset += block.length;
         }
+        index.end(indexToken);
+        index.write(EVENT_INDEX_OFFSET, offset);
+        out.write(index.getBytes());
+    }
 
-        proto.flush();
+    /**
+     * Populates the events of a tokenized interval stats object which may fall within the given
+     * time range, and optionally belong to the given package, from the event index at the end of
+     * the file and the blocks of events it points to. Only the end time and events of the interval
+     * stats are read, and events outside of the range or of other packages may still be included.
+     *
+     * @param channel the channel of the interval stats file; its position is left unchanged.
+     * @param stats the interval stats object which will be populated; its begin time must be set.
+     * @param beginTime the inclusive beginning of the time range.
+     * @param endTime the exclusive end of the time range.
+     * @param packageToken the token of the package to read events of, or
+     *                     {@link PackagesTokenData#UNASSIGNED_TOKEN} to read all events.
+     * @return {@code false} if the file has no valid event index, in which case nothing was read
+     *         and it needs to be read in full with {@link #read}.
+     */
+    static boolean readEvents(FileChannel channel, IntervalStats stats, long beginTime,
+            long endTime, int packageToken) throws IOException {
+        final ArrayList<EventBlock> blocks;
+        try {
+            blocks = readEventIndex(channel, stats, packageToken);
+        } catch (IOException | ProtoParseException e) {
+            Slog.w(TAG, "Unable to read the event index from proto.", e);
+            return false;
+        }
+        if (blocks == null) {
+            return false;
+        }
+
+        // Neighboring blocks are adjacent in the file, so they are read at once.
+        long rangeStart = 0;
+        long rangeEnd = 0;
+        final int blockCount = blocks.size();
+        for (int i = 0; i <= blockCount; i++) {
+            final EventBlock block = i < blockCount ? blocks.get(i) : null;
+            if (block != null && (!block.hasPackage || block.lastTime < beginTime
+                    || block.firstTime >= endTime)) {
+                continue;
+            }
+            if (block != null && block.offset == rangeEnd) {
+                rangeEnd += block.length;
+                continue;
+            }
+            if (rangeEnd > rangeStart) {
+                try {
+                    loadEventLog(new ProtoInputStream(
+                            readFully(channel, rangeStart, (int) (rangeEnd - rangeStart))), stats);
+                } catch (ProtoParseException e) {
+                    Slog.e(TAG, "Unable to read some events from proto.", e);
+                }
+            }
+            if (block != null) {
+                rangeStart = block.offset;
+                rangeEnd = block.offset + block.length;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the end time of the interval and the blocks of the event index.
+     *
+     * @return the blocks in file order, or {@code null} if the file has no valid event index.
+     */
+    private static ArrayList<EventBlock> readEventIndex(FileChannel channel, IntervalStats stats,
+            int packageToken) throws IOException {
+        final long size = channel.size();
+        if (size < EVENT_INDEX_TRAILER_SIZE) {
+            return null;
+        }
+        final ProtoInputStream trailer = new ProtoInputStream(
+                readFully(channel, size - EVENT_INDEX_TRAILER_SIZE, EVENT_INDEX_TRAILER_SIZE));
+        if (trailer.nextField() != (int) EVENT_INDEX_OFFSET) {
+            return null;
+        }
+        final long indexOffset = trailer.readLong(EVENT_INDEX_OFFSET);
+        if (indexOffset <= 0 || indexOffset >= size - EVENT_INDEX_TRAILER_SIZE) {
+            return null;
+        }
+
+        final ProtoInputStream proto = new ProtoInputStream(readFully(channel, indexOffset,
+                (int) (size - EVENT_INDEX_TRAILER_SIZE - indexOffset)));
+        if (proto.nextField() != (int) EVENT_INDEX) {
+            return null;
+        }
+        final ArrayList<EventBlock> blocks = new ArrayList<>();
+        long endTime = stats.beginTime;
+        final long indexToken = proto.start(EVENT_INDEX);
+        while (true) {
+            switch (proto.nextField()) {
+                case (int) EVENT_INDEX_END_TIME_MS:
+                    endTime = stats.beginTime + proto.readLong(EVENT_INDEX_END_TIME_MS);
+                    break;
+                case (int) EVENT_INDEX_BLOCKS:
+                    final long blockToken = proto.start(EVENT_INDEX_BLOCKS);
+                    final EventBlock block = parseEventBlock(proto, stats.beginTime, packageToken);
+                    proto.end(blockToken);
+                    if (block.offset <= 0 || block.length <= 0
+                            || block.offset > indexOffset - block.length) {
+                        return null;
+                    }
+                    blocks.add(block);
+                    break;
+                case ProtoInputStream.NO_MORE_FIELDS:
+                    proto.end(indexToken);
+                    stats.endTime = endTime;
+                    return blocks;
+            }
+        }
+    }
+
+    private static EventBlock parseEventBlock(ProtoInputStream proto, long beginTime,
+            int packageToken) throws IOException {
+        final EventBlock block = new EventBlock();
+        block.firstTime = beginTime;
+        block.lastTime = beginTime;
+        block.hasPackage = packageToken == PackagesTokenData.UNASSIGNED_TOKEN;
+        while (true) {
+            switch (proto.nextField()) {
+                case (int) EVENT_BLOCK_OFFSET:
+                    block.offset = proto.readLong(EVENT_BLOCK_OFFSET);
+                    break;
+                case (int) EVENT_BLOCK_LENGTH:
+                    block.length = proto.readInt(EVENT_BLOCK_LENGTH);
+                    break;
+                case (int) EVENT_BLOCK_FIRST_TIME_MS:
+                    block.firstTime = beginTime + proto.readLong(EVENT_BLOCK_FIRST_TIME_MS);
+                    break;
+                case (int) EVENT_BLOCK_LAST_TIME_MS:
+                    block.lastTime = beginTime + proto.readLong(EVENT_BLOCK_LAST_TIME_MS);
+                    break;
+                case (int) EVENT_BLOCK_PACKAGE_TOKENS:
+                    if (proto.readInt(EVENT_BLOCK_PACKAGE_TOKENS) - 1 == packageToken) {
+                        block.hasPackage = true;
+                    }
+                    break;
+                case ProtoInputStream.NO_MORE_FIELDS:
+                    return block;
+            }
+        }
+    }
+
+    private static void loadEventLog(ProtoInputStream proto, IntervalStats stats)
+            throws IOException {
+        while (true) {
+            switch (proto.nextField()) {
+                case (int) IntervalStatsObfuscatedProto.EVENT_LOG:
+                    loadEvent(proto, stats);
+                    break;
+                case ProtoInputStream.NO_MORE_FIELDS:
+                    return;
+            }
+        }
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+        }
+        return buffer.array();
     }
 
     /***** Read/Write obfuscated packages data logic. *****/
@@ -418,6 +418,17 @@ class UserUsageStatsService {
      */
     private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
             StatCombiner<T> combiner) {
+        return queryStats(intervalType, beginTime, endTime, false, null, combiner);
+    }
+
+    /**
+     * Like {@link #queryStats(int, long, long, StatCombiner)}, but if {@code eventsOnly} is set,
+     * the stats read from disk only hold the events which may fall within the time range and
+     * belong to {@code packageName}, if not {@code null}, see
+     * {@link UsageStatsDatabase#queryEvents}.
+     */
+    private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
+            boolean eventsOnly, String packageName, StatCombiner<T> combiner) {
         if (intervalType == INTERVAL_BEST) {
             intervalType = mDatabase.findBestFitBucket(beginTime, endTime);
             if (intervalType < 0) {
@@ -456,8 +467,9 @@ class UserUsageStatsService {
         final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
 
         // Get the stats from disk.
-        List<T> results = mDatabase.queryUsageStats(intervalType, beginTime,
-                truncatedEndTime, combiner);
+        List<T> results = eventsOnly
+                ? mDatabase.queryEvents(beginTime, truncatedEndTime, packageName, combiner)
+                : mDatabase.queryUsageStats(intervalType, beginTime, truncatedEndTime, combiner);
         if (DEBUG) {
             Slog.d(TAG, "Got " + (results != null ? results.size() : 0) + " results from disk");
             Slog.d(TAG, "Current stats beginTime=" + currentStats.beginTime +
@@ -510,7 +522,7 @@ class UserUsageStatsService {
         }
         final ArraySet<String> names = new ArraySet<>();
         List<Event> results = queryStats(INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<Event>() {
+                beginTime, endTime, true, null, new StatCombiner<Event>() {
                     @Override
                     public void combine(IntervalStats stats, boolean mutable,
                             List<Event> accumulatedResult) {
@@ -574,7 +586,7 @@ class UserUsageStatsService {
         final ArraySet<String> names = new ArraySet<>();
         names.add(packageName);
         final List<Event> results = queryStats(INTERVAL_DAILY,
-                beginTime, endTime, (stats, mutable, accumulatedResult) -> {
+                beginTime, endTime, true, packageName, (stats, mutable, accumulatedResult) -> {
                     final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
                     final int size = stats.events.size();
                     for (int i = startIndex; i < size; i++) {
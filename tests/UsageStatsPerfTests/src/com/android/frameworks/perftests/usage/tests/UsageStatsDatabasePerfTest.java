@@ -42,6 +42,7 @@ import org.junit.runner.RunWith;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 @LargeTest
@@ -58,6 +59,15 @@ public class UsageStatsDatabasePerfTest {
     final static int LIGHT_USE = 10;
     // Represents how many usage events per app a device might have with heavy usage
     final static int HEAVY_USE = 50;
+    // Represents how many days of daily stats an event query typically spans
+    final static int WEEK_DAYS = 7;
+    // Represents how many consecutive events an app reports while it is being used
+    final static int EVENTS_PER_SESSION = 10;
+
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    // Start of the week of daily stats, well after the stats written by the other tests
+    private static final long WEEK_BEGIN_TIME = 1000 * DAY_MS;
 
     private static final StatCombiner<UsageEvents.Event> sUsageStatsCombiner =
             new StatCombiner<UsageEvents.Event>() {
@@ -100,6 +110,50 @@ public class UsageStatsDatabasePerfTest {
         }
     }
 
+    /**
+     * Writes a week of daily stats, in which apps take turns reporting sessions of events spread
+     * evenly over each day.
+     */
+    private static void putWeekOfDailyStats(int packageCount, int eventsPerPackage)
+            throws IOException {
+        final int eventCount = packageCount * eventsPerPackage;
+        for (int day = 0; day < WEEK_DAYS; day++) {
+            final IntervalStats intervalStats = new IntervalStats();
+            intervalStats.beginTime = WEEK_BEGIN_TIME + day * DAY_MS;
+            intervalStats.endTime = intervalStats.beginTime + DAY_MS;
+            for (int i = 0; i < eventCount; i++) {
+                UsageEvents.Event event = new UsageEvents.Event();
+                event.mPackage = "fake.package.name" + ((i / EVENTS_PER_SESSION) % packageCount);
+                event.mClass = event.mPackage + ".class1";
+                event.mTimeStamp = intervalStats.beginTime + i * (DAY_MS / eventCount);
+                event.mEventType = i % 2 == 0 ? UsageEvents.Event.ACTIVITY_RESUMED
+                        : UsageEvents.Event.ACTIVITY_PAUSED;
+                intervalStats.events.insert(event);
+            }
+            sUsageStatsDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, intervalStats);
+        }
+    }
+
+    /**
+     * Returns a combiner filtering events by time and package, like the event queries of
+     * UserUsageStatsService do.
+     */
+    private static StatCombiner<UsageEvents.Event> getEventCombiner(long beginTime, long endTime,
+            String packageName) {
+        return (stats, mutable, accResult) -> {
+            final int size = stats.events.size();
+            for (int i = stats.events.firstIndexOnOrAfter(beginTime); i < size; i++) {
+                final UsageEvents.Event event = stats.events.get(i);
+                if (event.mTimeStamp >= endTime) {
+                    return;
+                }
+                if (packageName == null || packageName.equals(event.mPackage)) {
+                    accResult.add(event);
+                }
+            }
+        };
+    }
+
     private static void clearUsageStatsFiles() {
         File[] intervalDirs = mTestDir.listFiles();
         for (File intervalDir : intervalDirs) {
@@ -128,6 +182,30 @@ public class UsageStatsDatabasePerfTest {
         }
     }
 
+    /**
+     * Queries the events of a week of heavy use for the given range and package, either by
+     * reading the whole daily files or through their event index.
+     */
+    private void runQueryEventsTest(long beginTime, long endTime, String packageName,
+            boolean useIndex) throws IOException {
+        final ManualBenchmarkState benchmarkState = mPerfManualStatusReporter.getBenchmarkState();
+        putWeekOfDailyStats(MANY_PKGS, HEAVY_USE);
+        final StatCombiner<UsageEvents.Event> combiner =
+                getEventCombiner(beginTime, endTime, packageName);
+        final int expectedCount = sUsageStatsDatabase.queryUsageStats(
+                UsageStatsManager.INTERVAL_DAILY, beginTime, endTime, combiner).size();
+        long elapsedTimeNs = 0;
+        while (benchmarkState.keepRunning(elapsedTimeNs)) {
+            final long startTimeNs = SystemClock.elapsedRealtimeNanos();
+            List<UsageEvents.Event> temp = useIndex
+                    ? sUsageStatsDatabase.queryEvents(beginTime, endTime, packageName, combiner)
+                    : sUsageStatsDatabase.queryUsageStats(UsageStatsManager.INTERVAL_DAILY,
+                            beginTime, endTime, combiner);
+            elapsedTimeNs = SystemClock.elapsedRealtimeNanos() - startTimeNs;
+            assertEquals(expectedCount, temp.size());
+        }
+    }
+
     private void runPutUsageStatsTest(int packageCount, int eventsPerPackage) throws IOException {
         final ManualBenchmarkState benchmarkState = mPerfManualStatusReporter.getBenchmarkState();
         IntervalStats intervalStats = new IntervalStats();
@@ -243,6 +321,40 @@ public class UsageStatsDatabasePerfTest {
         runPutUsageStatsTest(MANY_PKGS, HEAVY_USE);
     }
 
+    @Test
+    public void testQueryUsageStatsEvents_7DaysHeavyUse() throws IOException {
+        runQueryEventsTest(WEEK_BEGIN_TIME, WEEK_BEGIN_TIME + WEEK_DAYS * DAY_MS, null, false);
+    }
+
+    @Test
+    public void testQueryEvents_7DaysHeavyUse() throws IOException {
+        runQueryEventsTest(WEEK_BEGIN_TIME, WEEK_BEGIN_TIME + WEEK_DAYS * DAY_MS, null, true);
+    }
+
+    @Test
+    public void testQueryUsageStatsEvents_LastHourOf7DaysHeavyUse() throws IOException {
+        final long endTime = WEEK_BEGIN_TIME + WEEK_DAYS * DAY_MS;
+        runQueryEventsTest(endTime - HOUR_MS, endTime, null, false);
+    }
+
+    @Test
+    public void testQueryEvents_LastHourOf7DaysHeavyUse() throws IOException {
+        final long endTime = WEEK_BEGIN_TIME + WEEK_DAYS * DAY_MS;
+        runQueryEventsTest(endTime - HOUR_MS, endTime, null, true);
+    }
+
+    @Test
+    public void testQueryUsageStatsEvents_OnePkgOf7DaysHeavyUse() throws IOException {
+        runQueryEventsTest(WEEK_BEGIN_TIME, WEEK_BEGIN_TIME + WEEK_DAYS * DAY_MS,
+                "fake.package.name0", false);
+    }
+
+    @Test
+    public void testQueryEvents_OnePkgOf7DaysHeavyUse() throws IOException {
+        runQueryEventsTest(WEEK_BEGIN_TIME, WEEK_BEGIN_TIME + WEEK_DAYS * DAY_MS,
+                "fake.package.name0", true);
+    }
+
     @Test
     public void testObfuscateStats_ManyPkgsHeavyUse() {
         runObfuscateStatsTest(MANY_PKGS, HEAVY_USE);
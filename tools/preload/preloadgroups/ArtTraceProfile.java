@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the class initialization profile read by {@link PreloadGroups} from an ART method
+ * trace, as recorded by {@code am start --start-profiler} or {@code am profile start} without
+ * sampling or streaming.
+ *
+ * <p>The trace starts with a text header listing the threads and the methods, ended by
+ * {@code *end}, followed by binary records of method entries and exits. Every call of a static
+ * initializer, {@code <clinit>}, is a class initialization; its depth is the number of static
+ * initializers running on its thread when it starts.
+ */
+final class ArtTraceProfile {
+
+    static final String HEADER = "*version";
+    private static final String END = "*end\n";
+    private static final String CLASS_INITIALIZER = "<clinit>";
+
+    private static final int MAGIC = 0x574f4c53; // "SLOW"
+    private static final int RECORD_SIZE_SINGLE_CLOCK = 10;
+    private static final int RECORD_SIZE_DUAL_CLOCK = 14;
+    private static final int ACTION_MASK = 0x3;
+    private static final int ACTION_ENTER = 0;
+
+    /** A class initialization, in the order they started on a thread. */
+    private static final class ClassInit {
+        final int mDepth;
+        final String mClassName;
+        final long mStartUs;
+        long mTimeUs = -1;
+
+        ClassInit(int depth, String className, long startUs) {
+            mDepth = depth;
+            mClassName = className;
+            mStartUs = startUs;
+        }
+    }
+
+    private static final class ThreadInits {
+        final List<ClassInit> mInits = new ArrayList<>();
+        final ArrayDeque<ClassInit> mRunning = new ArrayDeque<>();
+    }
+
+    private ArtTraceProfile() {
+    }
+
+    /**
+     * @return whether {@code data} starts like an ART method trace.
+     */
+    static boolean isArtTrace(byte[] data, int length) {
+        final byte[] header = HEADER.getBytes(StandardCharsets.US_ASCII);
+        if (length < header.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (data[i] != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the class initialization profile of the ART method trace {@code data}, with a
+     *         {@code # thread} line before the initializations of each thread.
+     */
+    static String toProfile(String name, byte[] data) throws IOException {
+        final String text = new String(data, StandardCharsets.ISO_8859_1);
+        final int end = text.indexOf(END);
+        if (!text.startsWith(HEADER) || end < 0) {
+            throw new IOException(name + ": not an ART method trace");
+        }
+
+        // The text header: the trace options, then the threads and the methods.
+        final Map<Integer, String> threadNames = new HashMap<>();
+        final Map<Integer, String> classInitializers = new HashMap<>();
+        String section = null;
+        for (String line : text.substring(0, end).split("\n")) {
+            if (line.startsWith("*")) {
+                section = line;
+                continue;
+            }
+            final String[] fields = line.split("\t");
+            if ("*version".equals(section)) {
+                if (line.equals("data-file-overflow=true")) {
+                    System.err.println(name + ": the trace buffer overflowed, the profile only"
+                            + " covers the start of the trace");
+                }
+            } else if ("*threads".equals(section) && fields.length >= 2) {
+                threadNames.put(Integer.parseInt(fields[0]), fields[1]);
+            } else if ("*methods".equals(section) && fields.length >= 3
+                    && fields[2].equals(CLASS_INITIALIZER)) {
+                classInitializers.put(Integer.decode(fields[0]), fields[1]);
+            }
+        }
+
+        // The binary header: magic, version, offset of the records, start time and, from
+        // version 3, the size of the records.
+        final ByteBuffer buffer = ByteBuffer.wrap(data, end + END.length(),
+                data.length - end - END.length()).slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+            throw new IOException(name + ": bad ART method trace magic");
+        }
+        final int version = buffer.getShort() & 0xffff;
+        final int offset = buffer.getShort() & 0xffff;
+        buffer.getLong();
+        final int recordSize = version >= 3 ? buffer.getShort() & 0xffff
+                : RECORD_SIZE_SINGLE_CLOCK;
+        if (version < 2 || (recordSize != RECORD_SIZE_SINGLE_CLOCK
+                && recordSize != RECORD_SIZE_DUAL_CLOCK)) {
+            throw new IOException(name + ": unsupported ART method trace version " + version);
+        }
+        buffer.position(offset);
+
+        final Map<Integer, ThreadInits> threads = new LinkedHashMap<>();
+        long lastUs = 0;
+        while (buffer.remaining() >= recordSize) {
+            final int threadId = buffer.getShort() & 0xffff;
+            final int methodValue = buffer.getInt();
+            if (recordSize == RECORD_SIZE_DUAL_CLOCK) {
+                // The thread CPU time, the wall clock time follows.
+                buffer.getInt();
+            }
+            final long timeUs = buffer.getInt() & 0xffffffffL;
+            lastUs = Math.max(lastUs, timeUs);
+
+            final String className = classInitializers.get(methodValue & ~ACTION_MASK);
+            if (className == null) {
+                continue;
+            }
+            final ThreadInits thread = threads.computeIfAbsent(threadId, id -> new ThreadInits());
+            if ((methodValue & ACTION_MASK) == ACTION_ENTER) {
+                final ClassInit init = new ClassInit(thread.mRunning.size(), className, timeUs);
+                thread.mInits.add(init);
+                thread.mRunning.push(init);
+            } else if (!thread.mRunning.isEmpty()) {
+                // An exit, or an unwind when the initializer threw.
+                final ClassInit init = thread.mRunning.pop();
+                init.mTimeUs = timeUs - init.mStartUs;
+            }
+        }
+
+        final StringBuilder profile = new StringBuilder();
+        for (Map.Entry<Integer, ThreadInits> entry : threads.entrySet()) {
+            profile.append("# thread ").append(entry.getKey()).append(' ')
+                    .append(threadNames.getOrDefault(entry.getKey(), "?")).append('\n');
+            for (ClassInit init : entry.getValue().mInits) {
+                // Still running when the trace stopped.
+                final long timeUs = init.mTimeUs >= 0 ? init.mTimeUs : lastUs - init.mStartUs;
+                profile.append(init.mDepth).append(' ').append(timeUs).append(' ')
+                        .append(init.mClassName).append('\n');
+            }
+        }
+        return profile.toString();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Rebuilds preloaded-classes from class initialization profiles recorded on devices, split into
+ * groups that the zygote can load in parallel (see ZygoteInit#PRELOAD_GROUP_MARKER).
+ *
+ * <p>A profile has a line per class initialization, in the order they started on a thread:
+ * <pre>
+ *   &lt;depth&gt; &lt;time in us&gt; &lt;class name&gt;
+ * </pre>
+ * where depth is 0 for an initialization that was not triggered by the static initializer of
+ * another class, and one more than the initialization that triggered it otherwise. Lines starting
+ * with '#' separate threads and are otherwise ignored.
+ *
+ * <p>A profile can also be an ART method trace, see {@link ArtTraceProfile}. The classes that the
+ * zygote preloads are already initialized in the apps, so record on a device whose
+ * /system/etc/preloaded-classes is empty, one trace per app process of the scenario:
+ * <pre>
+ *   adb shell am start -S -W --start-profiler /data/local/tmp/&lt;app&gt;.trace &lt;component&gt;
+ *   # exercise the app, then
+ *   adb shell am profile stop &lt;process&gt;
+ *   adb pull /data/local/tmp/&lt;app&gt;.trace
+ * </pre>
+ * Neither {@code --sampling} nor {@code --streaming} may be given: sampled traces miss the
+ * static initializers, and streamed traces use another format.
+ *
+ * <p>A class is preloaded if enough processes initialize it, or if its initialization is slow.
+ * Classes whose initializations nested in any profile end up in the same group, so that no two
+ * groups run each other's static initializers. The groups are then packed into a few balanced
+ * groups, the slowest first.
+ *
+ * <p>Usage: preloadgroups [--min-processes N] [--min-time-us N] [--groups N]
+ *         [--denylist FILE] PROFILE... &gt; preloaded-classes
+ */
+class PreloadGroups {
+
+    private static final String GROUP_MARKER = "# preload-group";
+
+    /** Statistics of a class over all the profiles. */
+    private static final class ClassStats {
+        final String mName;
+        /** The order in which the class was first seen, to keep initialization order. */
+        final int mOrder;
+        ClassStats mParent;
+        int mProcesses;
+        long mMaxTimeUs;
+        boolean mPreload;
+
+        ClassStats(String name, int order) {
+            mName = name;
+            mOrder = order;
+        }
+
+        ClassStats root() {
+            ClassStats root = this;
+            while (root.mParent != null) {
+                root = root.mParent;
+            }
+            // Shorten the paths for the next lookups.
+            for (ClassStats c = this; c != root; ) {
+                final ClassStats next = c.mParent;
+                c.mParent = root;
+                c = next;
+            }
+            return root;
+        }
+    }
+
+    /** Classes of a group, in initialization order. */
+    private static final class Group {
+        final List<ClassStats> mClasses = new ArrayList<>();
+        long mTimeUs;
+    }
+
+    private final Map<String, ClassStats> mClasses = new LinkedHashMap<>();
+    private final Set<String> mDenylist = new HashSet<>();
+
+    public static void main(String[] args) throws IOException {
+        int minProcesses = 2;
+        long minTimeUs = 1250;
+        int groupCount = 16;
+        final PreloadGroups preloadGroups = new PreloadGroups();
+        final List<String> profiles = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--min-processes":
+                    minProcesses = Integer.parseInt(args[++i]);
+                    break;
+                case "--min-time-us":
+                    minTimeUs = Long.parseLong(args[++i]);
+                    break;
+                case "--groups":
+                    groupCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--denylist":
+                    preloadGroups.readDenylist(args[++i]);
+                    break;
+                default:
+                    profiles.add(args[i]);
+                    break;
+            }
+        }
+        if (profiles.isEmpty() || groupCount < 1) {
+            System.err.println("Usage: preloadgroups [--min-processes N] [--min-time-us N]"
+                    + " [--groups N] [--denylist FILE] PROFILE...");
+            System.exit(1);
+        }
+
+        for (String profile : profiles) {
+            preloadGroups.readProfile(profile);
+        }
+        preloadGroups.write(System.out, profiles.size(), minProcesses, minTimeUs, groupCount);
+    }
+
+    void readDenylist(String path) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (!line.startsWith("#") && !line.isEmpty()) {
+                    mDenylist.add(line);
+                }
+            }
+        }
+    }
+
+    void readProfile(String path) throws IOException {
+        final byte[] data = Files.readAllBytes(Paths.get(path));
+        final String profile = ArtTraceProfile.isArtTrace(data, data.length)
+                ? ArtTraceProfile.toProfile(path, data)
+                : new String(data, StandardCharsets.UTF_8);
+        readProfile(path, new BufferedReader(new StringReader(profile)));
+    }
+
+    /**
+     * Reads the profile of a process.
+     *
+     * @param source the name of the profile, for the errors
+     */
+    void readProfile(String source, BufferedReader reader) throws IOException {
+        final Set<ClassStats> seen = new HashSet<>();
+        // The initializations in progress, indexed by depth.
+        final List<ClassStats> stack = new ArrayList<>();
+        try (BufferedReader br = reader) {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith("#")) {
+                    stack.clear();
+                    continue;
+                }
+                final String[] fields = line.split("\\s+");
+                final int depth;
+                final long timeUs;
+                try {
+                    depth = Integer.parseInt(fields[0]);
+                    timeUs = Long.parseLong(fields[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException(source + ":" + lineNumber + ": malformed line: " + line);
+                }
+                if (fields.length != 3 || depth < 0 || depth > stack.size()) {
+                    throw new IOException(source + ":" + lineNumber + ": malformed line: " + line);
+                }
+
+                final String name = fields[2];
+                ClassStats stats = mClasses.get(name);
+                if (stats == null) {
+                    stats = new ClassStats(name, mClasses.size());
+                    mClasses.put(name, stats);
+                }
+                if (seen.add(stats)) {
+                    stats.mProcesses++;
+                }
+                stats.mMaxTimeUs = Math.max(stats.mMaxTimeUs, timeUs);
+
+                while (stack.size() > depth) {
+                    stack.remove(stack.size() - 1);
+                }
+                if (depth > 0) {
+                    union(stack.get(depth - 1), stats);
+                }
+                stack.add(stats);
+            }
+        }
+    }
+
+    private static void union(ClassStats a, ClassStats b) {
+        final ClassStats rootA = a.root();
+        final ClassStats rootB = b.root();
+        if (rootA != rootB) {
+            // Keep the class seen first as the root, it does not matter which one otherwise.
+            if (rootA.mOrder < rootB.mOrder) {
+                rootB.mParent = rootA;
+            } else {
+                rootA.mParent = rootB;
+            }
+        }
+    }
+
+    void write(PrintStream out, int profileCount, int minProcesses, long minTimeUs,
+            int groupCount) {
+        // Collect the groups of the preloaded classes. A denied class is not preloaded, but
+        // still groups the classes it initialized, which may be initialized from elsewhere.
+        final Map<ClassStats, Group> groupsByRoot = new LinkedHashMap<>();
+        for (ClassStats stats : mClasses.values()) {
+            stats.mPreload = !mDenylist.contains(stats.mName)
+                    && (stats.mProcesses >= minProcesses || stats.mMaxTimeUs >= minTimeUs);
+            if (!stats.mPreload) {
+                continue;
+            }
+            final Group group = groupsByRoot.computeIfAbsent(stats.root(), root -> new Group());
+            group.mClasses.add(stats);
+            group.mTimeUs += stats.mMaxTimeUs;
+        }
+
+        // Longest processing time first: give the slowest remaining group to the least loaded
+        // bucket. Merging independent groups is safe, their classes are just loaded in order.
+        final List<Group> groups = new ArrayList<>(groupsByRoot.values());
+        groups.sort((a, b) -> Long.compare(b.mTimeUs, a.mTimeUs));
+        final PriorityQueue<Group> buckets = new PriorityQueue<>(
+                (a, b) -> Long.compare(a.mTimeUs, b.mTimeUs));
+        for (Group group : groups) {
+            if (buckets.size() < groupCount) {
+                buckets.add(group);
+                continue;
+            }
+            final Group bucket = buckets.poll();
+            bucket.mClasses.addAll(group.mClasses);
+            bucket.mTimeUs += group.mTimeUs;
+            buckets.add(bucket);
+        }
+
+        final List<Group> result = new ArrayList<>(buckets);
+        result.sort((a, b) -> Long.compare(b.mTimeUs, a.mTimeUs));
+        out.println("# Generated by preloadgroups from " + profileCount + " profiles,");
+        out.println("# --min-processes " + minProcesses + " --min-time-us " + minTimeUs
+                + " --groups " + groupCount + ".");
+        for (Group group : result) {
+            group.mClasses.sort((a, b) -> Integer.compare(a.mOrder, b.mOrder));
+            out.println(GROUP_MARKER);
+            out.println("# " + group.mClasses.size() + " classes, " + group.mTimeUs + "us");
+            for (ClassStats stats : group.mClasses) {
+                out.println(stats.mName);
+            }
+        }
+    }
+}
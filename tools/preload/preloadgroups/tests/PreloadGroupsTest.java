@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link PreloadGroups} and {@link ArtTraceProfile}.
+ *
+ * Build/Install/Run:
+ *  atest preloadgroups-tests
+ */
+@RunWith(JUnit4.class)
+public class PreloadGroupsTest {
+
+    @Test
+    public void testNestedInitializationsShareGroup() throws Exception {
+        final String profile = "0 10 A\n1 10 B\n2 10 C\n1 10 D\n0 10 E\n# thread\n0 10 F\n";
+        final List<List<String>> groups = write(16, 1, 1000, profile);
+
+        assertEquals(3, groups.size());
+        // Initialization order is kept within a group.
+        assertTrue(groups.contains(Arrays.asList("A", "B", "C", "D")));
+        assertTrue(groups.contains(Arrays.asList("E")));
+        assertTrue(groups.contains(Arrays.asList("F")));
+    }
+
+    @Test
+    public void testNestingAcrossProfilesMergesGroups() throws Exception {
+        // A and C are independent in the first process, but C initialized A in the second.
+        final List<List<String>> groups = write(16, 1, 1000,
+                "0 10 A\n1 10 B\n0 10 C\n", "0 10 C\n1 10 A\n");
+
+        assertEquals(1, groups.size());
+        assertEquals(Arrays.asList("A", "B", "C"), groups.get(0));
+    }
+
+    @Test
+    public void testSelection() throws Exception {
+        final File denylist = File.createTempFile("denylist", ".txt");
+        try {
+            try (FileWriter writer = new FileWriter(denylist)) {
+                writer.write("# denied\nDenied\n");
+            }
+            final PreloadGroups preloadGroups = new PreloadGroups();
+            preloadGroups.readDenylist(denylist.getPath());
+            // Used by two processes, slow, used once and fast, and denied.
+            readProfile(preloadGroups, "0 10 Shared\n0 5000 Slow\n0 10 Once\n0 10 Denied\n"
+                    + "1 10 Nested\n");
+            readProfile(preloadGroups, "0 10 Shared\n0 10 Denied\n1 10 Nested\n");
+            final List<List<String>> groups = write(preloadGroups, 2, 2, 1000);
+
+            final List<String> classes = new ArrayList<>();
+            groups.forEach(classes::addAll);
+            assertEquals(3, classes.size());
+            assertTrue(classes.contains("Shared"));
+            assertTrue(classes.contains("Slow"));
+            assertTrue(classes.contains("Nested"));
+        } finally {
+            denylist.delete();
+        }
+    }
+
+    @Test
+    public void testPacking() throws Exception {
+        final List<List<String>> groups = write(2, 1, 1000,
+                "0 5 A\n0 4 B\n0 3 C\n0 3 D\n0 2 E\n0 1 F\n");
+
+        // Longest processing time first: {A, D, F} and {B, C, E}, 9us each.
+        assertEquals(2, groups.size());
+        assertTrue(groups.contains(Arrays.asList("A", "D", "F")));
+        assertTrue(groups.contains(Arrays.asList("B", "C", "E")));
+    }
+
+    @Test
+    public void testMoreGroupsThanClasses() throws Exception {
+        final List<List<String>> groups = write(16, 1, 1000, "0 10 A\n1 10 B\n");
+
+        assertEquals(1, groups.size());
+        assertEquals(Arrays.asList("A", "B"), groups.get(0));
+    }
+
+    @Test
+    public void testMalformedProfile() throws Exception {
+        for (String profile : new String[] {"1 10 A\n", "0 10\n", "0 x A\n", "0 10 A B\n"}) {
+            try {
+                readProfile(new PreloadGroups(), profile);
+                fail("Expected an IOException for " + profile);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testArtTraceProfile() throws Exception {
+        final String header = "*version\n3\ndata-file-overflow=false\nclock=dual\n"
+                + "*threads\n1\tmain\n2\tworker\n"
+                + "*methods\n0x4\tA\t<clinit>\t()V\tA.java\n0x8\tFoo\tbar\t()V\tFoo.java\n"
+                + "0xc\tB\t<clinit>\t()V\tB.java\n0x10\tC\t<clinit>\t()V\tC.java\n"
+                + "*end\n";
+        final ByteBuffer records = ByteBuffer.allocate(32 + 14 * 10)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        records.putInt(0x574f4c53).putShort((short) 3).putShort((short) 32).putLong(0)
+                .putShort((short) 14);
+        records.position(32);
+        // A initializes B from a method it calls, C runs on another thread, and B throws.
+        putRecord(records, 1, 0x4, 0);
+        putRecord(records, 2, 0x10, 1);
+        putRecord(records, 1, 0x8, 5);
+        putRecord(records, 1, 0xc, 10);
+        putRecord(records, 2, 0x10 | 1, 8);
+        putRecord(records, 1, 0xc | 2, 30);
+        putRecord(records, 1, 0x8 | 1, 40);
+        putRecord(records, 1, 0x4 | 1, 100);
+        // Still running at the end of the trace.
+        putRecord(records, 2, 0x4, 110);
+        putRecord(records, 2, 0x8, 120);
+
+        final byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+        final byte[] trace = new byte[headerBytes.length + records.capacity()];
+        System.arraycopy(headerBytes, 0, trace, 0, headerBytes.length);
+        System.arraycopy(records.array(), 0, trace, headerBytes.length, records.capacity());
+
+        assertTrue(ArtTraceProfile.isArtTrace(trace, trace.length));
+        assertEquals("# thread 1 main\n0 100 A\n1 20 B\n# thread 2 worker\n0 7 C\n0 10 A\n",
+                ArtTraceProfile.toProfile("test", trace));
+        assertFalse(ArtTraceProfile.isArtTrace("0 10 A\n".getBytes(StandardCharsets.US_ASCII),
+                7));
+    }
+
+    private static void putRecord(ByteBuffer records, int threadId, int methodValue,
+            int timeUs) {
+        records.putShort((short) threadId).putInt(methodValue).putInt(timeUs).putInt(timeUs);
+    }
+
+    private static void readProfile(PreloadGroups preloadGroups, String profile)
+            throws IOException {
+        preloadGroups.readProfile("test", new BufferedReader(new StringReader(profile)));
+    }
+
+    private static List<List<String>> write(int groupCount, int minProcesses, long minTimeUs,
+            String... profiles) throws IOException {
+        final PreloadGroups preloadGroups = new PreloadGroups();
+        for (String profile : profiles) {
+            readProfile(preloadGroups, profile);
+        }
+        return write(preloadGroups, groupCount, minProcesses, minTimeUs);
+    }
+
+    /**
+     * @return the classes of each group written by {@code preloadGroups}.
+     */
+    private static List<List<String>> write(PreloadGroups preloadGroups, int groupCount,
+            int minProcesses, long minTimeUs) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        preloadGroups.write(new PrintStream(out), 1, minProcesses, minTimeUs, groupCount);
+
+        final List<List<String>> groups = new ArrayList<>();
+        List<String> group = null;
+        for (String line : out.toString().split("\n")) {
+            if (line.equals("# preload-group")) {
+                group = new ArrayList<>();
+                groups.add(group);
+            } else if (!line.startsWith("#")) {
+                assertTrue("class before the first group: " + line, group != null);
+                group.add(line);
+            }
+        }
+        return groups;
+    }
+}